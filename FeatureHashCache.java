@@ -0,0 +1,86 @@
+package android.server.power.nextapp;
+
+import java.util.Arrays;
+
+/**
+ * Per-package FNV state shared by the gating and ranking encoders, indexed by
+ * PackageRegistry id. Each entry holds the hash of every "field=" + pkg prefix
+ * the encoders use, so encoding only mixes the remaining characters and never
+ * builds a String. Indices are bit-identical to
+ * FeatureHasher.index(prefix + pkg + ..., mask).
+ *
+ * Shared by the scoring and training threads without a lock: entries are
+ * immutable (final fields), so the only race is two threads computing the same
+ * entry or growing the array at once, which at worst recomputes an entry later.
+ */
+public final class FeatureHashCache {
+
+    public static final class Pkg {
+        public final String pkg;
+
+        // complete unary features
+        public final int a;     // "A=" + pkg
+        public final int b;     // "B=" + pkg
+        public final int p;     // "P=" + pkg
+
+        // cross prefixes, still open for the second operand
+        public final int aB;    // "A#B=" + pkg + "#"
+        public final int aT;    // "A#T=" + pkg + "#"
+        public final int aR;    // "A#R=" + pkg + "#"
+        public final int aP;    // "A#P=" + pkg + "#"
+        public final int bT;    // "B#T=" + pkg + "#"
+        public final int bR;    // "B#R=" + pkg + "#"
+        public final int pB;    // "P#B=" + pkg + "#"
+
+        Pkg(String pkg) {
+            this.pkg = pkg;
+            a = FeatureHasher.mix(FeatureHasher.hash32("A="), pkg);
+            b = FeatureHasher.mix(FeatureHasher.hash32("B="), pkg);
+            p = FeatureHasher.mix(FeatureHasher.hash32("P="), pkg);
+            aB = cross("A#B=", pkg);
+            aT = cross("A#T=", pkg);
+            aR = cross("A#R=", pkg);
+            aP = cross("A#P=", pkg);
+            bT = cross("B#T=", pkg);
+            bR = cross("B#R=", pkg);
+            pB = cross("P#B=", pkg);
+        }
+
+        private static int cross(String field, String pkg) {
+            return FeatureHasher.mix(FeatureHasher.mix(FeatureHasher.hash32(field), pkg), '#');
+        }
+    }
+
+    // stands in for an id released while a scorer was still holding it
+    private static final Pkg RELEASED = new Pkg("");
+
+    private final PackageRegistry mPackages;
+    private Pkg[] mById = new Pkg[64];
+
+    public FeatureHashCache(PackageRegistry packages) {
+        mPackages = packages;
+    }
+
+    /**
+     * Returns cached hashes for a live package id; allocates only on first sight
+     * of a package (or after its id was recycled for a different name). An id
+     * that is no longer live (released concurrently) gets its last entry, or a
+     * placeholder; callers drop such candidates anyway.
+     */
+    public Pkg get(int id) {
+        if (id < 0) throw new IllegalArgumentException("bad package id " + id);
+        final String name = mPackages.nameOf(id);
+        Pkg[] byId = mById;
+        Pkg e = id < byId.length ? byId[id] : null;
+        if (name == null) return e != null ? e : RELEASED;
+        if (e == null || e.pkg != name) {
+            e = new Pkg(name);
+            if (id >= byId.length) {
+                byId = Arrays.copyOf(byId, Math.max(id + 1, byId.length * 2));
+                mById = byId;
+            }
+            byId[id] = e;
+        }
+        return e;
+    }
+}
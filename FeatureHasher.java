@@ -5,16 +5,44 @@ public final class FeatureHasher {
     private FeatureHasher() {}
 
     // FNV-1a 32-bit (stable, fast)
+    static final int FNV_OFFSET = 0x811c9dc5;
+    private static final int FNV_PRIME = 0x01000193;
+
     public static int hash32(String s) {
-        int h = 0x811c9dc5;
+        return mix(FNV_OFFSET, s);
+    }
+
+    public static int index(String feature, int mask) {
+        return hash32(feature) & mask; // mask = dim-1 (dim is pow2)
+    }
+
+    // ---- incremental mixing: hash32(a + b) == mix(hash32(a), b) ----
+
+    public static int mix(int h, String s) {
         for (int i = 0; i < s.length(); i++) {
             h ^= s.charAt(i);
-            h *= 0x01000193;
+            h *= FNV_PRIME;
         }
         return h;
     }
 
-    public static int index(String feature, int mask) {
-        return hash32(feature) & mask; // mask = dim-1 (dim is pow2)
+    public static int mix(int h, char c) {
+        h ^= c;
+        return h * FNV_PRIME;
+    }
+
+    /** Same as mix(h, Integer.toString(v)) without building the string. */
+    public static int mixInt(int h, int v) {
+        long x = v;
+        if (x < 0) {
+            h = mix(h, '-');
+            x = -x;
+        }
+        long div = 1;
+        while (div * 10 <= x) div *= 10;
+        for (; div > 0; div /= 10) {
+            h = mix(h, (char) ('0' + (x / div) % 10));
+        }
+        return h;
     }
 }
@@ -0,0 +1,116 @@
+package android.server.power.nextapp;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * HyperLogLog sketch of the distinct feature keys (full 32-bit hashes, before
+ * masking) a model has trained on. It does not depend on hashDimPow2, so it
+ * survives a dimension change and tells how many buckets the features need:
+ * with n keys in 2^p buckets, a key shares its bucket with another one with
+ * probability 1 - (1 - 2^-p)^(n-1).
+ *
+ * 2^P registers of one byte, about 3% standard error. Single writer (the
+ * training encoders); readers (dump) may see slightly stale registers.
+ */
+public final class FeatureKeySketch {
+    public static final int P = 10;
+    public static final int REGISTERS = 1 << P;
+
+    private static final int MIN_POW2 = 8;
+    private static final int MAX_POW2 = 26;
+
+    private final byte[] mRegs = new byte[REGISTERS];
+    private boolean mChanged;   // since the last copyTo()
+
+    /** Records one feature key (a hash before masking). */
+    public void add(int key) {
+        final int h = fmix(key);
+        final int reg = h >>> (32 - P);
+        final int rank = Integer.numberOfLeadingZeros((h << P) | (1 << (P - 1))) + 1;
+        if (rank > mRegs[reg]) {
+            mRegs[reg] = (byte) rank;
+            mChanged = true;
+        }
+    }
+
+    /** Estimated number of distinct keys. */
+    public double estimate() {
+        double sum = 0;
+        int zeros = 0;
+        for (int i = 0; i < REGISTERS; i++) {
+            sum += Math.scalb(1.0, -mRegs[i]);
+            if (mRegs[i] == 0) zeros++;
+        }
+        final double alpha = 0.7213 / (1 + 1.079 / REGISTERS);
+        final double e = alpha * REGISTERS * REGISTERS / sum;
+        if (e <= 2.5 * REGISTERS && zeros > 0) {
+            return REGISTERS * Math.log((double) REGISTERS / zeros); // linear counting
+        }
+        return e;
+    }
+
+    /** Probability that one of keys distinct keys shares its bucket among 2^pow2. */
+    public static double collisionRate(double keys, int pow2) {
+        if (keys <= 1) return 0;
+        return -Math.expm1((keys - 1) * Math.log1p(-Math.scalb(1.0, -pow2)));
+    }
+
+    /** Smallest hashDimPow2 whose collisionRate() is at most target. */
+    public static int recommendedPow2(double keys, float target) {
+        int p = MIN_POW2;
+        while (p < MAX_POW2 && collisionRate(keys, p) > target) p++;
+        return p;
+    }
+
+    // ---- persistence / checkpoint snapshot (writer only) ----
+
+    public boolean hasChanges() { return mChanged; }
+
+    /** Copies the registers (1 KB) into dst, a checkpoint shadow, and hands it the changed flag. */
+    public void copyTo(FeatureKeySketch dst) {
+        System.arraycopy(mRegs, 0, dst.mRegs, 0, REGISTERS);
+        dst.mChanged |= mChanged;
+        mChanged = false;
+    }
+
+    byte[] registers() { return mRegs; }
+
+    /** Called once the registers have been persisted. */
+    void clearChanges() { mChanged = false; }
+
+    void clear() {
+        Arrays.fill(mRegs, (byte) 0);
+        mChanged = false;
+    }
+
+    /**
+     * Prints the key estimate and, for hashDimPow2 around the configured one,
+     * the expected collision rate of each model plus the recommended dimension.
+     */
+    public static void dump(PrintWriter pw, String prefix, int pow2, float target,
+                            FeatureKeySketch gating, FeatureKeySketch rank) {
+        final double g = gating.estimate();
+        final double r = rank.estimate();
+        pw.println(prefix + String.format(Locale.ROOT,
+                "featureKeys: gating~%.0f rank~%.0f (recommended hashDim=2^%d for %.0f%% collisions)",
+                g, r, recommendedPow2(Math.max(g, r), target), target * 100));
+        final StringBuilder sb = new StringBuilder(prefix).append("  collisions:");
+        for (int p = Math.max(MIN_POW2, pow2 - 3); p <= Math.min(MAX_POW2, pow2 + 3); p++) {
+            sb.append(String.format(Locale.ROOT, " 2^%d%s=%.1f%%/%.1f%%", p, p == pow2 ? "*" : "",
+                    collisionRate(g, p) * 100, collisionRate(r, p) * 100));
+        }
+        pw.println(sb);
+    }
+
+    /** murmur3 finalizer: FNV's high bits are weak, HLL needs them mixed. */
+    private static int fmix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
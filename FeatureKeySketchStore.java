@@ -0,0 +1,83 @@
+package android.server.power.nextapp;
+
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists the gating and ranking FeatureKeySketch registers:
+ *
+ *   int  MAGIC, VERSION, P
+ *   byte[2^P] gating registers, byte[2^P] ranking registers
+ *   int  CRC32C of everything above
+ */
+public final class FeatureKeySketchStore {
+    private static final String TAG = "NextAppKeySketchStore";
+    private static final int MAGIC = 0x4E415048; // "NAPH"
+    private static final int VERSION = 1;
+
+    private final AtomicFile mFile;
+
+    public FeatureKeySketchStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /** Returns bytes written, or -1 on failure. */
+    public long write(FeatureKeySketch gating, FeatureKeySketch rank) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fos, crc));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(FeatureKeySketch.P);
+            out.write(gating.registers());
+            out.write(rank.registers());
+            out.flush();
+            // trailer is not part of the checksum
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+            fos.getFD().sync();
+            mFile.finishWrite(fos);
+            gating.clearChanges();
+            rank.clearChanges();
+            return mFile.getBaseFile().length();
+        } catch (Throwable t) {
+            Slog.e(TAG, "Key sketch save failed: " + mFile.getBaseFile(), t);
+            if (fos != null) mFile.failWrite(fos);
+            return -1;
+        }
+    }
+
+    /** Loads both sketches; returns false (and leaves them empty) on any error. */
+    public boolean readInto(FeatureKeySketch gating, FeatureKeySketch rank) {
+        try (FileInputStream fis = mFile.openRead()) {
+            CRC32C crc = new CRC32C();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(fis, crc));
+            if (in.readInt() != MAGIC) return false;
+            if (in.readInt() != VERSION) return false;
+            if (in.readInt() != FeatureKeySketch.P) return false;
+            in.readFully(gating.registers());
+            in.readFully(rank.registers());
+            final int expect = (int) crc.getValue();
+            if (new DataInputStream(fis).readInt() != expect) {
+                gating.clear();
+                rank.clear();
+                return false;
+            }
+            return true;
+        } catch (Throwable t) {
+            gating.clear();
+            rank.clear();
+            return false;
+        }
+    }
+}
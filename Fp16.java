@@ -0,0 +1,63 @@
+package android.server.power.nextapp;
+
+/**
+ * IEEE 754 binary16 conversions for the half-precision LR weights
+ * (see OnlineLogisticModel). A half is carried in a short.
+ *
+ * toHalf() rounds to nearest even. toHalfStochastic() rounds up with
+ * probability equal to the dropped fraction, so SGD steps smaller than half
+ * an ulp still move the weight in expectation instead of vanishing.
+ */
+final class Fp16 {
+    private Fp16() { }
+
+    /** Exact. On the scoring path, so branch-free except for inf/NaN. */
+    static float toFloat(short h) {
+        final int bits = h & 0xffff;
+        final int sign = (bits & 0x8000) << 16;
+        final int abs = bits & 0x7fff;
+        if (abs >= 0x7c00) return Float.intBitsToFloat(sign | 0x7f800000 | ((abs & 0x3ff) << 13));
+        // the half's exponent and mantissa land in the float's fields 112 too low
+        // (for subnormals too); scaling by 2^112 rebiases exactly
+        return Float.intBitsToFloat(sign | (abs << 13)) * 0x1p112f;
+    }
+
+    static short toHalf(float f) {
+        final int bits = Float.floatToRawIntBits(f);
+        final int sign = (bits >>> 16) & 0x8000;
+        final int abs = bits & 0x7fffffff;
+        if (abs >= 0x477ff000) {
+            // >= 65520 rounds to infinity; NaN stays NaN
+            return (short) (sign | 0x7c00 | (abs > 0x7f800000 ? 0x200 : 0));
+        }
+        if (abs < 0x38800000) return (short) (sign | subnormal(abs));
+        int h = (abs >>> 13) - (112 << 10); // rebias 127 -> 15
+        final int rem = abs & 0x1fff;
+        if (rem > 0x1000 || (rem == 0x1000 && (h & 1) != 0)) h++; // carry may bump the exponent
+        return (short) (sign | h);
+    }
+
+    /** Stochastic rounding; rnd supplies random bits (only the low 13 are used). */
+    static short toHalfStochastic(float f, int rnd) {
+        final int bits = Float.floatToRawIntBits(f);
+        final int abs = bits & 0x7fffffff;
+        if (abs >= 0x477ff000 || abs < 0x38800000) return toHalf(f); // rare; nearest is fine
+        final int sign = (bits >>> 16) & 0x8000;
+        int h = (abs >>> 13) - (112 << 10);
+        if ((abs & 0x1fff) + (rnd & 0x1fff) >= 0x2000) h++;
+        return (short) (sign | h);
+    }
+
+    /** Magnitude bits of a float below the smallest normal half, rounded to nearest even. */
+    private static int subnormal(int abs) {
+        if (abs < 0x33000000) return 0; // below 2^-25
+        final int e = abs >>> 23;
+        final int m = (abs & 0x7fffff) | 0x800000;
+        final int shift = 126 - e;
+        int h = m >>> shift;
+        final int rem = m & ((1 << shift) - 1);
+        final int halfway = 1 << (shift - 1);
+        if (rem > halfway || (rem == halfway && (h & 1) != 0)) h++;
+        return h;
+    }
+}
@@ -0,0 +1,401 @@
+package android.server.power.nextapp;
+
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+
+/**
+ * FTRL-Proximal state and weights for the touched coordinates of a hashed
+ * LR model (per-coordinate learning rates, L1 gives exact zeros).
+ *
+ * Coordinates live in an open-addressing table (linear probing) that holds
+ * (z, n, w) per feature index, so memory and checkpoint size follow the number
+ * of live features rather than the hash dimension. w is kept up to date on
+ * every step, so serving reads a single float.
+ *
+ * Coordinates L1 holds at zero with little history (n < RECLAIM_MAX_N) are
+ * dropped whenever the table is rebuilt: on growth and at every checkpoint
+ * (compact()); dropping one only forgets its small z, its weight stays 0. The
+ * table never exceeds the dense footprint (4 bytes per hash bucket, so at most
+ * dim / 4 slots). When it is full at that size, a rebuild drops every zero
+ * weight and, if that is not enough, the smallest |w| down to half load, so
+ * the eviction cost is amortized over a quarter of the table's inserts. An
+ * evicted coordinate restarts from 0 without history if it comes back.
+ *
+ * Thread safety: one writer (update, setters, copyFrom, compact); get() is
+ * lock-free. Within a table slots are only ever filled, never moved, and a new
+ * key is published after a release fence; rebuilds publish a fully built table
+ * through a volatile field. A reader sees each weight as 0 or as some value the
+ * writer stored.
+ *
+ * McMahan et al., "Ad Click Prediction: a View from the Trenches", 2013.
+ */
+public final class FtrlWeights {
+    private static final int INITIAL_CAPACITY = 1024;
+    // zero weights with less accumulated squared gradient than this are dropped on rebuilds
+    private static final float RECLAIM_MAX_N = 1f;
+
+    private final float mAlpha;
+    private final float mBeta;
+    private final float mL1;
+    private final float mL2;
+    private final int mMaxEntries;      // the hash dimension
+    private final int mMaxCapacity;     // slots; 16 bytes each, so at most the dense 4 x dim bytes
+
+    private static final class Table {
+        final int[] keys;    // feature index + 1, 0 = empty
+        final float[] w;
+        final float[] z;
+        final float[] n;
+        int size;
+
+        Table(int capacity) {
+            keys = new int[capacity];
+            w = new float[capacity];
+            z = new float[capacity];
+            n = new float[capacity];
+        }
+    }
+
+    private volatile Table mTable;
+    private float[] mScratch = new float[0]; // eviction threshold selection
+
+    // stats (writer only, racy reads)
+    private volatile long mReclaimed;
+    private volatile long mEvicted;
+
+    // bias: an FTRL coordinate without L1 (writer only; the model serves it)
+    private float mBiasZ;
+    private float mBiasN;
+
+    public FtrlWeights(int hashDimPow2, float alpha, float beta, float l1, float l2) {
+        mAlpha = alpha;
+        mBeta = beta;
+        mL1 = l1;
+        mL2 = l2;
+        mMaxEntries = 1 << hashDimPow2;
+        mMaxCapacity = Math.max(16, mMaxEntries >>> 2);
+        mTable = new Table(Math.min(INITIAL_CAPACITY, mMaxCapacity));
+    }
+
+    /** Weight of feature idx; 0 if never touched. Lock-free. */
+    public float get(int idx) {
+        final Table t = mTable;
+        final int[] keys = t.keys;
+        final int mask = keys.length - 1;
+        final int key = idx + 1;
+        for (int s = spread(idx) & mask; ; s = (s + 1) & mask) {
+            final int k = keys[s];
+            if (k == 0) return 0f;
+            if (k == key) {
+                VarHandle.acquireFence(); // pairs with the release in slotFor()
+                return t.w[s];
+            }
+        }
+    }
+
+    /** One FTRL step on feature idx (x = 1) with gradient g; returns the new weight. */
+    public float update(int idx, float g) {
+        return update(idx, g, g * g);
+    }
+
+    /**
+     * One FTRL step for a batch of examples that all contain feature idx: g is
+     * their summed gradient and gSq the sum of their squared gradients, so n
+     * (and the per-coordinate learning rate) grows as with one step per example.
+     */
+    public float update(int idx, float g, float gSq) {
+        final Table t = mTable;
+        final int s = slotFor(t, idx);
+        final Table cur = mTable; // slotFor() may have rebuilt the table
+        final float n = cur.n[s];
+        final float nNew = n + gSq;
+        final float sigma = ((float) Math.sqrt(nNew) - (float) Math.sqrt(n)) / mAlpha;
+        final float z = cur.z[s] + g - sigma * cur.w[s];
+        cur.z[s] = z;
+        cur.n[s] = nNew;
+        final float w = weight(z, nNew, mL1);
+        cur.w[s] = w;
+        return w;
+    }
+
+    /** FTRL step for the bias; returns the new bias. */
+    public float updateBias(float bias, float g) {
+        return updateBias(bias, g, g * g);
+    }
+
+    /** Batch FTRL step for the bias (see update(int, float, float)). */
+    public float updateBias(float bias, float g, float gSq) {
+        final float nNew = mBiasN + gSq;
+        final float sigma = ((float) Math.sqrt(nNew) - (float) Math.sqrt(mBiasN)) / mAlpha;
+        mBiasZ += g - sigma * bias;
+        mBiasN = nNew;
+        return weight(mBiasZ, mBiasN, 0f);
+    }
+
+    /** Number of stored coordinates (including ones L1 holds at exactly 0). */
+    public int size() { return mTable.size; }
+
+    /** Approximate heap held by the table: 16 bytes per slot. */
+    public long memoryBytes() { return 16L * mTable.keys.length; }
+
+    /** Coordinates dropped by rebuilds so far (zero weight, little history). */
+    public long reclaimedCount() { return mReclaimed; }
+
+    /** Non-zero coordinates dropped to make room at the dense footprint. */
+    public long evictedCount() { return mEvicted; }
+
+    /**
+     * Drops reclaimable coordinates and resizes the table to fit the rest
+     * (checkpoint time; writer). Returns the number dropped.
+     */
+    public int compact() {
+        final Table t = mTable;
+        final int live = countKept(t, RECLAIM_MAX_N);
+        final int cap = capacityFor(live);
+        if (live == t.size && cap == t.keys.length) return 0;
+        rebuild(t, RECLAIM_MAX_N, 0f, cap);
+        mReclaimed += t.size - live;
+        return t.size - live;
+    }
+
+    /** Number of coordinates with a non-zero weight. Writer only. */
+    public int nonZeroCount() {
+        final Table t = mTable;
+        int nz = 0;
+        for (int s = 0; s < t.keys.length; s++) {
+            if (t.keys[s] != 0 && t.w[s] != 0f) nz++;
+        }
+        return nz;
+    }
+
+    // ---- persistence / migration (writer only) ----
+
+    public float getBiasZ() { return mBiasZ; }
+    public float getBiasN() { return mBiasN; }
+
+    public void setBiasState(float z, float n) {
+        mBiasZ = z;
+        mBiasN = n;
+    }
+
+    /** Sets the bias state so the bias is b with no history (n = 0). */
+    public void setBiasValue(float b) {
+        mBiasZ = zFor(b, 0f, 0f);
+        mBiasN = 0f;
+    }
+
+    /**
+     * Copies every touched coordinate, in table order, as (idx, w, z, n) into
+     * four parallel arrays of at least size() entries. Returns the count.
+     */
+    public int export(int[] idx, float[] w, float[] z, float[] n) {
+        final Table t = mTable;
+        int c = 0;
+        for (int s = 0; s < t.keys.length; s++) {
+            if (t.keys[s] == 0) continue;
+            idx[c] = t.keys[s] - 1;
+            w[c] = t.w[s];
+            z[c] = t.z[s];
+            n[c] = t.n[s];
+            c++;
+        }
+        return c;
+    }
+
+    /** Stores one coordinate exactly as persisted. */
+    public void put(int idx, float w, float z, float n) {
+        if (idx < 0 || idx >= mMaxEntries) return;
+        final Table t = mTable;
+        final int s = slotFor(t, idx);
+        final Table cur = mTable;
+        cur.z[s] = z;
+        cur.n[s] = n;
+        cur.w[s] = w;
+    }
+
+    /**
+     * Replaces the state with dense weights (e.g. an SGD model being switched to
+     * FTRL): each non-zero weight becomes a coordinate with no history (n = 0)
+     * whose z reproduces it exactly. If they do not fit the table cap, only the
+     * largest |w| are kept, down to half load as an eviction would.
+     */
+    public void setDense(float[] dense) {
+        clear();
+        final int len = Math.min(dense.length, mMaxEntries);
+        int nonZero = 0;
+        for (int i = 0; i < len; i++) {
+            if (dense[i] != 0f) nonZero++;
+        }
+        float minAbsW = 0f;
+        final int keep = mMaxCapacity / 2;
+        if (nonZero > keep) {
+            if (mScratch.length < nonZero) mScratch = new float[nonZero];
+            int c = 0;
+            for (int i = 0; i < len; i++) {
+                if (dense[i] != 0f) mScratch[c++] = Math.abs(dense[i]);
+            }
+            Arrays.sort(mScratch, 0, c);
+            minAbsW = mScratch[nonZero - keep];
+        }
+        for (int i = 0; i < len; i++) {
+            final float w = dense[i];
+            if (w == 0f) continue;
+            if (Math.abs(w) < minAbsW) {
+                mEvicted++;
+                continue;
+            }
+            put(i, w, zFor(w, 0f, mL1), 0f);
+        }
+    }
+
+    /** Scatters the weights into a dense array of the full dimension. */
+    public void expandTo(float[] dense) {
+        Arrays.fill(dense, 0f);
+        final Table t = mTable;
+        for (int s = 0; s < t.keys.length; s++) {
+            final int k = t.keys[s];
+            if (k != 0 && k - 1 < dense.length) dense[k - 1] = t.w[s];
+        }
+    }
+
+    public void clear() {
+        mTable = new Table(Math.min(INITIAL_CAPACITY, mMaxCapacity));
+        mBiasZ = 0f;
+        mBiasN = 0f;
+    }
+
+    /** Makes this an exact copy of src (checkpoint snapshot); reuses the table when it fits. */
+    public void copyFrom(FtrlWeights src) {
+        final Table from = src.mTable;
+        Table to = mTable;
+        if (to.keys.length != from.keys.length) {
+            to = new Table(from.keys.length);
+        }
+        System.arraycopy(from.keys, 0, to.keys, 0, from.keys.length);
+        System.arraycopy(from.w, 0, to.w, 0, from.w.length);
+        System.arraycopy(from.z, 0, to.z, 0, from.z.length);
+        System.arraycopy(from.n, 0, to.n, 0, from.n.length);
+        to.size = from.size;
+        mTable = to;
+        mBiasZ = src.mBiasZ;
+        mBiasN = src.mBiasN;
+    }
+
+    // ---- internals ----
+
+    /** w = 0 if |z| <= l1, else -(z - sign(z) * l1) / ((beta + sqrt(n)) / alpha + l2). */
+    private float weight(float z, float n, float l1) {
+        if (Math.abs(z) <= l1) return 0f;
+        final float num = z - Math.signum(z) * l1;
+        return -num / ((mBeta + (float) Math.sqrt(n)) / mAlpha + mL2);
+    }
+
+    /** Inverse of weight() for a given n. */
+    private float zFor(float w, float n, float l1) {
+        if (w == 0f) return 0f;
+        return -(w * ((mBeta + (float) Math.sqrt(n)) / mAlpha + mL2) + Math.signum(w) * l1);
+    }
+
+    /** Slot of idx in the current table, inserting it (rebuilding the table) if needed. */
+    private int slotFor(Table t, int idx) {
+        final int key = idx + 1;
+        int mask = t.keys.length - 1;
+        int s = spread(idx) & mask;
+        for (; t.keys[s] != 0; s = (s + 1) & mask) {
+            if (t.keys[s] == key) return s;
+        }
+        if (full(t)) {
+            t = makeRoom(t);
+            mask = t.keys.length - 1;
+            s = spread(idx) & mask;
+            while (t.keys[s] != 0) s = (s + 1) & mask;
+        }
+        // values of a new slot are zero already; publish the key last
+        VarHandle.releaseFence();
+        t.keys[s] = key;
+        t.size++;
+        return s;
+    }
+
+    /** No room for one more key: load 1/2 below the cap, 3/4 at it. */
+    private boolean full(Table t) {
+        final int len = t.keys.length;
+        return len < mMaxCapacity ? (t.size + 1) * 2 > len : (t.size + 1) * 4 > len * 3;
+    }
+
+    /**
+     * Rebuilds t for one more key: drops reclaimable coordinates and grows up
+     * to mMaxCapacity; at the cap it drops zero weights and then the smallest
+     * |w| until the table is half full.
+     */
+    private Table makeRoom(Table t) {
+        final int kept = countKept(t, RECLAIM_MAX_N);
+        final int cap = capacityFor(kept + 1);
+        if (cap < mMaxCapacity || (kept + 1) * 2 <= cap) {
+            mReclaimed += t.size - kept;
+            return rebuild(t, RECLAIM_MAX_N, 0f, cap);
+        }
+        final int keep = mMaxCapacity / 2;
+        final int nonZero = countKept(t, Float.POSITIVE_INFINITY);
+        mReclaimed += t.size - nonZero; // every zero weight goes
+        if (nonZero <= keep) return rebuild(t, Float.POSITIVE_INFINITY, 0f, mMaxCapacity);
+
+        // the (nonZero - keep)-th smallest |w| among non-zero weights
+        if (mScratch.length < nonZero) mScratch = new float[t.keys.length];
+        int c = 0;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != 0 && t.w[i] != 0f) mScratch[c++] = Math.abs(t.w[i]);
+        }
+        Arrays.sort(mScratch, 0, c);
+        final float minAbsW = Math.nextUp(mScratch[nonZero - keep - 1]);
+        final Table r = rebuild(t, Float.POSITIVE_INFINITY, minAbsW, mMaxCapacity);
+        mEvicted += nonZero - r.size;
+        return r;
+    }
+
+    /** Smallest power-of-two capacity holding live keys at load 1/2, at most mMaxCapacity. */
+    private int capacityFor(int live) {
+        int cap = Math.min(INITIAL_CAPACITY, mMaxCapacity);
+        while (cap < mMaxCapacity && live * 2 > cap) cap *= 2;
+        return cap;
+    }
+
+    /** Keys a rebuild with this threshold keeps. */
+    private static int countKept(Table t, float reclaimMaxN) {
+        int kept = 0;
+        for (int i = 0; i < t.keys.length; i++) {
+            if (t.keys[i] != 0 && !(t.w[i] == 0f && t.n[i] < reclaimMaxN)) kept++;
+        }
+        return kept;
+    }
+
+    /**
+     * Copies the coordinates that are kept (not a zero weight with n below
+     * reclaimMaxN, |w| at least minAbsW) into a new table of capacity slots
+     * and publishes it.
+     */
+    private Table rebuild(Table old, float reclaimMaxN, float minAbsW, int capacity) {
+        final Table t = new Table(capacity);
+        final int mask = t.keys.length - 1;
+        for (int i = 0; i < old.keys.length; i++) {
+            final int k = old.keys[i];
+            if (k == 0) continue;
+            final float w = old.w[i];
+            if ((w == 0f && old.n[i] < reclaimMaxN) || Math.abs(w) < minAbsW) continue;
+            int s = spread(k - 1) & mask;
+            while (t.keys[s] != 0) s = (s + 1) & mask;
+            t.keys[s] = k;
+            t.w[s] = w;
+            t.z[s] = old.z[i];
+            t.n[s] = old.n[i];
+            t.size++;
+        }
+        mTable = t; // volatile: publishes the filled table
+        return t;
+    }
+
+    private static int spread(int idx) {
+        final int h = idx * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
@@ -7,35 +7,56 @@ import java.util.Arrays;
  * Keeps feature count small.
  */
 public final class GatingFeatureEncoder {
+    // field prefixes for context features (hash of "T=", "R=", ...)
+    private static final int H_T = FeatureHasher.hash32("T=");
+    private static final int H_R = FeatureHasher.hash32("R=");
+    private static final int H_BB = FeatureHasher.hash32("BB=");
+    private static final int H_MP0 = FeatureHasher.hash32("MP=0");
+    private static final int H_MP1 = FeatureHasher.hash32("MP=1");
+
     // reuse buffer to avoid allocations
     private final int[] mIdxBuf;
     private final int mMask;
+    private final FeatureHashCache mHashes;
+    private final FeatureKeySketch mKeys; // nullable
+
+    public GatingFeatureEncoder(int dimMask, int maxFeatures, FeatureHashCache hashes) {
+        this(dimMask, maxFeatures, hashes, null);
+    }
 
-    public GatingFeatureEncoder(int dimMask, int maxFeatures) {
+    /** @param keys if non-null, records every feature key encoded (training encoders) */
+    public GatingFeatureEncoder(int dimMask, int maxFeatures, FeatureHashCache hashes,
+                                FeatureKeySketch keys) {
         mMask = dimMask;
         mIdxBuf = new int[maxFeatures];
+        mHashes = hashes;
+        mKeys = keys;
     }
 
     /**
      * Returns number of features written into internal buffer.
      * Access indices via getBuf().
+     *
+     * @param prevPkg id of ctx.prevForegroundPkg, or PackageRegistry.NO_ID
      */
-    public int encode(String pkgA, NextAppContext ctx) {
+    public int encode(int pkgA, int prevPkg, NextAppContext ctx) {
+        final FeatureHashCache.Pkg a = mHashes.get(pkgA);
         int n = 0;
         // Core
-        mIdxBuf[n++] = FeatureHasher.index("A=" + pkgA, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("T=" + ctx.timeBucket, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("R=" + ctx.allowReason, mMask);
+        mIdxBuf[n++] = index(a.a);                                          // "A=" + A
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(H_T, ctx.timeBucket));    // "T=" + t
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(H_R, ctx.allowReason));   // "R=" + r
 
         // Optional: previous foreground
-        if (ctx.prevForegroundPkg != null) {
-            mIdxBuf[n++] = FeatureHasher.index("P=" + ctx.prevForegroundPkg, mMask);
-            mIdxBuf[n++] = FeatureHasher.index("A#P=" + pkgA + "#" + ctx.prevForegroundPkg, mMask);
+        if (prevPkg != PackageRegistry.NO_ID) {
+            final FeatureHashCache.Pkg p = mHashes.get(prevPkg);
+            mIdxBuf[n++] = index(p.p);                              // "P=" + P
+            mIdxBuf[n++] = index(FeatureHasher.mix(a.aP, p.pkg));   // "A#P=" + A + "#" + P
         }
 
         // Optional: coarse power state (mostly for safety; can be removed)
-        mIdxBuf[n++] = FeatureHasher.index("BB=" + ctx.batteryBucket, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("MP=" + (ctx.maxPowerMode ? 1 : 0), mMask);
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(H_BB, ctx.batteryBucket));
+        mIdxBuf[n++] = index(ctx.maxPowerMode ? H_MP1 : H_MP0);
 
         // de-dup indices if you care (usually not needed for binary sparse)
         // Arrays.sort(mIdxBuf, 0, n); // optional
@@ -43,4 +64,9 @@ public final class GatingFeatureEncoder {
     }
 
     public int[] getBuf() { return mIdxBuf; }
+
+    private int index(int key) {
+        if (mKeys != null) mKeys.add(key);
+        return key & mMask;
+    }
 }
@@ -3,71 +3,643 @@ package android.server.power.nextapp;
 import android.util.AtomicFile;
 import android.util.Slog;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
 
+/**
+ * LR weights as a full base file plus an append-only journal of dirty pages.
+ *
+ * write() replaces the base atomically and starts a new journal. writeDelta()
+ * appends one record with the model's delta-dirty pages (see
+ * OnlineLogisticModel) and falls back to write() once the journal would exceed
+ * its budget. Load reads the base and replays the journal on top of it.
+ *
+ * Base, version 2 (MAGIC and VERSION big-endian, the rest little-endian):
+ *   int MAGIC, VERSION, hashDimPow2; float bias; int len, reserved
+ *   float[len] weights at offset 24
+ *   int CRC32C of everything above
+ * The float block is written and read in bulk through a FloatBuffer view
+ * (mapped on load). Version 1 (big-endian, no checksum) still loads.
+ *
+ * Half base, version 4, for half-precision models: the version 2 layout with
+ * short[len] fp16 weights (see Fp16) instead of floats. Its journal records
+ * carry fp16 pages too. Dense bases of either width load into either kind of
+ * dense model; fp32 values are rounded to nearest.
+ *
+ * Sparse base, version 3, for FTRL models (same byte order as version 2):
+ *   int MAGIC, VERSION, hashDimPow2; float bias; int count; float biasZ, biasN;
+ *   int reserved; count x (int idx, float w, z, n); int CRC32C
+ * Its size follows the number of touched features. FTRL models always write
+ * full sparse bases (no journal). Either kind of base loads into either kind
+ * of model: a dense base seeds FTRL coordinates without history, a sparse one
+ * expands into dense weights.
+ *
+ * Journal (big-endian): header (MAGIC, CRC32C of the base it applies to,
+ * hashDimPow2), then records (RECORD_MAGIC, bias, pageCount, pageCount x (page,
+ * floats), CRC32C). Pages are written and replayed in bulk through buffer
+ * views. A journal whose header does not match the base (crash between base
+ * rename and journal reset) is stale and discarded; a torn tail record is
+ * truncated. Journals only extend dense bases: a dense model loaded from a
+ * sparse base rewrites a dense base before its first delta, and a journal
+ * found next to a sparse base (written by older code) is folded into the
+ * loaded weights.
+ */
 public final class LrAtomicStore {
     private static final String TAG = "NextAppLrStore";
     private static final int MAGIC = 0x4E41504C; // "NAPL"
-    private static final int VERSION = 1;
+    private static final int VERSION = 2;
+    private static final int VERSION_1 = 1;
+    private static final int VERSION_SPARSE = 3;
+    private static final int VERSION_HALF = 4;
+    private static final int HEADER_BYTES_SPARSE = 32;
+    private static final int SPARSE_ENTRY_BYTES = 16;
+    private static final int HEADER_BYTES = 24;
+    private static final int HEADER_BYTES_V1 = 20;
+    private static final int MAX_POW2 = 26;
+    private static final int CHUNK_BYTES = 16 * 1024;
+    private static final int JOURNAL_MAGIC = 0x4E41504A; // "NAPJ"
+    private static final int RECORD_MAGIC = 0x4E415052;  // "NAPR"
+    private static final int JOURNAL_HEADER_BYTES = 12;
+
+    public static final long DEFAULT_JOURNAL_MAX_BYTES = 64 * 1024;
 
     private final AtomicFile mFile;
+    private final File mJournal;
+    private final long mJournalMaxBytes;
+
+    // base the journal applies to; mBaseCrc < 0 means no usable base yet
+    private long mBaseCrc = -1;
+    private int mBasePow2 = -1;
+    private boolean mBaseHalf;        // journal pages are fp16
+    private boolean mBaseSparse;      // no journal on top: the next delta is a full write
+    private long mJournalBytes = 0;
+
+    // write scratch, allocated on first write
+    private ByteBuffer mChunk;
+    private int[] mSparseIdx = new int[0];
+    private float[] mSparseW = new float[0];
+    private float[] mSparseZ = new float[0];
+    private float[] mSparseN = new float[0];
 
     public LrAtomicStore(File file) {
+        this(file, DEFAULT_JOURNAL_MAX_BYTES);
+    }
+
+    public LrAtomicStore(File file, long journalMaxBytes) {
         mFile = new AtomicFile(file);
+        mJournal = new File(file.getPath() + ".journal");
+        mJournalMaxBytes = journalMaxBytes;
     }
 
-    public void write(OnlineLogisticModel lr) {
+    /** Full snapshot: rewrites the base and resets the journal. Returns bytes written, or -1. */
+    public long write(OnlineLogisticModel lr) {
         FileOutputStream fos = null;
         try {
             fos = mFile.startWrite();
-            DataOutputStream out = new DataOutputStream(fos);
+            FileChannel ch = fos.getChannel();
+            CRC32C crc = new CRC32C();
+            if (mChunk == null) mChunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+            final ByteBuffer chunk = mChunk;
 
-            out.writeInt(MAGIC);
-            out.writeInt(VERSION);
-            out.writeInt(lr.getHashDimPow2());
-            out.writeFloat(lr.getBias());
+            chunk.clear();
+            if (lr.isSparse()) {
+                writeSparseBody(lr, ch, chunk, crc);
+            } else if (lr.isHalf()) {
+                writeHalfBody(lr, ch, chunk, crc);
+            } else {
+                writeDenseBody(lr, ch, chunk, crc);
+            }
+            drain(ch, chunk, crc);
+            // trailer is not part of the checksum
+            chunk.putInt((int) crc.getValue());
+            chunk.flip();
+            while (chunk.hasRemaining()) ch.write(chunk);
 
-            float[] w = lr.getWeights();
-            out.writeInt(w.length);
-            for (float v : w) out.writeFloat(v);
-
-            out.flush();
             fos.getFD().sync();
             mFile.finishWrite(fos);
+
+            // the old journal applied to the old base; its header no longer matches
+            mBaseCrc = crc.getValue();
+            mBasePow2 = lr.getHashDimPow2();
+            mBaseHalf = lr.isHalf();
+            mBaseSparse = lr.isSparse();
+            mJournal.delete();
+            mJournalBytes = 0;
+            lr.clearDirtyPages();
+            return mFile.getBaseFile().length();
         } catch (Throwable t) {
             Slog.e(TAG, "LR save failed: " + mFile.getBaseFile(), t);
             if (fos != null) mFile.failWrite(fos);
+            return -1;
+        }
+    }
+
+    private static void writeDenseBody(OnlineLogisticModel lr, FileChannel ch, ByteBuffer chunk,
+                                       CRC32C crc) throws IOException {
+        final float[] w = lr.getWeights();
+        chunk.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC).putInt(VERSION);
+        chunk.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(lr.getHashDimPow2())
+                .putFloat(lr.getBias())
+                .putInt(w.length)
+                .putInt(0);
+        int off = 0;
+        while (off < w.length) {
+            if (chunk.remaining() < 4) drain(ch, chunk, crc);
+            final int n = Math.min(w.length - off, chunk.remaining() >>> 2);
+            chunk.asFloatBuffer().put(w, off, n);
+            chunk.position(chunk.position() + (n << 2));
+            off += n;
         }
     }
 
+    private static void writeHalfBody(OnlineLogisticModel lr, FileChannel ch, ByteBuffer chunk,
+                                      CRC32C crc) throws IOException {
+        final short[] h = lr.getHalfWeights();
+        chunk.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC).putInt(VERSION_HALF);
+        chunk.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(lr.getHashDimPow2())
+                .putFloat(lr.getBias())
+                .putInt(h.length)
+                .putInt(0);
+        int off = 0;
+        while (off < h.length) {
+            if (chunk.remaining() < 2) drain(ch, chunk, crc);
+            final int n = Math.min(h.length - off, chunk.remaining() >>> 1);
+            chunk.asShortBuffer().put(h, off, n);
+            chunk.position(chunk.position() + (n << 1));
+            off += n;
+        }
+    }
+
+    private void writeSparseBody(OnlineLogisticModel lr, FileChannel ch, ByteBuffer chunk,
+                                 CRC32C crc) throws IOException {
+        final FtrlWeights ftrl = lr.getFtrl();
+        final int size = ftrl.size();
+        if (mSparseIdx.length < size) {
+            mSparseIdx = new int[size];
+            mSparseW = new float[size];
+            mSparseZ = new float[size];
+            mSparseN = new float[size];
+        }
+        final int count = ftrl.export(mSparseIdx, mSparseW, mSparseZ, mSparseN);
+
+        chunk.order(ByteOrder.BIG_ENDIAN).putInt(MAGIC).putInt(VERSION_SPARSE);
+        chunk.order(ByteOrder.LITTLE_ENDIAN)
+                .putInt(lr.getHashDimPow2())
+                .putFloat(lr.getBias())
+                .putInt(count)
+                .putFloat(ftrl.getBiasZ())
+                .putFloat(ftrl.getBiasN())
+                .putInt(0);
+        for (int i = 0; i < count; i++) {
+            if (chunk.remaining() < SPARSE_ENTRY_BYTES) drain(ch, chunk, crc);
+            chunk.putInt(mSparseIdx[i])
+                    .putFloat(mSparseW[i])
+                    .putFloat(mSparseZ[i])
+                    .putFloat(mSparseN[i]);
+        }
+    }
+
+    /**
+     * Appends the model's delta-dirty pages to the journal, or compacts into a
+     * full write() when there is no base yet or the journal is over budget.
+     * FTRL models always take the full (sparse) write when anything changed.
+     * Returns bytes written (0 if nothing was dirty), or -1.
+     */
+    public long writeDelta(OnlineLogisticModel lr) {
+        if (lr.isSparse()) {
+            return lr.hasUnsavedChanges() || mBaseCrc < 0 ? write(lr) : 0;
+        }
+        final int pages = lr.dirtyPageCount();
+        if (pages == 0 && mBaseCrc >= 0) return 0;
+
+        final boolean half = lr.isHalf();
+        final int elemBytes = half ? 2 : 4;
+        final long recordBytes =
+                12 + (long) pages * (4 + elemBytes * OnlineLogisticModel.PAGE_SIZE) + 4;
+        final long headerBytes = mJournalBytes == 0 ? JOURNAL_HEADER_BYTES : 0;
+        if (mBaseCrc < 0 || mBaseSparse || mBasePow2 != lr.getHashDimPow2() || mBaseHalf != half
+                || mJournalBytes + headerBytes + recordBytes > mJournalMaxBytes) {
+            return write(lr);
+        }
+
+        FileOutputStream fos = null;
+        try {
+            fos = new FileOutputStream(mJournal, /*append*/ mJournalBytes > 0);
+            final FileChannel ch = fos.getChannel();
+            if (mChunk == null) mChunk = ByteBuffer.allocateDirect(CHUNK_BYTES);
+            final ByteBuffer chunk = mChunk;
+            chunk.clear();
+            chunk.order(ByteOrder.BIG_ENDIAN); // the journal has always been big-endian
+            if (mJournalBytes == 0) {
+                // header: not part of any record checksum
+                chunk.putInt(JOURNAL_MAGIC).putInt((int) mBaseCrc).putInt(mBasePow2);
+                chunk.flip();
+                while (chunk.hasRemaining()) ch.write(chunk);
+                chunk.clear();
+            }
+
+            CRC32C crc = new CRC32C();
+            chunk.putInt(RECORD_MAGIC).putFloat(lr.getBias()).putInt(pages);
+            long written = headerBytes + 12 + 4;
+            if (half) {
+                written += writeHalfPages(lr, ch, chunk, crc);
+            } else {
+                written += writeFloatPages(lr, ch, chunk, crc);
+            }
+            drain(ch, chunk, crc);
+            chunk.putInt((int) crc.getValue());
+            chunk.flip();
+            while (chunk.hasRemaining()) ch.write(chunk);
+            fos.getFD().sync();
+
+            mJournalBytes += written;
+            lr.clearDirtyPages();
+            return written;
+        } catch (Throwable t) {
+            Slog.e(TAG, "LR delta failed: " + mJournal, t);
+            truncateJournal(mJournalBytes); // drop a partial record; pages stay dirty
+            return -1;
+        } finally {
+            if (fos != null) {
+                try { fos.close(); } catch (Throwable ignored) { }
+            }
+        }
+    }
+
+    /**
+     * Dirty fp32 pages as (int page, floats): one bulk put per page through a
+     * FloatBuffer view that lives as long as the chunk. Returns the bytes added.
+     */
+    private static long writeFloatPages(OnlineLogisticModel lr, FileChannel ch, ByteBuffer chunk,
+                                        CRC32C crc) throws IOException {
+        final float[] w = lr.getWeights();
+        FloatBuffer fb = chunk.asFloatBuffer();
+        long bytes = 0;
+        for (int page = 0; page < lr.getPageCount(); page++) {
+            if (!lr.isPageDirty(page)) continue;
+            final int from = page << OnlineLogisticModel.PAGE_SHIFT;
+            final int n = Math.min(w.length - from, OnlineLogisticModel.PAGE_SIZE);
+            if (fb.remaining() < 1 + n) {
+                chunk.position(chunk.position() + (fb.position() << 2));
+                drain(ch, chunk, crc);
+                fb = chunk.asFloatBuffer();
+            }
+            chunk.putInt(chunk.position() + (fb.position() << 2), page);
+            fb.position(fb.position() + 1);
+            fb.put(w, from, n);
+            bytes += 4 + 4L * n;
+        }
+        chunk.position(chunk.position() + (fb.position() << 2));
+        return bytes;
+    }
+
+    /** As writeFloatPages(), for fp16 pages. */
+    private static long writeHalfPages(OnlineLogisticModel lr, FileChannel ch, ByteBuffer chunk,
+                                       CRC32C crc) throws IOException {
+        final short[] h = lr.getHalfWeights();
+        ShortBuffer sb = chunk.asShortBuffer();
+        long bytes = 0;
+        for (int page = 0; page < lr.getPageCount(); page++) {
+            if (!lr.isPageDirty(page)) continue;
+            final int from = page << OnlineLogisticModel.PAGE_SHIFT;
+            final int n = Math.min(h.length - from, OnlineLogisticModel.PAGE_SIZE);
+            if (sb.remaining() < 2 + n) {
+                chunk.position(chunk.position() + (sb.position() << 1));
+                drain(ch, chunk, crc);
+                sb = chunk.asShortBuffer();
+            }
+            chunk.putInt(chunk.position() + (sb.position() << 1), page);
+            sb.position(sb.position() + 2);
+            sb.put(h, from, n);
+            bytes += 4 + 2L * n;
+        }
+        chunk.position(chunk.position() + (sb.position() << 1));
+        return bytes;
+    }
+
+    /**
+     * Reads the base file and replays the journal on top of it into a new
+     * array. Used when the stored dimension is not known up front.
+     */
     public Loaded readOrNull() {
+        Loaded base = readBase(null);
+        if (base == null) return null;
+        return new Loaded(base.hashDimPow2, replayJournal(base.weights, null, base.bias),
+                base.weights);
+    }
+
+    /**
+     * Loads straight into lr's weight array or FTRL table (no intermediate copy
+     * when the base matches the model's kind). Returns false, leaving lr
+     * untouched, if the file is missing, corrupt or of another dimension.
+     */
+    public boolean readInto(OnlineLogisticModel lr) {
+        Loaded base = readBase(lr);
+        if (base == null) return false;
+        if (base.weights == null && base.halfWeights == null) {
+            // sparse base, already in lr's FTRL table
+            lr.setBias(base.bias);
+            lr.getFtrl().setBiasState(base.biasZ, base.biasN);
+            if (mJournal.exists()) foldJournal(lr, base.bias);
+            lr.onWeightsRestored();
+            return true;
+        }
+        lr.setBias(replayJournal(base.weights, base.halfWeights, base.bias));
+        if (base.halfWeights != null || base.weights == lr.getWeights()) {
+            lr.onWeightsRestored(); // decoded in place
+        } else {
+            lr.setWeights(base.weights); // other kind: FTRL coordinates or fp16 rounding
+        }
+        return true;
+    }
+
+    /**
+     * A dense model once journaled deltas against this sparse base. Applies them
+     * through dense weights; the FTRL coordinates lose their history (n), as
+     * when a dense model is switched to FTRL. The next write() drops the journal.
+     */
+    private void foldJournal(OnlineLogisticModel lr, float bias) {
+        final float[] w = new float[1 << mBasePow2];
+        lr.getFtrl().expandTo(w);
+        final float folded = replayJournal(w, null, bias);
+        if (mJournalBytes <= JOURNAL_HEADER_BYTES) return; // stale or empty: nothing applied
+        Slog.i(TAG, "folding dense journal into sparse base " + mFile.getBaseFile());
+        lr.setBias(folded);
+        lr.setWeights(w);
+        mBaseCrc = -1; // force a full (sparse) write next time
+    }
+
+    /**
+     * Maps and verifies the base file, then bulk-decodes the floats into
+     * target's weights (if given, and only when dimensions match) or a new array.
+     * A sparse base goes straight into an FTRL target (weights == null in the
+     * result) and is expanded for anything else. A half base goes straight into
+     * a half-precision target (halfWeights) and is widened for anything else.
+     */
+    private Loaded readBase(OnlineLogisticModel target) {
+        mBaseCrc = -1;
+        mBasePow2 = -1;
+        mBaseHalf = false;
+        mBaseSparse = false;
+        mJournalBytes = 0;
+
         try (FileInputStream fis = mFile.openRead();
-             DataInputStream in = new DataInputStream(fis)) {
+             FileChannel ch = fis.getChannel()) {
+
+            final long size = ch.size();
+            if (size < HEADER_BYTES_V1
+                    || size > HEADER_BYTES_SPARSE + ((long) SPARSE_ENTRY_BYTES << MAX_POW2) + 4) {
+                return null;
+            }
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
 
-            if (in.readInt() != MAGIC) return null;
-            if (in.readInt() != VERSION) return null;
+            if (buf.getInt(0) != MAGIC) return null;
+            final int version = buf.getInt(4);
+            if (version == VERSION_SPARSE) return readSparseBase(buf, (int) size, target);
+            final int header;
+            final int bodyLen;
+            final int elemBytes = version == VERSION_HALF ? 2 : 4;
+            if (version == VERSION || version == VERSION_HALF) {
+                header = HEADER_BYTES;
+                bodyLen = (int) size - 4;
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+            } else if (version == VERSION_1) {
+                header = HEADER_BYTES_V1;
+                bodyLen = (int) size;
+            } else {
+                return null;
+            }
 
-            int pow2 = in.readInt();
-            float bias = in.readFloat();
+            final int pow2 = buf.getInt(8);
+            final float bias = buf.getFloat(12);
+            final int len = buf.getInt(16);
+            if (pow2 < 1 || pow2 > MAX_POW2 || len != 1 << pow2) return null;
+            if (bodyLen != header + (long) elemBytes * len) return null;
 
-            int len = in.readInt();
-            float[] w = new float[len];
-            for (int i = 0; i < len; i++) w[i] = in.readFloat();
+            // v2: stored checksum; v1 has none, but the journal header still
+            // identifies the base by the CRC32C of the whole file
+            CRC32C crc = new CRC32C();
+            ByteBuffer body = buf.duplicate();
+            body.position(0).limit(bodyLen);
+            crc.update(body);
+            if (version != VERSION_1 && (int) crc.getValue() != buf.getInt(bodyLen)) {
+                Slog.w(TAG, "LR checksum mismatch: " + mFile.getBaseFile());
+                return null;
+            }
 
-            return new Loaded(pow2, bias, w);
+            if (target != null && target.getHashDimPow2() != pow2) return null;
+            buf.position(header).limit(bodyLen);
+            final Loaded loaded;
+            if (version == VERSION_HALF && target != null && target.isHalf()) {
+                buf.asShortBuffer().get(target.getHalfWeights());
+                loaded = new Loaded(pow2, bias, null);
+                loaded.halfWeights = target.getHalfWeights();
+            } else {
+                final float[] w = target != null && target.getWeights() != null
+                        ? target.getWeights() : new float[len];
+                if (version == VERSION_HALF) {
+                    final ShortBuffer halves = buf.asShortBuffer();
+                    for (int i = 0; i < len; i++) w[i] = Fp16.toFloat(halves.get(i));
+                } else {
+                    buf.asFloatBuffer().get(w);
+                }
+                loaded = new Loaded(pow2, bias, w);
+            }
+
+            mBaseCrc = crc.getValue();
+            mBasePow2 = pow2;
+            mBaseHalf = version == VERSION_HALF;
+            return loaded;
         } catch (Throwable t) {
             return null;
         }
     }
 
+    private Loaded readSparseBase(ByteBuffer buf, int size, OnlineLogisticModel target) {
+        if (size < HEADER_BYTES_SPARSE + 4) return null;
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        final int pow2 = buf.getInt(8);
+        final float bias = buf.getFloat(12);
+        final int count = buf.getInt(16);
+        final float biasZ = buf.getFloat(20);
+        final float biasN = buf.getFloat(24);
+        final int bodyLen = size - 4;
+        if (pow2 < 1 || pow2 > MAX_POW2 || count < 0 || count > 1 << pow2) return null;
+        if (bodyLen != HEADER_BYTES_SPARSE + (long) SPARSE_ENTRY_BYTES * count) return null;
+        if (target != null && target.getHashDimPow2() != pow2) return null;
+
+        CRC32C crc = new CRC32C();
+        ByteBuffer body = buf.duplicate();
+        body.position(0).limit(bodyLen);
+        crc.update(body);
+        if ((int) crc.getValue() != buf.getInt(bodyLen)) {
+            Slog.w(TAG, "LR checksum mismatch: " + mFile.getBaseFile());
+            return null;
+        }
+
+        final int len = 1 << pow2;
+        final FtrlWeights ftrl = target != null ? target.getFtrl() : null;
+        final float[] w;
+        if (ftrl != null) {
+            ftrl.clear();
+            w = null;
+        } else {
+            w = target != null && target.getWeights() != null
+                    ? target.getWeights() : new float[len];
+            Arrays.fill(w, 0f);
+        }
+        for (int i = 0, p = HEADER_BYTES_SPARSE; i < count; i++, p += SPARSE_ENTRY_BYTES) {
+            final int idx = buf.getInt(p);
+            if (idx < 0 || idx >= len) continue;
+            if (ftrl != null) {
+                ftrl.put(idx, buf.getFloat(p + 4), buf.getFloat(p + 8), buf.getFloat(p + 12));
+            } else {
+                w[idx] = buf.getFloat(p + 4);
+            }
+        }
+
+        mBaseCrc = crc.getValue();
+        mBasePow2 = pow2;
+        mBaseSparse = true;
+        Loaded loaded = new Loaded(pow2, bias, w);
+        loaded.biasZ = biasZ;
+        loaded.biasN = biasN;
+        return loaded;
+    }
+
+    /**
+     * Applies journal records to w, or to h for a half-precision target (exactly
+     * one is non-null); returns the latest bias. Records are fp16 when the base
+     * is. Each record is verified whole, then its pages are copied in bulk.
+     * Fixes up a stale/torn journal.
+     */
+    private float replayJournal(float[] w, short[] h, float bias) {
+        if (!mJournal.exists()) return bias;
+
+        final ByteBuffer buf;
+        try {
+            buf = ByteBuffer.wrap(Files.readAllBytes(mJournal.toPath())); // big-endian
+        } catch (Throwable t) {
+            Slog.w(TAG, "discarding unreadable journal " + mJournal, t);
+            mJournal.delete();
+            return bias;
+        }
+        final int size = buf.limit();
+        if (size < JOURNAL_HEADER_BYTES
+                || buf.getInt(0) != JOURNAL_MAGIC
+                || buf.getInt(4) != (int) mBaseCrc
+                || buf.getInt(8) != mBasePow2) {
+            Slog.w(TAG, "discarding stale journal " + mJournal);
+            mJournal.delete();
+            return bias;
+        }
+
+        final int pageSize = OnlineLogisticModel.PAGE_SIZE;
+        final int len = h != null ? h.length : w.length;
+        final int pageCount = (len + pageSize - 1) >>> OnlineLogisticModel.PAGE_SHIFT;
+        final int elemBytes = mBaseHalf ? 2 : 4;
+        // page payloads start 4-byte aligned (float) / 2-byte aligned (fp16), so one view each
+        final FloatBuffer floats = buf.asFloatBuffer();
+        final ShortBuffer shorts = buf.asShortBuffer();
+        final CRC32C crc = new CRC32C();
+        int good = JOURNAL_HEADER_BYTES;
+        while (good + 12 <= size && buf.getInt(good) == RECORD_MAGIC) {
+            final float recBias = buf.getFloat(good + 4);
+            final int pages = buf.getInt(good + 8);
+            if (pages < 0 || pages > pageCount) break;
+
+            // Verify the whole record before applying any of it.
+            int p = good + 12;
+            boolean ok = true;
+            for (int k = 0; k < pages && ok; k++) {
+                if (p + 4 > size) { ok = false; break; }
+                final int page = buf.getInt(p);
+                if (page < 0 || page >= pageCount) { ok = false; break; }
+                p += 4 + elemBytes * Math.min(pageSize, len - (page << OnlineLogisticModel.PAGE_SHIFT));
+            }
+            if (!ok || p + 4 > size) break;
+            crc.reset();
+            crc.update(buf.array(), good, p - good);
+            if ((int) crc.getValue() != buf.getInt(p)) break;
+
+            for (int k = 0, q = good + 12; k < pages; k++) {
+                final int from = buf.getInt(q) << OnlineLogisticModel.PAGE_SHIFT;
+                final int n = Math.min(pageSize, len - from);
+                q += 4;
+                if (!mBaseHalf) {
+                    floats.position(q >> 2);
+                    if (h != null) {
+                        for (int i = 0; i < n; i++) h[from + i] = Fp16.toHalf(floats.get());
+                    } else {
+                        floats.get(w, from, n);
+                    }
+                } else {
+                    shorts.position(q >> 1);
+                    if (h != null) {
+                        shorts.get(h, from, n);
+                    } else {
+                        for (int i = 0; i < n; i++) w[from + i] = Fp16.toFloat(shorts.get());
+                    }
+                }
+                q += elemBytes * n;
+            }
+            bias = recBias;
+            good = p + 4;
+        }
+
+        if (good != size) {
+            Slog.w(TAG, "truncating torn journal " + mJournal + " at " + good);
+            truncateJournal(good);
+        }
+        mJournalBytes = good;
+        return bias;
+    }
+
+    /** Checksums and writes chunk[0, position), then clears it. */
+    private static void drain(FileChannel ch, ByteBuffer chunk, CRC32C crc) throws IOException {
+        chunk.flip();
+        crc.update(chunk.duplicate());
+        while (chunk.hasRemaining()) ch.write(chunk);
+        chunk.clear();
+    }
+
+    private void truncateJournal(long length) {
+        if (length <= 0) {
+            mJournal.delete();
+            return;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(mJournal, "rw")) {
+            raf.setLength(length);
+        } catch (Throwable t) {
+            Slog.e(TAG, "journal truncate failed: " + mJournal, t);
+            mJournal.delete();
+            mBaseCrc = -1; // force a full write next time
+        }
+    }
+
     public static final class Loaded {
         public final int hashDimPow2;
         public final float bias;
         public final float[] weights;
+        // FTRL bias state of a sparse base
+        float biasZ;
+        float biasN;
+        // fp16 weights decoded in place (half base into a half-precision model)
+        short[] halfWeights;
         Loaded(int pow2, float bias, float[] w) {
             this.hashDimPow2 = pow2;
             this.bias = bias;
@@ -3,42 +3,209 @@ package android.server.power.nextapp;
 import android.util.AtomicFile;
 import android.util.Slog;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
 
 /**
- * Skeleton for Markov persistence. You said you already use proto.
- * Plug your proto read/write here.
+ * Markov persistence in a compact, versioned binary format:
+ *
+ *   int    MAGIC, VERSION
+ *   varint stringCount, then per string: varint len, UTF-8 bytes
+ *   varint rowCount, then per row:
+ *          varint A (string index), varint n, float rowMax,
+ *          n x (varint B (string index), u16 weight / rowMax * 65535)
+ *   int    CRC32C of everything above
+ *
+ * Package ids are file-local string-table indices (first-seen order), so the
+ * file does not depend on PackageRegistry ids. Rows are written weight desc,
+ * which makes rowMax the first weight. Loading maps the file, verifies the
+ * checksum and decodes in place into reused buffers.
  */
 public final class MarkovProtoStore {
     private static final String TAG = "NextAppMarkovStore";
+    private static final int MAGIC = 0x4E41504D; // "NAPM"
+    private static final int VERSION = 1;
+    private static final float Q_MAX = 65535f;
+    private static final long MAX_FILE_BYTES = 16L * 1024 * 1024; // sanity bound
+
     private final AtomicFile mFile;
 
+    // scratch reused across write/read
+    private int[] mKeys = new int[0];
+    private float[] mWeights = new float[0];
+    private byte[] mBytes = new byte[64];
+
     public MarkovProtoStore(File file) {
         mFile = new AtomicFile(file);
     }
 
-    public void write(/*MarkovModel*/ Object model) {
-        FileOutputStream out = null;
+    /** Returns bytes written, or -1 on failure. */
+    public long write(MarkovTransitionTable markov, PackageRegistry packages) {
+        FileOutputStream fos = null;
         try {
-            out = mFile.startWrite();
-            // TODO model.writeTo(out);
+            fos = mFile.startWrite();
+            BufferedOutputStream bos = new BufferedOutputStream(fos, 16 * 1024);
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(bos, crc));
+
+            ensureScratch(markov.getTopM());
+
+            // Pass 1: assign file-local indices in first-seen order.
+            final int limit = Math.max(markov.rowLimit(), packages.idLimit());
+            int[] localOf = new int[limit];
+            Arrays.fill(localOf, -1);
+            int[] globalOf = new int[limit];
+            int strings = 0;
+            int rows = 0;
+            for (int a = 0; a < markov.rowLimit(); a++) {
+                int n = markov.exportRow(a, mKeys, mWeights);
+                if (n == 0) continue;
+                rows++;
+                if (localOf[a] < 0) { localOf[a] = strings; globalOf[strings++] = a; }
+                for (int j = 0; j < n; j++) {
+                    int b = mKeys[j];
+                    if (localOf[b] < 0) { localOf[b] = strings; globalOf[strings++] = b; }
+                }
+            }
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+
+            // String table
+            writeVarint(out, strings);
+            for (int i = 0; i < strings; i++) {
+                byte[] utf = packages.nameOf(globalOf[i]).getBytes(StandardCharsets.UTF_8);
+                writeVarint(out, utf.length);
+                out.write(utf);
+            }
+
+            // Pass 2: rows
+            writeVarint(out, rows);
+            for (int a = 0; a < markov.rowLimit(); a++) {
+                int n = markov.exportRow(a, mKeys, mWeights);
+                if (n == 0) continue;
+                final float max = mWeights[0];
+                writeVarint(out, localOf[a]);
+                writeVarint(out, n);
+                out.writeFloat(max);
+                for (int j = 0; j < n; j++) {
+                    writeVarint(out, localOf[mKeys[j]]);
+                    int q = Math.round(mWeights[j] / max * Q_MAX);
+                    out.writeShort(Math.max(1, Math.min((int) Q_MAX, q)));
+                }
+            }
+
             out.flush();
-            out.getFD().sync();
-            mFile.finishWrite(out);
+            // trailer is not part of the checksum
+            new DataOutputStream(bos).writeInt((int) crc.getValue());
+            bos.flush();
+            fos.getFD().sync();
+            mFile.finishWrite(fos);
+            return mFile.getBaseFile().length();
         } catch (Throwable t) {
             Slog.e(TAG, "Markov save failed: " + mFile.getBaseFile(), t);
-            if (out != null) mFile.failWrite(out);
+            if (fos != null) mFile.failWrite(fos);
+            return -1;
         }
     }
 
-    public /*MarkovModel*/ Object readOrNull() {
-        try (FileInputStream in = mFile.openRead()) {
-            // TODO return MarkovModel.parseFrom(in);
-            return null;
+    /**
+     * Replaces markov's content with the persisted table, interning package names
+     * into packages. Returns false if missing or corrupt; markov is untouched
+     * unless the checksum verifies.
+     */
+    public boolean readInto(MarkovTransitionTable markov, PackageRegistry packages) {
+        boolean importing = false;
+        try (FileInputStream fis = mFile.openRead();
+             FileChannel ch = fis.getChannel()) {
+
+            final long size = ch.size();
+            if (size < 12 || size > MAX_FILE_BYTES) return false;
+            MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, size);
+
+            final int bodyLen = (int) size - 4;
+            ByteBuffer body = buf.duplicate();
+            body.limit(bodyLen);
+            CRC32C crc = new CRC32C();
+            crc.update(body);
+            if ((int) crc.getValue() != buf.getInt(bodyLen)) {
+                Slog.w(TAG, "Markov checksum mismatch: " + mFile.getBaseFile());
+                return false;
+            }
+            buf.limit(bodyLen);
+
+            if (buf.getInt() != MAGIC) return false;
+            if (buf.getInt() != VERSION) return false;
+
+            final int strings = readVarint(buf);
+            int[] globalOf = new int[strings];
+            for (int i = 0; i < strings; i++) {
+                int len = readVarint(buf);
+                if (len > mBytes.length) mBytes = new byte[len];
+                buf.get(mBytes, 0, len);
+                globalOf[i] = packages.intern(new String(mBytes, 0, len, StandardCharsets.UTF_8));
+            }
+
+            importing = true;
+            markov.clear();
+            final int rows = readVarint(buf);
+            for (int r = 0; r < rows; r++) {
+                final int a = globalOf[readVarint(buf)];
+                final int n = readVarint(buf);
+                final float scale = buf.getFloat() / Q_MAX;
+                ensureScratch(n);
+                for (int j = 0; j < n; j++) {
+                    mKeys[j] = globalOf[readVarint(buf)];
+                    mWeights[j] = (buf.getShort() & 0xffff) * scale;
+                }
+                markov.importRow(a, mKeys, mWeights, n);
+            }
+            return true;
         } catch (Throwable t) {
-            return null;
+            if (importing) markov.clear(); // never leave a half-imported table
+            return false;
+        }
+    }
+
+    private void ensureScratch(int n) {
+        if (mKeys.length < n) {
+            mKeys = new int[n];
+            mWeights = new float[n];
+        }
+    }
+
+    // ---- unsigned LEB128 varints ----
+
+    private static void writeVarint(OutputStream out, int v) throws IOException {
+        while ((v & ~0x7F) != 0) {
+            out.write((v & 0x7F) | 0x80);
+            v >>>= 7;
+        }
+        out.write(v);
+    }
+
+    private static int readVarint(ByteBuffer in) throws IOException {
+        int v = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            final int b = in.get() & 0xFF;
+            v |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                if (v < 0) throw new IOException("varint out of range");
+                return v;
+            }
         }
+        throw new IOException("malformed varint");
     }
 }
@@ -1,93 +1,514 @@
 package android.server.power.nextapp;
 
-import android.util.ArrayMap;
 import android.util.Slog;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
 
 /**
  * Markov transition table:
- * for each A -> map(B -> weight). Keeps top M per A.
+ * for each A -> map(B -> weight). Keeps top M per A, and at most maxRows rows.
+ * Keys are PackageRegistry ids.
+ *
+ * Rows are primitive: parallel int/float arrays plus a small open-addressing
+ * index B -> position. Each row is kept sorted by weight desc, so topN is a
+ * prefix read and the lightest entry is the last position. A full row counts
+ * a new B Space-Saving style: B takes over the last position in place and
+ * inherits its weight plus the hit, so a rising successor is never locked out
+ * by stale ones (its weight over-estimates by at most what it inherited).
+ *
+ * Optionally (maxRows > 0) rows sit on an intrusive LRU list ordered by last
+ * update, and creating a row beyond maxRows evicts the least recently updated
+ * one, so memory stays bounded (maxRows x M entries) however many packages the
+ * device has seen; an evicted A simply starts a new row on its next
+ * transition. Eviction costs prediction quality whenever the device has more
+ * active predecessors than maxRows, so the bound is off by default. Snapshot
+ * tables (copyTo destinations) have no list and no bound.
+ *
+ * Decay is lazy: instead of multiplying every weight by
+ * decay on each update, a row keeps a growth factor g (multiplied by 1/decay per
+ * update) and stores w * g; a hit adds g. All weights are rescaled only when g
+ * gets large, so update is O(1) amortized and allocation-free once the row
+ * has reached its capacity.
+ *
+ * Thread safety: one writer at a time (update, importRow, removePackage, clear,
+ * copyTo, exportRow, weight), serialized by the caller. topN() and rowVersion()
+ * may run concurrently with the writer without locks: each row is a seqlock
+ * (version is odd while the writer mutates it) and topN() retries a copy that
+ * overlapped a write, up to MAX_READ_RETRIES times; past that it reports no
+ * candidates rather than spin behind the writer. NextAppDecisionCache compares
+ * candidate lists, so a decision built from that empty view only ever serves
+ * another empty view.
+ *
+ * A dropped row (evicted, removed or replaced) leaves its next version behind,
+ * so rowVersion() keeps increasing across drop and re-creation and a cached
+ * view of the old row never matches the new one. clear() starts over; callers
+ * drop such caches on load (NextAppPredictor.onModelsLoaded()).
  */
 public final class MarkovTransitionTable {
     private static final String TAG = "NextAppMarkov";
 
+    private static final int MIN_ROW_CAPACITY = 4;
+    // renormalize a row once its growth factor exceeds this (every ~110k updates at 0.9995)
+    private static final float RENORM_LIMIT = 1e24f;
+    // topN() gives up after this many overlapping writes (each a few hundred ns at most)
+    private static final int MAX_READ_RETRIES = 64;
+
     private final int mTopM;
-    private final float mDecay;
+    private final float mInvDecay;
+    private final int mMaxRows;
+
+    // A id -> row (null if A never transitioned); grown copies are published whole
+    private volatile Row[] mRows = new Row[64];
 
-    // A -> (B -> weight)
-    private final ArrayMap<String, ArrayMap<String, Float>> mTable = new ArrayMap<>();
+    // writer only: LRU list of live rows, newest first
+    private Row mNewest;
+    private Row mOldest;
+    private int mRowCount;
+    // A id -> version of its dropped row (even); read by rowVersion(), grown copies published whole
+    private volatile int[] mRetiredVersions = new int[0];
+    private volatile long mEvictions;
 
     public MarkovTransitionTable(int topMPerA, float decay) {
-        mTopM = topMPerA;
-        mDecay = decay;
+        this(topMPerA, decay, 0);
+    }
+
+    /** maxRows <= 0: no row budget. */
+    public MarkovTransitionTable(int topMPerA, float decay, int maxRows) {
+        mTopM = Math.max(1, Math.min(topMPerA, Short.MAX_VALUE - 1)); // positions fit the short index
+        mInvDecay = 1f / decay;
+        mMaxRows = Math.max(0, maxRows);
     }
 
-    public void update(String pkgA, String pkgB) {
-        if (pkgA == null || pkgB == null || pkgA.equals(pkgB)) return;
+    public void update(int pkgA, int pkgB) {
+        if (pkgA < 0 || pkgB < 0 || pkgA == pkgB) return;
 
-        ArrayMap<String, Float> row = mTable.get(pkgA);
+        if (pkgA >= mRows.length) mRows = Arrays.copyOf(mRows, Math.max(pkgA + 1, mRows.length * 2));
+        Row row = mRows[pkgA];
         if (row == null) {
-            row = new ArrayMap<>();
-            mTable.put(pkgA, row);
+            row = new Row(pkgA, Math.min(MIN_ROW_CAPACITY, mTopM));
+            row.version = nextRowVersion(pkgA);
+            addRow(row);
+        } else {
+            touch(row);
         }
 
-        // decay existing weights lightly (optional per-update; cheap enough if row small)
-        for (int i = 0; i < row.size(); i++) {
-            Float v = row.valueAt(i);
-            row.setValueAt(i, v * mDecay);
+        row.beginWrite();
+        // decay existing weights: equivalent to w *= decay for every B in the row
+        row.growth *= mInvDecay;
+        if (row.growth > RENORM_LIMIT) row.renormalize();
+
+        int pos = row.find(pkgB);
+        if (pos >= 0) {
+            row.vals[pos] += row.growth;
+            row.bubbleUp(pos);
+        } else if (row.size < mTopM) {
+            if (row.size == row.keys.length) row.grow(Math.min(row.keys.length * 2, mTopM));
+            row.append(pkgB, row.growth);
+            row.bubbleUp(row.size - 1);
+        } else {
+            // Space-Saving: B replaces the lightest entry and inherits its weight
+            final int last = row.size - 1;
+            row.replaceAt(last, pkgB, row.vals[last] + row.growth);
+            row.bubbleUp(last);
         }
+        row.endWrite();
+    }
 
-        Float cur = row.get(pkgB);
-        float next = (cur == null ? 0f : cur) + 1f;
-        row.put(pkgB, next);
+    /**
+     * Copies up to n candidate ids for pkgA, sorted by weight desc, into out.
+     * Rows are kept in order by update(), so this is a prefix copy.
+     * Returns the number of ids written.
+     */
+    public int topN(int pkgA, int[] out, int n) {
+        if (n <= 0) return 0;
+        for (int retries = 0; retries <= MAX_READ_RETRIES; retries++) {
+            if (retries > 0) Thread.onSpinWait();
+            final Row row = readRow(pkgA);
+            if (row == null) return 0;
+            final int v = row.version;
+            if ((v & 1) != 0) continue; // writer inside the row
+            final int[] keys = row.keys;
+            final int k = Math.min(Math.min(n, out.length), Math.min(row.size, keys.length));
+            System.arraycopy(keys, 0, out, 0, k);
+            VarHandle.acquireFence(); // the copy must complete before re-checking version
+            if (row.version == v) return k;
+        }
+        return 0;
+    }
 
-        pruneIfNeeded(row);
+    /**
+     * Changes whenever pkgA's row (and so its topN view) changes. Callers that
+     * cache anything derived from topN(pkgA) compare against this.
+     */
+    public int rowVersion(int pkgA) {
+        final Row row = readRow(pkgA);
+        if (row != null) return row.version;
+        final int[] retired = mRetiredVersions;
+        return pkgA >= 0 && pkgA < retired.length ? retired[pkgA] : 0;
     }
 
-    /** Returns up to N candidates for pkgA, sorted by weight desc. */
-    public ArrayList<String> topN(String pkgA, int n) {
-        ArrayMap<String, Float> row = mTable.get(pkgA);
-        if (row == null || row.isEmpty() || n <= 0) return new ArrayList<>(0);
+    /** Current (decayed) weight of A -> B, or 0. Writer thread only. */
+    public float weight(int pkgA, int pkgB) {
+        Row row = pkgA >= 0 && pkgA < mRows.length ? mRows[pkgA] : null;
+        if (row == null) return 0f;
+        int pos = row.find(pkgB);
+        return pos < 0 ? 0f : row.vals[pos] / row.growth;
+    }
 
-        ArrayList<Entry> tmp = new ArrayList<>(row.size());
-        for (int i = 0; i < row.size(); i++) {
-            tmp.add(new Entry(row.keyAt(i), row.valueAt(i)));
+    /** Drops pkg as both source row and destination (uninstall), before its id is recycled. */
+    public void removePackage(int pkg) {
+        if (pkg >= 0 && pkg < mRows.length && mRows[pkg] != null) retire(mRows[pkg]);
+        for (Row row : mRows) {
+            if (row == null) continue;
+            int pos = row.find(pkg);
+            if (pos >= 0) {
+                row.beginWrite();
+                row.removeAt(pos);
+                row.endWrite();
+            }
         }
-        tmp.sort((e1, e2) -> Float.compare(e2.w, e1.w));
+    }
+
+    public int getTopM() { return mTopM; }
+    /** Row budget, 0 if unbounded. */
+    public int getMaxRows() { return mMaxRows; }
 
-        int k = Math.min(n, tmp.size());
-        ArrayList<String> out = new ArrayList<>(k);
-        for (int i = 0; i < k; i++) out.add(tmp.get(i).pkgB);
-        return out;
+    /** Rows dropped for the row budget so far. */
+    public long evictionCount() { return mEvictions; }
+
+    /** Number of A rows; a racy scan, for dumps. */
+    public int rowCount() {
+        int rows = 0;
+        for (Row row : mRows) {
+            if (row != null) rows++;
+        }
+        return rows;
     }
 
-    private void pruneIfNeeded(ArrayMap<String, Float> row) {
-        if (row.size() <= mTopM) return;
+    /** Number of (A, B) entries over all rows; a racy scan, for dumps. */
+    public long entryCount() {
+        long entries = 0;
+        for (Row row : mRows) {
+            if (row != null) entries += row.size;
+        }
+        return entries;
+    }
 
-        // Remove lowest weights until size == mTopM.
-        // For simplicity: find min repeatedly (row small).
-        while (row.size() > mTopM) {
-            int minIdx = 0;
-            float minW = row.valueAt(0);
-            for (int i = 1; i < row.size(); i++) {
-                float w = row.valueAt(i);
-                if (w < minW) {
-                    minW = w;
-                    minIdx = i;
-                }
+    /** Approximate heap held by the rows; a racy scan, for memory budgets and dumps. */
+    public long memoryBytes() {
+        long bytes = 4L * mRows.length;
+        for (Row row : mRows) {
+            if (row == null) continue;
+            bytes += 48 + 8L * row.keys.length + 2L * row.index.length;
+        }
+        return bytes;
+    }
+
+    // ---- export / import (persistence) ----
+
+    /** Upper bound (exclusive) of A ids that may have a row. */
+    public int rowLimit() { return mRows.length; }
+
+    /** Number of B entries in pkgA's row (0 if none). */
+    public int rowSize(int pkgA) {
+        Row row = pkgA >= 0 && pkgA < mRows.length ? mRows[pkgA] : null;
+        return row == null ? 0 : row.size;
+    }
+
+    /**
+     * Copies pkgA's row (weight desc, decay applied) into keys/weights, which must
+     * hold rowSize(pkgA) entries. Returns the number of entries.
+     */
+    public int exportRow(int pkgA, int[] keys, float[] weights) {
+        Row row = pkgA >= 0 && pkgA < mRows.length ? mRows[pkgA] : null;
+        if (row == null) return 0;
+        final float inv = 1f / row.growth;
+        for (int p = 0; p < row.size; p++) {
+            keys[p] = row.keys[p];
+            weights[p] = row.vals[p] * inv;
+        }
+        return row.size;
+    }
+
+    /**
+     * Replaces pkgA's row with n (B, weight) pairs. Input is expected weight desc
+     * (as exported) but is re-sorted if not; extra entries beyond top M are dropped.
+     */
+    public void importRow(int pkgA, int[] keys, float[] weights, int n) {
+        if (pkgA < 0) return;
+        if (pkgA >= mRows.length) mRows = Arrays.copyOf(mRows, Math.max(pkgA + 1, mRows.length * 2));
+        Row row = new Row(pkgA, Math.max(1, Math.min(n, mTopM + 1)));
+        for (int i = 0; i < n; i++) {
+            final int b = keys[i];
+            if (b < 0 || b == pkgA || row.find(b) >= 0 || !(weights[i] > 0f)) continue;
+            if (row.size == row.keys.length) row.grow(Math.min(row.keys.length * 2, mTopM + 1));
+            row.append(b, weights[i]);
+            row.bubbleUp(row.size - 1);
+            if (row.size > mTopM) row.removeAt(row.size - 1);
+        }
+        // a fresh row: continue the old row's version so cached views still go stale
+        final Row old = mRows[pkgA];
+        if (old != null) retire(old);
+        if (row.size > 0) {
+            row.version = (rowVersion(pkgA) | 1) + 1;
+            addRow(row);
+        }
+    }
+
+    /** Drops every row and the retired versions; callers must drop caches keyed on rowVersion(). */
+    public void clear() {
+        Arrays.fill(mRows, null);
+        mNewest = mOldest = null;
+        mRowCount = 0;
+        mRetiredVersions = new int[0];
+        mEvictions = 0;
+    }
+
+    /**
+     * Makes dst an exact copy of this table (checkpoint snapshot). Reuses dst's
+     * row arrays where they are large enough, so repeated snapshots settle to
+     * no allocation.
+     */
+    public void copyTo(MarkovTransitionTable dst) {
+        if (dst.mRows.length < mRows.length) dst.mRows = Arrays.copyOf(dst.mRows, mRows.length);
+        for (int a = 0; a < dst.mRows.length; a++) {
+            final Row src = a < mRows.length ? mRows[a] : null;
+            if (src == null) {
+                dst.mRows[a] = null;
+                continue;
+            }
+            Row d = dst.mRows[a];
+            if (d == null || d.keys.length < src.size || d.index.length != src.index.length) {
+                d = new Row(a, src.keys.length);
+                dst.mRows[a] = d;
             }
-            row.removeAt(minIdx);
+            System.arraycopy(src.keys, 0, d.keys, 0, src.size);
+            System.arraycopy(src.vals, 0, d.vals, 0, src.size);
+            System.arraycopy(src.index, 0, d.index, 0, src.index.length);
+            d.size = src.size;
+            d.growth = src.growth;
+            d.version = src.version;
+        }
+    }
+
+    // ---- row budget (writer) ----
+
+    /** Publishes a new row as the most recently used one, evicting the oldest if over budget. */
+    private void addRow(Row row) {
+        while (mMaxRows > 0 && mRowCount >= mMaxRows && mOldest != null) evict(mOldest);
+        row.older = mNewest;
+        if (mNewest != null) mNewest.newer = row;
+        mNewest = row;
+        if (mOldest == null) mOldest = row;
+        mRowCount++;
+        publish(row.pkgA, row);
+    }
+
+    private void touch(Row row) {
+        if (row == mNewest || !isLinked(row)) return;
+        unlink(row);
+        row.older = mNewest;
+        if (mNewest != null) mNewest.newer = row;
+        mNewest = row;
+        if (mOldest == null) mOldest = row;
+        mRowCount++;
+    }
+
+    private void unlink(Row row) {
+        if (!isLinked(row)) return;
+        if (row.newer != null) row.newer.older = row.older; else mNewest = row.older;
+        if (row.older != null) row.older.newer = row.newer; else mOldest = row.newer;
+        row.newer = row.older = null;
+        mRowCount--;
+    }
+
+    /** Snapshot rows (copyTo) are never on the list. */
+    private boolean isLinked(Row row) {
+        return row.newer != null || row.older != null || mNewest == row;
+    }
+
+    private void evict(Row row) {
+        retire(row);
+        mEvictions++;
+    }
+
+    /** Drops a row; readers holding it keep a consistent (now frozen) copy. */
+    private void retire(Row row) {
+        unlink(row);
+        final int a = row.pkgA;
+        int[] retired = mRetiredVersions;
+        if (a >= retired.length) {
+            retired = Arrays.copyOf(retired, Math.max(a + 1, Math.max(64, retired.length * 2)));
+            mRetiredVersions = retired;
         }
+        retired[a] = (row.version | 1) + 1; // the missing row's version, above the dropped one's
+        VarHandle.releaseFence(); // a reader that sees the null row sees the retired version
+        mRows[a] = null;
+    }
+
+    /** First version of a new row for A: the retired one, so its first write moves above it. */
+    private int nextRowVersion(int pkgA) {
+        final int[] retired = mRetiredVersions;
+        return pkgA < retired.length ? retired[pkgA] : 0;
+    }
+
+    /** Stores a fully built row; the fence pairs with the one in readRow(). */
+    private void publish(int pkgA, Row row) {
+        VarHandle.releaseFence();
+        mRows[pkgA] = row;
     }
 
-    private static final class Entry {
-        final String pkgB;
-        final float w;
-        Entry(String pkgB, float w) { this.pkgB = pkgB; this.w = w; }
+    private Row readRow(int pkgA) {
+        final Row[] rows = mRows;
+        final Row row = pkgA >= 0 && pkgA < rows.length ? rows[pkgA] : null;
+        VarHandle.acquireFence();
+        return row;
     }
 
-    // TODO: add export/import for persistence (proto) if needed
+    /** One A row, sorted by weight desc. Weights are stored multiplied by growth. */
+    private static final class Row {
+        final int pkgA;
+        int size;
+        int[] keys;       // position -> B id
+        float[] vals;     // position -> weight * growth
+        float growth = 1f;
+        // seqlock: odd while the writer changes the row, +2 per change of keys/order
+        volatile int version;
+        // open addressing (linear probing): slot -> position + 1, 0 = empty
+        short[] index;
+        // LRU links, owned by the table (writer only)
+        Row newer;
+        Row older;
+
+        Row(int pkgA, int capacity) {
+            this.pkgA = pkgA;
+            keys = new int[capacity];
+            vals = new float[capacity];
+            index = new short[indexLength(capacity)];
+        }
+
+        void beginWrite() {
+            version++;
+            VarHandle.releaseFence(); // odd version is visible before any data store
+        }
+
+        void endWrite() {
+            version++; // volatile store: releases the data stores above
+        }
+
+        int find(int b) {
+            final int mask = index.length - 1;
+            for (int i = slot(b, mask); ; i = (i + 1) & mask) {
+                final int v = index[i];
+                if (v == 0) return -1;
+                if (keys[v - 1] == b) return v - 1;
+            }
+        }
+
+        void append(int b, float v) {
+            final int pos = size++;
+            keys[pos] = b;
+            vals[pos] = v;
+            insertSlot(b, pos);
+        }
+
+        /** Puts b with weight v at pos, dropping the entry there. */
+        void replaceAt(int pos, int b, float v) {
+            removeSlot(keys[pos]);
+            keys[pos] = b;
+            vals[pos] = v;
+            insertSlot(b, pos);
+        }
+
+        /** Moves pos toward the front while it outweighs its predecessor. */
+        void bubbleUp(int pos) {
+            final float v = vals[pos];
+            if (pos == 0 || vals[pos - 1] >= v) return;
+
+            final int b = keys[pos];
+            final int bSlot = slotOf(b, pos);
+            int p = pos;
+            while (p > 0 && vals[p - 1] < v) {
+                keys[p] = keys[p - 1];
+                vals[p] = vals[p - 1];
+                moveSlot(keys[p], p - 1, p);
+                p--;
+            }
+            keys[p] = b;
+            vals[p] = v;
+            index[bSlot] = (short) (p + 1);
+        }
+
+        /** Removes position pos, shifting later positions left to keep the order. */
+        void removeAt(int pos) {
+            removeSlot(keys[pos]);
+            final int last = --size;
+            for (int p = pos; p < last; p++) {
+                keys[p] = keys[p + 1];
+                vals[p] = vals[p + 1];
+                moveSlot(keys[p], p + 1, p);
+            }
+        }
+
+        void grow(int capacity) {
+            keys = Arrays.copyOf(keys, capacity);
+            vals = Arrays.copyOf(vals, capacity);
+            index = new short[indexLength(capacity)];
+            for (int p = 0; p < size; p++) insertSlot(keys[p], p);
+        }
+
+        void renormalize() {
+            final float inv = 1f / growth;
+            for (int p = 0; p < size; p++) vals[p] *= inv;
+            growth = 1f;
+        }
+
+        private void insertSlot(int b, int pos) {
+            final int mask = index.length - 1;
+            int i = slot(b, mask);
+            while (index[i] != 0) i = (i + 1) & mask;
+            index[i] = (short) (pos + 1);
+        }
+
+        private int slotOf(int b, int pos) {
+            final int mask = index.length - 1;
+            int i = slot(b, mask);
+            while (index[i] != pos + 1) i = (i + 1) & mask;
+            return i;
+        }
+
+        private void moveSlot(int b, int from, int to) {
+            index[slotOf(b, from)] = (short) (to + 1);
+        }
+
+        /** Backward-shift deletion; keys[] must still hold b at its position. */
+        private void removeSlot(int b) {
+            final int mask = index.length - 1;
+            int i = slot(b, mask);
+            while (keys[index[i] - 1] != b) i = (i + 1) & mask;
+
+            int j = i;
+            while (true) {
+                j = (j + 1) & mask;
+                final int v = index[j];
+                if (v == 0) break;
+                final int home = slot(keys[v - 1], mask);
+                if (((j - home) & mask) >= ((j - i) & mask)) {
+                    index[i] = (short) v;
+                    i = j;
+                }
+            }
+            index[i] = 0;
+        }
+
+        private static int slot(int b, int mask) {
+            return (b * 0x9E3779B1) >>> 16 & mask;
+        }
+
+        private static int indexLength(int capacity) {
+            // power of two, load factor <= 0.5
+            return Integer.highestOneBit(Math.max(2, capacity) * 2 - 1) << 1;
+        }
+    }
 }
@@ -1,27 +1,73 @@
 package android.server.power.nextapp;
 
 import android.os.Environment;
+import android.os.UserHandle;
 
 import java.io.File;
 
+/**
+ * Model files of one user. The system user keeps the original single-user
+ * directory (/data/system/nextapp), so its models survive the move to
+ * per-user engines; other users live in nextapp/users/<userId>.
+ */
 public final class ModelFiles {
-    private ModelFiles() {}
+    private final File mDir;
 
-    public static File ensureDir() {
-        File dir = new File(Environment.getDataSystemDirectory(), "nextapp");
-        if (!dir.exists()) dir.mkdirs();
-        return dir;
+    private ModelFiles(File dir) {
+        mDir = dir;
     }
 
-    public static File markovFile() {
-        return new File(ensureDir(), "next_app_markov.pb");
+    public static ModelFiles forUser(int userId) {
+        final File root = new File(Environment.getDataSystemDirectory(), "nextapp");
+        return new ModelFiles(userId == UserHandle.USER_SYSTEM
+                ? root : new File(root, "users/" + userId));
     }
 
-    public static File gatingLrFile() {
+    public File ensureDir() {
+        if (!mDir.exists()) mDir.mkdirs();
+        return mDir;
+    }
+
+    public File markovFile() {
+        return new File(ensureDir(), "next_app_markov.bin");
+    }
+
+    public File gatingLrFile() {
         return new File(ensureDir(), "next_app_gating_lr.bin");
     }
 
-    public static File rankLrFile() {
+    public File rankLrFile() {
         return new File(ensureDir(), "next_app_rank_lr.bin");
     }
+
+    public File featureKeysFile() {
+        return new File(ensureDir(), "next_app_feature_keys.bin");
+    }
+
+    public File packagesFile() {
+        return new File(ensureDir(), "next_app_packages.bin");
+    }
+
+    public File journalDir() {
+        return new File(ensureDir(), "journal");
+    }
+
+    public File journalMarkerFile() {
+        return new File(ensureDir(), "next_app_journal_ckpt.bin");
+    }
+
+    /** Deletes the model files (user removed). Leaves other users' subdirectories alone. */
+    public void deleteAll() {
+        deleteFiles(new File(mDir, "journal"));
+        deleteFiles(mDir);
+    }
+
+    private static void deleteFiles(File dir) {
+        final File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File f : files) {
+            if (f.isFile()) f.delete();
+        }
+        dir.delete(); // only if now empty
+    }
 }
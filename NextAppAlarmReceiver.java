@@ -5,10 +5,10 @@ import android.content.Context;
 import android.content.Intent;
 
 public final class NextAppAlarmReceiver extends BroadcastReceiver {
-    private final NextAppEngine mEngine;
+    private final NextAppAlarmScheduler mScheduler;
 
-    public NextAppAlarmReceiver(NextAppEngine engine) {
-        mEngine = engine;
+    public NextAppAlarmReceiver(NextAppAlarmScheduler scheduler) {
+        mScheduler = scheduler;
     }
 
     @Override
@@ -16,10 +16,7 @@ public final class NextAppAlarmReceiver extends BroadcastReceiver {
         if (intent == null) return;
         if (!NextAppAlarmScheduler.actionLongExpire().equals(intent.getAction())) return;
 
-        String pkgA = intent.getStringExtra(NextAppAlarmScheduler.extraPkgA());
-        if (pkgA == null) return;
-
-        // 3-minute check fired -> finalize labels (NONE or punish prefetched)
-        mEngine.onLongWindowExpiredFinalize(pkgA);
+        // one alarm for all A: the scheduler finalizes every due deadline
+        mScheduler.onAlarm();
     }
 }
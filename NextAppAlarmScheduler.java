@@ -7,68 +7,176 @@ import android.content.Context;
 import android.content.Intent;
 import android.os.SystemClock;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Long-window finalization deadlines, one per A, kept in a local min-heap.
+ *
+ * At most one AlarmManager alarm is armed, for the earliest deadline, through a
+ * single PendingIntent. Scheduling only calls into AlarmManager when the new
+ * deadline is earlier than the armed one. Deadlines share the same window,
+ * so that almost never happens. Cancelling never calls AlarmManager: a fire
+ * with nothing due just re-arms for the next deadline. When the alarm fires,
+ * every due entry is finalized in one batch (see NextAppAlarmReceiver).
+ */
 public final class NextAppAlarmScheduler {
     private static final String ACTION_LONG_EXPIRE =
             "com.android.server.power.nextapp.action.LONG_EXPIRE";
-    private static final String EXTRA_PKG_A = "pkg_a";
+    private static final int REQUEST_CODE = 0;
+    private static final long NOT_ARMED = Long.MAX_VALUE;
 
-    private final Context mContext;
+    private final NextAppEngine mEngine;
     private final AlarmManager mAlarm;
+    private final PendingIntent mPendingIntent;
 
-    // Explicit receiver component (you must register it)
-    private final ComponentName mReceiver;
+    private final Object mLock = new Object();
 
-    public NextAppAlarmScheduler(Context context, ComponentName receiverComponent) {
-        mContext = context;
-        mAlarm = context.getSystemService(AlarmManager.class);
-        mReceiver = receiverComponent;
+    /** Heap node; heapIndex lets cancel and reschedule find it in O(1). */
+    private static final class Deadline {
+        final String pkgA;
+        long atMs;       // elapsedRealtime
+        int heapIndex;
+
+        Deadline(String pkgA) {
+            this.pkgA = pkgA;
+        }
     }
 
-    /** Schedule "check after windowMs" for pkgA (3 minutes = 180_000ms). */
-    public void scheduleLongWindow(String pkgA, int windowMs) {
-        if (pkgA == null) return;
+    // guarded by mLock
+    private final HashMap<String, Deadline> mByA = new HashMap<>();
+    private Deadline[] mHeap = new Deadline[16];
+    private int mSize;
+    private long mArmedAtMs = NOT_ARMED;
 
-        PendingIntent pi = buildPendingIntent(pkgA);
+    // due batch, alarm delivery thread only
+    private final ArrayList<String> mDue = new ArrayList<>();
 
-        // Replace any previous alarm for same A
-        mAlarm.cancel(pi);
+    // Explicit receiver component (you must register it)
+    public NextAppAlarmScheduler(Context context, ComponentName receiverComponent,
+                                 NextAppEngine engine) {
+        mEngine = engine;
+        mAlarm = context.getSystemService(AlarmManager.class);
 
-        long triggerAt = SystemClock.elapsedRealtime() + windowMs;
+        Intent i = new Intent(ACTION_LONG_EXPIRE);
+        i.setComponent(receiverComponent); // explicit broadcast target
+        mPendingIntent = PendingIntent.getBroadcast(context, REQUEST_CODE, i,
+                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE);
+    }
 
-        // Non-wakeup exact alarm (good for system_server use; doesn't wake device)
-        mAlarm.setExact(AlarmManager.ELAPSED_REALTIME, triggerAt, pi);
+    /** Schedule "check after windowMs" for pkgA (3 minutes = 180_000ms); replaces any previous. */
+    public void scheduleLongWindow(String pkgA, int windowMs) {
+        if (pkgA == null) return;
+        final long atMs = SystemClock.elapsedRealtime() + windowMs;
+        synchronized (mLock) {
+            Deadline d = mByA.get(pkgA);
+            if (d == null) {
+                d = new Deadline(pkgA);
+                d.atMs = atMs;
+                mByA.put(pkgA, d);
+                offer(d);
+            } else {
+                final long old = d.atMs;
+                d.atMs = atMs;
+                if (atMs < old) siftUp(d.heapIndex); else siftDown(d.heapIndex);
+            }
+            armLocked();
+        }
     }
 
     /** Cancel the scheduled long-window check for A (call when next app observed). */
     public void cancelLongWindow(String pkgA) {
         if (pkgA == null) return;
-        PendingIntent pi = buildPendingIntent(pkgA);
-        mAlarm.cancel(pi);
+        synchronized (mLock) {
+            Deadline d = mByA.remove(pkgA);
+            if (d != null) removeAt(d.heapIndex);
+            // the armed alarm stays; firing early just re-arms
+        }
     }
 
-    private PendingIntent buildPendingIntent(String pkgA) {
-        Intent i = new Intent(ACTION_LONG_EXPIRE);
-        i.setComponent(mReceiver); // explicit broadcast target
-        i.putExtra(EXTRA_PKG_A, pkgA);
-
-        // requestCode must be stable per pkgA to cancel correctly
-        int requestCode = stableRequestCode(pkgA);
-
-        return PendingIntent.getBroadcast(
-                mContext,
-                requestCode,
-                i,
-                PendingIntent.FLAG_UPDATE_CURRENT | PendingIntent.FLAG_IMMUTABLE
-        );
+    /** Called by NextAppAlarmReceiver: finalizes every due A, then re-arms. */
+    public void onAlarm() {
+        synchronized (mLock) {
+            mArmedAtMs = NOT_ARMED;
+            final long now = SystemClock.elapsedRealtime();
+            while (mSize > 0 && mHeap[0].atMs <= now) {
+                final Deadline d = mHeap[0];
+                removeAt(0);
+                mByA.remove(d.pkgA);
+                mDue.add(d.pkgA);
+            }
+            armLocked();
+        }
+
+        // 3-minute check fired -> finalize labels (NONE or punish prefetched)
+        for (int i = 0; i < mDue.size(); i++) {
+            mEngine.onLongWindowExpiredFinalize(mDue.get(i));
+        }
+        mDue.clear();
+    }
+
+    // Expose constant for receiver
+    public static String actionLongExpire() { return ACTION_LONG_EXPIRE; }
+
+    // ---- internals ----
+
+    /** Arms the single alarm if the earliest deadline moved ahead of it. */
+    private void armLocked() {
+        if (mSize == 0) return;
+        final long earliest = mHeap[0].atMs;
+        if (earliest >= mArmedAtMs) return;
+        mArmedAtMs = earliest;
+        // Non-wakeup exact alarm (good for system_server use; doesn't wake device).
+        // Same PendingIntent, so this replaces the previously armed alarm.
+        mAlarm.setExact(AlarmManager.ELAPSED_REALTIME, earliest, mPendingIntent);
     }
 
-    private static int stableRequestCode(String pkgA) {
-        // stable hash; collisions are rare but possible.
-        // If you want zero collision, maintain a map A->int id, but this is usually OK.
-        return FeatureHasher.hash32("LONG|" + pkgA);
+    private void offer(Deadline d) {
+        if (mSize == mHeap.length) mHeap = Arrays.copyOf(mHeap, mSize * 2);
+        d.heapIndex = mSize;
+        mHeap[mSize++] = d;
+        siftUp(d.heapIndex);
     }
 
-    // Expose constants for receiver
-    public static String actionLongExpire() { return ACTION_LONG_EXPIRE; }
-    public static String extraPkgA() { return EXTRA_PKG_A; }
+    private void removeAt(int i) {
+        final Deadline last = mHeap[--mSize];
+        mHeap[mSize] = null;
+        if (i == mSize) return;
+        mHeap[i] = last;
+        last.heapIndex = i;
+        siftDown(i);
+        siftUp(last.heapIndex);
+    }
+
+    private void siftUp(int i) {
+        final Deadline d = mHeap[i];
+        while (i > 0) {
+            final int parent = (i - 1) >>> 1;
+            final Deadline p = mHeap[parent];
+            if (p.atMs <= d.atMs) break;
+            mHeap[i] = p;
+            p.heapIndex = i;
+            i = parent;
+        }
+        mHeap[i] = d;
+        d.heapIndex = i;
+    }
+
+    private void siftDown(int i) {
+        final Deadline d = mHeap[i];
+        final int half = mSize >>> 1;
+        while (i < half) {
+            int child = 2 * i + 1;
+            final int right = child + 1;
+            if (right < mSize && mHeap[right].atMs < mHeap[child].atMs) child = right;
+            final Deadline c = mHeap[child];
+            if (d.atMs <= c.atMs) break;
+            mHeap[i] = c;
+            c.heapIndex = i;
+            i = child;
+        }
+        mHeap[i] = d;
+        d.heapIndex = i;
+    }
 }
@@ -0,0 +1,275 @@
+package android.server.power.nextapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.Slog;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Writes model checkpoints off the hook thread.
+ *
+ * The thread that trains the models (the "owner") calls request()/poll(). A
+ * request copies the live models into shadow instances (memcpy only, no I/O;
+ * LR models copy only pages touched since the last snapshot) and posts the
+ * write of those shadows to a background thread. Requests are
+ * coalesced: while a write is in flight, or while the rate limits say no, the
+ * request stays pending and is retried on the owner's next poll(). Rate limits
+ * are a minimum interval between checkpoints and a token bucket on bytes.
+ *
+ * With a TrainingJournal, a checkpoint whose files were all written records
+ * the journal sequence number its snapshot covers, so the journal can drop
+ * what the checkpoint now holds.
+ *
+ * A partial checkpoint (some store failed) leaves the journal marker where it
+ * was, although the files that were written already hold the events after
+ * it: a crash before the next complete checkpoint replays those events onto
+ * them a second time. This is accepted rather than tracked per file (which
+ * would need a sequence number in every store's format): it needs an I/O
+ * error first, it covers at most the training since the last complete
+ * checkpoint, and a repeated event moves a model no more than a repeated
+ * transition would. A partial checkpoint requests the next one, so the window
+ * closes as soon as the rate limits allow.
+ *
+ * Only the owner thread touches the live models and the pending state; the
+ * background thread only reads the shadows, and never while the owner is
+ * refreshing them (guarded by mWriting).
+ *
+ * The background thread is the checkpointer's own unless the caller passes a
+ * Looper to share (NextAppUserEngines writes every user's checkpoints on one).
+ * After shutdown() nothing more is written.
+ */
+public final class NextAppCheckpointer {
+    private static final String TAG = "NextAppCheckpoint";
+    private static final long HOUR_MS = 60 * 60 * 1000L;
+    private static final long SHUTDOWN_WAIT_MS = 5_000;
+
+    private final NextAppConfig mCfg;
+    private final NextAppStats mStats;
+
+    // live models (owner thread)
+    private final PackageRegistry mPackages;
+    private final MarkovTransitionTable mMarkov;
+    private final OnlineLogisticModel mGatingLr;
+    private final OnlineLogisticModel mRankLr;
+    private final FeatureKeySketch mGatingKeys;
+    private final FeatureKeySketch mRankKeys;
+
+    // shadows (written by owner while !mWriting, read by background thread)
+    private final PackageRegistry mPackagesSnap = new PackageRegistry();
+    private final MarkovTransitionTable mMarkovSnap;
+    private final OnlineLogisticModel mGatingSnap;
+    private final OnlineLogisticModel mRankSnap;
+    private final FeatureKeySketch mGatingKeysSnap = new FeatureKeySketch();
+    private final FeatureKeySketch mRankKeysSnap = new FeatureKeySketch();
+
+    // stores
+    private final PackageRegistryStore mPackagesStore;
+    private final LrAtomicStore mGatingStore;
+    private final LrAtomicStore mRankStore;
+    private final MarkovProtoStore mMarkovStore;
+    private final FeatureKeySketchStore mKeysStore;
+    private final TrainingJournal mJournal;   // nullable
+    private long mSnapSeq;                    // journal seq the shadows cover (owner writes before posting)
+
+    private final HandlerThread mThread;   // null when the looper is shared
+    private final Handler mH;
+    private final Runnable mWriteRunnable = this::writeSnapshot;
+    private final AtomicBoolean mWriting = new AtomicBoolean(false);
+    private volatile boolean mIncomplete;  // the last write failed some store (see class comment)
+
+    // owner-thread state
+    private boolean mStopped;
+    private boolean mPending;
+    private long mLastSnapshotMs = Long.MIN_VALUE / 2;
+    private long mTokens;          // byte budget (token bucket)
+    private long mTokensAtMs;
+    private volatile long mLastBytes; // size of the last checkpoint, used as the next estimate
+
+    // stats (background thread writes, anyone reads)
+    private volatile long mTotalBytes;
+    private volatile int mCheckpoints;
+    private volatile long mLastDurationMs;
+
+    public NextAppCheckpointer(NextAppConfig cfg, NextAppPredictor predictor,
+                               PackageRegistryStore packagesStore, LrAtomicStore gatingStore,
+                               LrAtomicStore rankStore, MarkovProtoStore markovStore,
+                               FeatureKeySketchStore keysStore, TrainingJournal journal,
+                               NextAppStats stats) {
+        this(cfg, predictor, packagesStore, gatingStore, rankStore, markovStore, keysStore,
+                journal, stats, null);
+    }
+
+    /** looper: a thread shared with other checkpointers, or null for a thread of our own. */
+    public NextAppCheckpointer(NextAppConfig cfg, NextAppPredictor predictor,
+                               PackageRegistryStore packagesStore, LrAtomicStore gatingStore,
+                               LrAtomicStore rankStore, MarkovProtoStore markovStore,
+                               FeatureKeySketchStore keysStore, TrainingJournal journal,
+                               NextAppStats stats, Looper looper) {
+        mCfg = cfg;
+        mStats = stats;
+        mPackages = predictor.getPackages();
+        mMarkov = predictor.getMarkov();
+        mGatingLr = predictor.getGatingLr();
+        mRankLr = predictor.getRankLr();
+        mGatingKeys = predictor.getGatingKeys();
+        mRankKeys = predictor.getRankKeys();
+
+        mMarkovSnap = new MarkovTransitionTable(cfg.markovTopMPerA, cfg.markovDecay);
+        mGatingSnap = OnlineLogisticModel.fromConfig(cfg);
+        mRankSnap = OnlineLogisticModel.fromConfig(cfg);
+
+        mPackagesStore = packagesStore;
+        mGatingStore = gatingStore;
+        mRankStore = rankStore;
+        mMarkovStore = markovStore;
+        mKeysStore = keysStore;
+        mJournal = journal;
+
+        mTokens = cfg.checkpointMaxBytesPerHour;
+        mTokensAtMs = SystemClock.elapsedRealtime();
+        // two full LR vectors dominate until we have measured a real checkpoint
+        mLastBytes = 2L * (4L << cfg.hashDimPow2);
+
+        if (looper != null) {
+            mThread = null;
+            mH = new Handler(looper);
+        } else {
+            mThread = new HandlerThread("NextAppCheckpoint", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mH = new Handler(mThread.getLooper());
+        }
+    }
+
+    /** Owner thread: ask for a checkpoint. Never blocks on I/O. */
+    public void request() {
+        mPending = true;
+        poll();
+    }
+
+    /** Owner thread: retries a deferred request; cheap when nothing is pending. */
+    public void poll() {
+        if (mIncomplete) mPending = true;
+        if (!mPending || mStopped || mWriting.get()) return;
+
+        final long now = SystemClock.elapsedRealtime();
+        if (now - mLastSnapshotMs < mCfg.checkpointMinIntervalMs) return;
+
+        refillTokens(now);
+        final long estimate = Math.min(mLastBytes, mCfg.checkpointMaxBytesPerHour);
+        if (mTokens < estimate) return;
+
+        snapshot();
+        mPending = false;
+        mLastSnapshotMs = now;
+        mTokens -= estimate;
+        mWriting.set(true);
+        mH.post(mWriteRunnable);
+    }
+
+    /**
+     * Owner thread: waits for an in-flight write, then snapshots and writes
+     * synchronously, ignoring rate limits. For explicit saves and shutdown.
+     */
+    public void checkpointNow() {
+        if (mStopped) return;
+        if (!waitForIdle()) {
+            Slog.w(TAG, "previous checkpoint still running; skipping");
+            return;
+        }
+        snapshot();
+        mPending = false;
+        mLastSnapshotMs = SystemClock.elapsedRealtime();
+        mWriting.set(true);
+        writeSnapshot();
+    }
+
+    /** Owner thread: flushes a final checkpoint and stops the background thread (if our own). */
+    public void shutdown() {
+        checkpointNow();
+        mStopped = true;
+        if (mThread == null) return;
+        mThread.quitSafely();
+        try {
+            mThread.join(SHUTDOWN_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getTotalBytes() { return mTotalBytes; }
+    public int getCheckpointCount() { return mCheckpoints; }
+    public long getLastDurationMs() { return mLastDurationMs; }
+
+    // ---- internals ----
+
+    private void snapshot() {
+        mPackages.copyTo(mPackagesSnap);
+        mMarkov.copyTo(mMarkovSnap);
+        mGatingLr.copyTo(mGatingSnap);
+        mRankLr.copyTo(mRankSnap);
+        mGatingKeys.copyTo(mGatingKeysSnap);
+        mRankKeys.copyTo(mRankKeysSnap);
+        if (mJournal != null) mSnapSeq = mJournal.lastSeq();
+    }
+
+    /** Runs on the background thread (or the owner for checkpointNow). */
+    private void writeSnapshot() {
+        final long t0 = SystemClock.elapsedRealtime();
+        long bytes = 0;
+        boolean complete = true;
+        try {
+            final long[] written = {
+                    mPackagesStore.write(mPackagesSnap),
+                    // LR: dirty pages only, compacted into a full file when the journal is full
+                    mGatingStore.writeDelta(mGatingSnap),
+                    mRankStore.writeDelta(mRankSnap),
+                    mMarkovStore.write(mMarkovSnap, mPackagesSnap),
+            };
+            for (long n : written) {
+                bytes += Math.max(0, n);
+                complete &= n >= 0;
+            }
+            // key sketches: 2 KB, only once they have changed (rarely, once saturated)
+            if (mGatingKeysSnap.hasChanges() || mRankKeysSnap.hasChanges()) {
+                bytes += Math.max(0, mKeysStore.write(mGatingKeysSnap, mRankKeysSnap));
+            }
+            // training journal: everything up to mSnapSeq is now in the files
+            if (complete && mJournal != null) {
+                final long n = mJournal.markCheckpointed(mSnapSeq);
+                bytes += Math.max(0, n);
+                complete = n >= 0; // an unwritten marker leaves the same window open
+            }
+        } catch (Throwable t) {
+            Slog.e(TAG, "checkpoint failed", t);
+            complete = false;
+        } finally {
+            mIncomplete = !complete;
+            if (bytes > 0) mLastBytes = bytes;
+            mTotalBytes += bytes;
+            mCheckpoints++;
+            mLastDurationMs = SystemClock.elapsedRealtime() - t0;
+            mStats.recordCheckpoint(mLastDurationMs, bytes);
+            mWriting.set(false);
+        }
+    }
+
+    private boolean waitForIdle() {
+        final long deadline = SystemClock.elapsedRealtime() + SHUTDOWN_WAIT_MS;
+        while (mWriting.get() && SystemClock.elapsedRealtime() < deadline) {
+            SystemClock.sleep(5);
+        }
+        return !mWriting.get();
+    }
+
+    private void refillTokens(long now) {
+        final long cap = mCfg.checkpointMaxBytesPerHour;
+        final long elapsed = now - mTokensAtMs;
+        if (elapsed <= 0) return;
+        mTokens = Math.min(cap, mTokens + cap * elapsed / HOUR_MS);
+        mTokensAtMs = now;
+    }
+}
@@ -5,12 +5,16 @@ public final class NextAppConfig {
     public int markovTopMPerA = 50;
     public int candidateTopN = 15;
     public float markovDecay = 0.9995f;
+    public int markovMaxRows = 0;       // > 0: keep at most this many rows (LRU); 0 = unbounded
 
     // Policy
     public int prefetchTopK = 1;
     public float rankThreshold = 0.70f;
     public float gapDelta = 0.10f;
     public int ttlMs = 30_000;
+    public int decisionCacheSizePow2 = 6;      // 64 cached decisions; -1 disables (NextAppDecisionCache)
+    public int decisionCacheLrUpdates = 32;    // a hit lags LR training by < this many steps; 1 = exact
+    public long decisionCacheMaxAgeMs = 10_000; // ... and by at most this long
 
     // Gating
     public float gatingThreshold = 0.40f;      // if p_next < this => NONE
@@ -22,11 +26,32 @@ public final class NextAppConfig {
     public float lr = 0.05f;
     public float l2 = 1e-6f;
     public int hardNegPerPos = 5;
+    public boolean lrFtrl = false;   // FTRL-Proximal instead of SGD (sparse weights, L1)
+    public float ftrlAlpha = 0.1f;
+    public float ftrlBeta = 1.0f;
+    public float ftrlL1 = 0.01f;     // L2 is l2 above
+    public boolean lrHalfPrecision = false; // SGD weights as fp16 (half the memory and I/O)
+    public float hashCollisionTarget = 0.05f; // dumpsys hashDim recommendation (see FeatureKeySketch)
+
+    // Training (NextAppTrainer)
+    public boolean asyncTraining = true;       // hooks enqueue; a trainer thread applies the updates
+    public int trainQueueCapacityPow2 = 9;     // 512 pending events; more are dropped
+    public int trainBatchMax = 32;             // events per trainer batch (write lock hold)
+    public long trainDelayMs = 20;             // trainer wakes this long after the first queued event
 
     // Persistence
-    public int checkpointEveryNUpdates = 300;
+    public int checkpointEveryNUpdates = 3000;                 // the training journal covers the gap
+    public long checkpointMinIntervalMs = 60_000;              // at most one checkpoint per minute
+    public long checkpointMaxBytesPerHour = 16L * 1024 * 1024; // flash write budget
+    public long lrJournalMaxBytes = 64 * 1024;                 // LR delta journal before compaction
+    public boolean journalEnable = true;                       // TrainingJournal: replay after a crash
+    public long journalSegmentBytes = 64 * 1024;
+    public long journalSyncMs = 5_000;                         // fsync at most this often
+    public long userModelsBudgetBytes = 4L * 1024 * 1024;      // loaded per-user engines (NextAppUserEngines)
+    public long userEvictMinIdleMs = 10 * 60_000;              // never evict a user active more recently
 
     public boolean enable = true;
     public boolean enableLrRanking = true;
     public boolean enableGating = true;
+    public boolean enableStats = true;   // hook latency/outcome stats (NextAppStats); runtime switchable
 }
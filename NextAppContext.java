@@ -1,7 +1,5 @@
 package android.server.power.nextapp;
 
-import java.util.Objects;
-
 /**
  * Context at the moment app A is allowed-to-run (unsuspended).
  * Keep it small and stable. Avoid high-cardinality fields.
@@ -47,6 +45,12 @@ public final class NextAppContext {
 
     @Override
     public int hashCode() {
-        return Objects.hash(timeBucket, allowReason, prevForegroundPkg, batteryBucket, maxPowerMode);
+        // no boxing (Objects.hash allocates)
+        int h = timeBucket;
+        h = 31 * h + allowReason;
+        h = 31 * h + (prevForegroundPkg == null ? 0 : prevForegroundPkg.hashCode());
+        h = 31 * h + batteryBucket;
+        h = 31 * h + (maxPowerMode ? 1231 : 1237);
+        return h;
     }
 }
@@ -0,0 +1,158 @@
+package android.server.power.nextapp;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Small direct-mapped cache of onAllowedToRun results.
+ *
+ * The key packs (pkgA, prevPkg, context buckets) into one long. An entry also
+ * records what it was computed from: A's Markov candidates (in order), an LR
+ * generation and the time. A lookup hits only if the caller's current
+ * candidates are the same ids in the same order, the LR generation still
+ * matches and the entry is younger than maxAgeMs.
+ *
+ * Candidates are compared, not A's row version: every A -> B transition
+ * re-weights A's row, so a version check would miss on every revisit in a
+ * loop (A -> B -> C -> A) even though the candidate order, all the decision
+ * reads from the row, is unchanged. The LR generation is coarse for the same
+ * reason (NextAppPredictor advances it every decisionCacheLrUpdates training
+ * steps), so a hit may come from weights up to that many steps minus one
+ * and maxAgeMs behind the current ones. With decisionCacheLrUpdates = 1 hits
+ * are exact. Things that change ids or config (package removal, model load)
+ * call clear(), which also bumps an epoch so a computation that raced with it
+ * is dropped.
+ *
+ * Entries are immutable and published through an AtomicReferenceArray, so
+ * concurrent scorers need no lock; a lost race just overwrites a slot.
+ */
+public final class NextAppDecisionCache {
+    /** key() result for contexts that do not fit the packing; never cached. */
+    public static final long NO_KEY = -1;
+
+    private static final int ID_BITS = 24;
+    private static final int ID_LIMIT = 1 << ID_BITS;
+    private static final int[] EMPTY = new int[0];
+
+    /** One cached decision plus what the session store needs to learn from it. */
+    public static final class Entry {
+        final long key;
+        final int epoch;
+        final long lrGeneration;
+        final long createdMillis;
+
+        public final NextAppDecision decision;
+        public final int[] candidates; // Markov order
+        public final int[] prefetched; // ranked prefix the policy chose
+
+        Entry(long key, int epoch, long lrGeneration, long createdMillis,
+              NextAppDecision decision, int[] candidates, int[] prefetched) {
+            this.key = key;
+            this.epoch = epoch;
+            this.lrGeneration = lrGeneration;
+            this.createdMillis = createdMillis;
+            this.decision = decision;
+            this.candidates = candidates;
+            this.prefetched = prefetched;
+        }
+    }
+
+    private final AtomicReferenceArray<Entry> mSlots;
+    private final int mMask;
+    private final long mMaxAgeMs;
+    private volatile int mEpoch;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * @param sizePow2 log2 of the slot count; negative disables the cache
+     * @param maxAgeMs entries older than this never hit
+     */
+    public NextAppDecisionCache(int sizePow2, long maxAgeMs) {
+        final int size = sizePow2 < 0 ? 0 : 1 << Math.min(sizePow2, 16);
+        mSlots = new AtomicReferenceArray<>(size);
+        mMask = size - 1;
+        mMaxAgeMs = maxAgeMs;
+    }
+
+    /**
+     * Packs pkgA, prevPkg (NO_ID allowed) and the context buckets into a key:
+     * 24 bits per id, 4 per bucket, 1 for maxPowerMode. NO_KEY if out of range.
+     */
+    public static long key(int pkgA, int prevPkg, NextAppContext ctx) {
+        final int prev = prevPkg + 1; // NO_ID (-1) -> 0
+        if (pkgA < 0 || pkgA >= ID_LIMIT || prev < 0 || prev >= ID_LIMIT) return NO_KEY;
+        if ((ctx.timeBucket | ctx.allowReason | ctx.batteryBucket) >>> 4 != 0) return NO_KEY;
+        return ((long) pkgA << 37)
+                | ((long) prev << 13)
+                | (ctx.timeBucket << 9)
+                | (ctx.allowReason << 5)
+                | (ctx.batteryBucket << 1)
+                | (ctx.maxPowerMode ? 1 : 0);
+    }
+
+    /** Read before computing a decision to put(); see clear(). */
+    public int epoch() { return mEpoch; }
+
+    /**
+     * The cached entry for key if it was computed from this epoch, LR generation
+     * and candidate list no longer than maxAgeMs before nowMillis, else null.
+     */
+    public Entry get(long key, int epoch, long lrGeneration, long nowMillis,
+                     int[] candidates, int candidateCount) {
+        if (mMask < 0 || key == NO_KEY) return null;
+        final Entry e = mSlots.get(slot(key));
+        if (e != null && e.key == key && e.epoch == epoch && e.lrGeneration == lrGeneration
+                && nowMillis - e.createdMillis <= mMaxAgeMs
+                && sameIds(e.candidates, candidates, candidateCount)) {
+            mHits.incrementAndGet();
+            return e;
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Caches a decision computed at nowMillis from the given candidates, epoch
+     * and LR generation; the caller must have read the epoch and generation
+     * before computing it. A stale epoch is not cached.
+     */
+    public void put(long key, int epoch, long lrGeneration, long nowMillis,
+                    NextAppDecision decision, int[] candidates, int candidateCount,
+                    int[] ranked, int prefetchedCount) {
+        if (mMask < 0 || key == NO_KEY || epoch != mEpoch) return;
+        mSlots.set(slot(key), new Entry(key, epoch, lrGeneration, nowMillis,
+                decision, copy(candidates, candidateCount), copy(ranked, prefetchedCount)));
+    }
+
+    /** Drops every entry. Single caller at a time (the model writer). */
+    public void clear() {
+        mEpoch++;
+        for (int i = 0; i < mSlots.length(); i++) mSlots.set(i, null);
+    }
+
+    public int capacity() { return mSlots.length(); }
+    public long getHits() { return mHits.get(); }
+    public long getMisses() { return mMisses.get(); }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mMask;
+    }
+
+    private static boolean sameIds(int[] cached, int[] ids, int n) {
+        if (cached.length != n) return false;
+        for (int i = 0; i < n; i++) {
+            if (cached[i] != ids[i]) return false;
+        }
+        return true;
+    }
+
+    private static int[] copy(int[] src, int n) {
+        if (n <= 0) return EMPTY;
+        final int[] out = new int[n];
+        System.arraycopy(src, 0, out, 0, n);
+        return out;
+    }
+}
@@ -1,73 +1,276 @@
 package android.server.power.nextapp;
 
+import android.os.Looper;
+import android.os.SystemClock;
+import android.os.UserHandle;
 import android.util.Slog;
 
 import java.io.File;
+import java.io.PrintWriter;
 
+/**
+ * Thread-safe entry point; hooks may be called from any framework thread.
+ *
+ * Training hooks only queue an event for NextAppTrainer, whose thread applies
+ * it under mWriteLock; everything that mutates the models runs under that lock,
+ * which makes it a single writer (see NextAppPredictor). onAllowedToRun never
+ * takes it, so scoring latency does not depend on training.
+ *
+ * Applied training events are journaled (TrainingJournal, if enabled) and
+ * replayed by loadModels(), so a crash does not lose what the last checkpoint
+ * missed.
+ *
+ * One engine serves one user (see NextAppUserEngines); its models live in that
+ * user's ModelFiles.
+ */
 public final class NextAppEngine {
     private static final String TAG = "NextAppEngine";
 
+    private final Object mWriteLock = new Object();
+
     private final NextAppConfig mCfg;
+    private final PackageRegistry mPackages;
     private final NextAppPredictor mPredictor;
+    private final NextAppStats mStats;
+    private final NextAppTrainer mTrainer;
 
     // stores
+    private final PackageRegistryStore mPackagesStore;
     private final LrAtomicStore mGatingStore;
     private final LrAtomicStore mRankStore;
     private final MarkovProtoStore mMarkovStore;
+    private final FeatureKeySketchStore mKeysStore;
+    private final TrainingJournal mJournal; // nullable
+    private final NextAppCheckpointer mCheckpointer;
 
+    /** The system user's engine (single-user devices, tools). */
     public NextAppEngine(NextAppConfig cfg) {
+        this(cfg, ModelFiles.forUser(UserHandle.USER_SYSTEM));
+    }
+
+    public NextAppEngine(NextAppConfig cfg, ModelFiles files) {
+        this(cfg, files, null, null);
+    }
+
+    /**
+     * trainerLooper, checkpointLooper: threads shared with other engines (see
+     * NextAppUserEngines), or null to start threads of this engine's own.
+     */
+    public NextAppEngine(NextAppConfig cfg, ModelFiles files,
+                         Looper trainerLooper, Looper checkpointLooper) {
         mCfg = cfg;
-        mPredictor = new NextAppPredictor(cfg);
+        mPackages = new PackageRegistry();
+        mPredictor = new NextAppPredictor(cfg, mPackages);
+        mStats = new NextAppStats(cfg.enableStats);
+
+        mPackagesStore = new PackageRegistryStore(files.packagesFile());
+        mGatingStore = new LrAtomicStore(files.gatingLrFile(), cfg.lrJournalMaxBytes);
+        mRankStore = new LrAtomicStore(files.rankLrFile(), cfg.lrJournalMaxBytes);
+        mMarkovStore = new MarkovProtoStore(files.markovFile());
+        mKeysStore = new FeatureKeySketchStore(files.featureKeysFile());
+        mJournal = cfg.journalEnable
+                ? new TrainingJournal(files.journalDir(), files.journalMarkerFile(), cfg, mPackages)
+                : null;
 
-        mGatingStore = new LrAtomicStore(ModelFiles.gatingLrFile());
-        mRankStore = new LrAtomicStore(ModelFiles.rankLrFile());
-        mMarkovStore = new MarkovProtoStore(ModelFiles.markovFile());
+        mCheckpointer = new NextAppCheckpointer(cfg, mPredictor, mPackagesStore, mGatingStore,
+                mRankStore, mMarkovStore, mKeysStore, mJournal, mStats, checkpointLooper);
+        mPredictor.setCheckpointer(mCheckpointer);
+        mPredictor.setJournal(mJournal);
+        mTrainer = new NextAppTrainer(cfg, mPredictor, mJournal, mWriteLock, trainerLooper);
     }
 
     /** Call at service start. */
     public void loadModels() {
-        // Load LR gating
-        LrAtomicStore.Loaded g = mGatingStore.readOrNull();
-        if (g != null && g.hashDimPow2 == mCfg.hashDimPow2) {
-            mPredictor.restoreGating(g.bias, g.weights);
+        synchronized (mWriteLock) {
+            // Package ids first: everything id-keyed depends on them
+            mPackagesStore.readInto(mPackages);
+
+            // Load LR models in place; a file of another dimension is migrated
+            loadLr(mGatingStore, mPredictor.getGatingLr(), "gating");
+            loadLr(mRankStore, mPredictor.getRankLr(), "rank");
+            mKeysStore.readInto(mPredictor.getGatingKeys(), mPredictor.getRankKeys());
+
+            // Load Markov (interns any package missing from the registry)
+            mMarkovStore.readInto(mPredictor.getMarkov(), mPackages);
+
+            // Training since the last checkpoint
+            if (mJournal != null) {
+                final long t0 = SystemClock.elapsedRealtime();
+                final int n = mJournal.replay(this::replayEvent);
+                if (n > 0) {
+                    Slog.i(TAG, "replayed " + n + " journaled training events in "
+                            + (SystemClock.elapsedRealtime() - t0) + "ms");
+                }
+            }
+
+            mPredictor.onModelsLoaded();
         }
+    }
 
-        // Load LR ranking
-        LrAtomicStore.Loaded r = mRankStore.readOrNull();
-        if (r != null && r.hashDimPow2 == mCfg.hashDimPow2) {
-            mPredictor.restoreRank(r.bias, r.weights);
+    /** loadModels: one journaled event (see TrainingJournal.Replayer). */
+    private void replayEvent(int type, int a, int b, int prevPkg, NextAppContext ctx) {
+        if (type == TrainingJournal.EVENT_PACKAGE_REMOVED) {
+            final String name = mPackages.nameOf(a);
+            if (name == null) return; // id not live (already released): nothing to purge
+            mPredictor.replay(type, a, b, prevPkg, ctx);
+            mPackages.release(name);
+            return;
         }
+        mPredictor.replay(type, a, b, prevPkg, ctx);
+    }
 
-        // Load Markov (TODO hook your proto into predictor's Markov table)
-        // Object markovModel = mMarkovStore.readOrNull();
-        // TODO: mPredictor.getMarkov().importFrom(markovModel);
+    private static void loadLr(LrAtomicStore store, OnlineLogisticModel lr, String name) {
+        if (store.readInto(lr)) return;
+        final LrAtomicStore.Loaded l = store.readOrNull();
+        if (l == null || l.hashDimPow2 == lr.getHashDimPow2()) return; // missing or corrupt
+        final int merged = lr.restoreResized(l.hashDimPow2, l.bias, l.weights);
+        Slog.i(TAG, name + " LR migrated from hashDim 2^" + l.hashDimPow2
+                + " to 2^" + lr.getHashDimPow2() + " (" + merged + " buckets merged)");
     }
 
-    /** Call when you checkpoint. */
+    /**
+     * Synchronous checkpoint; does disk I/O on the calling thread. Periodic
+     * checkpoints happen in the background (see NextAppCheckpointer).
+     */
     public void saveModels() {
-        mGatingStore.write(mPredictor.getGatingLr());
-        mRankStore.write(mPredictor.getRankLr());
+        synchronized (mWriteLock) {
+            mTrainer.drainAllLocked();
+            if (mJournal != null) mJournal.sync();
+            mCheckpointer.checkpointNow();
+        }
+    }
 
-        // TODO: export Markov table -> proto model then write
-        // Object model = mPredictor.getMarkov().exportToProto();
-        // mMarkovStore.write(model);
+    /** Call at service stop: flushes a final checkpoint. */
+    public void shutdown() {
+        mTrainer.shutdown();
+        synchronized (mWriteLock) {
+            mTrainer.drainAllLocked();
+            mCheckpointer.shutdown();
+            if (mJournal != null) mJournal.close();
+        }
     }
 
     // ---- Hooks you call from framework ----
 
     public NextAppDecision onAllowedToRun(String pkgA, NextAppContext ctx) {
-        return mPredictor.onAllowedToRun(pkgA, ctx);
+        if (pkgA == null) return NextAppDecision.NONE;
+        final long t0 = mStats.startTimer();
+        final NextAppDecision d = mPredictor.onAllowedToRun(mPackages.intern(pkgA),
+                mPackages.intern(ctx.prevForegroundPkg), ctx);
+        mStats.recordHook(NextAppStats.HOOK_ALLOWED_TO_RUN, t0);
+        if (t0 != NextAppStats.NO_TIMER) {
+            mStats.recordDecision(d, mCfg.enableGating && d.gatingPNext < mCfg.gatingThreshold);
+        }
+        return d;
     }
 
     public void onForegroundChanged(String prevA, String nowB) {
-        mPredictor.onForegroundChanged(prevA, nowB);
+        if (prevA == null || nowB == null) return;
+        final long t0 = mStats.startTimer();
+        mTrainer.offer(NextAppTrainer.EVENT_FOREGROUND,
+                mPackages.intern(prevA), mPackages.intern(nowB));
+        mStats.recordHook(NextAppStats.HOOK_FOREGROUND_CHANGED, t0);
     }
 
     public void onTtlExpiredNoNextApp(String pkgA) {
-        mPredictor.onTtlExpiredNoNextApp(pkgA);
+        final long t0 = mStats.startTimer();
+        mTrainer.offer(NextAppTrainer.EVENT_TTL_NO_NEXT, mPackages.idOf(pkgA),
+                PackageRegistry.NO_ID);
+        mStats.recordHook(NextAppStats.HOOK_TTL_NO_NEXT, t0);
     }
 
     public void onPrefetchExpiredNotUsed(String pkgA, String prefetchedB) {
-        mPredictor.onPrefetchExpiredNotUsed(pkgA, prefetchedB);
+        final long t0 = mStats.startTimer();
+        mTrainer.offer(NextAppTrainer.EVENT_PREFETCH_NOT_USED, mPackages.idOf(pkgA),
+                mPackages.idOf(prefetchedB));
+        mStats.recordHook(NextAppStats.HOOK_PREFETCH_NOT_USED, t0);
+    }
+
+    /** Long-window alarm fired for A without a next app (see NextAppAlarmScheduler). */
+    public void onLongWindowExpiredFinalize(String pkgA) {
+        final long t0 = mStats.startTimer();
+        mTrainer.offer(NextAppTrainer.EVENT_LONG_WINDOW, mPackages.idOf(pkgA),
+                PackageRegistry.NO_ID);
+        mStats.recordHook(NextAppStats.HOOK_LONG_WINDOW, t0);
+    }
+
+    /** Call on package uninstall (not on update) so its id can be recycled. */
+    public void onPackageRemoved(String pkg) {
+        final long t0 = mStats.startTimer();
+        synchronized (mWriteLock) {
+            mTrainer.drainAllLocked(); // queued events may still carry the id being recycled
+            int id = mPackages.idOf(pkg);
+            if (id != PackageRegistry.NO_ID) {
+                mPredictor.onPackageRemoved(id);
+                mPackages.release(pkg);
+            }
+        }
+        mStats.recordHook(NextAppStats.HOOK_PACKAGE_REMOVED, t0);
+    }
+
+    // ---- Diagnostics ----
+
+    /** Turns hook instrumentation on or off at runtime (see NextAppStats). */
+    public void setStatsEnabled(boolean enabled) {
+        mStats.setEnabled(enabled);
+    }
+
+    public NextAppStats getStats() { return mStats; }
+    public NextAppTrainer getTrainer() { return mTrainer; }
+    public NextAppPredictor getPredictor() { return mPredictor; }
+
+    /**
+     * Rough heap held by this engine's models, including the checkpoint shadow
+     * copies (for NextAppUserEngines' memory budget). Racy, like dump().
+     */
+    public long estimateMemoryBytes() {
+        final long models = mPredictor.getGatingLr().memoryBytes()
+                + mPredictor.getRankLr().memoryBytes()
+                + mPredictor.getMarkov().memoryBytes();
+        return 2 * models + 64L * mPackages.size();
+    }
+
+    /**
+     * For dumpsys. Lock-free: model sizes are racy scans, good enough for
+     * diagnostics, so a dump never stalls a hook.
+     */
+    public void dump(PrintWriter pw) {
+        pw.println("NextAppEngine:");
+        pw.println("  config: enable=" + mCfg.enable
+                + " gating=" + mCfg.enableGating + "(" + mCfg.gatingThreshold + ")"
+                + " lrRanking=" + mCfg.enableLrRanking
+                + " candidateTopN=" + mCfg.candidateTopN
+                + " prefetchTopK=" + mCfg.prefetchTopK
+                + " ttlMs=" + mCfg.ttlMs
+                + " hashDim=2^" + mCfg.hashDimPow2);
+        final MarkovTransitionTable markov = mPredictor.getMarkov();
+        final PrefetchSessionStore sessions = mPredictor.getSessions();
+        pw.println("  packages: " + mPackages.size());
+        pw.println("  markov: rows=" + markov.rowCount()
+                + (markov.getMaxRows() > 0 ? "/" + markov.getMaxRows() : "")
+                + " entries=" + markov.entryCount() + " evictions=" + markov.evictionCount());
+        if (mCfg.lrFtrl) {
+            dumpFtrl(pw, "gating", mPredictor.getGatingLr().getFtrl());
+            dumpFtrl(pw, "rank", mPredictor.getRankLr().getFtrl());
+        }
+        pw.println("  sessions: live=" + sessions.size()
+                + " evicted=" + sessions.evictionCount());
+        final NextAppDecisionCache decisions = mPredictor.getDecisionCache();
+        pw.println("  decisionCache: slots=" + decisions.capacity()
+                + " hits=" + decisions.getHits() + " misses=" + decisions.getMisses());
+        pw.println("  checkpointer: count=" + mCheckpointer.getCheckpointCount()
+                + " totalBytes=" + mCheckpointer.getTotalBytes()
+                + " lastMs=" + mCheckpointer.getLastDurationMs());
+        FeatureKeySketch.dump(pw, "  ", mCfg.hashDimPow2, mCfg.hashCollisionTarget,
+                mPredictor.getGatingKeys(), mPredictor.getRankKeys());
+        mTrainer.dump(pw, "  ");
+        if (mJournal != null) mJournal.dump(pw, "  ");
+        mStats.dump(pw, "  ");
+    }
+
+    private static void dumpFtrl(PrintWriter pw, String name, FtrlWeights ftrl) {
+        pw.println("  ftrl " + name + ": entries=" + ftrl.size()
+                + " bytes=" + ftrl.memoryBytes()
+                + " reclaimed=" + ftrl.reclaimedCount() + " evicted=" + ftrl.evictedCount());
     }
 }
@@ -1,21 +1,26 @@
 package android.server.power.nextapp;
 
-import java.util.ArrayList;
-
 /**
  * Power-safety policy: decides NONE or prefetch apps.
  */
 public final class NextAppPolicy {
     private final NextAppConfig mCfg;
+    private final PackageRegistry mPackages;
 
-    public NextAppPolicy(NextAppConfig cfg) {
+    public NextAppPolicy(NextAppConfig cfg, PackageRegistry packages) {
         mCfg = cfg;
+        mPackages = packages;
     }
 
-    /** Decide based on gating + ranking scores. */
-    public NextAppDecision decide(String pkgA,
+    /**
+     * Decide based on gating + ranking scores.
+     * candIds[0..count) / scores[0..count) must be sorted by score desc.
+     */
+    public NextAppDecision decide(int pkgA,
                                   float pNext,
-                                  ArrayList<ScoredPkg> scoredCandidates) {
+                                  int[] candIds,
+                                  float[] scores,
+                                  int count) {
         if (!mCfg.enable) return NextAppDecision.NONE;
 
         // Gating: return NONE early
@@ -23,41 +28,39 @@ public final class NextAppPolicy {
             return new NextAppDecision(java.util.Collections.emptyList(), pNext, 0f);
         }
 
-        if (scoredCandidates == null || scoredCandidates.isEmpty()) {
+        if (count <= 0) {
             return new NextAppDecision(java.util.Collections.emptyList(), pNext, 0f);
         }
 
-        // Assume scoredCandidates sorted desc
-        ScoredPkg top1 = scoredCandidates.get(0);
-        float topScore = top1.score;
+        float topScore = scores[0];
 
         if (topScore < mCfg.rankThreshold) {
             return new NextAppDecision(java.util.Collections.emptyList(), pNext, topScore);
         }
 
-        if (scoredCandidates.size() >= 2) {
-            float gap = topScore - scoredCandidates.get(1).score;
+        if (count >= 2) {
+            float gap = topScore - scores[1];
             if (gap < mCfg.gapDelta) {
                 return new NextAppDecision(java.util.Collections.emptyList(), pNext, topScore);
             }
         }
 
         // Take topK (usually 1)
-        int k = Math.min(mCfg.prefetchTopK, scoredCandidates.size());
+        int k = Math.min(mCfg.prefetchTopK, count);
         if (k <= 0) return new NextAppDecision(java.util.Collections.emptyList(), pNext, topScore);
 
+        // a candidate released concurrently (uninstall) has no name any more: skip it
         if (k == 1) {
-            return NextAppDecision.single(top1.pkg, pNext, topScore);
+            String name = mPackages.nameOf(candIds[0]);
+            if (name == null) return new NextAppDecision(java.util.Collections.emptyList(), pNext, topScore);
+            return NextAppDecision.single(name, pNext, topScore);
         }
 
         java.util.ArrayList<String> out = new java.util.ArrayList<>(k);
-        for (int i = 0; i < k; i++) out.add(scoredCandidates.get(i).pkg);
+        for (int i = 0; i < k; i++) {
+            String name = mPackages.nameOf(candIds[i]);
+            if (name != null) out.add(name);
+        }
         return new NextAppDecision(java.util.Collections.unmodifiableList(out), pNext, topScore);
     }
-
-    public static final class ScoredPkg {
-        public final String pkg;
-        public final float score;
-        public ScoredPkg(String pkg, float score) { this.pkg = pkg; this.score = score; }
-    }
 }
@@ -2,140 +2,257 @@ package android.server.power.nextapp;
 
 import android.os.SystemClock;
 
-import java.util.ArrayList;
-import java.util.Collections;
-
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * All packages are PackageRegistry ids here; NextAppEngine does the
+ * String <-> id translation at the hook boundary.
+ *
+ * Concurrency model: the training hooks (onForegroundChanged, onTtl*,
+ * onPrefetchExpiredNotUsed, onLongWindowExpired, onPackageRemoved) mutate the
+ * models and must be called by one writer at a time: NextAppTrainer's thread
+ * (or the engine itself), always under NextAppEngine's write lock. The scoring
+ * hook (onAllowedToRun) takes no model lock and may run on any thread, also
+ * concurrently with itself: it reads the models through their lock-free read
+ * paths and uses its own encoders and buffers (Scratch), so training never
+ * delays scoring.
+ */
 public final class NextAppPredictor {
 
     private final NextAppConfig mCfg;
+    private final PackageRegistry mPackages;
 
     // Models
     private final MarkovTransitionTable mMarkov;
     private final OnlineLogisticModel mGatingLr;  // P(next exists | A, ctx)
     private final OnlineLogisticModel mRankLr;    // P(B | A, ctx)
 
-    // Encoders
+    // Encoders for the training hooks (writer only); they feed the key sketches
+    private final FeatureHashCache mHashes;
+    private final FeatureKeySketch mGatingKeys = new FeatureKeySketch();
+    private final FeatureKeySketch mRankKeys = new FeatureKeySketch();
     private final GatingFeatureEncoder mGatingEnc;
     private final RankingFeatureEncoder mRankEnc;
+    private final int[] mTrainFeat;   // ranking batch: per-candidate features
+    private final int[] mTrainLabels; // ranking batch: labels
 
     // Policy & session
     private final NextAppPolicy mPolicy;
     private final PrefetchSessionStore mSessions;
+    private final PrefetchSessionStore.Session mSession; // training hooks' copy (writer only)
+    private final NextAppDecisionCache mDecisions;
+    // coarse LR version for the decision cache: advanced every decisionCacheLrUpdates steps
+    private volatile long mLrGeneration;
+    private int mLrStepsInGeneration; // writer only
+
+    // one cached Scratch for onAllowedToRun; concurrent callers beyond the first allocate their own
+    private final AtomicReference<Scratch> mScratch = new AtomicReference<>();
 
     // Simple counters for checkpoint
     private int mUpdateCount = 0;
+    private NextAppCheckpointer mCheckpointer; // nullable
+    private TrainingJournal mJournal;          // nullable
+    private boolean mReplaying;                // no checkpoints until the whole journal is in
 
-    public NextAppPredictor(NextAppConfig cfg) {
+    public NextAppPredictor(NextAppConfig cfg, PackageRegistry packages) {
         mCfg = cfg;
+        mPackages = packages;
+
+        mMarkov = new MarkovTransitionTable(cfg.markovTopMPerA, cfg.markovDecay, cfg.markovMaxRows);
+
+        mGatingLr = OnlineLogisticModel.fromConfig(cfg);
+        mRankLr = OnlineLogisticModel.fromConfig(cfg);
+
+        mHashes = new FeatureHashCache(packages);
+        mGatingEnc = newGatingEncoder(mGatingKeys);
+        mRankEnc = newRankEncoder(mRankKeys);
+        // one positive plus at most candidateTopN negatives per batch
+        final int maxItems = 1 + Math.max(0, cfg.candidateTopN);
+        mTrainFeat = new int[maxItems * RankingFeatureEncoder.MAX_CANDIDATE_FEATURES];
+        mTrainLabels = new int[maxItems];
+
+        mPolicy = new NextAppPolicy(cfg, packages);
+        mSessions = new PrefetchSessionStore(/*maxSessions*/ 64, Math.max(0, cfg.candidateTopN));
+        mSession = new PrefetchSessionStore.Session(Math.max(0, cfg.candidateTopN));
+        mDecisions = new NextAppDecisionCache(cfg.decisionCacheSizePow2, cfg.decisionCacheMaxAgeMs);
+        mScratch.set(new Scratch());
+    }
 
-        mMarkov = new MarkovTransitionTable(cfg.markovTopMPerA, cfg.markovDecay);
+    private GatingFeatureEncoder newGatingEncoder(FeatureKeySketch keys) {
+        return new GatingFeatureEncoder(mask(), /*maxFeatures*/ 16, mHashes, keys);
+    }
 
-        mGatingLr = new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2);
-        mRankLr = new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2);
+    private RankingFeatureEncoder newRankEncoder(FeatureKeySketch keys) {
+        return new RankingFeatureEncoder(mask(), /*maxFeatures*/ 24, mHashes, keys);
+    }
 
-        int mask = (1 << cfg.hashDimPow2) - 1;
-        mGatingEnc = new GatingFeatureEncoder(mask, /*maxFeatures*/ 16);
-        mRankEnc = new RankingFeatureEncoder(mask, /*maxFeatures*/ 24);
+    private int mask() {
+        return (1 << mCfg.hashDimPow2) - 1;
+    }
 
-        mPolicy = new NextAppPolicy(cfg);
-        mSessions = new PrefetchSessionStore(/*maxSessions*/ 64);
+    /** Per-call state of onAllowedToRun: encoders plus Markov candidates, ranked ids + scores, B-features. */
+    private final class Scratch {
+        final GatingFeatureEncoder gatingEnc = newGatingEncoder(null);
+        final RankingFeatureEncoder rankEnc = newRankEncoder(null);
+        final int[] cand = new int[Math.max(0, mCfg.candidateTopN)];
+        final int[] ranked = new int[cand.length];
+        final float[] scores = new float[cand.length];
+        final int[] candFeat = new int[cand.length * RankingFeatureEncoder.MAX_CANDIDATE_FEATURES];
     }
 
     // ---------------------------
     // Hook #1: A allowed-to-run
     // ---------------------------
-    public NextAppDecision onAllowedToRun(String pkgA, NextAppContext ctx) {
-        if (!mCfg.enable || pkgA == null) return NextAppDecision.NONE;
+    /** @param prevPkg id of ctx.prevForegroundPkg, or PackageRegistry.NO_ID */
+    public NextAppDecision onAllowedToRun(int pkgA, int prevPkg, NextAppContext ctx) {
+        if (!mCfg.enable || pkgA == PackageRegistry.NO_ID) return NextAppDecision.NONE;
+
+        Scratch scratch = mScratch.getAndSet(null);
+        if (scratch == null) scratch = new Scratch(); // concurrent caller
+        try {
+            return allowedToRun(scratch, pkgA, prevPkg, ctx);
+        } finally {
+            mScratch.set(scratch);
+        }
+    }
 
+    private NextAppDecision allowedToRun(Scratch scratch, int pkgA, int prevPkg,
+                                         NextAppContext ctx) {
         final long now = SystemClock.uptimeMillis();
 
+        // 0) Generate candidates; they also validate a cached decision, whose
+        // epoch and LR generation are read before anything they guard
+        final long key = NextAppDecisionCache.key(pkgA, prevPkg, ctx);
+        final int epoch = mDecisions.epoch();
+        final long lrGeneration = mLrGeneration;
+        final int[] candidates = scratch.cand;
+        final int candCount = mMarkov.topN(pkgA, candidates, mCfg.candidateTopN);
+        final NextAppDecisionCache.Entry hit =
+                mDecisions.get(key, epoch, lrGeneration, now, candidates, candCount);
+        if (hit != null) {
+            mSessions.put(pkgA, prevPkg, ctx, now, hit.candidates, hit.candidates.length,
+                    hit.prefetched, hit.prefetched.length);
+            return hit.decision;
+        }
+
         // 1) Gating
         float pNext = 1.0f;
         if (mCfg.enableGating) {
-            int n = mGatingEnc.encode(pkgA, ctx);
-            pNext = mGatingLr.score(mGatingEnc.getBuf(), n);
+            final GatingFeatureEncoder gatingEnc = scratch.gatingEnc;
+            int n = gatingEnc.encode(pkgA, prevPkg, ctx);
+            pNext = mGatingLr.score(gatingEnc.getBuf(), n);
         }
 
-        // 2) Generate candidates
-        ArrayList<String> candidates = mMarkov.topN(pkgA, mCfg.candidateTopN);
-
-        // 3) Score candidates (LR ranking or Markov-only fallback)
-        ArrayList<NextAppPolicy.ScoredPkg> scored = new ArrayList<>(candidates.size());
-        if (!candidates.isEmpty()) {
+        // 2) Score candidates (LR ranking or Markov-only fallback)
+        final int[] ranked = scratch.ranked;
+        final float[] scores = scratch.scores;
+        System.arraycopy(candidates, 0, ranked, 0, candCount);
+        if (candCount > 0) {
             if (mCfg.enableLrRanking) {
-                for (int i = 0; i < candidates.size(); i++) {
-                    String pkgB = candidates.get(i);
-                    int fn = mRankEnc.encode(pkgA, pkgB, ctx);
-                    float s = mRankLr.score(mRankEnc.getBuf(), fn);
-                    scored.add(new NextAppPolicy.ScoredPkg(pkgB, s));
+                // A/ctx features are shared by all candidates: sum them once
+                final RankingFeatureEncoder rankEnc = scratch.rankEnc;
+                final int[] candFeat = scratch.candFeat;
+                final int sn = rankEnc.encodeShared(pkgA, prevPkg, ctx);
+                final int per = RankingFeatureEncoder.candidateFeatureCount(prevPkg);
+                for (int i = 0; i < candCount; i++) {
+                    rankEnc.encodeCandidate(pkgA, candidates[i], prevPkg, ctx,
+                            candFeat, i * per);
                 }
-                scored.sort((a, b) -> Float.compare(b.score, a.score));
+                mRankLr.scoreBatch(rankEnc.getSharedBuf(), sn, candFeat, per, candCount,
+                        scores);
+                sortByScoreDesc(ranked, scores, candCount);
             } else {
                 // Markov-only: just treat earlier candidates as higher score
-                for (int i = 0; i < candidates.size(); i++) {
-                    float s = 1.0f - (i * 0.01f);
-                    scored.add(new NextAppPolicy.ScoredPkg(candidates.get(i), s));
+                for (int i = 0; i < candCount; i++) {
+                    scores[i] = 1.0f - (i * 0.01f);
                 }
             }
         }
 
-        // 4) Policy decides NONE or prefetch
-        NextAppDecision decision = mPolicy.decide(pkgA, pNext, scored);
+        // 3) Policy decides NONE or prefetch
+        NextAppDecision decision = mPolicy.decide(pkgA, pNext, ranked, scores, candCount);
 
-        // 5) Store session for later learning (hard negs / NONE)
-        ArrayList<String> prefetched = new ArrayList<>(decision.prefetchPkgs);
-        PrefetchSessionStore.Session s =
-                new PrefetchSessionStore.Session(pkgA, ctx, now, candidates, prefetched);
-        mSessions.put(s);
+        // 4) Store session for later learning (hard negs / NONE)
+        // (policy prefetches the top-k of the sorted candidates)
+        mSessions.put(pkgA, prevPkg, ctx, now, candidates, candCount,
+                ranked, decision.prefetchPkgs.size());
+        mDecisions.put(key, epoch, lrGeneration, now, decision,
+                candidates, candCount, ranked, decision.prefetchPkgs.size());
 
         return decision;
     }
 
+    /** Insertion sort of (id, score) pairs by score desc; n <= candidateTopN, so tiny. */
+    private static void sortByScoreDesc(int[] ids, float[] scores, int n) {
+        for (int i = 1; i < n; i++) {
+            final int id = ids[i];
+            final float sc = scores[i];
+            int j = i - 1;
+            while (j >= 0 && scores[j] < sc) {
+                ids[j + 1] = ids[j];
+                scores[j + 1] = scores[j];
+                j--;
+            }
+            ids[j + 1] = id;
+            scores[j + 1] = sc;
+        }
+    }
+
+    /**
+     * sessionSeq bounds the sessions the training hooks may resolve: the
+     * store's lastSeq() when the event was offered (see NextAppTrainer), so a
+     * later onAllowedToRun of the same A is left for the events that follow it.
+     */
+    public long sessionSeq() {
+        return mSessions.lastSeq();
+    }
+
     // --------------------------------
     // Hook #2: Foreground transition A->B
     // --------------------------------
-    public void onForegroundChanged(String prevPkgA, String nowPkgB) {
+    public void onForegroundChanged(int prevPkgA, int nowPkgB, long sessionSeq) {
         if (!mCfg.enable) return;
-        if (prevPkgA == null || nowPkgB == null) return;
-        if (prevPkgA.equals(nowPkgB)) return;
-
-        PrefetchSessionStore.Session s = mSessions.get(prevPkgA);
-        if (s == null) {
-            // Still update Markov, even if session missing
-            mMarkov.update(prevPkgA, nowPkgB);
-            return;
-        }
-        if (s.resolved) return;
+        if (prevPkgA == PackageRegistry.NO_ID || nowPkgB == PackageRegistry.NO_ID) return;
+        if (prevPkgA == nowPkgB) return;
+
+        final PrefetchSessionStore.Session s = mSession;
+        final boolean hasSession = mSessions.take(prevPkgA, sessionSeq, s);
+        journal(NextAppTrainer.EVENT_FOREGROUND, prevPkgA, nowPkgB, hasSession ? s : null);
+        trainForeground(prevPkgA, nowPkgB, hasSession ? s : null);
+    }
 
+    /** s is the session of A, or null: then only the Markov table learns. */
+    private void trainForeground(int prevPkgA, int nowPkgB, PrefetchSessionStore.Session s) {
         // 1) Markov update (long-term memory)
         mMarkov.update(prevPkgA, nowPkgB);
+        if (s == null) return;
 
         // 2) Gating positive: next exists
         if (mCfg.enableGating) {
-            int gn = mGatingEnc.encode(prevPkgA, s.ctxAtA);
+            int gn = mGatingEnc.encode(prevPkgA, s.prevPkg, s.ctxAtA);
             mGatingLr.update(mGatingEnc.getBuf(), gn, /*label*/ 1);
         }
 
-        // 3) Ranking positive
+        // 3) Ranking positive + 4) hard negatives (candidates except the true B,
+        // capped by hardNegPerPos), as one batch: A/ctx features are shared
         if (mCfg.enableLrRanking) {
-            int rn = mRankEnc.encode(prevPkgA, nowPkgB, s.ctxAtA);
-            mRankLr.update(mRankEnc.getBuf(), rn, /*label*/ 1);
+            final int per = RankingFeatureEncoder.candidateFeatureCount(s.prevPkg);
+            int items = 0;
+            mRankEnc.encodeCandidate(prevPkgA, nowPkgB, s.prevPkg, s.ctxAtA, mTrainFeat, 0);
+            mTrainLabels[items++] = 1;
 
-            // 4) Hard negatives: candidates except the true B (cap by hardNegPerPos)
             int negAdded = 0;
-            for (int i = 0; i < s.candidates.size() && negAdded < mCfg.hardNegPerPos; i++) {
-                String cand = s.candidates.get(i);
-                if (nowPkgB.equals(cand)) continue;
-                int nn = mRankEnc.encode(prevPkgA, cand, s.ctxAtA);
-                mRankLr.update(mRankEnc.getBuf(), nn, /*label*/ 0);
+            for (int i = 0; i < s.candidateCount && negAdded < mCfg.hardNegPerPos; i++) {
+                int cand = s.candidates[i];
+                if (cand == nowPkgB) continue;
+                mRankEnc.encodeCandidate(prevPkgA, cand, s.prevPkg, s.ctxAtA,
+                        mTrainFeat, items * per);
+                mTrainLabels[items++] = 0;
                 negAdded++;
             }
+            trainRankBatch(prevPkgA, s, per, items);
         }
 
-        s.resolved = true;
-        // Optionally remove session to free memory
-        mSessions.remove(prevPkgA);
-
         onModelUpdated();
     }
 
@@ -143,19 +260,20 @@ public final class NextAppPredictor {
     // Hook #3: TTL expired for A
     // Means: no next app occurred within TTL window
     // ---------------------------
-    public void onTtlExpiredNoNextApp(String pkgA) {
+    public void onTtlExpiredNoNextApp(int pkgA, long sessionSeq) {
         if (!mCfg.enable || !mCfg.enableGating) return;
 
-        PrefetchSessionStore.Session s = mSessions.get(pkgA);
-        if (s == null || s.resolved) return;
+        final PrefetchSessionStore.Session s = mSession;
+        if (!mSessions.take(pkgA, sessionSeq, s)) return;
+        journal(NextAppTrainer.EVENT_TTL_NO_NEXT, pkgA, PackageRegistry.NO_ID, s);
+        trainTtlNoNext(pkgA, s);
+    }
 
+    private void trainTtlNoNext(int pkgA, PrefetchSessionStore.Session s) {
         // Gating negative: next does NOT exist => NONE
-        int gn = mGatingEnc.encode(pkgA, s.ctxAtA);
+        int gn = mGatingEnc.encode(pkgA, s.prevPkg, s.ctxAtA);
         mGatingLr.update(mGatingEnc.getBuf(), gn, /*label*/ 0);
 
-        s.resolved = true;
-        mSessions.remove(pkgA);
-
         onModelUpdated();
     }
 
@@ -163,31 +281,166 @@ public final class NextAppPredictor {
     // Hook #4: TTL expired for prefetched B (wrong prefetch)
     // Means: you prefetched B but user did NOT open it in TTL
     // ---------------------------
-    public void onPrefetchExpiredNotUsed(String pkgA, String prefetchedB) {
+    public void onPrefetchExpiredNotUsed(int pkgA, int prefetchedB, long sessionSeq) {
         if (!mCfg.enable || !mCfg.enableLrRanking) return;
-        PrefetchSessionStore.Session s = mSessions.get(pkgA);
-        if (s == null) return;
+        if (prefetchedB == PackageRegistry.NO_ID) return;
+        final PrefetchSessionStore.Session s = mSession;
+        if (!mSessions.peek(pkgA, sessionSeq, s)) return;
+        journal(NextAppTrainer.EVENT_PREFETCH_NOT_USED, pkgA, prefetchedB, s);
+        trainPrefetchNotUsed(pkgA, prefetchedB, s);
+    }
 
-        int rn = mRankEnc.encode(pkgA, prefetchedB, s.ctxAtA);
+    private void trainPrefetchNotUsed(int pkgA, int prefetchedB, PrefetchSessionStore.Session s) {
+        int rn = mRankEnc.encode(pkgA, prefetchedB, s.prevPkg, s.ctxAtA);
         mRankLr.update(mRankEnc.getBuf(), rn, /*label*/ 0);
 
         onModelUpdated();
     }
 
+    // ---------------------------
+    // Hook #5: long window expired for A (alarm backstop)
+    // Means: the session outlived its TTL timers (e.g. they were lost);
+    // finalize it as NONE and punish whatever was prefetched
+    // ---------------------------
+    public void onLongWindowExpired(int pkgA, long sessionSeq) {
+        if (!mCfg.enable) return;
+
+        final PrefetchSessionStore.Session s = mSession;
+        if (!mSessions.take(pkgA, sessionSeq, s)) return;
+        journal(NextAppTrainer.EVENT_LONG_WINDOW, pkgA,
+                s.prefetchedCount > 0 ? s.prefetched[0] : PackageRegistry.NO_ID, s);
+        trainLongWindow(pkgA, s);
+    }
+
+    private void trainLongWindow(int pkgA, PrefetchSessionStore.Session s) {
+        if (mCfg.enableGating) {
+            int gn = mGatingEnc.encode(pkgA, s.prevPkg, s.ctxAtA);
+            mGatingLr.update(mGatingEnc.getBuf(), gn, /*label*/ 0);
+        }
+        if (mCfg.enableLrRanking && s.prefetchedCount > 0) {
+            final int per = RankingFeatureEncoder.candidateFeatureCount(s.prevPkg);
+            for (int i = 0; i < s.prefetchedCount; i++) {
+                mRankEnc.encodeCandidate(pkgA, s.prefetched[i], s.prevPkg, s.ctxAtA,
+                        mTrainFeat, i * per);
+                mTrainLabels[i] = 0;
+            }
+            trainRankBatch(pkgA, s, per, s.prefetchedCount);
+        }
+
+        onModelUpdated();
+    }
+
+    /** One ranking step over the items in mTrainFeat/mTrainLabels; shared features encoded here. */
+    private void trainRankBatch(int pkgA, PrefetchSessionStore.Session s, int per, int items) {
+        final int sn = mRankEnc.encodeShared(pkgA, s.prevPkg, s.ctxAtA);
+        mRankLr.updateBatch(mRankEnc.getSharedBuf(), sn, mTrainFeat, per, items, mTrainLabels);
+    }
+
+    /** Purges every id-keyed structure for pkg so its id can be recycled. */
+    public void onPackageRemoved(int pkg) {
+        if (pkg == PackageRegistry.NO_ID) return;
+        journal(TrainingJournal.EVENT_PACKAGE_REMOVED, pkg, PackageRegistry.NO_ID, null);
+        mMarkov.removePackage(pkg);
+        mSessions.removePackage(pkg);
+        mDecisions.clear();
+    }
+
+    /** After models or package ids were replaced wholesale (load). */
+    public void onModelsLoaded() {
+        mDecisions.clear();
+    }
+
+    /** Checkpoints are requested every checkpointEveryNUpdates; writes happen off this thread. */
+    public void setCheckpointer(NextAppCheckpointer checkpointer) {
+        mCheckpointer = checkpointer;
+    }
+
+    /** Journals events applied to the models (see TrainingJournal); never during replay. */
+    public void setJournal(TrainingJournal journal) {
+        mJournal = journal;
+    }
+
+    private void journal(int type, int a, int b, PrefetchSessionStore.Session s) {
+        if (mJournal != null && !mReplaying) mJournal.append(type, a, b, s);
+    }
+
+    /**
+     * Load only: re-applies one journaled event (see TrainingJournal.Replayer).
+     * The session is rebuilt from the journal; candidates come from the Markov
+     * table, which replay has brought to the state the runtime saw. Only the
+     * first prefetched app of a long-window event is journaled. For a package
+     * removal the caller releases the id afterwards.
+     */
+    public void replay(int type, int a, int b, int prevPkg, NextAppContext ctx) {
+        if (!mCfg.enable) return;
+        mReplaying = true;
+        try {
+            replayEvent(type, a, b, prevPkg, ctx);
+        } finally {
+            mReplaying = false;
+        }
+    }
+
+    private void replayEvent(int type, int a, int b, int prevPkg, NextAppContext ctx) {
+        PrefetchSessionStore.Session s = null;
+        if (ctx != null) {
+            s = mSession;
+            s.pkgA = a;
+            s.prevPkg = prevPkg;
+            s.ctxAtA = ctx;
+            s.candidateCount = mMarkov.topN(a, s.candidates, mCfg.candidateTopN);
+            s.prefetchedCount = 0;
+            if (b != PackageRegistry.NO_ID && s.prefetched.length > 0) {
+                s.prefetched[0] = b;
+                s.prefetchedCount = 1;
+            }
+        }
+        switch (type) {
+            case NextAppTrainer.EVENT_FOREGROUND:
+                if (b != PackageRegistry.NO_ID && a != b) trainForeground(a, b, s);
+                break;
+            case NextAppTrainer.EVENT_TTL_NO_NEXT:
+                if (s != null && mCfg.enableGating) trainTtlNoNext(a, s);
+                break;
+            case NextAppTrainer.EVENT_PREFETCH_NOT_USED:
+                if (s != null && mCfg.enableLrRanking && b != PackageRegistry.NO_ID) {
+                    trainPrefetchNotUsed(a, b, s);
+                }
+                break;
+            case NextAppTrainer.EVENT_LONG_WINDOW:
+                if (s != null) trainLongWindow(a, s);
+                break;
+            case TrainingJournal.EVENT_PACKAGE_REMOVED:
+                onPackageRemoved(a);
+                break;
+        }
+    }
+
+    /** After every step that trained an LR model. */
     private void onModelUpdated() {
+        if (++mLrStepsInGeneration >= mCfg.decisionCacheLrUpdates) {
+            mLrStepsInGeneration = 0;
+            mLrGeneration++;
+        }
+        if (mCheckpointer == null || mReplaying) return;
         mUpdateCount++;
         if (mUpdateCount >= mCfg.checkpointEveryNUpdates) {
             mUpdateCount = 0;
-            // TODO: persist Markov + LR weights
-            // - markovStore.write(...)
-            // - lrStore.write(gatingLR, rankLR)
+            mCheckpointer.request();
+        } else {
+            mCheckpointer.poll(); // retries a deferred (rate-limited) request
         }
     }
 
     // ---- persistence accessors (for stores) ----
+    public PackageRegistry getPackages() { return mPackages; }
     public MarkovTransitionTable getMarkov() { return mMarkov; }
     public OnlineLogisticModel getGatingLr() { return mGatingLr; }
     public OnlineLogisticModel getRankLr() { return mRankLr; }
+    public FeatureKeySketch getGatingKeys() { return mGatingKeys; }
+    public FeatureKeySketch getRankKeys() { return mRankKeys; }
+    public PrefetchSessionStore getSessions() { return mSessions; }
+    public NextAppDecisionCache getDecisionCache() { return mDecisions; }
 
     // ---- load persisted LR weights ----
     public void restoreGating(float bias, float[] weights) {
@@ -0,0 +1,177 @@
+package android.server.power.nextapp;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Hot-path instrumentation: per-hook call counts and latency histograms,
+ * decision outcomes and checkpoint cost.
+ *
+ * Recording is lock-free (AtomicLongArray) and allocation-free; when disabled
+ * at runtime, startTimer() is one volatile read and record calls return
+ * immediately. Histograms use fixed power-of-two buckets, so a snapshot is a
+ * handful of longs and needs no locking to print.
+ */
+public final class NextAppStats {
+    // hooks
+    public static final int HOOK_ALLOWED_TO_RUN = 0;
+    public static final int HOOK_FOREGROUND_CHANGED = 1;
+    public static final int HOOK_TTL_NO_NEXT = 2;
+    public static final int HOOK_PREFETCH_NOT_USED = 3;
+    public static final int HOOK_PACKAGE_REMOVED = 4;
+    public static final int HOOK_LONG_WINDOW = 5;
+    private static final String[] HOOK_NAMES = {
+            "onAllowedToRun", "onForegroundChanged", "onTtlExpiredNoNextApp",
+            "onPrefetchExpiredNotUsed", "onPackageRemoved", "onLongWindowExpiredFinalize",
+    };
+    private static final int HOOKS = HOOK_NAMES.length;
+
+    // counters
+    private static final int C_DECISION_PREFETCH = 0;
+    private static final int C_DECISION_GATED_NONE = 1;
+    private static final int C_DECISION_RANK_NONE = 2;  // gating passed, ranking said NONE
+    private static final int C_PREFETCHED_PKGS = 3;
+    private static final int C_CHECKPOINTS = 4;
+    private static final int C_CHECKPOINT_BYTES = 5;
+    private static final int COUNTERS = 6;
+
+    /** Latency buckets: [0] < 1us, [i] < 2^i us, last = everything above (~16ms for hooks). */
+    private static final int BUCKETS = 16;
+    private static final int NANOS_SHIFT = 10; // ~1us
+
+    /** Returned by startTimer() while disabled. */
+    public static final long NO_TIMER = Long.MIN_VALUE;
+
+    private volatile boolean mEnabled;
+
+    private final AtomicLongArray mCalls = new AtomicLongArray(HOOKS);
+    private final AtomicLongArray mHookHist = new AtomicLongArray(HOOKS * BUCKETS);
+    private final AtomicLongArray mHookMaxNanos = new AtomicLongArray(HOOKS);
+    private final AtomicLongArray mCounters = new AtomicLongArray(COUNTERS);
+    // checkpoint durations in ms buckets: [0] < 1ms, [i] < 2^i ms
+    private final AtomicLongArray mCheckpointHist = new AtomicLongArray(BUCKETS);
+
+    public NextAppStats(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public void setEnabled(boolean enabled) { mEnabled = enabled; }
+    public boolean isEnabled() { return mEnabled; }
+
+    // ---- recording ----
+
+    /** Start of a hook; pass the result to recordHook(). */
+    public long startTimer() {
+        return mEnabled ? System.nanoTime() : NO_TIMER;
+    }
+
+    public void recordHook(int hook, long startNanos) {
+        if (startNanos == NO_TIMER) return;
+        final long nanos = System.nanoTime() - startNanos;
+        mCalls.incrementAndGet(hook);
+        mHookHist.incrementAndGet(hook * BUCKETS + bucket(nanos >>> NANOS_SHIFT));
+        long max;
+        while (nanos > (max = mHookMaxNanos.get(hook))
+                && !mHookMaxNanos.compareAndSet(hook, max, nanos)) {
+            // retry
+        }
+    }
+
+    /** Outcome of onAllowedToRun. */
+    public void recordDecision(NextAppDecision d, boolean gatedNone) {
+        if (!mEnabled) return;
+        final int n = d.prefetchPkgs.size();
+        if (n > 0) {
+            mCounters.incrementAndGet(C_DECISION_PREFETCH);
+            mCounters.addAndGet(C_PREFETCHED_PKGS, n);
+        } else {
+            mCounters.incrementAndGet(gatedNone ? C_DECISION_GATED_NONE : C_DECISION_RANK_NONE);
+        }
+    }
+
+    public void recordCheckpoint(long durationMs, long bytes) {
+        if (!mEnabled) return;
+        mCounters.incrementAndGet(C_CHECKPOINTS);
+        mCounters.addAndGet(C_CHECKPOINT_BYTES, Math.max(0, bytes));
+        mCheckpointHist.incrementAndGet(bucket(durationMs));
+    }
+
+    public long getCalls(int hook) { return mCalls.get(hook); }
+
+    public void reset() {
+        for (int i = 0; i < mCalls.length(); i++) mCalls.set(i, 0);
+        for (int i = 0; i < mHookHist.length(); i++) mHookHist.set(i, 0);
+        for (int i = 0; i < mHookMaxNanos.length(); i++) mHookMaxNanos.set(i, 0);
+        for (int i = 0; i < mCounters.length(); i++) mCounters.set(i, 0);
+        for (int i = 0; i < mCheckpointHist.length(); i++) mCheckpointHist.set(i, 0);
+    }
+
+    /** Bucket i holds values in [2^(i-1), 2^i); 0 holds 0. */
+    private static int bucket(long v) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v));
+    }
+
+    // ---- dump ----
+
+    public void dump(PrintWriter pw, String prefix) {
+        pw.println(prefix + "stats: " + (mEnabled ? "enabled" : "disabled"));
+        final String p2 = prefix + "  ";
+
+        pw.println(prefix + "hooks (latency percentiles are bucket upper bounds):");
+        for (int h = 0; h < HOOKS; h++) {
+            final long calls = mCalls.get(h);
+            if (calls == 0) continue;
+            pw.println(p2 + HOOK_NAMES[h] + ": calls=" + calls
+                    + " p50<" + formatUs(percentileBucket(mHookHist, h * BUCKETS, 0.50))
+                    + " p90<" + formatUs(percentileBucket(mHookHist, h * BUCKETS, 0.90))
+                    + " p99<" + formatUs(percentileBucket(mHookHist, h * BUCKETS, 0.99))
+                    + " max=" + (mHookMaxNanos.get(h) / 1000) + "us");
+            pw.print(p2 + "  hist(us):");
+            printHist(pw, mHookHist, h * BUCKETS);
+        }
+
+        final long prefetch = mCounters.get(C_DECISION_PREFETCH);
+        final long gated = mCounters.get(C_DECISION_GATED_NONE);
+        final long rankNone = mCounters.get(C_DECISION_RANK_NONE);
+        pw.println(prefix + "decisions: prefetch=" + prefetch
+                + " (pkgs=" + mCounters.get(C_PREFETCHED_PKGS) + ")"
+                + " gatedNone=" + gated + " rankNone=" + rankNone);
+        pw.println(prefix + "prefetches wasted (TTL, not used): "
+                + mCalls.get(HOOK_PREFETCH_NOT_USED));
+
+        pw.println(prefix + "checkpoints: count=" + mCounters.get(C_CHECKPOINTS)
+                + " bytes=" + mCounters.get(C_CHECKPOINT_BYTES));
+        pw.print(p2 + "duration hist(ms):");
+        printHist(pw, mCheckpointHist, 0);
+    }
+
+    /** Upper bound (in the histogram's unit) of the bucket holding quantile q. */
+    private static long percentileBucket(AtomicLongArray hist, int off, double q) {
+        long total = 0;
+        for (int i = 0; i < BUCKETS; i++) total += hist.get(off + i);
+        if (total == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(q * total));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += hist.get(off + i);
+            if (seen >= rank) return i == BUCKETS - 1 ? Long.MAX_VALUE : 1L << i;
+        }
+        return Long.MAX_VALUE;
+    }
+
+    private static String formatUs(long bound) {
+        return bound == Long.MAX_VALUE ? "inf" : bound + "us";
+    }
+
+    private static void printHist(PrintWriter pw, AtomicLongArray hist, int off) {
+        for (int i = 0; i < BUCKETS; i++) {
+            final long c = hist.get(off + i);
+            if (c == 0) continue;
+            pw.print(' ');
+            pw.print(i == BUCKETS - 1 ? ">=" + (1L << (i - 1)) : "<" + (1L << i));
+            pw.print('=');
+            pw.print(c);
+        }
+        pw.println();
+    }
+}
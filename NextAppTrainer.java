@@ -0,0 +1,318 @@
+package android.server.power.nextapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+import android.util.Slog;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Moves training off the hook threads. The training hooks only offer() a
+ * packed event (type plus two package ids in one long, and next to it the
+ * session sequence it may resolve, see below) to a bounded
+ * multi-producer ring; a trainer thread drains it in batches of at most
+ * cfg.trainBatchMax, holding the engine's write lock per batch, into the
+ * Markov table and both LR models (via NextAppPredictor). The trainer wakes
+ * cfg.trainDelayMs after the first event of a batch, so a burst of hooks
+ * costs one wakeup, not one per event.
+ *
+ * The ring is a Vyukov bounded queue: each slot carries a sequence number, so
+ * producers claim slots with one CAS and never wait for each other or for the
+ * trainer. When it is full the incoming event is dropped and counted (per
+ * type): a lost training example costs less than a stalled framework thread.
+ *
+ * The consumer side (drainLocked) must be called with the write lock held,
+ * which makes it single-consumer; the engine drains inline the same way
+ * before package removal, explicit saves and shutdown, so those see every
+ * event offered before them.
+ *
+ * An event resolves A's session when it is drained, not when it is offered,
+ * so each one records the session store's lastSeq() at offer time and the
+ * predictor ignores sessions put after that: an onAllowedToRun(A) that runs
+ * while an older event of A is queued keeps its session for its own events.
+ *
+ * After each batch the trainer hands the batch's TrainingJournal records to
+ * the OS and schedules their fsync cfg.journalSyncMs later, on its thread and
+ * outside the write lock (see TrainingJournal.beginSync()).
+ *
+ * With cfg.asyncTraining off (offline tools), offer() trains inline under the
+ * write lock instead, as the hooks used to; the thread then only exists to run
+ * the deferred journal fsync, and only if there is a journal.
+ *
+ * The thread is the trainer's own unless the caller passes a Looper to share
+ * (NextAppUserEngines runs every user's trainer on one). After shutdown()
+ * offer() drops everything, so an engine that was shut down never trains or
+ * journals again, even while its former thread lives on for other engines.
+ */
+public final class NextAppTrainer {
+    private static final String TAG = "NextAppTrainer";
+    private static final long SHUTDOWN_WAIT_MS = 5_000;
+
+    public static final int EVENT_FOREGROUND = 0;        // a -> b
+    public static final int EVENT_TTL_NO_NEXT = 1;       // a
+    public static final int EVENT_PREFETCH_NOT_USED = 2; // a, prefetched b
+    public static final int EVENT_LONG_WINDOW = 3;       // a
+    private static final int EVENT_TYPES = 4;
+
+    // event: type in the top 4 bits, then (a + 1) and (b + 1) in 30 bits each (NO_ID -> 0)
+    private static final int ID_BITS = 30;
+    private static final long ID_MASK = (1L << ID_BITS) - 1;
+
+    private final NextAppPredictor mPredictor;
+    private final TrainingJournal mJournal; // nullable
+    private final Object mWriteLock;
+    private final boolean mAsync;
+    private final int mBatchMax;
+    private final long mDelayMs;
+    private final long mSyncMs;
+
+    // ring
+    private final int mMask;
+    private final long[] mEvents;
+    private final long[] mSessionSeqs; // per slot, written and read with mEvents
+    private final AtomicLongArray mSeq;
+    private final AtomicLong mTail = new AtomicLong(); // next slot to claim (producers)
+    private volatile long mHead;                        // next slot to drain (consumer, under lock)
+
+    private final HandlerThread mThread;   // own thread; null if shared or not needed
+    private final Handler mH;              // null unless async or journaling
+    private volatile boolean mStopped;
+    private final Runnable mDrainRunnable = this::drainBatch;
+    private final AtomicBoolean mWakePending = new AtomicBoolean(false);
+    private final Runnable mSyncRunnable = this::syncJournal;
+    private final AtomicBoolean mSyncPending = new AtomicBoolean(false);
+
+    // stats
+    private final AtomicLong mOffered = new AtomicLong();
+    private final AtomicLongArray mDropped = new AtomicLongArray(EVENT_TYPES);
+    private volatile long mMaxDepth;     // racy high-water mark, good enough for dumpsys
+    private volatile long mTrained;      // consumer only
+    private volatile long mBatches;
+    private volatile long mTrainNanos;
+
+    public NextAppTrainer(NextAppConfig cfg, NextAppPredictor predictor,
+                          TrainingJournal journal, Object writeLock) {
+        this(cfg, predictor, journal, writeLock, null);
+    }
+
+    /** looper: a thread shared with other trainers, or null for a thread of our own. */
+    public NextAppTrainer(NextAppConfig cfg, NextAppPredictor predictor,
+                          TrainingJournal journal, Object writeLock, Looper looper) {
+        mPredictor = predictor;
+        mJournal = journal;
+        mWriteLock = writeLock;
+        mAsync = cfg.asyncTraining;
+        mBatchMax = Math.max(1, cfg.trainBatchMax);
+        mDelayMs = Math.max(0, cfg.trainDelayMs);
+        mSyncMs = Math.max(0, cfg.journalSyncMs);
+
+        final int capacity = 1 << Math.max(1, Math.min(16, cfg.trainQueueCapacityPow2));
+        mMask = capacity - 1;
+        mEvents = new long[capacity];
+        mSessionSeqs = new long[capacity];
+        mSeq = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) mSeq.set(i, i);
+
+        if (!mAsync && mJournal == null) {
+            mThread = null;
+            mH = null;
+        } else if (looper != null) {
+            mThread = null;
+            mH = new Handler(looper);
+        } else {
+            mThread = new HandlerThread("NextAppTrainer", Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mH = new Handler(mThread.getLooper());
+        }
+    }
+
+    /**
+     * Any thread: queues one training event, or trains inline when not async.
+     * Returns false if the ring was full, or after shutdown(), and the event
+     * was dropped.
+     */
+    public boolean offer(int type, int a, int b) {
+        if (!mAsync) {
+            boolean unsynced = false;
+            synchronized (mWriteLock) {
+                if (mStopped) return false;
+                train(type, a, b, mPredictor.sessionSeq());
+                if (mJournal != null) unsynced = mJournal.flush();
+            }
+            if (unsynced) scheduleSync();
+            return true;
+        }
+        if (mStopped) return false;
+        mOffered.incrementAndGet();
+        final long sessionSeq = mPredictor.sessionSeq();
+        final long event = ((long) type << (2 * ID_BITS))
+                | ((long) (a + 1) & ID_MASK) << ID_BITS | ((long) (b + 1) & ID_MASK);
+        long pos;
+        while (true) {
+            pos = mTail.get();
+            final long dif = mSeq.get((int) pos & mMask) - pos;
+            if (dif == 0) {
+                if (mTail.compareAndSet(pos, pos + 1)) break;
+            } else if (dif < 0) {
+                mDropped.incrementAndGet(type);
+                return false;
+            }
+            // else another producer claimed pos; reload
+        }
+        final int slot = (int) pos & mMask;
+        mEvents[slot] = event;
+        mSessionSeqs[slot] = sessionSeq;
+        mSeq.set(slot, pos + 1); // publish; volatile, pairs with the wake flag below
+
+        final long depth = pos + 1 - mHead;
+        if (depth > mMaxDepth) mMaxDepth = depth;
+        if (!mWakePending.get() && mWakePending.compareAndSet(false, true)) {
+            mH.postDelayed(mDrainRunnable, mDelayMs);
+        }
+        return true;
+    }
+
+    /**
+     * Trains on up to max queued events (in offer order). Caller holds the
+     * write lock. Returns the number drained.
+     */
+    public int drainLocked(int max) {
+        final long t0 = System.nanoTime();
+        long head = mHead;
+        int n = 0;
+        while (n < max) {
+            final int slot = (int) head & mMask;
+            if (mSeq.get(slot) != head + 1) break; // empty (or the producer has not published yet)
+            final long event = mEvents[slot];
+            final long sessionSeq = mSessionSeqs[slot];
+            mSeq.set(slot, head + mMask + 1); // free for the producer one lap ahead
+            mHead = ++head;
+            train((int) (event >>> (2 * ID_BITS)),
+                    (int) ((event >>> ID_BITS) & ID_MASK) - 1, (int) (event & ID_MASK) - 1,
+                    sessionSeq);
+            n++;
+        }
+        if (n > 0) {
+            mTrained += n;
+            mBatches++;
+            mTrainNanos += System.nanoTime() - t0;
+        }
+        return n;
+    }
+
+    /** Caller holds the write lock: trains on everything queued so far. */
+    public void drainAllLocked() {
+        while (drainLocked(mBatchMax) > 0) { }
+    }
+
+    /**
+     * Stops training: later offers are dropped, and the thread (if our own)
+     * is stopped. Events still queued are left for drainAllLocked().
+     */
+    public void shutdown() {
+        mStopped = true;
+        if (mH == null) return;
+        mH.removeCallbacks(mDrainRunnable);
+        mH.removeCallbacks(mSyncRunnable);
+        if (mThread == null) return; // shared: a batch already running finds mStopped under the lock
+        mThread.quitSafely();
+        try {
+            mThread.join(SHUTDOWN_WAIT_MS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getDroppedCount() {
+        long n = 0;
+        for (int i = 0; i < EVENT_TYPES; i++) n += mDropped.get(i);
+        return n;
+    }
+
+    public void dump(PrintWriter pw, String prefix) {
+        final long trained = mTrained;
+        final long batches = mBatches;
+        pw.println(prefix + "trainer: async=" + mAsync + " capacity=" + (mMask + 1)
+                + " depth=" + Math.max(0, mTail.get() - mHead) + " maxDepth=" + mMaxDepth
+                + " offered=" + mOffered.get() + " trained=" + trained
+                + " batches=" + batches
+                + " avgBatch=" + (batches == 0 ? 0 : trained / batches)
+                + " trainUs=" + mTrainNanos / 1000);
+        pw.println(prefix + "  dropped: foreground=" + mDropped.get(EVENT_FOREGROUND)
+                + " ttlNoNext=" + mDropped.get(EVENT_TTL_NO_NEXT)
+                + " prefetchNotUsed=" + mDropped.get(EVENT_PREFETCH_NOT_USED)
+                + " longWindow=" + mDropped.get(EVENT_LONG_WINDOW));
+    }
+
+    // ---- internals ----
+
+    /** Trainer thread: one batch per message, so package removal or a save can take the lock between batches. */
+    private void drainBatch() {
+        mWakePending.set(false); // before draining: a later offer() either is seen or re-posts
+        final int n;
+        boolean unsynced = false;
+        synchronized (mWriteLock) {
+            if (mStopped) return; // the engine drains and closes the journal itself
+            n = drainLocked(mBatchMax);
+            if (n > 0 && mJournal != null) unsynced = mJournal.flush();
+        }
+        if (unsynced) scheduleSync();
+        if (n == mBatchMax && !mWakePending.get() && mWakePending.compareAndSet(false, true)) {
+            mH.post(mDrainRunnable); // probably more queued
+        }
+    }
+
+    /** Any thread: fsyncs the journal cfg.journalSyncMs from now, unless one is already due. */
+    private void scheduleSync() {
+        if (!mSyncPending.get() && mSyncPending.compareAndSet(false, true)) {
+            mH.postDelayed(mSyncRunnable, mSyncMs);
+        }
+    }
+
+    /**
+     * Trainer thread: the deferred fsync of journal records written since the
+     * last one. Only the buffer write and descriptor capture hold the lock.
+     */
+    private void syncJournal() {
+        mSyncPending.set(false); // before syncing: a later write either is covered or re-posts
+        final FileDescriptor fd;
+        synchronized (mWriteLock) {
+            if (mStopped) return; // close() syncs
+            fd = mJournal.beginSync();
+        }
+        if (fd == null) return;
+        try {
+            fd.sync();
+        } catch (IOException e) {
+            synchronized (mWriteLock) {
+                mJournal.syncFailed(fd, e);
+            }
+        }
+    }
+
+    private void train(int type, int a, int b, long sessionSeq) {
+        switch (type) {
+            case EVENT_FOREGROUND:
+                mPredictor.onForegroundChanged(a, b, sessionSeq);
+                break;
+            case EVENT_TTL_NO_NEXT:
+                mPredictor.onTtlExpiredNoNextApp(a, sessionSeq);
+                break;
+            case EVENT_PREFETCH_NOT_USED:
+                mPredictor.onPrefetchExpiredNotUsed(a, b, sessionSeq);
+                break;
+            case EVENT_LONG_WINDOW:
+                mPredictor.onLongWindowExpired(a, sessionSeq);
+                break;
+            default:
+                Slog.w(TAG, "unknown training event " + type);
+        }
+    }
+}
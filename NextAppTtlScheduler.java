@@ -2,38 +2,108 @@ package android.server.power.nextapp;
 
 import android.os.Handler;
 import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
+import java.util.Arrays;
 import java.util.List;
 
+/**
+ * TTL timers for prefetch sessions, kept in a hashed timing wheel.
+ *
+ * Each timer is an entry keyed by (pkgA, pkgB); pkgB == null is A's "no next
+ * app" timer. schedule() and cancelOnNextApp() are O(1): a hash lookup plus a
+ * doubly-linked-list splice into the slot of the deadline tick. Entries live
+ * in pooled parallel arrays, so steady-state scheduling allocates nothing.
+ *
+ * The wheel only ticks while it holds timers. A tick expires everything whose
+ * deadline has passed and delivers the batch to the engine outside the lock,
+ * so timers fire up to one TICK_MS late. Re-scheduling an existing key moves
+ * its deadline instead of adding a second timer.
+ */
 public final class NextAppTtlScheduler {
-    private static final int MSG_TTL_EXPIRE_NO_NEXT = 1;
-    private static final int MSG_TTL_EXPIRE_PREFETCH_NOT_USED = 2;
+    private static final int MSG_TICK = 1;
+
+    private static final int TICK_MS = 1000;
+    private static final int WHEEL_BITS = 6;                // 64 slots, one revolution = 64s
+    private static final int WHEEL_MASK = (1 << WHEEL_BITS) - 1;
+    private static final int INITIAL_CAPACITY = 16;
+    private static final int NONE = -1;
 
     private final NextAppEngine mEngine;
-    private final HandlerThread mThread;
+    private final HandlerThread mThread; // own thread; null if shared
     private final Handler mH;
 
+    private final Object mLock = new Object();
+
+    // wheel: head entry of each slot's list
+    private final int[] mSlotHead = new int[1 << WHEEL_BITS];
+    private final long mOriginMs;
+    private long mTick;             // last processed tick
+    private boolean mTicking;       // a MSG_TICK is queued
+
+    // entry pool (parallel arrays); free entries are chained through mNext
+    private String[] mPkgA;
+    private String[] mPkgB;
+    private long[] mDeadline;       // absolute tick
+    private int[] mNext;
+    private int[] mPrev;
+    private int mFree = NONE;
+    private int mUsed;              // high-water mark of the pool
+    private int mSize;
+
+    // (pkgA, pkgB) -> entry, open addressing with linear probing
+    private int[] mIndex;
+
+    // expired batch, handler thread only
+    private String[] mBatchA = new String[INITIAL_CAPACITY];
+    private String[] mBatchB = new String[INITIAL_CAPACITY];
+
     public NextAppTtlScheduler(NextAppEngine engine) {
+        this(engine, null);
+    }
+
+    /** looper: a thread to tick on (shared, or a test's), or null for a thread of our own. */
+    public NextAppTtlScheduler(NextAppEngine engine, Looper looper) {
         mEngine = engine;
-        mThread = new HandlerThread("NextAppTtl");
-        mThread.start();
-        mH = new Handler(mThread.getLooper(), this::handleMessage);
+        if (looper != null) {
+            mThread = null;
+        } else {
+            mThread = new HandlerThread("NextAppTtl");
+            mThread.start();
+            looper = mThread.getLooper();
+        }
+        mH = new Handler(looper, this::handleMessage);
+
+        Arrays.fill(mSlotHead, NONE);
+        allocPool(INITIAL_CAPACITY);
+        mOriginMs = SystemClock.uptimeMillis();
     }
 
     /** Call right after you unsuspend A and (optionally) prefetch B list. */
     public void schedule(String pkgA, List<String> prefetchedPkgs, int ttlMs) {
-        // TTL for NONE (no next app)
-        Message m1 = mH.obtainMessage(MSG_TTL_EXPIRE_NO_NEXT, pkgA);
-        mH.sendMessageDelayed(m1, ttlMs);
-
-        // TTL for each prefetched B not used
-        if (prefetchedPkgs != null) {
-            for (int i = 0; i < prefetchedPkgs.size(); i++) {
-                String pkgB = prefetchedPkgs.get(i);
-                PrefetchKey key = new PrefetchKey(pkgA, pkgB);
-                Message m2 = mH.obtainMessage(MSG_TTL_EXPIRE_PREFETCH_NOT_USED, key);
-                mH.sendMessageDelayed(m2, ttlMs);
+        if (pkgA == null) return;
+        synchronized (mLock) {
+            final long now = SystemClock.uptimeMillis();
+            if (mSize == 0) mTick = tickAt(now);
+            // round up: never fire early
+            final long deadline = Math.max(mTick + 1, tickAt(now + ttlMs + TICK_MS - 1));
+
+            // TTL for NONE (no next app)
+            put(pkgA, null, deadline);
+
+            // TTL for each prefetched B not used
+            if (prefetchedPkgs != null) {
+                for (int i = 0; i < prefetchedPkgs.size(); i++) {
+                    String pkgB = prefetchedPkgs.get(i);
+                    if (pkgB != null) put(pkgA, pkgB, deadline);
+                }
+            }
+
+            if (!mTicking && mSize > 0) {
+                mTicking = true;
+                mH.sendMessageAtTime(mH.obtainMessage(MSG_TICK), timeOf(mTick + 1));
             }
         }
     }
@@ -44,43 +114,202 @@ public final class NextAppTtlScheduler {
      * - cancel "prefetch-not-used" for that B
      */
     public void cancelOnNextApp(String pkgA, String nowPkgB) {
-        mH.removeMessages(MSG_TTL_EXPIRE_NO_NEXT, pkgA);
-        // cancel not-used for the actually opened B
-        mH.removeMessages(MSG_TTL_EXPIRE_PREFETCH_NOT_USED, new PrefetchKey(pkgA, nowPkgB));
+        if (pkgA == null) return;
+        synchronized (mLock) {
+            remove(find(pkgA, null));
+            // cancel not-used for the actually opened B
+            if (nowPkgB != null) remove(find(pkgA, nowPkgB));
+            // an empty wheel lets the pending tick lapse (see tick())
+        }
     }
 
     private boolean handleMessage(Message msg) {
-        switch (msg.what) {
-            case MSG_TTL_EXPIRE_NO_NEXT: {
-                String pkgA = (String) msg.obj;
-                mEngine.onTtlExpiredNoNextApp(pkgA);
-                return true;
+        if (msg.what != MSG_TICK) return false;
+        tick();
+        return true;
+    }
+
+    // ---- wheel ----
+
+    /** Handler thread: expires due entries, then delivers them without the lock. */
+    private void tick() {
+        int n = 0;
+        synchronized (mLock) {
+            final long target = tickAt(SystemClock.uptimeMillis());
+            // one revolution visits every slot, so a long stall needs no more
+            long t = Math.max(mTick + 1, target - WHEEL_MASK);
+            for (; t <= target && mSize > 0; t++) {
+                int e = mSlotHead[(int) (t & WHEEL_MASK)];
+                while (e != NONE) {
+                    final int next = mNext[e];
+                    if (mDeadline[e] <= target) {
+                        if (n == mBatchA.length) growBatch();
+                        mBatchA[n] = mPkgA[e];
+                        mBatchB[n] = mPkgB[e];
+                        n++;
+                        remove(e);
+                    }
+                    e = next;
+                }
             }
-            case MSG_TTL_EXPIRE_PREFETCH_NOT_USED: {
-                PrefetchKey key = (PrefetchKey) msg.obj;
-                mEngine.onPrefetchExpiredNotUsed(key.pkgA, key.pkgB);
-                return true;
+            mTick = target;
+
+            if (mSize > 0) {
+                mH.sendMessageAtTime(mH.obtainMessage(MSG_TICK), timeOf(mTick + 1));
+            } else {
+                mTicking = false;
+            }
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (mBatchB[i] == null) {
+                mEngine.onTtlExpiredNoNextApp(mBatchA[i]);
+            } else {
+                mEngine.onPrefetchExpiredNotUsed(mBatchA[i], mBatchB[i]);
             }
+            mBatchA[i] = null;
+            mBatchB[i] = null;
         }
-        return false;
     }
 
-    /** Must implement equals/hashCode because removeMessages uses object equality. */
-    private static final class PrefetchKey {
-        final String pkgA;
-        final String pkgB;
-        PrefetchKey(String a, String b) { pkgA = a; pkgB = b; }
+    private long tickAt(long uptimeMs) {
+        return (uptimeMs - mOriginMs) / TICK_MS;
+    }
+
+    private long timeOf(long tick) {
+        return mOriginMs + tick * TICK_MS;
+    }
 
-        @Override
-        public boolean equals(Object o) {
-            if (!(o instanceof PrefetchKey)) return false;
-            PrefetchKey k = (PrefetchKey) o;
-            return pkgA.equals(k.pkgA) && pkgB.equals(k.pkgB);
+    private void put(String pkgA, String pkgB, long deadline) {
+        int e = find(pkgA, pkgB);
+        if (e != NONE) {
+            unlink(e);
+        } else {
+            e = allocEntry();
+            mPkgA[e] = pkgA;
+            mPkgB[e] = pkgB;
+            indexInsert(e);
+            mSize++;
         }
+        mDeadline[e] = deadline;
+        link(e, (int) (deadline & WHEEL_MASK));
+    }
+
+    private void remove(int e) {
+        if (e == NONE) return;
+        unlink(e);
+        indexRemove(e);
+        mPkgA[e] = null;
+        mPkgB[e] = null;
+        mNext[e] = mFree;
+        mFree = e;
+        mSize--;
+    }
 
-        @Override
-        public int hashCode() {
-            return 31 * pkgA.hashCode() + pkgB.hashCode();
+    private void link(int e, int slot) {
+        final int head = mSlotHead[slot];
+        mPrev[e] = NONE;
+        mNext[e] = head;
+        if (head != NONE) mPrev[head] = e;
+        mSlotHead[slot] = e;
+    }
+
+    private void unlink(int e) {
+        final int prev = mPrev[e];
+        final int next = mNext[e];
+        if (prev != NONE) {
+            mNext[prev] = next;
+        } else {
+            mSlotHead[(int) (mDeadline[e] & WHEEL_MASK)] = next;
+        }
+        if (next != NONE) mPrev[next] = prev;
+    }
+
+    // ---- entry pool ----
+
+    private int allocEntry() {
+        if (mFree != NONE) {
+            final int e = mFree;
+            mFree = mNext[e];
+            return e;
+        }
+        if (mUsed == mPkgA.length) growPool();
+        return mUsed++;
+    }
+
+    private void allocPool(int capacity) {
+        mPkgA = new String[capacity];
+        mPkgB = new String[capacity];
+        mDeadline = new long[capacity];
+        mNext = new int[capacity];
+        mPrev = new int[capacity];
+        mIndex = new int[capacity * 2];
+        Arrays.fill(mIndex, NONE);
+    }
+
+    private void growPool() {
+        final int capacity = mPkgA.length * 2;
+        mPkgA = Arrays.copyOf(mPkgA, capacity);
+        mPkgB = Arrays.copyOf(mPkgB, capacity);
+        mDeadline = Arrays.copyOf(mDeadline, capacity);
+        mNext = Arrays.copyOf(mNext, capacity);
+        mPrev = Arrays.copyOf(mPrev, capacity);
+
+        // index keeps load <= 1/2; all pooled entries below mUsed are live or free
+        mIndex = new int[capacity * 2];
+        Arrays.fill(mIndex, NONE);
+        for (int e = 0; e < mUsed; e++) {
+            if (mPkgA[e] != null) indexInsert(e);
+        }
+    }
+
+    private void growBatch() {
+        final int capacity = mBatchA.length * 2;
+        mBatchA = Arrays.copyOf(mBatchA, capacity);
+        mBatchB = Arrays.copyOf(mBatchB, capacity);
+    }
+
+    // ---- (pkgA, pkgB) index ----
+
+    private static int hash(String pkgA, String pkgB) {
+        int h = pkgA.hashCode() * 31 + (pkgB == null ? 0 : pkgB.hashCode());
+        return h ^ (h >>> 16);
+    }
+
+    private int find(String pkgA, String pkgB) {
+        final int mask = mIndex.length - 1;
+        for (int i = hash(pkgA, pkgB) & mask; ; i = (i + 1) & mask) {
+            final int e = mIndex[i];
+            if (e == NONE) return NONE;
+            if (pkgA.equals(mPkgA[e])
+                    && (pkgB == null ? mPkgB[e] == null : pkgB.equals(mPkgB[e]))) {
+                return e;
+            }
+        }
+    }
+
+    private void indexInsert(int e) {
+        final int mask = mIndex.length - 1;
+        int i = hash(mPkgA[e], mPkgB[e]) & mask;
+        while (mIndex[i] != NONE) i = (i + 1) & mask;
+        mIndex[i] = e;
+    }
+
+    /** Backward-shift deletion keeps probe chains intact without tombstones. */
+    private void indexRemove(int e) {
+        final int mask = mIndex.length - 1;
+        int i = hash(mPkgA[e], mPkgB[e]) & mask;
+        while (mIndex[i] != e) i = (i + 1) & mask;
+        int hole = i;
+        for (int j = (hole + 1) & mask; mIndex[j] != NONE; j = (j + 1) & mask) {
+            final int cur = mIndex[j];
+            final int home = hash(mPkgA[cur], mPkgB[cur]) & mask;
+            // move cur into the hole unless its home lies cyclically in (hole, j]
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mIndex[hole] = cur;
+                hole = j;
+            }
         }
+        mIndex[hole] = NONE;
     }
 }
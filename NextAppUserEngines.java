@@ -0,0 +1,267 @@
+package android.server.power.nextapp;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Slog;
+import android.util.SparseArray;
+
+import java.io.PrintWriter;
+
+/**
+ * One NextAppEngine per user, so one user's (or work profile's) transitions
+ * never train another's models. Each engine has its own ModelFiles.
+ *
+ * Engines are created and loaded lazily on a dedicated thread: getEngine()
+ * returns null until the user's models are loaded (callers treat that as
+ * NONE), and never blocks on I/O. onUserSwitching() starts loading the
+ * incoming user before the switch completes, so the foreground user's engine
+ * is normally hot by its first hook.
+ *
+ * Loaded engines count against cfg.userModelsBudgetBytes (see
+ * NextAppEngine.estimateMemoryBytes()). Over budget, the least recently used
+ * engine that is not the current user's and has been idle at least
+ * cfg.userEvictMinIdleMs is checkpointed and dropped; it reloads on next use.
+ * A caller still holding a dropped engine can keep using it, but nothing it
+ * learns after the eviction is persisted (its training hooks become no-ops).
+ *
+ * Engines do not get threads of their own: every loaded engine trains on one
+ * shared "NextAppTrainer" thread and checkpoints on one shared
+ * "NextAppCheckpoint" thread, so any number of users costs three threads
+ * (those two plus the load thread), not two more per user. Training batches
+ * and checkpoint writes of different users queue behind each other; both are
+ * short and rate-limited, so that is cheaper than idle threads per user.
+ */
+public final class NextAppUserEngines {
+    private static final String TAG = "NextAppUsers";
+
+    private final NextAppConfig mCfg;
+    private final HandlerThread mThread;            // loads, evictions
+    private final Handler mH;
+    private final HandlerThread mTrainerThread;     // shared by every engine's NextAppTrainer
+    private final HandlerThread mCheckpointThread;  // shared by every engine's NextAppCheckpointer
+    private final Runnable mTrimRunnable = this::trimToBudget;
+
+    private final Object mLock = new Object();
+
+    private static final class Shard {
+        final int userId;
+        volatile NextAppEngine engine;  // set on the load thread once loaded
+        long lastActiveMs;              // guarded by mLock
+
+        Shard(int userId) {
+            this.userId = userId;
+        }
+    }
+
+    // guarded by mLock
+    private final SparseArray<Shard> mShards = new SparseArray<>();
+    private int mCurrentUser = UserHandle.USER_NULL;
+    private long mEvictions;
+
+    public NextAppUserEngines(NextAppConfig cfg) {
+        mCfg = cfg;
+        mThread = new HandlerThread("NextAppUsers", Process.THREAD_PRIORITY_DEFAULT);
+        mThread.start();
+        mH = new Handler(mThread.getLooper());
+        mTrainerThread = new HandlerThread("NextAppTrainer", Process.THREAD_PRIORITY_BACKGROUND);
+        mTrainerThread.start();
+        mCheckpointThread = new HandlerThread("NextAppCheckpoint",
+                Process.THREAD_PRIORITY_BACKGROUND);
+        mCheckpointThread.start();
+    }
+
+    /**
+     * The user's engine, or null while it is still loading (a load is started
+     * if needed). Marks the user active for eviction purposes.
+     */
+    public NextAppEngine getEngine(int userId) {
+        final Shard s;
+        synchronized (mLock) {
+            s = obtainLocked(userId);
+            s.lastActiveMs = SystemClock.elapsedRealtime();
+        }
+        return s.engine;
+    }
+
+    /** Call from SystemService.onUserSwitching: preloads the incoming user. */
+    public void onUserSwitching(int userId) {
+        synchronized (mLock) {
+            mCurrentUser = userId;
+            obtainLocked(userId).lastActiveMs = SystemClock.elapsedRealtime();
+        }
+        mH.post(mTrimRunnable);
+    }
+
+    /** Call from SystemService.onUserStopped: checkpoints and drops the user's engine. */
+    public void onUserStopped(int userId) {
+        final Shard s;
+        synchronized (mLock) {
+            s = mShards.get(userId);
+            if (s == null) return;
+            mShards.remove(userId);
+        }
+        mH.post(() -> close(s));
+    }
+
+    /** Call when a user is removed: drops the engine and deletes its files. */
+    public void onUserRemoved(int userId) {
+        final Shard s;
+        synchronized (mLock) {
+            s = mShards.get(userId);
+            mShards.remove(userId);
+        }
+        mH.post(() -> {
+            if (s != null) close(s);
+            if (userId != UserHandle.USER_SYSTEM) ModelFiles.forUser(userId).deleteAll();
+        });
+    }
+
+    /** Checkpoints every loaded engine and stops the load, trainer and checkpoint threads. */
+    public void shutdown() {
+        final Shard[] all;
+        synchronized (mLock) {
+            all = new Shard[mShards.size()];
+            for (int i = 0; i < all.length; i++) all[i] = mShards.valueAt(i);
+            mShards.clear();
+        }
+        mH.post(() -> {
+            for (Shard s : all) close(s);
+        });
+        // engines are shut down (on the load thread) before their shared threads go
+        for (HandlerThread t : new HandlerThread[] {mThread, mTrainerThread, mCheckpointThread}) {
+            t.quitSafely();
+            try {
+                t.join(10_000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    public long getEvictionCount() {
+        synchronized (mLock) {
+            return mEvictions;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        final Shard[] all;
+        final int current;
+        final long evictions;
+        synchronized (mLock) {
+            all = new Shard[mShards.size()];
+            for (int i = 0; i < all.length; i++) all[i] = mShards.valueAt(i);
+            current = mCurrentUser;
+            evictions = mEvictions;
+        }
+        final long now = SystemClock.elapsedRealtime();
+        pw.println("NextAppUserEngines: current=" + current + " shards=" + all.length
+                + " loadedBytes~" + loadedBytes(all) + "/" + mCfg.userModelsBudgetBytes
+                + " evictions=" + evictions);
+        for (Shard s : all) {
+            final NextAppEngine e = s.engine;
+            pw.println("  user " + s.userId + ": " + (e == null ? "loading" : "loaded")
+                    + " idleMs=" + (now - s.lastActiveMs)
+                    + (e != null ? " bytes~" + e.estimateMemoryBytes() : ""));
+        }
+        for (Shard s : all) {
+            final NextAppEngine e = s.engine;
+            if (e == null) continue;
+            pw.println("user " + s.userId + ":");
+            e.dump(pw);
+        }
+    }
+
+    // ---- internals ----
+
+    private Shard obtainLocked(int userId) {
+        Shard s = mShards.get(userId);
+        if (s == null) {
+            s = new Shard(userId);
+            mShards.put(userId, s);
+            final Shard toLoad = s;
+            mH.post(() -> load(toLoad));
+        }
+        return s;
+    }
+
+    /** Load thread. */
+    private void load(Shard s) {
+        synchronized (mLock) {
+            if (mShards.get(s.userId) != s) return; // stopped or removed before we got here
+        }
+        final long t0 = SystemClock.elapsedRealtime();
+        final NextAppEngine e = new NextAppEngine(mCfg, ModelFiles.forUser(s.userId),
+                mTrainerThread.getLooper(), mCheckpointThread.getLooper());
+        e.loadModels();
+        s.engine = e;
+        Slog.i(TAG, "loaded user " + s.userId + " in "
+                + (SystemClock.elapsedRealtime() - t0) + "ms");
+
+        boolean dropped;
+        synchronized (mLock) {
+            dropped = mShards.get(s.userId) != s;
+        }
+        if (dropped) {
+            e.shutdown(); // stopped while loading
+            return;
+        }
+        trimToBudget();
+    }
+
+    /** Load thread: evicts idle engines while over budget; retries when one becomes idle. */
+    private void trimToBudget() {
+        mH.removeCallbacks(mTrimRunnable);
+        while (true) {
+            final Shard victim;
+            long retryInMs = -1;
+            synchronized (mLock) {
+                final Shard[] all = new Shard[mShards.size()];
+                for (int i = 0; i < all.length; i++) all[i] = mShards.valueAt(i);
+                if (loadedBytes(all) <= mCfg.userModelsBudgetBytes) return;
+
+                final long now = SystemClock.elapsedRealtime();
+                Shard lru = null;
+                for (Shard s : all) {
+                    if (s.engine == null || s.userId == mCurrentUser) continue;
+                    final long idle = now - s.lastActiveMs;
+                    if (idle < mCfg.userEvictMinIdleMs) {
+                        final long wait = mCfg.userEvictMinIdleMs - idle;
+                        if (retryInMs < 0 || wait < retryInMs) retryInMs = wait;
+                        continue;
+                    }
+                    if (lru == null || s.lastActiveMs < lru.lastActiveMs) lru = s;
+                }
+                victim = lru;
+                if (victim != null) {
+                    mShards.remove(victim.userId);
+                    mEvictions++;
+                }
+            }
+            if (victim == null) {
+                if (retryInMs >= 0) mH.postDelayed(mTrimRunnable, retryInMs);
+                return;
+            }
+            Slog.i(TAG, "evicting idle user " + victim.userId + " (over memory budget)");
+            close(victim);
+        }
+    }
+
+    /** Load thread: final checkpoint, then the engine is garbage. */
+    private static void close(Shard s) {
+        final NextAppEngine e = s.engine;
+        if (e != null) e.shutdown();
+    }
+
+    private static long loadedBytes(Shard[] shards) {
+        long bytes = 0;
+        for (Shard s : shards) {
+            final NextAppEngine e = s.engine;
+            if (e != null) bytes += e.estimateMemoryBytes();
+        }
+        return bytes;
+    }
+}
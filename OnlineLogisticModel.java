@@ -0,0 +1,447 @@
+package android.server.power.nextapp;
+
+import java.util.Arrays;
+
+/**
+ * Online logistic regression with hashing trick.
+ * Uses sparse binary features (x_i in {0,1}).
+ *
+ * Two optimizers: plain SGD over a dense weight array (the default), or
+ * FTRL-Proximal (see FtrlWeights), whose weights live in a sparse table of the
+ * live features. In FTRL mode getWeights() is null, there are no dirty
+ * pages, and LrAtomicStore persists the sparse table instead.
+ *
+ * SGD weights can also be kept in half precision (getHalfWeights(), see
+ * Fp16), which halves the array, its checkpoint snapshot and the file. score()
+ * reads the halves directly. There is no fp32 shadow: steps are rounded
+ * stochastically, so updates below half an ulp still count in expectation.
+ * The bias stays fp32.
+ *
+ * SGD weights are tracked in pages of PAGE_SIZE weights for checkpointing:
+ * - snapshot-dirty: changed since the last copyTo(), so copyTo() only copies those
+ * - delta-dirty: changed since last persisted; copyTo() hands these bits to the
+ *   snapshot, and LrAtomicStore writes just those pages as a journal delta.
+ *
+ * Thread safety: one writer (update, setters, copyTo) at a time, serialized by
+ * the caller; score()/scoreBatch() may run concurrently without locks. Float
+ * stores are atomic, so a reader sees each weight either before or after a
+ * step. The bias is volatile and written last in update(), so a reader that
+ * starts by reading it sees at least every weight of the steps before.
+ * getVersion() changes after every change to the weights or bias, so callers
+ * can cache anything derived from scores (see NextAppDecisionCache).
+ */
+public final class OnlineLogisticModel {
+    public static final int PAGE_SHIFT = 4;               // 16 floats = one 64-byte line (fp32)
+    public static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+
+    private final int mPow2;
+    private final int mDim;
+    private final int mMask;
+    private final float[] mW;        // fp32 SGD only
+    private final short[] mH;        // half-precision SGD only
+    private final FtrlWeights mFtrl; // FTRL only
+    private volatile float mB;
+    private volatile long mVersion; // bumped after each change; single writer
+
+    private final float mLr;
+    private final float mL2;
+
+    private final int mPages;
+    private final long[] mSnapDirty;
+    private final long[] mDeltaDirty;
+
+    private boolean mSparseDirty;   // FTRL: changed since last persisted
+    private float[] mBatchGrad = new float[0]; // updateBatch scratch (writer only)
+    private int mRng = 0x2545F491;  // xorshift state for stochastic rounding (writer only)
+
+    /** SGD with a fixed learning rate. */
+    public OnlineLogisticModel(int hashDimPow2, float lr, float l2) {
+        this(hashDimPow2, lr, l2, false);
+    }
+
+    /** SGD with a fixed learning rate, optionally with half-precision weights. */
+    public OnlineLogisticModel(int hashDimPow2, float lr, float l2, boolean halfPrecision) {
+        this(hashDimPow2, lr, l2, null, halfPrecision);
+    }
+
+    /** FTRL-Proximal with per-coordinate learning rates alpha / (beta + sqrt(n)). */
+    public OnlineLogisticModel(int hashDimPow2, float alpha, float beta, float l1, float l2) {
+        this(hashDimPow2, alpha, l2, new FtrlWeights(hashDimPow2, alpha, beta, l1, l2), false);
+    }
+
+    private OnlineLogisticModel(int hashDimPow2, float lr, float l2, FtrlWeights ftrl,
+                                boolean halfPrecision) {
+        mPow2 = hashDimPow2;
+        mDim = 1 << hashDimPow2;
+        mMask = mDim - 1;
+        mFtrl = ftrl;
+        mW = ftrl == null && !halfPrecision ? new float[mDim] : null;
+        mH = ftrl == null && halfPrecision ? new short[mDim] : null;
+        mB = 0f;
+        mLr = lr;
+        mL2 = l2;
+        mPages = ftrl == null ? (mDim + PAGE_SIZE - 1) >>> PAGE_SHIFT : 0;
+        mSnapDirty = new long[(mPages + 63) >>> 6];
+        mDeltaDirty = new long[(mPages + 63) >>> 6];
+    }
+
+    /** The optimizer the config asks for. */
+    public static OnlineLogisticModel fromConfig(NextAppConfig cfg) {
+        return cfg.lrFtrl
+                ? new OnlineLogisticModel(cfg.hashDimPow2, cfg.ftrlAlpha, cfg.ftrlBeta,
+                        cfg.ftrlL1, cfg.l2)
+                : new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2, cfg.lrHalfPrecision);
+    }
+
+    public int getHashDimPow2() { return mPow2; }
+    public boolean isSparse() { return mFtrl != null; }
+    public boolean isHalf() { return mH != null; }
+    /** Dense fp32 SGD weights; null in FTRL and half-precision mode. */
+    public float[] getWeights() { return mW; }
+    /** Dense half-precision SGD weights (see Fp16); null otherwise. */
+    public short[] getHalfWeights() { return mH; }
+    /** FTRL state; null in SGD mode. */
+    public FtrlWeights getFtrl() { return mFtrl; }
+    public float getBias() { return mB; }
+    public void setBias(float b) {
+        mB = b;
+        if (mFtrl != null) mFtrl.setBiasValue(b);
+        mVersion++;
+    }
+    public long getVersion() { return mVersion; }
+
+    /** Approximate heap held by the weights (dense array or FTRL table). */
+    public long memoryBytes() {
+        if (mW != null) return 4L * mDim;
+        if (mH != null) return 2L * mDim;
+        return mFtrl.memoryBytes();
+    }
+    /**
+     * Restores persisted dense weights; they match disk, so nothing becomes
+     * delta-dirty. In FTRL mode they become coordinates without history; in
+     * half-precision mode they are rounded to nearest.
+     */
+    public void setWeights(float[] w) {
+        if (w == null || w.length != mDim) throw new IllegalArgumentException("dim mismatch");
+        if (mFtrl != null) {
+            mFtrl.setDense(w);
+            mFtrl.setBiasValue(mB);
+            mSparseDirty = true; // the file on disk is still dense
+        } else if (mH != null) {
+            for (int i = 0; i < mDim; i++) mH[i] = Fp16.toHalf(w[i]);
+        } else {
+            System.arraycopy(w, 0, mW, 0, mW.length);
+        }
+        onWeightsRestored();
+    }
+
+    /**
+     * Restores dense weights persisted at another dimension (2^srcPow2). Every
+     * encoder indexes with hash & mask, so a feature's bucket at the new size
+     * is its old bucket's index with bits added or dropped:
+     * - growing re-projects: new bucket i takes old bucket (i & oldMask), so
+     *   every feature keeps its weight and every score is unchanged;
+     * - shrinking folds: new bucket i is the sum of the old buckets that alias
+     *   to it, exact for features whose aliases were never trained.
+     * Everything is left unsaved, so the next checkpoint rewrites the file at
+     * the new dimension. Returns the number of buckets that summed two or more
+     * non-zero weights.
+     */
+    public int restoreResized(int srcPow2, float bias, float[] src) {
+        if (src == null || src.length != 1 << srcPow2) {
+            throw new IllegalArgumentException("dim mismatch");
+        }
+        final float[] w = new float[mDim];
+        int merged = 0;
+        if (srcPow2 <= mPow2) {
+            final int srcMask = src.length - 1;
+            for (int i = 0; i < mDim; i++) w[i] = src[i & srcMask];
+        } else {
+            final int[] nonZero = new int[mDim];
+            for (int i = 0; i < src.length; i++) {
+                if (src[i] == 0f) continue;
+                final int j = i & mMask;
+                w[j] += src[i];
+                if (++nonZero[j] == 2) merged++;
+            }
+        }
+        setBias(bias);
+        setWeights(w);
+        setAllBits(mDeltaDirty, mPages);
+        mSparseDirty = mFtrl != null;
+        return merged;
+    }
+
+    /**
+     * Like setWeights, for callers that filled getWeights() / getHalfWeights()
+     * (SGD) or the FTRL table (FtrlWeights.put) in place (LrAtomicStore.readInto).
+     */
+    public void onWeightsRestored() {
+        setAllBits(mSnapDirty, mPages);
+        mVersion++;
+    }
+
+    /**
+     * Brings dst (same dimension) up to date with this model for a checkpoint:
+     * copies only snapshot-dirty pages and moves the delta-dirty bits into dst.
+     * dst must have been filled only by copyTo() from this model.
+     */
+    public void copyTo(OnlineLogisticModel dst) {
+        if (dst.mDim != mDim || dst.isSparse() != isSparse() || dst.isHalf() != isHalf()) {
+            throw new IllegalArgumentException("dim mismatch");
+        }
+        if (mFtrl != null) {
+            // the table is sized by the live features, so copy all of it
+            if (mFtrl.compact() > 0) mSparseDirty = true;
+            dst.mFtrl.copyFrom(mFtrl);
+            dst.mSparseDirty |= mSparseDirty;
+            mSparseDirty = false;
+            dst.mB = mB;
+            return;
+        }
+        for (int wi = 0; wi < mSnapDirty.length; wi++) {
+            long bits = mSnapDirty[wi];
+            while (bits != 0) {
+                final int page = (wi << 6) + Long.numberOfTrailingZeros(bits);
+                bits &= bits - 1;
+                final int from = page << PAGE_SHIFT;
+                if (mH != null) {
+                    System.arraycopy(mH, from, dst.mH, from, Math.min(PAGE_SIZE, mDim - from));
+                } else {
+                    System.arraycopy(mW, from, dst.mW, from, Math.min(PAGE_SIZE, mDim - from));
+                }
+            }
+            mSnapDirty[wi] = 0;
+            dst.mDeltaDirty[wi] |= mDeltaDirty[wi];
+            mDeltaDirty[wi] = 0;
+        }
+        dst.mB = mB;
+    }
+
+    // ---- dirty pages (for LrAtomicStore deltas) ----
+
+    public int getPageCount() { return mPages; }
+
+    public boolean isPageDirty(int page) {
+        return (mDeltaDirty[page >>> 6] & (1L << page)) != 0;
+    }
+
+    /** Number of delta-dirty pages (SGD only; always 0 in FTRL mode). */
+    public int dirtyPageCount() {
+        int n = 0;
+        for (long bits : mDeltaDirty) n += Long.bitCount(bits);
+        return n;
+    }
+
+    /** Whether anything changed since last persisted. */
+    public boolean hasUnsavedChanges() {
+        return mFtrl != null ? mSparseDirty : dirtyPageCount() > 0;
+    }
+
+    /** Called once the delta-dirty pages (or the FTRL table) have been persisted. */
+    public void clearDirtyPages() {
+        Arrays.fill(mDeltaDirty, 0L);
+        mSparseDirty = false;
+    }
+
+    private void markDirty(int idx) {
+        final int page = idx >>> PAGE_SHIFT;
+        final long bit = 1L << page;
+        mSnapDirty[page >>> 6] |= bit;
+        mDeltaDirty[page >>> 6] |= bit;
+    }
+
+    private static void setAllBits(long[] bits, int n) {
+        for (int i = 0; i < n; i++) bits[i >>> 6] |= 1L << i;
+    }
+
+    /** Sigmoid(w·x + b). */
+    public float score(int[] featIdx, int featCount) {
+        float z = mB;
+        if (mW != null) {
+            for (int i = 0; i < featCount; i++) {
+                z += mW[featIdx[i]];
+            }
+        } else if (mH != null) {
+            for (int i = 0; i < featCount; i++) {
+                z += Fp16.toFloat(mH[featIdx[i]]);
+            }
+        } else {
+            for (int i = 0; i < featCount; i++) {
+                z += mFtrl.get(featIdx[i]);
+            }
+        }
+        return sigmoid(z);
+    }
+
+    /**
+     * Batch scoring for items that share a feature prefix (e.g. ranking candidates
+     * of one A): the shared part and bias are summed once, then each item adds
+     * only its own features. Item i owns itemIdx[i*perItem .. (i+1)*perItem).
+     * out[i] = sigmoid(b + w·shared + w·item_i).
+     */
+    public void scoreBatch(int[] sharedIdx, int sharedCount,
+                           int[] itemIdx, int perItem, int itemCount, float[] out) {
+        if (mFtrl != null) {
+            scoreBatchSparse(sharedIdx, sharedCount, itemIdx, perItem, itemCount, out);
+            return;
+        }
+        if (mH != null) {
+            scoreBatchHalf(sharedIdx, sharedCount, itemIdx, perItem, itemCount, out);
+            return;
+        }
+        float zShared = mB;
+        for (int i = 0; i < sharedCount; i++) {
+            zShared += mW[sharedIdx[i]];
+        }
+        for (int it = 0, base = 0; it < itemCount; it++, base += perItem) {
+            float z = zShared;
+            for (int j = 0; j < perItem; j++) {
+                z += mW[itemIdx[base + j]];
+            }
+            out[it] = sigmoid(z);
+        }
+    }
+
+    private void scoreBatchSparse(int[] sharedIdx, int sharedCount,
+                                  int[] itemIdx, int perItem, int itemCount, float[] out) {
+        final FtrlWeights ftrl = mFtrl;
+        float zShared = mB;
+        for (int i = 0; i < sharedCount; i++) {
+            zShared += ftrl.get(sharedIdx[i]);
+        }
+        for (int it = 0, base = 0; it < itemCount; it++, base += perItem) {
+            float z = zShared;
+            for (int j = 0; j < perItem; j++) {
+                z += ftrl.get(itemIdx[base + j]);
+            }
+            out[it] = sigmoid(z);
+        }
+    }
+
+    private void scoreBatchHalf(int[] sharedIdx, int sharedCount,
+                                int[] itemIdx, int perItem, int itemCount, float[] out) {
+        final short[] h = mH;
+        float zShared = mB;
+        for (int i = 0; i < sharedCount; i++) {
+            zShared += Fp16.toFloat(h[sharedIdx[i]]);
+        }
+        for (int it = 0, base = 0; it < itemCount; it++, base += perItem) {
+            float z = zShared;
+            for (int j = 0; j < perItem; j++) {
+                z += Fp16.toFloat(h[itemIdx[base + j]]);
+            }
+            out[it] = sigmoid(z);
+        }
+    }
+
+    /** One SGD step for binary label in {0,1}. */
+    public void update(int[] featIdx, int featCount, int label01) {
+        float p = score(featIdx, featCount);
+        float grad = (p - label01); // dloss/dz for logloss
+
+        if (mFtrl != null) {
+            for (int i = 0; i < featCount; i++) {
+                mFtrl.update(featIdx[i], grad);
+            }
+            mSparseDirty = true;
+            mB = mFtrl.updateBias(mB, grad); // last, as below
+            mVersion++;
+            return;
+        }
+
+        // weight update (L2 + grad*x)
+        for (int i = 0; i < featCount; i++) {
+            step(featIdx[i], grad);
+        }
+
+        // bias update, last: the volatile store publishes the weights above
+        mB -= mLr * grad;
+        mVersion++;
+    }
+
+    /**
+     * One step over a batch of examples that share a feature prefix (e.g. a
+     * ranking positive and its hard negatives), in scoreBatch() layout with
+     * labels[i] in {0,1}. All examples are scored against the same weights;
+     * the shared indices and the bias then take the summed gradient in one
+     * write each, and each item's own indices take its gradient. Under FTRL the
+     * shared coordinates also accumulate the sum of squared gradients, not the
+     * square of the sum, so their learning rates decay as with per-example steps.
+     */
+    public void updateBatch(int[] sharedIdx, int sharedCount,
+                            int[] itemIdx, int perItem, int itemCount, int[] labels) {
+        if (itemCount <= 0) return;
+        if (mBatchGrad.length < itemCount) mBatchGrad = new float[itemCount];
+        final float[] g = mBatchGrad;
+        scoreBatch(sharedIdx, sharedCount, itemIdx, perItem, itemCount, g);
+        float gSum = 0f;
+        float gSq = 0f;
+        for (int it = 0; it < itemCount; it++) {
+            g[it] -= labels[it]; // dloss/dz for logloss
+            gSum += g[it];
+            gSq += g[it] * g[it];
+        }
+
+        if (mFtrl != null) {
+            for (int i = 0; i < sharedCount; i++) {
+                mFtrl.update(sharedIdx[i], gSum, gSq);
+            }
+            for (int it = 0, base = 0; it < itemCount; it++, base += perItem) {
+                for (int j = 0; j < perItem; j++) {
+                    mFtrl.update(itemIdx[base + j], g[it]);
+                }
+            }
+            mSparseDirty = true;
+            mB = mFtrl.updateBias(mB, gSum, gSq);
+            mVersion++;
+            return;
+        }
+
+        for (int i = 0; i < sharedCount; i++) {
+            step(sharedIdx[i], gSum);
+        }
+        for (int it = 0, base = 0; it < itemCount; it++, base += perItem) {
+            for (int j = 0; j < perItem; j++) {
+                step(itemIdx[base + j], g[it]);
+            }
+        }
+        // bias update, last: the volatile store publishes the weights above
+        mB -= mLr * gSum;
+        mVersion++;
+    }
+
+    /** SGD step on one weight (L2 + grad*x). */
+    private void step(int idx, float grad) {
+        if (mH != null) {
+            float wi = Fp16.toFloat(mH[idx]);
+            wi -= mLr * (grad + mL2 * wi);
+            mH[idx] = Fp16.toHalfStochastic(wi, nextRandom());
+        } else {
+            float wi = mW[idx];
+            wi -= mLr * (grad + mL2 * wi);
+            mW[idx] = wi;
+        }
+        markDirty(idx);
+    }
+
+    private int nextRandom() {
+        int x = mRng;
+        x ^= x << 13;
+        x ^= x >>> 17;
+        x ^= x << 5;
+        return mRng = x;
+    }
+
+    private static float sigmoid(float z) {
+        if (z >= 0f) {
+            float ez = (float) Math.exp(-z);
+            return 1f / (1f + ez);
+        } else {
+            float ez = (float) Math.exp(z);
+            return ez / (1f + ez);
+        }
+    }
+
+    public int mask() { return mMask; }
+}
@@ -0,0 +1,230 @@
+package android.server.power.nextapp;
+
+import java.util.Arrays;
+
+/**
+ * Interns package names to small dense ids (0..size-1).
+ * Markov rows, sessions and encoder caches key on these ids; Strings only
+ * appear at the NextAppEngine hook boundary.
+ *
+ * Ids are stable for the lifetime of a package and persisted alongside the
+ * models (see PackageRegistryStore). When a package is uninstalled its id is
+ * recycled, so callers must purge id-keyed state before calling release().
+ *
+ * Thread safety: idOf() and nameOf() are lock-free. Mutations take mLock and
+ * publish grown arrays through volatile fields, so a reader sees either the
+ * old or the new table. A lock-free lookup that races with a mutation can
+ * miss (never return a wrong id); idOf() then retries under the lock.
+ */
+public final class PackageRegistry {
+    public static final int NO_ID = -1;
+    /** Bound on restored ids; far above any device's package count. */
+    public static final int MAX_IDS = 1 << 20;
+
+    private static final int MIN_CAPACITY = 64;
+
+    private final Object mLock = new Object();
+
+    // id -> name (null if free)
+    private volatile String[] mNames = new String[MIN_CAPACITY];
+    private volatile int mNextId = 0;   // ids [0, mNextId) have been handed out at least once
+    private volatile int mLive = 0;
+
+    // recycled ids, reused LIFO (guarded by mLock)
+    private int[] mFree = new int[8];
+    private int mFreeCount = 0;
+
+    // open addressing (linear probing): slot -> id + 1, 0 = empty
+    private volatile int[] mSlots = new int[MIN_CAPACITY * 2];
+
+    /** Returns id of pkg, or NO_ID if never interned. */
+    public int idOf(String pkg) {
+        if (pkg == null) return NO_ID;
+        final int id = find(pkg);
+        if (id != NO_ID) return id;
+        synchronized (mLock) {
+            return find(pkg);
+        }
+    }
+
+    /** Returns id of pkg, assigning one (recycled first) if it is new. */
+    public int intern(String pkg) {
+        if (pkg == null) return NO_ID;
+        int id = find(pkg);
+        if (id != NO_ID) return id;
+
+        synchronized (mLock) {
+            id = find(pkg);
+            if (id != NO_ID) return id;
+
+            if (mFreeCount > 0) {
+                id = mFree[--mFreeCount];
+            } else {
+                id = mNextId;
+                if (id >= mNames.length) mNames = Arrays.copyOf(mNames, mNames.length * 2);
+                mNextId = id + 1;
+            }
+            if ((mLive + 1) * 2 > mSlots.length) rehash(mSlots.length * 2);
+            // name before slot: a reader that finds the slot can resolve it
+            mNames[id] = pkg;
+            mLive++;
+            insertSlot(id);
+            return id;
+        }
+    }
+
+    /** Name for id, or null if id is free / out of range. */
+    public String nameOf(int id) {
+        final String[] names = mNames;
+        return (id >= 0 && id < names.length) ? names[id] : null;
+    }
+
+    /**
+     * Releases pkg's id for reuse (e.g. on uninstall). Returns the released id or NO_ID.
+     * All state keyed by that id must already be purged.
+     */
+    public int release(String pkg) {
+        synchronized (mLock) {
+            final int id = find(pkg);
+            if (id == NO_ID) return NO_ID;
+            removeSlot(id);
+            mNames[id] = null;
+            mLive--;
+            if (mFreeCount == mFree.length) mFree = Arrays.copyOf(mFree, mFree.length * 2);
+            mFree[mFreeCount++] = id;
+            return id;
+        }
+    }
+
+    /** Upper bound (exclusive) of ids ever handed out; size id-indexed arrays with this. */
+    public int idLimit() { return mNextId; }
+
+    /** Number of live packages. */
+    public int size() { return mLive; }
+
+    public void clear() {
+        synchronized (mLock) {
+            mSlots = new int[mSlots.length];
+            mNames = new String[mNames.length];
+            mNextId = 0;
+            mLive = 0;
+            mFreeCount = 0;
+        }
+    }
+
+    /** Makes dst an exact copy of this registry (checkpoint snapshot). dst must be private to the caller. */
+    public void copyTo(PackageRegistry dst) {
+        synchronized (mLock) {
+            if (dst.mNames.length != mNames.length) dst.mNames = new String[mNames.length];
+            if (dst.mSlots.length != mSlots.length) dst.mSlots = new int[mSlots.length];
+            if (dst.mFree.length != mFree.length) dst.mFree = new int[mFree.length];
+            System.arraycopy(mNames, 0, dst.mNames, 0, mNames.length);
+            System.arraycopy(mSlots, 0, dst.mSlots, 0, mSlots.length);
+            System.arraycopy(mFree, 0, dst.mFree, 0, mFreeCount);
+            dst.mNextId = mNextId;
+            dst.mLive = mLive;
+            dst.mFreeCount = mFreeCount;
+        }
+    }
+
+    /**
+     * Restores a persisted (id, name) binding. Only valid on an empty or
+     * restoring registry; call finishRestore() afterwards to rebuild the free list.
+     */
+    void restore(int id, String pkg) {
+        if (id < 0 || id >= MAX_IDS || pkg == null) {
+            throw new IllegalArgumentException("bad entry " + id);
+        }
+        synchronized (mLock) {
+            if (find(pkg) != NO_ID) throw new IllegalArgumentException("duplicate " + pkg);
+            String[] names = mNames;
+            if (id >= names.length) {
+                // id < MAX_IDS: doubling cannot overflow
+                int len = names.length;
+                while (id >= len) len <<= 1;
+                mNames = names = Arrays.copyOf(names, len);
+            }
+            if (names[id] != null) throw new IllegalArgumentException("duplicate id " + id);
+            if ((mLive + 1) * 2 > mSlots.length) rehash(mSlots.length * 2);
+            names[id] = pkg;
+            mNextId = Math.max(mNextId, id + 1);
+            mLive++;
+            insertSlot(id);
+        }
+    }
+
+    /** Collects holes left by restore() into the free list. */
+    void finishRestore() {
+        synchronized (mLock) {
+            mFreeCount = 0;
+            for (int id = mNextId - 1; id >= 0; id--) {
+                if (mNames[id] != null) continue;
+                if (mFreeCount == mFree.length) mFree = Arrays.copyOf(mFree, mFree.length * 2);
+                mFree[mFreeCount++] = id;
+            }
+        }
+    }
+
+    // ---- open addressing internals ----
+
+    /** Lock-free probe; a slot whose name is not visible yet reads as a miss. */
+    private int find(String pkg) {
+        final int[] slots = mSlots;
+        final String[] names = mNames;
+        final int mask = slots.length - 1;
+        for (int i = spread(pkg.hashCode()) & mask, n = 0; n <= mask; i = (i + 1) & mask, n++) {
+            final int v = slots[i];
+            if (v == 0) return NO_ID;
+            if (v > names.length) continue;
+            final String name = names[v - 1];
+            if (name == pkg || (name != null && name.equals(pkg))) return v - 1;
+        }
+        return NO_ID;
+    }
+
+    private void insertSlot(int id) {
+        final int mask = mSlots.length - 1;
+        int i = spread(mNames[id].hashCode()) & mask;
+        while (mSlots[i] != 0) i = (i + 1) & mask;
+        mSlots[i] = id + 1;
+    }
+
+    /** Backward-shift deletion keeps probe chains intact without tombstones. */
+    private void removeSlot(int id) {
+        final int mask = mSlots.length - 1;
+        int i = spread(mNames[id].hashCode()) & mask;
+        while (mSlots[i] != id + 1) i = (i + 1) & mask;
+
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            final int v = mSlots[j];
+            if (v == 0) break;
+            final int home = spread(mNames[v - 1].hashCode()) & mask;
+            // move v back into the hole at i if its home is not in (i, j]
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                mSlots[i] = v;
+                i = j;
+            }
+        }
+        mSlots[i] = 0;
+    }
+
+    /** Builds the new table off to the side, then publishes it. */
+    private void rehash(int newLen) {
+        final int[] slots = new int[newLen];
+        final int mask = newLen - 1;
+        final String[] names = mNames;
+        for (int id = 0; id < mNextId; id++) {
+            if (names[id] == null) continue;
+            int i = spread(names[id].hashCode()) & mask;
+            while (slots[i] != 0) i = (i + 1) & mask;
+            slots[i] = id + 1;
+        }
+        mSlots = slots;
+    }
+
+    private static int spread(int h) {
+        return h ^ (h >>> 16);
+    }
+}
@@ -0,0 +1,120 @@
+package android.server.power.nextapp;
+
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Persists PackageRegistry id bindings so ids stay stable across restarts.
+ *
+ *   int MAGIC, VERSION, idLimit, count
+ *   count x (int id, UTF name)
+ *   int CRC32C of everything above
+ *
+ * Every other model file's package ids depend on this one, so it is
+ * checksummed like them and its ids are bounded (id < idLimit <=
+ * PackageRegistry.MAX_IDS) before anything is allocated for them. Version 1
+ * (no idLimit, no checksum) still loads, with ids bounded by MAX_IDS.
+ */
+public final class PackageRegistryStore {
+    private static final String TAG = "NextAppPkgStore";
+    private static final int MAGIC = 0x4E41504B; // "NAPK"
+    private static final int VERSION = 2;
+    private static final int VERSION_1 = 1;
+    private static final long MAX_FILE_BYTES = 16L * 1024 * 1024; // sanity bound
+
+    private final AtomicFile mFile;
+
+    public PackageRegistryStore(File file) {
+        mFile = new AtomicFile(file);
+    }
+
+    /** Returns bytes written, or -1 on failure. */
+    public long write(PackageRegistry reg) {
+        FileOutputStream fos = null;
+        try {
+            fos = mFile.startWrite();
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fos, crc));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(reg.idLimit());
+            out.writeInt(reg.size());
+            for (int id = 0; id < reg.idLimit(); id++) {
+                String name = reg.nameOf(id);
+                if (name == null) continue;
+                out.writeInt(id);
+                out.writeUTF(name);
+            }
+            out.flush();
+            // trailer is not part of the checksum
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+
+            fos.getFD().sync();
+            mFile.finishWrite(fos);
+            return mFile.getBaseFile().length();
+        } catch (Throwable t) {
+            Slog.e(TAG, "Package registry save failed: " + mFile.getBaseFile(), t);
+            if (fos != null) mFile.failWrite(fos);
+            return -1;
+        }
+    }
+
+    /** Loads into an empty registry. Returns false (and leaves it empty) on any error. */
+    public boolean readInto(PackageRegistry reg) {
+        final byte[] bytes;
+        try (FileInputStream fis = mFile.openRead()) {
+            if (fis.getChannel().size() > MAX_FILE_BYTES) {
+                Slog.w(TAG, "Package registry too large: " + mFile.getBaseFile());
+                return false;
+            }
+            bytes = fis.readAllBytes();
+        } catch (IOException e) {
+            return false; // missing or unreadable
+        }
+
+        try {
+            final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC) return false;
+            final int version = in.readInt();
+            int idLimit = PackageRegistry.MAX_IDS;
+            if (version == VERSION) {
+                final CRC32C crc = new CRC32C();
+                crc.update(bytes, 0, bytes.length - 4);
+                if ((int) crc.getValue() != ByteBuffer.wrap(bytes).getInt(bytes.length - 4)) {
+                    Slog.w(TAG, "Package registry checksum mismatch: " + mFile.getBaseFile());
+                    return false;
+                }
+                idLimit = in.readInt();
+                if (idLimit < 0 || idLimit > PackageRegistry.MAX_IDS) return false;
+            } else if (version != VERSION_1) {
+                return false;
+            }
+
+            int count = in.readInt();
+            if (count < 0 || count > idLimit) return false;
+            for (int i = 0; i < count; i++) {
+                int id = in.readInt();
+                if (id < 0 || id >= idLimit) throw new IllegalArgumentException("bad id " + id);
+                reg.restore(id, in.readUTF());
+            }
+            reg.finishRestore();
+            return true;
+        } catch (IOException | IllegalArgumentException e) {
+            Slog.w(TAG, "Package registry unreadable: " + mFile.getBaseFile(), e);
+            reg.clear();
+            return false;
+        }
+    }
+}
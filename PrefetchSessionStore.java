@@ -1,67 +1,230 @@
 package android.server.power.nextapp;
 
-import android.util.ArrayMap;
-
-import java.util.ArrayList;
-import java.util.List;
+import android.util.SparseArray;
 
 /**
  * Stores per-A "allowed-to-run" sessions so we can:
  * - train hard negatives from candidates not chosen / not opened
  * - train gating NONE when no next app occurs within TTL
+ * Keyed by PackageRegistry id of A.
+ *
+ * Fixed capacity with O(1) LRU eviction: sessions sit on an intrusive list
+ * ordered by put(), and a full store recycles the oldest one in place.
+ * Sessions are pooled and hold candidates inline (int arrays sized for
+ * candidateTopN), so a steady stream of launches allocates nothing.
+ *
+ * Written by both the scoring path (put) and the training path, so every
+ * method takes a private lock; critical sections are short and never do I/O.
+ * Because sessions are recycled, readers never get a live Session: peek() and
+ * take() copy it into a caller-owned one. A resolved session is taken (removed).
+ *
+ * Every put() stamps its session with the next sequence number. An event
+ * queued for training records lastSeq() when it is offered and resolves only
+ * a session at or below it, so a newer session of the same A (put while the
+ * event waited in the queue) is neither trained on nor consumed by it.
  */
 public final class PrefetchSessionStore {
 
     public static final class Session {
-        public final String pkgA;
-        public final NextAppContext ctxAtA;
-        public final long t0Millis;
-
-        public final ArrayList<String> candidates; // Markov candidates
-        public final ArrayList<String> prefetched; // chosen apps (K<=1 recommended)
-
-        public boolean resolved; // set true when a next app happens or TTL expires
-
-        Session(String pkgA, NextAppContext ctxAtA, long t0Millis,
-                ArrayList<String> candidates, ArrayList<String> prefetched) {
-            this.pkgA = pkgA;
-            this.ctxAtA = ctxAtA;
-            this.t0Millis = t0Millis;
-            this.candidates = candidates;
-            this.prefetched = prefetched;
-            this.resolved = false;
+        public int pkgA;
+        public int prevPkg;                // id of ctxAtA.prevForegroundPkg or NO_ID
+        public NextAppContext ctxAtA;
+        public long t0Millis;
+        public long seq;                   // put() order, see lastSeq()
+
+        public final int[] candidates;     // Markov candidates, [0, candidateCount)
+        public int candidateCount;
+        public final int[] prefetched;     // chosen apps (K<=1 recommended), [0, prefetchedCount)
+        public int prefetchedCount;
+
+        // LRU links, owned by the store
+        Session newer;
+        Session older;
+
+        /** Caller-owned sessions (for peek/take) must use the store's maxCandidates. */
+        public Session(int maxCandidates) {
+            candidates = new int[maxCandidates];
+            prefetched = new int[maxCandidates];
+        }
+
+        void copyFrom(Session o) {
+            pkgA = o.pkgA;
+            prevPkg = o.prevPkg;
+            ctxAtA = o.ctxAtA;
+            t0Millis = o.t0Millis;
+            seq = o.seq;
+            candidateCount = o.candidateCount;
+            System.arraycopy(o.candidates, 0, candidates, 0, candidateCount);
+            prefetchedCount = o.prefetchedCount;
+            System.arraycopy(o.prefetched, 0, prefetched, 0, prefetchedCount);
         }
     }
 
-    private final ArrayMap<String, Session> mByA = new ArrayMap<>();
-    private final int mMaxSessions; // safety bound
+    private final Object mLock = new Object();
+    private final int mMaxSessions;   // safety bound
+    private final int mMaxCandidates;
 
-    public PrefetchSessionStore(int maxSessions) {
+    // guarded by mLock
+    private final SparseArray<Session> mByA;
+    private Session mNewest;
+    private Session mOldest;
+    private Session mFree;            // recycled sessions, chained through older
+    private long mEvictions;
+    private volatile long mLastSeq;   // written under mLock, read by lastSeq() without it
+
+    public PrefetchSessionStore(int maxSessions, int maxCandidates) {
         mMaxSessions = Math.max(8, maxSessions);
+        mMaxCandidates = Math.max(0, maxCandidates);
+        mByA = new SparseArray<>(mMaxSessions);
+    }
+
+    /**
+     * Records a session for pkgA, replacing any previous one. Candidate and
+     * prefetched ids are copied (and clamped to maxCandidates).
+     */
+    public void put(int pkgA, int prevPkg, NextAppContext ctxAtA, long t0Millis,
+                    int[] candidates, int candidateCount, int[] prefetched, int prefetchedCount) {
+        synchronized (mLock) {
+            Session s = mByA.get(pkgA);
+            if (s != null) {
+                unlink(s);
+            } else {
+                s = obtainLocked();
+                mByA.put(pkgA, s);
+            }
+
+            s.pkgA = pkgA;
+            s.prevPkg = prevPkg;
+            s.ctxAtA = ctxAtA;
+            s.t0Millis = t0Millis;
+            s.seq = mLastSeq + 1;
+            mLastSeq = s.seq;
+            s.candidateCount = Math.min(candidateCount, mMaxCandidates);
+            System.arraycopy(candidates, 0, s.candidates, 0, s.candidateCount);
+            s.prefetchedCount = Math.min(prefetchedCount, mMaxCandidates);
+            System.arraycopy(prefetched, 0, s.prefetched, 0, s.prefetchedCount);
+
+            linkNewest(s);
+        }
+    }
+
+    public int size() {
+        synchronized (mLock) {
+            return mByA.size();
+        }
     }
 
-    public void put(Session s) {
-        if (mByA.size() >= mMaxSessions) {
-            // evict oldest (simple O(n); small)
-            long oldest = Long.MAX_VALUE;
-            int idx = -1;
-            for (int i = 0; i < mByA.size(); i++) {
-                Session cur = mByA.valueAt(i);
-                if (cur.t0Millis < oldest) {
-                    oldest = cur.t0Millis;
-                    idx = i;
+    /** Sessions dropped because the store was full. */
+    public long evictionCount() {
+        synchronized (mLock) {
+            return mEvictions;
+        }
+    }
+
+    /** Sequence number of the latest put(); any thread, no lock. */
+    public long lastSeq() {
+        return mLastSeq;
+    }
+
+    /** Copies pkgA's session into out; false if there is none. */
+    public boolean peek(int pkgA, Session out) {
+        return peek(pkgA, Long.MAX_VALUE, out);
+    }
+
+    /** Like peek(int, Session), but a session put after maxSeq counts as none. */
+    public boolean peek(int pkgA, long maxSeq, Session out) {
+        synchronized (mLock) {
+            Session s = mByA.get(pkgA);
+            if (s == null || s.seq > maxSeq) return false;
+            out.copyFrom(s);
+            return true;
+        }
+    }
+
+    /** Like peek(), and removes the session: for hooks that resolve it. */
+    public boolean take(int pkgA, Session out) {
+        return take(pkgA, Long.MAX_VALUE, out);
+    }
+
+    /** Like take(int, Session), but a session put after maxSeq is neither copied nor removed. */
+    public boolean take(int pkgA, long maxSeq, Session out) {
+        synchronized (mLock) {
+            Session s = mByA.get(pkgA);
+            if (s == null || s.seq > maxSeq) return false;
+            out.copyFrom(s);
+            removeLocked(s);
+            return true;
+        }
+    }
+
+    public boolean remove(int pkgA) {
+        synchronized (mLock) {
+            Session s = mByA.get(pkgA);
+            if (s == null) return false;
+            removeLocked(s);
+            return true;
+        }
+    }
+
+    /** Drops sessions that reference pkg as A, previous app or candidate (uninstall). */
+    public void removePackage(int pkg) {
+        synchronized (mLock) {
+            Session s = mNewest;
+            while (s != null) {
+                final Session older = s.older;
+                if (s.pkgA == pkg || s.prevPkg == pkg
+                        || contains(s.candidates, s.candidateCount, pkg)
+                        || contains(s.prefetched, s.prefetchedCount, pkg)) {
+                    removeLocked(s);
                 }
+                s = older;
             }
-            if (idx >= 0) mByA.removeAt(idx);
         }
-        mByA.put(s.pkgA, s);
     }
 
-    public Session get(String pkgA) {
-        return mByA.get(pkgA);
+    // ---- internals (mLock held) ----
+
+    private Session obtainLocked() {
+        if (mFree != null) {
+            final Session s = mFree;
+            mFree = s.older;
+            s.older = null;
+            return s;
+        }
+        if (mByA.size() < mMaxSessions) return new Session(mMaxCandidates);
+
+        // full: recycle the least recently put session
+        final Session s = mOldest;
+        mByA.remove(s.pkgA);
+        unlink(s);
+        mEvictions++;
+        return s;
+    }
+
+    private void removeLocked(Session s) {
+        mByA.remove(s.pkgA);
+        unlink(s);
+        s.ctxAtA = null;
+        s.older = mFree;
+        mFree = s;
+    }
+
+    private void linkNewest(Session s) {
+        s.newer = null;
+        s.older = mNewest;
+        if (mNewest != null) mNewest.newer = s; else mOldest = s;
+        mNewest = s;
+    }
+
+    private void unlink(Session s) {
+        if (s.newer != null) s.newer.older = s.older; else mNewest = s.older;
+        if (s.older != null) s.older.newer = s.newer; else mOldest = s.newer;
+        s.newer = null;
+        s.older = null;
     }
 
-    public Session remove(String pkgA) {
-        return mByA.remove(pkgA);
+    private static boolean contains(int[] ids, int n, int id) {
+        for (int i = 0; i < n; i++) if (ids[i] == id) return true;
+        return false;
     }
 }
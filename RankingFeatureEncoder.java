@@ -2,42 +2,122 @@ package android.server.power.nextapp;
 
 /**
  * Builds features for ranking: P(B | A, ctx).
+ *
+ * encode() returns the full feature set (used for training). For scoring many
+ * candidates of one A, encodeShared() + encodeCandidate() split the same set
+ * into the candidate-independent part (A, T, R, A#T, A#R, P) and the
+ * B-dependent part (B, A#B, B#T, B#R, P#B).
  */
 public final class RankingFeatureEncoder {
+    // field prefixes for context features (hash of "T=", "R=")
+    private static final int H_T = FeatureHasher.hash32("T=");
+    private static final int H_R = FeatureHasher.hash32("R=");
+
     private final int[] mIdxBuf;
+    private final int[] mSharedBuf;
     private final int mMask;
+    private final FeatureHashCache mHashes;
+    private final FeatureKeySketch mKeys; // nullable
+
+    public RankingFeatureEncoder(int dimMask, int maxFeatures, FeatureHashCache hashes) {
+        this(dimMask, maxFeatures, hashes, null);
+    }
 
-    public RankingFeatureEncoder(int dimMask, int maxFeatures) {
+    /** @param keys if non-null, records every feature key encoded (training encoders) */
+    public RankingFeatureEncoder(int dimMask, int maxFeatures, FeatureHashCache hashes,
+                                 FeatureKeySketch keys) {
         mMask = dimMask;
         mIdxBuf = new int[maxFeatures];
+        mSharedBuf = new int[maxFeatures];
+        mHashes = hashes;
+        mKeys = keys;
     }
 
-    public int encode(String pkgA, String pkgB, NextAppContext ctx) {
+    /** @param prevPkg id of ctx.prevForegroundPkg, or PackageRegistry.NO_ID */
+    public int encode(int pkgA, int pkgB, int prevPkg, NextAppContext ctx) {
+        final FeatureHashCache.Pkg a = mHashes.get(pkgA);
+        final FeatureHashCache.Pkg b = mHashes.get(pkgB);
+        final int t = ctx.timeBucket;
+        final int r = ctx.allowReason;
         int n = 0;
 
         // Identity features
-        mIdxBuf[n++] = FeatureHasher.index("A=" + pkgA, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("B=" + pkgB, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("A#B=" + pkgA + "#" + pkgB, mMask); // strongest
+        mIdxBuf[n++] = index(a.a);                                  // "A=" + A
+        mIdxBuf[n++] = index(b.b);                                  // "B=" + B
+        mIdxBuf[n++] = index(FeatureHasher.mix(a.aB, b.pkg));       // "A#B=" + A + "#" + B (strongest)
 
         // Context
-        mIdxBuf[n++] = FeatureHasher.index("T=" + ctx.timeBucket, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("R=" + ctx.allowReason, mMask);
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(H_T, t));         // "T=" + t
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(H_R, r));         // "R=" + r
 
         // Crosses (optional but helpful)
-        mIdxBuf[n++] = FeatureHasher.index("A#T=" + pkgA + "#" + ctx.timeBucket, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("B#T=" + pkgB + "#" + ctx.timeBucket, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("A#R=" + pkgA + "#" + ctx.allowReason, mMask);
-        mIdxBuf[n++] = FeatureHasher.index("B#R=" + pkgB + "#" + ctx.allowReason, mMask);
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(a.aT, t));        // "A#T=" + A + "#" + t
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(b.bT, t));        // "B#T=" + B + "#" + t
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(a.aR, r));        // "A#R=" + A + "#" + r
+        mIdxBuf[n++] = index(FeatureHasher.mixInt(b.bR, r));        // "B#R=" + B + "#" + r
 
         // Optional: previous foreground
-        if (ctx.prevForegroundPkg != null) {
-            mIdxBuf[n++] = FeatureHasher.index("P=" + ctx.prevForegroundPkg, mMask);
-            mIdxBuf[n++] = FeatureHasher.index("P#B=" + ctx.prevForegroundPkg + "#" + pkgB, mMask);
+        if (prevPkg != PackageRegistry.NO_ID) {
+            final FeatureHashCache.Pkg p = mHashes.get(prevPkg);
+            mIdxBuf[n++] = index(p.p);                              // "P=" + P
+            mIdxBuf[n++] = index(FeatureHasher.mix(p.pB, b.pkg));   // "P#B=" + P + "#" + B
         }
 
         return n;
     }
 
+    /**
+     * Candidate-independent features of encode(A, *, P, ctx), written into getSharedBuf().
+     * Returns number of features.
+     */
+    public int encodeShared(int pkgA, int prevPkg, NextAppContext ctx) {
+        final FeatureHashCache.Pkg a = mHashes.get(pkgA);
+        final int t = ctx.timeBucket;
+        final int r = ctx.allowReason;
+        int n = 0;
+        mSharedBuf[n++] = index(a.a);
+        mSharedBuf[n++] = index(FeatureHasher.mixInt(H_T, t));
+        mSharedBuf[n++] = index(FeatureHasher.mixInt(H_R, r));
+        mSharedBuf[n++] = index(FeatureHasher.mixInt(a.aT, t));
+        mSharedBuf[n++] = index(FeatureHasher.mixInt(a.aR, r));
+        if (prevPkg != PackageRegistry.NO_ID) {
+            mSharedBuf[n++] = index(mHashes.get(prevPkg).p);
+        }
+        return n;
+    }
+
+    /** Upper bound of candidateFeatureCount(). */
+    public static final int MAX_CANDIDATE_FEATURES = 5;
+
+    /** Number of features encodeCandidate() writes for this context. */
+    public static int candidateFeatureCount(int prevPkg) {
+        return prevPkg != PackageRegistry.NO_ID ? 5 : 4;
+    }
+
+    /**
+     * B-dependent features of encode(A, B, P, ctx), written into out[off..].
+     * Returns number of features (see candidateFeatureCount()).
+     */
+    public int encodeCandidate(int pkgA, int pkgB, int prevPkg, NextAppContext ctx,
+                               int[] out, int off) {
+        final FeatureHashCache.Pkg a = mHashes.get(pkgA);
+        final FeatureHashCache.Pkg b = mHashes.get(pkgB);
+        int n = off;
+        out[n++] = index(b.b);
+        out[n++] = index(FeatureHasher.mix(a.aB, b.pkg));
+        out[n++] = index(FeatureHasher.mixInt(b.bT, ctx.timeBucket));
+        out[n++] = index(FeatureHasher.mixInt(b.bR, ctx.allowReason));
+        if (prevPkg != PackageRegistry.NO_ID) {
+            out[n++] = index(FeatureHasher.mix(mHashes.get(prevPkg).pB, b.pkg));
+        }
+        return n - off;
+    }
+
     public int[] getBuf() { return mIdxBuf; }
+    public int[] getSharedBuf() { return mSharedBuf; }
+
+    private int index(int key) {
+        if (mKeys != null) mKeys.add(key);
+        return key & mMask;
+    }
 }
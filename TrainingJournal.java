@@ -0,0 +1,490 @@
+package android.server.power.nextapp;
+
+import android.util.AtomicFile;
+import android.util.Slog;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Append-only journal of the training events applied to the models, so that
+ * a crash loses at most journalSyncMs of training instead of everything since
+ * the last checkpoint. loadModels() replays the events after the checkpoint
+ * marker on top of the loaded models.
+ *
+ * Events get increasing sequence numbers. A checkpoint records the last
+ * sequence number its snapshot covers in a small marker file; segments whose
+ * events are all covered are deleted at the next rotation.
+ *
+ * Segments (journal/<firstSeq as 16 hex digits>.seg) are arrays of 32-byte
+ * little-endian records; each process run starts a new one, and one is
+ * rotated after journalSegmentBytes:
+ *   long seq; byte type, flags, timeBucket, allowReason, batteryBucket, pad[3];
+ *   int a, b, prevPkg; int CRC32C of the 28 bytes before it
+ * The first record is a header (seq = first event seq, a = MAGIC, b = VERSION).
+ * Package ids are only meaningful with names, so a segment declares each id
+ * before its first use: a package record (a = id, b = name length, seq = CRC32C
+ * of the name) followed by the UTF-8 name padded to whole records. Replay maps
+ * ids through those names, so packages interned after the checkpoint survive.
+ * A record with a bad checksum ends its segment (torn tail after a crash).
+ *
+ * Training events carry what the trainer read from the prefetch session
+ * (prevPkg, context, first prefetched app); Markov candidates are recomputed
+ * on replay, from the Markov table in the state the runtime had.
+ *
+ * Writer methods run on the training owner, under the engine's write lock.
+ * Records are buffered and written (not synced) after every trainer batch,
+ * which survives a system_server crash. The periodic fsync is split so the
+ * disk wait happens outside the lock: beginSync() (locked) writes the buffer
+ * and hands back the segment's descriptor, the caller fsyncs it unlocked and
+ * reports a failure through syncFailed(). NextAppTrainer schedules that
+ * journalSyncMs after the first unsynced write. Only sync() and close()
+ * (explicit save, shutdown) fsync under the lock.
+ */
+public final class TrainingJournal {
+    private static final String TAG = "NextAppJournal";
+    // distinct from every other nextapp file's magic, so a misplaced file is never misread
+    private static final int MAGIC = 0x4E415054;        // "NAPT"
+    private static final int VERSION = 1;
+    private static final int MARKER_MAGIC = 0x4E415043; // "NAPC"
+    private static final String SUFFIX = ".seg";
+    private static final int MAX_NAME_BYTES = 1024;
+
+    static final int RECORD = 32;
+    private static final int CRC_OFFSET = RECORD - 4;
+
+    /** Record type besides the NextAppTrainer.EVENT_* ones. */
+    public static final int EVENT_PACKAGE_REMOVED = 8;
+    private static final int REC_PACKAGE = 14;
+    private static final int REC_HEADER = 15;
+
+    private static final int FLAG_SESSION = 1;
+    private static final int FLAG_MAX_POWER = 2;
+
+    /** Receives replayed events, with current package ids. */
+    public interface Replayer {
+        /** ctx is null when the event had no session. */
+        void onEvent(int type, int a, int b, int prevPkg, NextAppContext ctx);
+    }
+
+    private final File mDir;
+    private final AtomicFile mMarker;
+    private final PackageRegistry mPackages;
+    private final long mSegmentMaxBytes;
+    private final CRC32C mCrc = new CRC32C();
+
+    // writer state
+    private final ByteBuffer mBuf = ByteBuffer.allocate(4096).order(ByteOrder.LITTLE_ENDIAN);
+    private FileOutputStream mOut;       // current segment; null until the first append
+    private long mSegmentBytes;
+    private long mNextSeq = -1;          // -1: not scanned yet
+    private boolean[] mDeclared = new boolean[64];
+    private boolean mUnsynced;
+    private boolean mFailed;             // I/O error: journaling stays off until restart
+
+    private volatile long mCheckpointedSeq;  // last seq a complete checkpoint covers
+
+    // stats
+    private volatile long mAppended;
+    private volatile long mSyncs;
+    private volatile int mReplayed;
+
+    public TrainingJournal(File dir, File marker, NextAppConfig cfg, PackageRegistry packages) {
+        mDir = dir;
+        mMarker = new AtomicFile(marker);
+        mPackages = packages;
+        mSegmentMaxBytes = Math.max(4 * RECORD, cfg.journalSegmentBytes);
+        mCheckpointedSeq = readMarker();
+    }
+
+    // ---- writer ----
+
+    /** Journals one applied training event; s is the session it trained on, or null. */
+    public void append(int type, int a, int b, PrefetchSessionStore.Session s) {
+        if (mFailed) return;
+        try {
+            if (mOut == null || mSegmentBytes >= mSegmentMaxBytes) rotate();
+            declare(a);
+            declare(b);
+            int flags = 0;
+            int prev = PackageRegistry.NO_ID;
+            int t = 0, r = 0, bb = 0;
+            if (s != null) {
+                declare(s.prevPkg);
+                prev = s.prevPkg;
+                flags |= FLAG_SESSION;
+                if (s.ctxAtA != null) {
+                    t = s.ctxAtA.timeBucket;
+                    r = s.ctxAtA.allowReason;
+                    bb = s.ctxAtA.batteryBucket;
+                    if (s.ctxAtA.maxPowerMode) flags |= FLAG_MAX_POWER;
+                }
+            }
+            if (mFailed) return; // a declaration failed
+            putRecord(mNextSeq++, type, flags, t, r, bb, a, b, prev);
+            if (type == EVENT_PACKAGE_REMOVED && a >= 0 && a < mDeclared.length) {
+                mDeclared[a] = false; // the id may be recycled for another name
+            }
+            mAppended++;
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Last sequence number handed out (what a snapshot taken now covers). */
+    public long lastSeq() {
+        ensureScanned();
+        return mNextSeq - 1;
+    }
+
+    /** Writes buffered records to the segment (no fsync). Returns true if records are unsynced. */
+    public boolean flush() {
+        if (mOut == null || mFailed) return false;
+        try {
+            writeBuffer();
+        } catch (IOException e) {
+            fail(e);
+        }
+        return mUnsynced && !mFailed;
+    }
+
+    /**
+     * Writes buffered records and returns the descriptor to fsync outside the
+     * lock, or null if nothing is unsynced. Records appended after this call
+     * are covered by the next one.
+     */
+    public FileDescriptor beginSync() {
+        if (!flush()) return null;
+        try {
+            final FileDescriptor fd = mOut.getFD();
+            mUnsynced = false;
+            mSyncs++;
+            return fd;
+        } catch (IOException e) {
+            fail(e);
+            return null;
+        }
+    }
+
+    /**
+     * The unlocked fsync of fd (from beginSync()) failed. Ignored if the segment
+     * was rotated or closed meanwhile, which syncs it; otherwise journaling stops.
+     */
+    public void syncFailed(FileDescriptor fd, IOException e) {
+        try {
+            if (mOut != null && mOut.getFD() == fd) fail(e);
+        } catch (IOException ignored) {
+            // mOut already closed
+        }
+    }
+
+    /** Writes and fsyncs everything appended so far, under the caller's lock. */
+    public void sync() {
+        if (mOut == null || mFailed) return;
+        try {
+            writeBuffer();
+            if (mUnsynced) syncOut();
+        } catch (IOException e) {
+            fail(e);
+        }
+    }
+
+    /** Syncs and closes the current segment (shutdown). */
+    public void close() {
+        sync();
+        closeOut();
+    }
+
+    // ---- checkpoint marker (checkpointer thread) ----
+
+    /** Records that a complete checkpoint covers every event up to seq. Returns bytes, or -1. */
+    public long markCheckpointed(long seq) {
+        if (seq <= mCheckpointedSeq) return 0;
+        FileOutputStream fos = null;
+        try {
+            fos = mMarker.startWrite();
+            CRC32C crc = new CRC32C();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(fos, crc));
+            out.writeInt(MARKER_MAGIC);
+            out.writeLong(seq);
+            out.flush();
+            new DataOutputStream(fos).writeInt((int) crc.getValue());
+            fos.getFD().sync();
+            mMarker.finishWrite(fos);
+            mCheckpointedSeq = seq;
+            return 16;
+        } catch (Throwable t) {
+            Slog.e(TAG, "Journal marker save failed: " + mMarker.getBaseFile(), t);
+            if (fos != null) mMarker.failWrite(fos);
+            return -1;
+        }
+    }
+
+    // ---- replay (load) ----
+
+    /** Replays every event after the checkpoint marker, oldest first. Returns the count. */
+    public int replay(Replayer r) {
+        final long after = mCheckpointedSeq;
+        int n = 0;
+        for (File f : segments()) {
+            n += replaySegment(f, after, r);
+        }
+        mReplayed = n;
+        return n;
+    }
+
+    private int replaySegment(File f, long after, Replayer r) {
+        final ByteBuffer in;
+        try {
+            in = ByteBuffer.wrap(Files.readAllBytes(f.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        } catch (IOException e) {
+            Slog.w(TAG, "Journal segment unreadable: " + f, e);
+            return 0;
+        }
+        if (!validRecord(in, 0) || in.get(8) != REC_HEADER
+                || in.getInt(16) != MAGIC || in.getInt(20) != VERSION) {
+            Slog.w(TAG, "Journal segment has no valid header: " + f);
+            return 0;
+        }
+
+        int[] ids = new int[64]; // id in this segment + 1 -> current id + 1; 0 = undeclared
+        int n = 0;
+        int pos = RECORD;
+        while (pos + RECORD <= in.limit()) {
+            if (!validRecord(in, pos)) {
+                Slog.w(TAG, "Journal " + f.getName() + ": torn record at " + pos);
+                break;
+            }
+            final long seq = in.getLong(pos);
+            final int type = in.get(pos + 8);
+            final int flags = in.get(pos + 9);
+            final int t = in.get(pos + 10) & 0xff;
+            final int reason = in.get(pos + 11) & 0xff;
+            final int battery = in.get(pos + 12) & 0xff;
+            final int a = in.getInt(pos + 16);
+            final int b = in.getInt(pos + 20);
+            final int prev = in.getInt(pos + 24);
+            pos += RECORD;
+
+            if (type == REC_PACKAGE) {
+                final int len = b;
+                final int chunks = (len + RECORD - 1) / RECORD;
+                if (a < 0 || len <= 0 || pos + chunks * RECORD > in.limit()) break;
+                mCrc.reset();
+                mCrc.update(in.array(), pos, len);
+                if ((int) mCrc.getValue() != (int) seq) {
+                    Slog.w(TAG, "Journal " + f.getName() + ": torn package name at " + pos);
+                    break;
+                }
+                final String name = new String(in.array(), pos, len, StandardCharsets.UTF_8);
+                pos += chunks * RECORD;
+                if (a >= ids.length) ids = Arrays.copyOf(ids, Math.max(a + 1, ids.length * 2));
+                ids[a] = mPackages.intern(name) + 1;
+                continue;
+            }
+            if (seq <= after) continue; // already in the checkpoint
+
+            final int ca = map(ids, a);
+            if (ca == PackageRegistry.NO_ID) continue;
+            if (type == EVENT_PACKAGE_REMOVED) {
+                r.onEvent(type, ca, PackageRegistry.NO_ID, PackageRegistry.NO_ID, null);
+                ids[a] = 0; // released; a later declaration rebinds the id
+                n++;
+                continue;
+            }
+            final int cp = map(ids, prev);
+            NextAppContext ctx = null;
+            if ((flags & FLAG_SESSION) != 0) {
+                ctx = new NextAppContext(t, reason, mPackages.nameOf(cp), battery,
+                        (flags & FLAG_MAX_POWER) != 0);
+            }
+            r.onEvent(type, ca, map(ids, b), cp, ctx);
+            n++;
+        }
+        return n;
+    }
+
+    private static int map(int[] ids, int id) {
+        return id >= 0 && id < ids.length ? ids[id] - 1 : PackageRegistry.NO_ID;
+    }
+
+    private boolean validRecord(ByteBuffer in, int pos) {
+        if (pos + RECORD > in.limit()) return false;
+        mCrc.reset();
+        mCrc.update(in.array(), pos, CRC_OFFSET);
+        return (int) mCrc.getValue() == in.getInt(pos + CRC_OFFSET);
+    }
+
+    // ---- diagnostics ----
+
+    public void dump(PrintWriter pw, String prefix) {
+        final File[] segs = segments();
+        long bytes = 0;
+        for (File f : segs) bytes += f.length();
+        pw.println(prefix + "journal: checkpointedSeq=" + mCheckpointedSeq
+                + " segments=" + segs.length + " bytes=" + bytes
+                + " appended=" + mAppended + " syncs=" + mSyncs
+                + " replayedAtLoad=" + mReplayed + (mFailed ? " FAILED" : ""));
+    }
+
+    // ---- internals ----
+
+    private void rotate() throws IOException {
+        ensureScanned();
+        if (mOut != null) {
+            writeBuffer();
+            mOut.getFD().sync();
+            mUnsynced = false;
+            closeOut();
+        }
+        deleteCovered();
+        if (!mDir.exists()) mDir.mkdirs();
+        mOut = new FileOutputStream(segmentFile(mNextSeq));
+        mSegmentBytes = 0;
+        Arrays.fill(mDeclared, false);
+        putRecord(mNextSeq, REC_HEADER, 0, 0, 0, 0, MAGIC, VERSION, 0);
+    }
+
+    private void declare(int id) {
+        if (id < 0 || (id < mDeclared.length && mDeclared[id])) return;
+        final String name = mPackages.nameOf(id);
+        if (name == null) return;
+        final byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_BYTES) return; // not a real package; its events won't replay
+        final int chunks = (bytes.length + RECORD - 1) / RECORD;
+        mCrc.reset();
+        mCrc.update(bytes, 0, bytes.length);
+        try {
+            putRecord(mCrc.getValue(), REC_PACKAGE, 0, 0, 0, 0, id, bytes.length, 0);
+            ensureRoom(chunks * RECORD);
+        } catch (IOException e) {
+            fail(e);
+            return;
+        }
+        final int at = mBuf.position();
+        mBuf.put(bytes);
+        Arrays.fill(mBuf.array(), at + bytes.length, at + chunks * RECORD, (byte) 0);
+        mBuf.position(at + chunks * RECORD);
+        mSegmentBytes += chunks * RECORD;
+        if (id >= mDeclared.length) {
+            mDeclared = Arrays.copyOf(mDeclared, Math.max(id + 1, mDeclared.length * 2));
+        }
+        mDeclared[id] = true;
+    }
+
+    private void putRecord(long seq, int type, int flags, int t, int r, int bb,
+                           int a, int b, int prev) throws IOException {
+        ensureRoom(RECORD);
+        final int at = mBuf.position();
+        mBuf.putLong(seq);
+        mBuf.put((byte) type).put((byte) flags).put((byte) t).put((byte) r).put((byte) bb);
+        mBuf.put((byte) 0).put((byte) 0).put((byte) 0);
+        mBuf.putInt(a).putInt(b).putInt(prev);
+        mCrc.reset();
+        mCrc.update(mBuf.array(), at, CRC_OFFSET);
+        mBuf.putInt((int) mCrc.getValue());
+        mSegmentBytes += RECORD;
+        mUnsynced = true;
+    }
+
+    private void ensureRoom(int bytes) throws IOException {
+        if (mBuf.remaining() < bytes) writeBuffer();
+    }
+
+    private void writeBuffer() throws IOException {
+        if (mBuf.position() == 0) return;
+        mOut.write(mBuf.array(), 0, mBuf.position());
+        mBuf.clear();
+    }
+
+    private void syncOut() throws IOException {
+        mOut.getFD().sync();
+        mUnsynced = false;
+        mSyncs++;
+    }
+
+    private void closeOut() {
+        if (mOut == null) return;
+        try {
+            mOut.close();
+        } catch (IOException ignored) {
+        }
+        mOut = null;
+    }
+
+    private void fail(IOException e) {
+        Slog.e(TAG, "Journal write failed; journaling off until restart", e);
+        mFailed = true;
+        mBuf.clear();
+        closeOut();
+    }
+
+    /** Seq numbers continue above anything on disk; an upper bound is enough. */
+    private void ensureScanned() {
+        if (mNextSeq >= 0) return;
+        long next = mCheckpointedSeq + 1;
+        for (File f : segments()) {
+            next = Math.max(next, seqOf(f) + f.length() / RECORD);
+        }
+        mNextSeq = next;
+    }
+
+    /** Deletes closed segments whose events are all covered by the checkpoint marker. */
+    private void deleteCovered() {
+        final long covered = mCheckpointedSeq;
+        final File[] segs = segments();
+        for (int i = 0; i < segs.length; i++) {
+            final long end = i + 1 < segs.length ? seqOf(segs[i + 1]) : mNextSeq;
+            if (end - 1 > covered) break;
+            if (!segs[i].delete()) Slog.w(TAG, "could not delete " + segs[i]);
+        }
+    }
+
+    private File segmentFile(long firstSeq) {
+        return new File(mDir, String.format("%016x", firstSeq) + SUFFIX);
+    }
+
+    private static long seqOf(File f) {
+        final String name = f.getName();
+        try {
+            return Long.parseUnsignedLong(name.substring(0, name.length() - SUFFIX.length()), 16);
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /** Segment files, oldest first. */
+    private File[] segments() {
+        final File[] files = mDir.listFiles((d, name) -> name.endsWith(SUFFIX));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (x, y) -> Long.compare(seqOf(x), seqOf(y)));
+        return files;
+    }
+
+    private long readMarker() {
+        try (FileInputStream fis = mMarker.openRead()) {
+            CRC32C crc = new CRC32C();
+            DataInputStream in = new DataInputStream(new CheckedInputStream(fis, crc));
+            if (in.readInt() != MARKER_MAGIC) return 0;
+            final long seq = in.readLong();
+            final int expect = (int) crc.getValue();
+            return new DataInputStream(fis).readInt() == expect ? seq : 0;
+        } catch (Throwable t) {
+            return 0; // no marker: replay everything
+        }
+    }
+}
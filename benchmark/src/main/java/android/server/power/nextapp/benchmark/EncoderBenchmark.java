@@ -0,0 +1,84 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.FeatureHashCache;
+import android.server.power.nextapp.GatingFeatureEncoder;
+import android.server.power.nextapp.PackageRegistry;
+import android.server.power.nextapp.RankingFeatureEncoder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EncoderBenchmark {
+    private static final int MASK = (1 << 16) - 1;
+    private static final int CANDIDATES = 15;
+
+    private Workload mWork;
+    private int[] mIds;
+    private GatingFeatureEncoder mGating;
+    private RankingFeatureEncoder mRanking;
+    private int[] mCandFeat;
+    private int mEvent;
+
+    @Setup
+    public void setUp() {
+        mWork = new Workload(1);
+        PackageRegistry packages = new PackageRegistry();
+        mIds = new int[Workload.PACKAGES];
+        for (int i = 0; i < Workload.PACKAGES; i++) mIds[i] = packages.intern(mWork.names[i]);
+        FeatureHashCache hashes = new FeatureHashCache(packages);
+        mGating = new GatingFeatureEncoder(MASK, 16, hashes);
+        mRanking = new RankingFeatureEncoder(MASK, 24, hashes);
+        mCandFeat = new int[CANDIDATES * RankingFeatureEncoder.MAX_CANDIDATE_FEATURES];
+    }
+
+    private int next() {
+        return mEvent = (mEvent + 1) & Workload.MASK;
+    }
+
+    private int prevId(int e) {
+        return mIds[mWork.from[(e - 1) & Workload.MASK]];
+    }
+
+    @Benchmark
+    public int gatingEncode() {
+        final int e = next();
+        return mGating.encode(mIds[mWork.from[e]], prevId(e), mWork.ctx[e]);
+    }
+
+    @Benchmark
+    public int rankingEncode() {
+        final int e = next();
+        return mRanking.encode(mIds[mWork.from[e]], mIds[mWork.to[e]], prevId(e), mWork.ctx[e]);
+    }
+
+    /** What onAllowedToRun does per A: shared features once, then per-candidate features. */
+    @Benchmark
+    public int rankingEncodeCandidates() {
+        final int e = next();
+        final int a = mIds[mWork.from[e]];
+        final int p = prevId(e);
+        int n = mRanking.encodeShared(a, p, mWork.ctx[e]);
+        final int per = RankingFeatureEncoder.candidateFeatureCount(p);
+        for (int i = 0; i < CANDIDATES; i++) {
+            n += mRanking.encodeCandidate(a, mIds[(a + i + 1) % Workload.PACKAGES], p,
+                    mWork.ctx[e], mCandFeat, i * per);
+        }
+        return n;
+    }
+}
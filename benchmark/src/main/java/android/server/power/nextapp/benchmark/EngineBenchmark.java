@@ -0,0 +1,102 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.NextAppConfig;
+import android.server.power.nextapp.NextAppDecision;
+import android.server.power.nextapp.NextAppEngine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * End-to-end hooks on a trained engine. Model files go to a fresh temp
+ * directory and periodic checkpoints and the training journal are off, so no
+ * disk I/O is measured. With async training the training hooks only enqueue
+ * (see NextAppTrainer); the trainer thread keeps up or drops, and neither is
+ * on the measured path.
+ */
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Dnextapp.dataDir=target/nextapp-bench-data")
+@State(Scope.Thread)
+public class EngineBenchmark {
+
+    @Param({"false", "true"})
+    public boolean async;
+
+    private Workload mWork;
+    private NextAppEngine mEngine;
+    private int mEvent;
+
+    @Setup
+    public void setUp() throws IOException {
+        Files.createDirectories(java.nio.file.Paths.get(
+                System.getProperty("nextapp.dataDir", "target/nextapp-bench-data")));
+        NextAppConfig cfg = new NextAppConfig();
+        cfg.checkpointEveryNUpdates = Integer.MAX_VALUE;
+        cfg.checkpointMinIntervalMs = Long.MAX_VALUE / 4;
+        cfg.journalEnable = false;
+        mWork = new Workload(4);
+        // train inline on the whole trace a few times so rows and weights are at steady state
+        cfg.asyncTraining = false;
+        NextAppEngine warm = new NextAppEngine(cfg);
+        mEngine = warm;
+        for (int i = 0; i < 4 * Workload.EVENTS; i++) {
+            launchCycle();
+        }
+        if (async) {
+            warm.saveModels();
+            warm.shutdown();
+            cfg.asyncTraining = true;
+            mEngine = new NextAppEngine(cfg);
+            mEngine.loadModels();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        mEngine.shutdown();
+    }
+
+    private int next() {
+        return mEvent = (mEvent + 1) & Workload.MASK;
+    }
+
+    @Benchmark
+    public NextAppDecision onAllowedToRun() {
+        final int e = next();
+        return mEngine.onAllowedToRun(mWork.names[mWork.from[e]], mWork.ctx[e]);
+    }
+
+    /** Training path without a pending session: Markov update only. */
+    @Benchmark
+    public void onForegroundChanged() {
+        final int e = next();
+        mEngine.onForegroundChanged(mWork.names[mWork.from[e]], mWork.names[mWork.to[e]]);
+    }
+
+    /** One launch as the framework drives it: score A, then observe A -> B (SGD with hard negatives). */
+    @Benchmark
+    public NextAppDecision launchCycle() {
+        final int e = next();
+        final String a = mWork.names[mWork.from[e]];
+        NextAppDecision d = mEngine.onAllowedToRun(a, mWork.ctx[e]);
+        mEngine.onForegroundChanged(a, mWork.names[mWork.to[e]]);
+        return d;
+    }
+}
@@ -0,0 +1,43 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.FeatureHasher;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FeatureHasherBenchmark {
+
+    /** Typical feature strings: a unary feature and the longest cross. */
+    @Param({"A=com.example.app12.launcher",
+            "A#B=com.example.app12.launcher#com.example.app250.launcher"})
+    public String feature;
+
+    private String mFeature;
+
+    @Setup
+    public void setUp() {
+        mFeature = new String(feature); // not a compile-time constant
+    }
+
+    @Benchmark
+    public int hash32() {
+        return FeatureHasher.hash32(mFeature);
+    }
+}
@@ -0,0 +1,109 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.OnlineLogisticModel;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class LogisticModelBenchmark {
+    private static final int POW2 = 16;
+    private static final int FEATURES = 11;   // ranking feature count with a previous app
+    private static final int ROWS = 1024;     // distinct pre-generated feature vectors
+    private static final int CANDIDATES = 15;
+
+    @Param({"sgd", "fp16", "ftrl"})
+    public String optimizer;
+
+    private OnlineLogisticModel mModel;
+    private int[][] mFeat;
+    private int[] mLabel;
+    private int[] mShared;
+    private int[] mItems;
+    private float[] mOut;
+    private int[] mBatchLabels;
+    private int[][] mBatchFull;   // shared + item features, per candidate
+    private int mRow;
+
+    @Setup
+    public void setUp() {
+        final Random r = new Random(2);
+        mModel = "ftrl".equals(optimizer)
+                ? new OnlineLogisticModel(POW2, 0.1f, 1f, 0.01f, 1e-6f)
+                : new OnlineLogisticModel(POW2, 0.05f, 1e-6f, "fp16".equals(optimizer));
+        mFeat = new int[ROWS][FEATURES];
+        mLabel = new int[ROWS];
+        for (int i = 0; i < ROWS; i++) {
+            for (int j = 0; j < FEATURES; j++) mFeat[i][j] = r.nextInt(1 << POW2);
+            mLabel[i] = r.nextInt(4) == 0 ? 1 : 0;
+        }
+        for (int i = 0; i < ROWS * 4; i++) {
+            final int k = i & (ROWS - 1);
+            mModel.update(mFeat[k], FEATURES, mLabel[k]);
+        }
+        mShared = new int[6];
+        for (int j = 0; j < mShared.length; j++) mShared[j] = r.nextInt(1 << POW2);
+        mItems = new int[CANDIDATES * 5];
+        for (int j = 0; j < mItems.length; j++) mItems[j] = r.nextInt(1 << POW2);
+        mOut = new float[CANDIDATES];
+        mBatchLabels = new int[CANDIDATES];
+        mBatchLabels[0] = 1;
+        mBatchFull = new int[CANDIDATES][mShared.length + 5];
+        for (int it = 0; it < CANDIDATES; it++) {
+            System.arraycopy(mShared, 0, mBatchFull[it], 0, mShared.length);
+            System.arraycopy(mItems, it * 5, mBatchFull[it], mShared.length, 5);
+        }
+    }
+
+    private int next() {
+        return mRow = (mRow + 1) & (ROWS - 1);
+    }
+
+    @Benchmark
+    public float score() {
+        return mModel.score(mFeat[next()], FEATURES);
+    }
+
+    @Benchmark
+    public void update() {
+        final int k = next();
+        mModel.update(mFeat[k], FEATURES, mLabel[k]);
+    }
+
+    @Benchmark
+    public float[] scoreBatch15() {
+        mModel.scoreBatch(mShared, mShared.length, mItems, 5, CANDIDATES, mOut);
+        return mOut;
+    }
+
+    /** One positive + 14 hard negatives, one update() each (pre-batch training path). */
+    @Benchmark
+    public void updateSequential15() {
+        for (int it = 0; it < CANDIDATES; it++) {
+            mModel.update(mBatchFull[it], mBatchFull[it].length, mBatchLabels[it]);
+        }
+    }
+
+    /** The same examples through updateBatch(). */
+    @Benchmark
+    public void updateBatch15() {
+        mModel.updateBatch(mShared, mShared.length, mItems, 5, CANDIDATES, mBatchLabels);
+    }
+}
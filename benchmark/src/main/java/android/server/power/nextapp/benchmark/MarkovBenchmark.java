@@ -0,0 +1,58 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.MarkovTransitionTable;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class MarkovBenchmark {
+    private static final int TOP_N = 15;
+
+    private Workload mWork;
+    private MarkovTransitionTable mMarkov;
+    private int[] mOut;
+    private int mEvent;
+
+    @Setup
+    public void setUp() {
+        mWork = new Workload(3);
+        mMarkov = new MarkovTransitionTable(50, 0.9995f);
+        // warm table: every row at its steady-state size
+        for (int i = 0; i < 4 * Workload.EVENTS; i++) {
+            final int e = i & Workload.MASK;
+            mMarkov.update(mWork.from[e], mWork.to[e]);
+        }
+        mOut = new int[TOP_N];
+    }
+
+    private int next() {
+        return mEvent = (mEvent + 1) & Workload.MASK;
+    }
+
+    @Benchmark
+    public void update() {
+        final int e = next();
+        mMarkov.update(mWork.from[e], mWork.to[e]);
+    }
+
+    @Benchmark
+    public int topN() {
+        return mMarkov.topN(mWork.from[next()], mOut, TOP_N);
+    }
+}
@@ -0,0 +1,63 @@
+package android.server.power.nextapp.benchmark;
+
+import android.server.power.nextapp.NextAppContext;
+
+import java.util.Random;
+
+/**
+ * Deterministic synthetic usage: a few hundred packages, Zipf-like popularity,
+ * and each app with a handful of favourite successors, which gives Markov rows
+ * of realistic length. Events are pre-generated so benchmarks measure the
+ * model, not the generator.
+ */
+final class Workload {
+    static final int PACKAGES = 300;
+    static final int EVENTS = 1 << 14; // power of two: index with & MASK
+    static final int MASK = EVENTS - 1;
+
+    final String[] names = new String[PACKAGES];
+    final int[] from = new int[EVENTS];
+    final int[] to = new int[EVENTS];
+    final NextAppContext[] ctx = new NextAppContext[EVENTS];
+
+    Workload(long seed) {
+        final Random r = new Random(seed);
+        for (int i = 0; i < PACKAGES; i++) {
+            names[i] = "com.example.app" + i + ".launcher";
+        }
+        // cumulative Zipf(1) weights
+        final double[] cdf = new double[PACKAGES];
+        double sum = 0;
+        for (int i = 0; i < PACKAGES; i++) {
+            sum += 1.0 / (i + 1);
+            cdf[i] = sum;
+        }
+        int prev = 0;
+        int cur = zipf(r, cdf, sum);
+        for (int e = 0; e < EVENTS; e++) {
+            // 70%: one of cur's 8 favourites, else a popular app
+            int next = r.nextInt(10) < 7
+                    ? (cur * 31 + 7 * r.nextInt(8) + 1) % PACKAGES
+                    : zipf(r, cdf, sum);
+            if (next == cur) next = (next + 1) % PACKAGES;
+            from[e] = cur;
+            to[e] = next;
+            ctx[e] = new NextAppContext(r.nextInt(4),
+                    NextAppContext.REASON_USER_TAP_ICON + r.nextInt(3),
+                    names[prev], r.nextInt(4), r.nextInt(20) == 0);
+            prev = cur;
+            cur = next;
+        }
+    }
+
+    private static int zipf(Random r, double[] cdf, double sum) {
+        final double u = r.nextDouble() * sum;
+        int lo = 0;
+        int hi = cdf.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (cdf[mid] < u) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+}
@@ -0,0 +1,79 @@
+package android.server.power.nextapp.replay;
+
+import android.server.power.nextapp.NextAppContext;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Streams a recorded trace line by line (gzip if the name ends in .gz), so
+ * trace size is not bounded by memory. One event per line, whitespace
+ * separated, '#' starts a comment:
+ *
+ *   timeMs pkg [timeBucket allowReason batteryBucket maxPowerMode(0|1)]
+ *
+ * Timestamps must not go backwards.
+ */
+final class FileTraceSource implements TraceSource {
+    private final String mPath;
+    private final BufferedReader mIn;
+    private long mLine;
+    private long mLastTime = Long.MIN_VALUE;
+
+    FileTraceSource(String path) throws IOException {
+        mPath = path;
+        InputStream in = new FileInputStream(path);
+        if (path.endsWith(".gz")) in = new GZIPInputStream(in, 64 * 1024);
+        mIn = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8), 64 * 1024);
+    }
+
+    @Override
+    public boolean next(TraceEvent ev) throws IOException {
+        String line;
+        while ((line = mIn.readLine()) != null) {
+            mLine++;
+            final int hash = line.indexOf('#');
+            if (hash >= 0) line = line.substring(0, hash);
+            line = line.trim();
+            if (line.isEmpty()) continue;
+
+            final String[] f = line.split("\\s+");
+            if (f.length != 2 && f.length != 6) throw bad("expected 2 or 6 fields");
+            try {
+                ev.timeMs = Long.parseLong(f[0]);
+                ev.pkg = f[1];
+                if (f.length == 6) {
+                    ev.timeBucket = Integer.parseInt(f[2]);
+                    ev.allowReason = Integer.parseInt(f[3]);
+                    ev.batteryBucket = Integer.parseInt(f[4]);
+                    ev.maxPowerMode = "1".equals(f[5]);
+                } else {
+                    ev.timeBucket = -1;
+                    ev.allowReason = NextAppContext.REASON_USER_TAP_ICON;
+                    ev.batteryBucket = 3;
+                    ev.maxPowerMode = false;
+                }
+            } catch (NumberFormatException e) {
+                throw bad(e.getMessage());
+            }
+            if (ev.timeMs < mLastTime) throw bad("time goes backwards");
+            mLastTime = ev.timeMs;
+            return true;
+        }
+        return false;
+    }
+
+    private IOException bad(String why) {
+        return new IOException(mPath + ":" + mLine + ": " + why);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,59 @@
+package android.server.power.nextapp.replay;
+
+/**
+ * Log-linear latency histogram in nanoseconds: 16 linear sub-buckets per power
+ * of two (about 6% resolution) from 1ns to ~1s; larger values go to the top
+ * bucket. Recording is a few instructions and allocation-free.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB = 1 << SUB_BITS;
+    private static final int MAX_POW = 30;
+    private static final int BUCKETS = (MAX_POW - SUB_BITS + 2) * SUB;
+
+    private final long[] mCounts = new long[BUCKETS];
+    private long mCount;
+    private long mSum;
+    private long mMax;
+
+    void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        mCounts[index(nanos)]++;
+        mCount++;
+        mSum += nanos;
+        if (nanos > mMax) mMax = nanos;
+    }
+
+    long count() { return mCount; }
+
+    double meanNanos() { return mCount == 0 ? 0 : (double) mSum / mCount; }
+
+    long maxNanos() { return mMax; }
+
+    /** Upper bound of the bucket holding quantile q (0..1). */
+    long percentile(double q) {
+        if (mCount == 0) return 0;
+        final long rank = Math.max(1, (long) Math.ceil(q * mCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += mCounts[i];
+            if (seen >= rank) return Math.min(upperBound(i), mMax);
+        }
+        return mMax;
+    }
+
+    private static int index(long v) {
+        if (v < SUB) return (int) v;
+        final int pow = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_POW);
+        if (pow == MAX_POW && v >= (1L << (MAX_POW + 1))) return BUCKETS - 1;
+        final int sub = (int) (v >>> (pow - SUB_BITS)) & (SUB - 1);
+        return (pow - SUB_BITS + 1) * SUB + sub;
+    }
+
+    private static long upperBound(int i) {
+        if (i < SUB) return i;
+        final int pow = i / SUB + SUB_BITS - 1;
+        final int sub = i % SUB;
+        return ((long) (SUB + sub + 1) << (pow - SUB_BITS)) - 1;
+    }
+}
@@ -0,0 +1,84 @@
+package android.server.power.nextapp.replay;
+
+import java.util.Random;
+
+/**
+ * Generates a trace on the fly (constant memory): Zipf-popular packages, each
+ * with a few preferred successors, daily-cycle time buckets, and think times
+ * that sometimes exceed the TTL so gating sees real "no next app" cases.
+ */
+final class SyntheticTraceSource implements TraceSource {
+    private static final long MIN_GAP_MS = 2_000;
+
+    private final Random mRandom;
+    private final long mEvents;
+    private final String[] mNames;
+    private final double[] mCdf;
+    private final double mSum;
+    private final int mFavourites;
+
+    private long mEmitted;
+    private long mTimeMs = 8 * 3600_000L; // start at 08:00
+    private int mCur;
+
+    SyntheticTraceSource(long events, int packages, long seed) {
+        mRandom = new Random(seed);
+        mEvents = events;
+        mNames = new String[packages];
+        mCdf = new double[packages];
+        double sum = 0;
+        for (int i = 0; i < packages; i++) {
+            mNames[i] = "com.example.app" + i;
+            sum += 1.0 / (i + 1);
+            mCdf[i] = sum;
+        }
+        mSum = sum;
+        mFavourites = Math.max(1, Math.min(8, packages - 1));
+        mCur = zipf();
+    }
+
+    @Override
+    public boolean next(TraceEvent ev) {
+        if (mEmitted++ >= mEvents) return false;
+
+        // think time: mostly quick switches, 20% idle periods of minutes
+        final double u = mRandom.nextDouble();
+        final long gap = u < 0.8
+                ? MIN_GAP_MS + (long) (-Math.log(1 - mRandom.nextDouble()) * 10_000)
+                : 60_000 + (long) (-Math.log(1 - mRandom.nextDouble()) * 600_000);
+        mTimeMs += gap;
+
+        // 65%: one of the current app's favourites (k-th with p ~ 2^-k), else a popular app
+        int next;
+        if (mRandom.nextInt(100) < 65) {
+            final int k = Integer.numberOfTrailingZeros(mRandom.nextInt() | (1 << (mFavourites - 1)));
+            next = (mCur * 31 + 7 * k + 1) % mNames.length;
+        } else {
+            next = zipf();
+        }
+        if (next == mCur) next = (next + 1) % mNames.length;
+        mCur = next;
+
+        ev.timeMs = mTimeMs;
+        ev.pkg = mNames[next];
+        ev.timeBucket = -1;
+        ev.allowReason = 1 + mRandom.nextInt(3);
+        ev.batteryBucket = 3 - (int) ((mTimeMs / 3600_000L) % 24) / 8;
+        ev.maxPowerMode = false;
+        return true;
+    }
+
+    private int zipf() {
+        final double u = mRandom.nextDouble() * mSum;
+        int lo = 0;
+        int hi = mCdf.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mCdf[mid] < u) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    @Override
+    public void close() {}
+}
@@ -0,0 +1,14 @@
+package android.server.power.nextapp.replay;
+
+import android.server.power.nextapp.NextAppContext;
+
+/** One foreground event: pkg came to the foreground at timeMs. Reused by the reader. */
+final class TraceEvent {
+    long timeMs;
+    String pkg;
+    // optional context; -1 = derive from the timestamp / defaults
+    int timeBucket = -1;
+    int allowReason = NextAppContext.REASON_USER_TAP_ICON;
+    int batteryBucket = 3;
+    boolean maxPowerMode;
+}
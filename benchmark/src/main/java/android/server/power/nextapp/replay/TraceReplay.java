@@ -0,0 +1,297 @@
+package android.server.power.nextapp.replay;
+
+import android.server.power.nextapp.FtrlWeights;
+import android.server.power.nextapp.NextAppConfig;
+import android.server.power.nextapp.NextAppContext;
+import android.server.power.nextapp.NextAppDecision;
+import android.server.power.nextapp.NextAppEngine;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Offline replay of a foreground-transition trace through NextAppEngine.
+ *
+ * Each event "pkg came to the foreground at t" is driven the way the framework
+ * drives the engine: onForegroundChanged(prev, pkg), then
+ * onAllowedToRun(pkg, ctx). TTL expiry runs on a virtual clock instead of
+ * NextAppTtlScheduler: when the trace time passes a session's deadline the
+ * replay calls onTtlExpiredNoNextApp / onPrefetchExpiredNotUsed itself, so a
+ * month of trace replays in seconds. Traces stream (see FileTraceSource);
+ * memory is bounded by the number of sessions open within one TTL.
+ *
+ *   java -cp target/benchmarks.jar android.server.power.nextapp.replay.TraceReplay \
+ *       (--trace FILE[.gz] | --synthetic EVENTS [--packages N] [--seed S]) \
+ *       [--candidateTopN N] [--markovTopM N] [--markovMaxRows N] [--hashDimPow2 N] [--ttlMs MS] \
+ *       [--gatingThreshold F] [--rankThreshold F] [--gapDelta F] [--prefetchTopK N]
+ *       [--hardNegPerPos N] [--lrRanking 0|1] [--gating 0|1] [--ftrl 0|1] [--fp16 0|1]
+ *       [--async 0|1]
+ *
+ * Reports throughput, per-hook latency percentiles, prefetch hit rate, wasted
+ * prefetches and gating NONE precision.
+ *
+ * Training is inline by default: the trace arrives far faster than real time,
+ * so an async trainer (--async 1) falls behind and drops events, which makes
+ * the quality numbers depend on the host. --async 1 measures the hook cost and
+ * the drop counts instead.
+ */
+public final class TraceReplay {
+
+    /** What happened after onAllowedToRun(pkgA); resolved on the next event or at the TTL. */
+    private static final class Session {
+        final String pkgA;
+        final long deadline;
+        final List<String> prefetched;
+        final boolean gatedNone;
+        String nextPkg;       // the next app, if one came within the TTL
+        boolean superseded;   // pkgA was allowed-to-run again; a newer session owns it
+
+        Session(String pkgA, long deadline, List<String> prefetched, boolean gatedNone) {
+            this.pkgA = pkgA;
+            this.deadline = deadline;
+            this.prefetched = prefetched;
+            this.gatedNone = gatedNone;
+        }
+    }
+
+    private final NextAppConfig mCfg;
+    private final NextAppEngine mEngine;
+
+    // virtual TTL clock: deadlines are now + ttlMs with a fixed ttl, so FIFO order is deadline order
+    private final ArrayDeque<Session> mTimeline = new ArrayDeque<>();
+    private final HashMap<String, Session> mOpen = new HashMap<>();
+
+    private final LatencyHistogram mAllowedLat = new LatencyHistogram();
+    private final LatencyHistogram mForegroundLat = new LatencyHistogram();
+    private final LatencyHistogram mTtlLat = new LatencyHistogram();
+    private final LatencyHistogram mPrefetchExpiredLat = new LatencyHistogram();
+
+    private long mEvents;
+    private long mTransitionsInTtl;   // next app came within the TTL
+    private long mPrefetches;         // prefetched packages
+    private long mPrefetchHits;       // ... opened within the TTL
+    private long mPrefetchWasted;     // ... not opened within the TTL
+    private long mDecisionsWithPrefetch;
+    private long mGatedNone;
+    private long mGatedNoneCorrect;   // ... and no next app came
+    private long mNoNextOutcomes;
+
+    TraceReplay(NextAppConfig cfg) {
+        mCfg = cfg;
+        mEngine = new NextAppEngine(cfg);
+    }
+
+    void run(TraceSource source) throws IOException {
+        final TraceEvent ev = new TraceEvent();
+        String prev = null;
+        long lastTime = Long.MIN_VALUE;
+        while (source.next(ev)) {
+            mEvents++;
+            advanceTo(ev.timeMs);
+
+            final String pkg = ev.pkg;
+            if (prev != null && !prev.equals(pkg)) {
+                final Session s = mOpen.get(prev);
+                if (s != null && s.nextPkg == null && ev.timeMs < s.deadline) {
+                    s.nextPkg = pkg;
+                    mTransitionsInTtl++;
+                    if (s.prefetched.contains(pkg)) mPrefetchHits++;
+                }
+                long t0 = System.nanoTime();
+                mEngine.onForegroundChanged(prev, pkg);
+                mForegroundLat.record(System.nanoTime() - t0);
+            }
+
+            final NextAppContext ctx = new NextAppContext(
+                    ev.timeBucket >= 0 ? ev.timeBucket : timeBucket(ev.timeMs),
+                    ev.allowReason, prev, ev.batteryBucket, ev.maxPowerMode);
+            long t0 = System.nanoTime();
+            final NextAppDecision d = mEngine.onAllowedToRun(pkg, ctx);
+            mAllowedLat.record(System.nanoTime() - t0);
+
+            final boolean gatedNone = d.prefetchPkgs.isEmpty() && mCfg.enableGating
+                    && d.gatingPNext < mCfg.gatingThreshold;
+            if (gatedNone) mGatedNone++;
+            if (!d.prefetchPkgs.isEmpty()) {
+                mDecisionsWithPrefetch++;
+                mPrefetches += d.prefetchPkgs.size();
+            }
+            final Session s = new Session(pkg, ev.timeMs + mCfg.ttlMs, d.prefetchPkgs, gatedNone);
+            final Session old = mOpen.put(pkg, s);
+            if (old != null) old.superseded = true;
+            mTimeline.addLast(s);
+
+            prev = pkg;
+            lastTime = ev.timeMs;
+        }
+        if (lastTime != Long.MIN_VALUE) advanceTo(Long.MAX_VALUE); // flush open sessions
+    }
+
+    /** Fires every TTL deadline that is due by virtual time now. */
+    private void advanceTo(long now) {
+        while (!mTimeline.isEmpty() && mTimeline.peekFirst().deadline <= now) {
+            final Session s = mTimeline.pollFirst();
+            if (mOpen.get(s.pkgA) == s) mOpen.remove(s.pkgA);
+
+            if (s.nextPkg == null) {
+                mNoNextOutcomes++;
+                if (s.gatedNone) mGatedNoneCorrect++;
+                if (!s.superseded) {
+                    long t0 = System.nanoTime();
+                    mEngine.onTtlExpiredNoNextApp(s.pkgA);
+                    mTtlLat.record(System.nanoTime() - t0);
+                }
+            }
+            // prefetched apps the user did not open next (the scheduler cancels only that one)
+            for (int i = 0; i < s.prefetched.size(); i++) {
+                final String b = s.prefetched.get(i);
+                if (b.equals(s.nextPkg)) continue;
+                mPrefetchWasted++;
+                long t0 = System.nanoTime();
+                mEngine.onPrefetchExpiredNotUsed(s.pkgA, b);
+                mPrefetchExpiredLat.record(System.nanoTime() - t0);
+            }
+        }
+    }
+
+    private static int timeBucket(long timeMs) {
+        return (int) ((timeMs / 3600_000L) % 24) / 6;
+    }
+
+    void shutdown() {
+        mEngine.shutdown();
+    }
+
+    // ---- report ----
+
+    void report(PrintStream out, long wallNanos) {
+        final double secs = wallNanos / 1e9;
+        out.printf(Locale.ROOT, "config: candidateTopN=%d markovTopM=%d markovMaxRows=%d hashDimPow2=%d ttlMs=%d"
+                        + " gatingThreshold=%.2f rankThreshold=%.2f gapDelta=%.2f prefetchTopK=%d"
+                        + " hardNegPerPos=%d lrRanking=%b gating=%b ftrl=%b fp16=%b async=%b%n",
+                mCfg.candidateTopN, mCfg.markovTopMPerA, mCfg.markovMaxRows, mCfg.hashDimPow2, mCfg.ttlMs,
+                mCfg.gatingThreshold, mCfg.rankThreshold, mCfg.gapDelta, mCfg.prefetchTopK,
+                mCfg.hardNegPerPos, mCfg.enableLrRanking, mCfg.enableGating, mCfg.lrFtrl,
+                mCfg.lrHalfPrecision, mCfg.asyncTraining);
+        out.printf(Locale.ROOT, "events: %d in %.2fs = %.0f events/s%n",
+                mEvents, secs, secs > 0 ? mEvents / secs : 0);
+        out.println();
+        out.println("latency (ns)                 count       mean        p50        p90"
+                + "        p99      p99.9        max");
+        row(out, "onAllowedToRun", mAllowedLat);
+        row(out, "onForegroundChanged", mForegroundLat);
+        row(out, "onTtlExpiredNoNextApp", mTtlLat);
+        row(out, "onPrefetchExpiredNotUsed", mPrefetchExpiredLat);
+        out.println();
+        out.printf(Locale.ROOT, "decisions with prefetch: %d / %d (%.1f%%)%n",
+                mDecisionsWithPrefetch, mEvents, pct(mDecisionsWithPrefetch, mEvents));
+        out.printf(Locale.ROOT, "prefetch hit rate: %d / %d (%.1f%%)%n",
+                mPrefetchHits, mPrefetches, pct(mPrefetchHits, mPrefetches));
+        out.printf(Locale.ROOT, "wasted prefetches: %d (%.1f%% of prefetches)%n",
+                mPrefetchWasted, pct(mPrefetchWasted, mPrefetches));
+        out.printf(Locale.ROOT, "coverage (next apps that were prefetched): %d / %d (%.1f%%)%n",
+                mPrefetchHits, mTransitionsInTtl, pct(mPrefetchHits, mTransitionsInTtl));
+        out.printf(Locale.ROOT, "gating NONE precision: %d / %d (%.1f%%), recall %.1f%% of %d no-next outcomes%n",
+                mGatedNoneCorrect, mGatedNone, pct(mGatedNoneCorrect, mGatedNone),
+                pct(mGatedNoneCorrect, mNoNextOutcomes), mNoNextOutcomes);
+        if (mCfg.lrFtrl) {
+            ftrlRow(out, "gating", mEngine.getPredictor().getGatingLr().getFtrl());
+            ftrlRow(out, "rank", mEngine.getPredictor().getRankLr().getFtrl());
+        }
+        if (mCfg.asyncTraining) {
+            out.printf(Locale.ROOT, "training events dropped (queue full): %d%n",
+                    mEngine.getTrainer().getDroppedCount());
+        }
+    }
+
+    private static void ftrlRow(PrintStream out, String name, FtrlWeights ftrl) {
+        out.printf(Locale.ROOT, "ftrl %s: entries=%d nonZero=%d bytes=%d reclaimed=%d evicted=%d%n",
+                name, ftrl.size(), ftrl.nonZeroCount(), ftrl.memoryBytes(),
+                ftrl.reclaimedCount(), ftrl.evictedCount());
+    }
+
+    private static void row(PrintStream out, String name, LatencyHistogram h) {
+        out.printf(Locale.ROOT, "%-24s %10d %10.0f %10d %10d %10d %10d %10d%n", name, h.count(),
+                h.meanNanos(), h.percentile(0.5), h.percentile(0.9), h.percentile(0.99),
+                h.percentile(0.999), h.maxNanos());
+    }
+
+    private static double pct(long num, long den) {
+        return den == 0 ? 0 : 100.0 * num / den;
+    }
+
+    // ---- command line ----
+
+    public static void main(String[] args) throws Exception {
+        final NextAppConfig cfg = new NextAppConfig();
+        cfg.checkpointEveryNUpdates = Integer.MAX_VALUE; // replay measures the model, not flash
+        cfg.asyncTraining = false;
+        cfg.journalEnable = false;
+        String trace = null;
+        long synthetic = -1;
+        int packages = 200;
+        long seed = 1;
+
+        for (int i = 0; i < args.length; i++) {
+            final String a = args[i];
+            if (i + 1 >= args.length) usage("missing value for " + a);
+            final String v = args[++i];
+            switch (a) {
+                case "--trace": trace = v; break;
+                case "--synthetic": synthetic = Long.parseLong(v); break;
+                case "--packages": packages = Integer.parseInt(v); break;
+                case "--seed": seed = Long.parseLong(v); break;
+                case "--candidateTopN": cfg.candidateTopN = Integer.parseInt(v); break;
+                case "--markovTopM": cfg.markovTopMPerA = Integer.parseInt(v); break;
+                case "--markovMaxRows": cfg.markovMaxRows = Integer.parseInt(v); break;
+                case "--hashDimPow2": cfg.hashDimPow2 = Integer.parseInt(v); break;
+                case "--ttlMs": cfg.ttlMs = Integer.parseInt(v); break;
+                case "--gatingThreshold": cfg.gatingThreshold = Float.parseFloat(v); break;
+                case "--rankThreshold": cfg.rankThreshold = Float.parseFloat(v); break;
+                case "--gapDelta": cfg.gapDelta = Float.parseFloat(v); break;
+                case "--prefetchTopK": cfg.prefetchTopK = Integer.parseInt(v); break;
+                case "--hardNegPerPos": cfg.hardNegPerPos = Integer.parseInt(v); break;
+                case "--lrRanking": cfg.enableLrRanking = !"0".equals(v); break;
+                case "--gating": cfg.enableGating = !"0".equals(v); break;
+                case "--ftrl": cfg.lrFtrl = !"0".equals(v); break;
+                case "--fp16": cfg.lrHalfPrecision = !"0".equals(v); break;
+                case "--async": cfg.asyncTraining = !"0".equals(v); break;
+                default: usage("unknown option " + a);
+            }
+        }
+        if ((trace == null) == (synthetic < 0)) usage("need exactly one of --trace / --synthetic");
+
+        // model files go to a scratch directory unless the caller chose one
+        if (System.getProperty("nextapp.dataDir") == null) {
+            Path dir = Files.createTempDirectory("nextapp-replay");
+            System.setProperty("nextapp.dataDir", dir.toString());
+        }
+
+        final TraceReplay replay = new TraceReplay(cfg);
+        final long t0 = System.nanoTime();
+        try (TraceSource source = trace != null
+                ? new FileTraceSource(trace)
+                : new SyntheticTraceSource(synthetic, packages, seed)) {
+            replay.run(source);
+        }
+        final long wall = System.nanoTime() - t0;
+        replay.report(System.out, wall);
+        replay.shutdown();
+    }
+
+    private static void usage(String why) {
+        System.err.println("TraceReplay: " + why);
+        System.err.println("usage: TraceReplay (--trace FILE | --synthetic EVENTS [--packages N] [--seed S])"
+                + " [--candidateTopN N] [--markovTopM N] [--markovMaxRows N] [--hashDimPow2 N] [--ttlMs MS]"
+                + " [--gatingThreshold F] [--rankThreshold F] [--gapDelta F] [--prefetchTopK N]"
+                + " [--hardNegPerPos N] [--lrRanking 0|1] [--gating 0|1] [--ftrl 0|1] [--fp16 0|1]"
+                + " [--async 0|1]");
+        System.exit(2);
+    }
+}
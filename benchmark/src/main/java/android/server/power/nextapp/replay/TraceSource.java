@@ -0,0 +1,10 @@
+package android.server.power.nextapp.replay;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/** A stream of foreground events in time order; events are read one at a time. */
+interface TraceSource extends Closeable {
+    /** Fills ev with the next event; returns false at the end of the trace. */
+    boolean next(TraceEvent ev) throws IOException;
+}
@@ -0,0 +1,36 @@
+package android.app;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Host stand-in: records the alarms set; nothing ever fires. */
+public class AlarmManager {
+    public static final int RTC_WAKEUP = 0;
+    public static final int RTC = 1;
+    public static final int ELAPSED_REALTIME_WAKEUP = 2;
+    public static final int ELAPSED_REALTIME = 3;
+
+    private final List<Long> mSetTimes = new ArrayList<>();
+    private PendingIntent mArmed;
+    private long mArmedAtMs;
+
+    public synchronized void setExact(int type, long triggerAtMillis, PendingIntent operation) {
+        mSetTimes.add(triggerAtMillis);
+        mArmed = operation;
+        mArmedAtMs = triggerAtMillis;
+    }
+
+    public synchronized void cancel(PendingIntent operation) {
+        if (mArmed == operation) mArmed = null;
+    }
+
+    /** Host only: the trigger time of every setExact() call so far, in order. */
+    public synchronized List<Long> getSetTimesForTest() {
+        return new ArrayList<>(mSetTimes);
+    }
+
+    /** Host only: trigger time of the armed alarm, or -1 if none. */
+    public synchronized long getArmedTimeForTest() {
+        return mArmed == null ? -1 : mArmedAtMs;
+    }
+}
@@ -0,0 +1,26 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+/** Host stand-in: holds the intent it would send. */
+public final class PendingIntent {
+    public static final int FLAG_UPDATE_CURRENT = 1 << 27;
+    public static final int FLAG_IMMUTABLE = 1 << 26;
+
+    private final Intent mIntent;
+
+    private PendingIntent(Intent intent) {
+        mIntent = intent;
+    }
+
+    public static PendingIntent getBroadcast(Context context, int requestCode, Intent intent,
+                                             int flags) {
+        return new PendingIntent(intent);
+    }
+
+    /** Host only: the intent a real one would broadcast. */
+    public Intent getIntentForTest() {
+        return mIntent;
+    }
+}
@@ -0,0 +1,12 @@
+package android.content;
+
+import android.app.AlarmManager;
+
+/** Host stand-in: a context whose only system service is one AlarmManager. */
+public class Context {
+    private final AlarmManager mAlarmManager = new AlarmManager();
+
+    public <T> T getSystemService(Class<T> serviceClass) {
+        return serviceClass == AlarmManager.class ? serviceClass.cast(mAlarmManager) : null;
+    }
+}
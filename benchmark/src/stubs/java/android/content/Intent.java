@@ -0,0 +1,29 @@
+package android.content;
+
+/** Host stand-in: an action and an explicit component. */
+public class Intent {
+    private String mAction;
+    private ComponentName mComponent;
+
+    public Intent(String action) {
+        mAction = action;
+    }
+
+    public String getAction() {
+        return mAction;
+    }
+
+    public Intent setAction(String action) {
+        mAction = action;
+        return this;
+    }
+
+    public ComponentName getComponent() {
+        return mComponent;
+    }
+
+    public Intent setComponent(ComponentName component) {
+        mComponent = component;
+        return this;
+    }
+}
@@ -0,0 +1,14 @@
+package android.os;
+
+import java.io.File;
+
+/** Host stand-in: /data/system maps to -Dnextapp.dataDir (default: a temp directory). */
+public final class Environment {
+    private Environment() {}
+
+    public static File getDataSystemDirectory() {
+        String dir = System.getProperty("nextapp.dataDir");
+        if (dir == null) dir = new File(System.getProperty("java.io.tmpdir"), "nextapp-host").getPath();
+        return new File(dir);
+    }
+}
@@ -0,0 +1,93 @@
+package android.os;
+
+/** Host stand-in for the subset of Handler used by nextapp. */
+public class Handler {
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    private final Looper mLooper;
+    private final Callback mCallback;
+
+    public Handler(Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(Looper looper, Callback callback) {
+        mLooper = looper;
+        mCallback = callback;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public void handleMessage(Message msg) {}
+
+    void dispatchMessage(Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else if (mCallback == null || !mCallback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage(int what) {
+        return obtainMessage(what, null);
+    }
+
+    public final Message obtainMessage(int what, Object obj) {
+        Message m = new Message();
+        m.what = what;
+        m.obj = obj;
+        m.target = this;
+        return m;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        Message m = obtainMessage(0);
+        m.callback = r;
+        return sendMessageDelayed(m, delayMillis);
+    }
+
+    public final boolean sendMessage(Message msg) {
+        return sendMessageDelayed(msg, 0);
+    }
+
+    public final boolean sendEmptyMessage(int what) {
+        return sendMessageDelayed(obtainMessage(what), 0);
+    }
+
+    public final boolean sendEmptyMessageDelayed(int what, long delayMillis) {
+        return sendMessageDelayed(obtainMessage(what), delayMillis);
+    }
+
+    public final boolean sendMessageDelayed(Message msg, long delayMillis) {
+        return sendMessageAtTime(msg, SystemClock.uptimeMillis() + Math.max(0, delayMillis));
+    }
+
+    public final boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+        msg.target = this;
+        return mLooper.enqueue(msg, uptimeMillis);
+    }
+
+    public final void removeMessages(int what) {
+        mLooper.remove(this, what, null);
+    }
+
+    public final void removeMessages(int what, Object obj) {
+        mLooper.remove(this, what, obj);
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        mLooper.removeCallbacks(this, r);
+    }
+
+    public final boolean hasMessages(int what) {
+        return mLooper.has(this, what);
+    }
+}
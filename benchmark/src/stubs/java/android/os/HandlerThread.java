@@ -0,0 +1,52 @@
+package android.os;
+
+/** Host stand-in: a thread running a Looper. */
+public class HandlerThread extends Thread {
+    private Looper mLooper;
+
+    public HandlerThread(String name) {
+        super(name);
+        setDaemon(true);
+    }
+
+    public HandlerThread(String name, int priority) {
+        this(name);
+    }
+
+    @Override
+    public void run() {
+        Looper looper = new Looper(this);
+        synchronized (this) {
+            mLooper = looper;
+            notifyAll();
+        }
+        looper.loop();
+    }
+
+    /** Blocks until the thread has started its looper. */
+    public synchronized Looper getLooper() {
+        while (mLooper == null && isAlive()) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+        return mLooper;
+    }
+
+    public boolean quit() {
+        Looper looper = getLooper();
+        if (looper == null) return false;
+        looper.quit(false);
+        return true;
+    }
+
+    public boolean quitSafely() {
+        Looper looper = getLooper();
+        if (looper == null) return false;
+        looper.quit(true);
+        return true;
+    }
+}
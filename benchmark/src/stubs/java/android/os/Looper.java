@@ -0,0 +1,95 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Host stand-in: a delay-ordered message queue drained by one thread.
+ * Same-time messages run in send order, like the framework queue.
+ */
+public final class Looper {
+    private final Thread mThread;
+    private final PriorityQueue<Message> mQueue = new PriorityQueue<>((a, b) ->
+            a.when != b.when ? Long.compare(a.when, b.when) : Long.compare(a.seq, b.seq));
+    private long mSeq;
+    private boolean mQuitting;
+    private boolean mQuitSafely;
+
+    Looper(Thread thread) {
+        mThread = thread;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public boolean isCurrentThread() {
+        return Thread.currentThread() == mThread;
+    }
+
+    synchronized boolean enqueue(Message msg, long when) {
+        if (mQuitting) return false;
+        msg.when = when;
+        msg.seq = mSeq++;
+        mQueue.add(msg);
+        notifyAll();
+        return true;
+    }
+
+    /** Removes messages of target matching what and (by identity, like the framework) obj. */
+    synchronized void remove(Handler target, int what, Object obj) {
+        for (Iterator<Message> it = mQueue.iterator(); it.hasNext(); ) {
+            Message m = it.next();
+            if (m.target == target && m.callback == null && m.what == what
+                    && (obj == null || m.obj == obj)) {
+                it.remove();
+            }
+        }
+    }
+
+    synchronized void removeCallbacks(Handler target, Runnable r) {
+        mQueue.removeIf(m -> m.target == target && m.callback == r);
+    }
+
+    synchronized boolean has(Handler target, int what) {
+        for (Message m : mQueue) {
+            if (m.target == target && m.callback == null && m.what == what) return true;
+        }
+        return false;
+    }
+
+    synchronized void quit(boolean safely) {
+        mQuitting = true;
+        mQuitSafely = safely;
+        if (!safely) mQueue.clear();
+        notifyAll();
+    }
+
+    /** Runs until quit; safe quit still drains messages that are already due. */
+    void loop() {
+        while (true) {
+            Message msg;
+            synchronized (this) {
+                while (true) {
+                    final long now = SystemClock.uptimeMillis();
+                    Message head = mQueue.peek();
+                    if (mQuitting && (!mQuitSafely || head == null || head.when > now)) return;
+                    if (head != null && head.when <= now) {
+                        msg = mQueue.poll();
+                        break;
+                    }
+                    try {
+                        if (head == null) {
+                            wait();
+                        } else {
+                            wait(Math.max(1, head.when - now));
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+            msg.target.dispatchMessage(msg);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package android.os;
+
+/** Host stand-in. */
+public final class Message {
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    // queue bookkeeping (see Looper)
+    long when;
+    long seq;
+    Handler target;
+    Runnable callback;
+}
@@ -0,0 +1,11 @@
+package android.os;
+
+/** Host stand-in: thread priorities are accepted and ignored. */
+public final class Process {
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    private Process() {}
+
+    public static void setThreadPriority(int priority) {}
+}
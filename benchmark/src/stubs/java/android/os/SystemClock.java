@@ -0,0 +1,44 @@
+package android.os;
+
+/**
+ * Host stand-in: both clocks are System.nanoTime() based (no deep sleep on a
+ * host). Tests may freeze them with setTimeForTest() to drive timers exactly.
+ */
+public final class SystemClock {
+    private static final long REAL_TIME = Long.MIN_VALUE;
+
+    private static volatile long sFrozenMs = REAL_TIME;
+
+    private SystemClock() {}
+
+    public static long uptimeMillis() {
+        final long frozen = sFrozenMs;
+        return frozen != REAL_TIME ? frozen : System.nanoTime() / 1_000_000L;
+    }
+
+    public static long elapsedRealtime() {
+        return uptimeMillis();
+    }
+
+    public static long elapsedRealtimeNanos() {
+        final long frozen = sFrozenMs;
+        return frozen != REAL_TIME ? frozen * 1_000_000L : System.nanoTime();
+    }
+
+    public static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Host only: freezes both clocks at ms until the next call or resumeRealTimeForTest(). */
+    public static void setTimeForTest(long ms) {
+        sFrozenMs = ms;
+    }
+
+    public static void resumeRealTimeForTest() {
+        sFrozenMs = REAL_TIME;
+    }
+}
@@ -0,0 +1,9 @@
+package android.os;
+
+/** Host stand-in: only the user id constants the module uses. */
+public final class UserHandle {
+    public static final int USER_NULL = -10000;
+    public static final int USER_SYSTEM = 0;
+
+    private UserHandle() {}
+}
@@ -0,0 +1,63 @@
+package android.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/** Host stand-in: writes go to "<file>.new" and are renamed over the base on success. */
+public class AtomicFile {
+    private final File mBaseName;
+    private final File mNewName;
+
+    public AtomicFile(File baseName) {
+        mBaseName = baseName;
+        mNewName = new File(baseName.getPath() + ".new");
+    }
+
+    public File getBaseFile() {
+        return mBaseName;
+    }
+
+    public FileOutputStream startWrite() throws IOException {
+        File parent = mNewName.getParentFile();
+        if (parent != null) parent.mkdirs();
+        return new FileOutputStream(mNewName);
+    }
+
+    public void finishWrite(FileOutputStream str) {
+        if (str == null) return;
+        try {
+            str.close();
+            Files.move(mNewName.toPath(), mBaseName.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            Slog.e("AtomicFile", "finishWrite failed: " + mBaseName, e);
+        }
+    }
+
+    public void failWrite(FileOutputStream str) {
+        if (str == null) return;
+        try {
+            str.close();
+        } catch (IOException ignored) {
+        }
+        mNewName.delete();
+    }
+
+    public FileInputStream openRead() throws FileNotFoundException {
+        return new FileInputStream(mBaseName);
+    }
+
+    public boolean exists() {
+        return mBaseName.exists();
+    }
+
+    public void delete() {
+        mBaseName.delete();
+        mNewName.delete();
+    }
+}
@@ -0,0 +1,156 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The pre-hashed encoders against the string features they replaced: every
+ * index must equal FeatureHasher.index() of the old concatenation.
+ */
+class FeatureEncoderTest {
+    private static final int[] MASKS = {(1 << 16) - 1, -1}; // -1: the full 32-bit key
+    private static final int[] EDGE_INTS = {
+            0, 1, -1, 9, 10, -10, 99, 100, 1_000_000_000, Integer.MAX_VALUE, Integer.MIN_VALUE,
+            Integer.MIN_VALUE + 1};
+
+    @Test
+    void mixIntMatchesMixOfTheDecimalString() {
+        final Random rnd = new Random(1);
+        for (int i = 0; i < 100_000; i++) {
+            final int h = rnd.nextInt();
+            final int v = i < EDGE_INTS.length ? EDGE_INTS[i] : rnd.nextInt() >> rnd.nextInt(32);
+            assertEquals(FeatureHasher.mix(h, Integer.toString(v)), FeatureHasher.mixInt(h, v),
+                    "v=" + v);
+        }
+    }
+
+    @Test
+    void gatingMatchesStringFeatures() {
+        final Random rnd = new Random(2);
+        final PackageRegistry packages = new PackageRegistry();
+        final String[] names = names(rnd);
+        for (int mask : MASKS) {
+            final GatingFeatureEncoder enc =
+                    new GatingFeatureEncoder(mask, 16, new FeatureHashCache(packages));
+            for (int i = 0; i < 5_000; i++) {
+                final String a = names[rnd.nextInt(names.length)];
+                final NextAppContext ctx = randomContext(rnd, names);
+                final int n = enc.encode(packages.intern(a), prevId(packages, ctx), ctx);
+                assertArrayEquals(oldGating(a, ctx, mask), Arrays.copyOf(enc.getBuf(), n));
+            }
+        }
+    }
+
+    @Test
+    void rankingMatchesStringFeatures() {
+        final Random rnd = new Random(3);
+        final PackageRegistry packages = new PackageRegistry();
+        final String[] names = names(rnd);
+        for (int mask : MASKS) {
+            final RankingFeatureEncoder enc =
+                    new RankingFeatureEncoder(mask, 16, new FeatureHashCache(packages));
+            final int[] cand = new int[RankingFeatureEncoder.MAX_CANDIDATE_FEATURES];
+            for (int i = 0; i < 5_000; i++) {
+                final String a = names[rnd.nextInt(names.length)];
+                final String b = names[rnd.nextInt(names.length)];
+                final NextAppContext ctx = randomContext(rnd, names);
+                final int idA = packages.intern(a);
+                final int idB = packages.intern(b);
+                final int prev = prevId(packages, ctx);
+                final int[] expected = oldRanking(a, b, ctx, mask);
+
+                final int n = enc.encode(idA, idB, prev, ctx);
+                assertArrayEquals(expected, Arrays.copyOf(enc.getBuf(), n));
+
+                // shared + candidate: the same set, split (see RankingFeatureEncoder)
+                final int s = enc.encodeShared(idA, prev, ctx);
+                final int c = enc.encodeCandidate(idA, idB, prev, ctx, cand, 0);
+                assertEquals(RankingFeatureEncoder.candidateFeatureCount(prev), c);
+                final int[] split = new int[s + c];
+                System.arraycopy(enc.getSharedBuf(), 0, split, 0, s);
+                System.arraycopy(cand, 0, split, s, c);
+                assertArrayEquals(sorted(expected), sorted(split));
+            }
+        }
+    }
+
+    // ---- the string encoders these replaced ----
+
+    private static int[] oldGating(String pkgA, NextAppContext ctx, int mask) {
+        final int[] out = new int[7];
+        int n = 0;
+        out[n++] = FeatureHasher.index("A=" + pkgA, mask);
+        out[n++] = FeatureHasher.index("T=" + ctx.timeBucket, mask);
+        out[n++] = FeatureHasher.index("R=" + ctx.allowReason, mask);
+        if (ctx.prevForegroundPkg != null) {
+            out[n++] = FeatureHasher.index("P=" + ctx.prevForegroundPkg, mask);
+            out[n++] = FeatureHasher.index("A#P=" + pkgA + "#" + ctx.prevForegroundPkg, mask);
+        }
+        out[n++] = FeatureHasher.index("BB=" + ctx.batteryBucket, mask);
+        out[n++] = FeatureHasher.index("MP=" + (ctx.maxPowerMode ? 1 : 0), mask);
+        return Arrays.copyOf(out, n);
+    }
+
+    private static int[] oldRanking(String pkgA, String pkgB, NextAppContext ctx, int mask) {
+        final int[] out = new int[11];
+        int n = 0;
+        out[n++] = FeatureHasher.index("A=" + pkgA, mask);
+        out[n++] = FeatureHasher.index("B=" + pkgB, mask);
+        out[n++] = FeatureHasher.index("A#B=" + pkgA + "#" + pkgB, mask);
+        out[n++] = FeatureHasher.index("T=" + ctx.timeBucket, mask);
+        out[n++] = FeatureHasher.index("R=" + ctx.allowReason, mask);
+        out[n++] = FeatureHasher.index("A#T=" + pkgA + "#" + ctx.timeBucket, mask);
+        out[n++] = FeatureHasher.index("B#T=" + pkgB + "#" + ctx.timeBucket, mask);
+        out[n++] = FeatureHasher.index("A#R=" + pkgA + "#" + ctx.allowReason, mask);
+        out[n++] = FeatureHasher.index("B#R=" + pkgB + "#" + ctx.allowReason, mask);
+        if (ctx.prevForegroundPkg != null) {
+            out[n++] = FeatureHasher.index("P=" + ctx.prevForegroundPkg, mask);
+            out[n++] = FeatureHasher.index("P#B=" + ctx.prevForegroundPkg + "#" + pkgB, mask);
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // ---- helpers ----
+
+    /** Package-like names, a few with non-ASCII characters. */
+    private static String[] names(Random rnd) {
+        final String[] names = new String[40];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "com.example." + Integer.toString(rnd.nextInt(1 << 20), 36)
+                    + (i % 8 == 0 ? ".\u00e9\u4e2d" : "");
+        }
+        return names;
+    }
+
+    /** Buckets anywhere in int range, including negative ones; P present or absent. */
+    private static NextAppContext randomContext(Random rnd, String[] names) {
+        return new NextAppContext(bucket(rnd), bucket(rnd),
+                rnd.nextBoolean() ? names[rnd.nextInt(names.length)] : null,
+                bucket(rnd), rnd.nextBoolean());
+    }
+
+    private static int bucket(Random rnd) {
+        switch (rnd.nextInt(4)) {
+            case 0: return rnd.nextInt(24);
+            case 1: return -1 - rnd.nextInt(24);
+            case 2: return EDGE_INTS[rnd.nextInt(EDGE_INTS.length)];
+            default: return rnd.nextInt();
+        }
+    }
+
+    private static int prevId(PackageRegistry packages, NextAppContext ctx) {
+        return ctx.prevForegroundPkg == null
+                ? PackageRegistry.NO_ID : packages.intern(ctx.prevForegroundPkg);
+    }
+
+    private static int[] sorted(int[] a) {
+        final int[] s = a.clone();
+        Arrays.sort(s);
+        return s;
+    }
+}
@@ -0,0 +1,60 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+/** Distinct-key estimates of FeatureKeySketch and the hashDim it recommends from them. */
+class FeatureKeySketchTest {
+    // HyperLogLog standard error with 2^P registers
+    private static final double SE = 1.04 / Math.sqrt(FeatureKeySketch.REGISTERS);
+
+    @Test
+    void estimateIsWithinThreeStandardErrors() {
+        final Random rnd = new Random(1);
+        for (int n : new int[] {50, 1_000, 5_000, 20_000, 300_000}) {
+            final FeatureKeySketch sketch = new FeatureKeySketch();
+            final int base = rnd.nextInt();
+            for (int i = 0; i < n; i++) {
+                // odd multiplier: n distinct keys, each added once or twice
+                final int key = (base + i) * 0x9E3779B1;
+                sketch.add(key);
+                if (rnd.nextInt(3) == 0) sketch.add(key);
+            }
+            final double est = sketch.estimate();
+            assertTrue(Math.abs(est - n) <= 3 * SE * n, n + " keys, estimate " + est);
+        }
+        assertEquals(0.0, new FeatureKeySketch().estimate());
+    }
+
+    @Test
+    void copyKeepsTheEstimateAndHandsOverChanges() {
+        final FeatureKeySketch sketch = new FeatureKeySketch();
+        for (int i = 0; i < 10_000; i++) sketch.add(i * 0x85EBCA6B);
+        final FeatureKeySketch snap = new FeatureKeySketch();
+        sketch.copyTo(snap);
+        assertEquals(sketch.estimate(), snap.estimate());
+        assertTrue(snap.hasChanges());
+        assertFalse(sketch.hasChanges());
+    }
+
+    @Test
+    void recommendedPow2IsTheSmallestMeetingTheTarget() {
+        final float target = 0.05f;
+        for (double keys : new double[] {2, 100, 1_000, 37_000, 250_000}) {
+            final int p = FeatureKeySketch.recommendedPow2(keys, target);
+            assertTrue(FeatureKeySketch.collisionRate(keys, p) <= target, keys + " keys");
+            if (p > 8) assertTrue(FeatureKeySketch.collisionRate(keys, p - 1) > target);
+        }
+        // 1000 keys: 2^14 collides ~5.9%, 2^15 ~3.0%
+        assertEquals(15, FeatureKeySketch.recommendedPow2(1_000, target));
+        // clamped to [2^8, 2^26]
+        assertEquals(8, FeatureKeySketch.recommendedPow2(0, target));
+        assertEquals(26, FeatureKeySketch.recommendedPow2(1e12, target));
+        assertEquals(0.0, FeatureKeySketch.collisionRate(1, 8));
+    }
+}
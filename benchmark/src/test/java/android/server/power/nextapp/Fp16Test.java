@@ -0,0 +1,82 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+/** fp16 conversions, and half-precision SGD against fp32 on the same task. */
+class Fp16Test {
+    @Test
+    void everyHalfRoundTripsExactly() {
+        for (int h = 0; h < 1 << 16; h++) {
+            final float f = Fp16.toFloat((short) h);
+            if (Float.isNaN(f)) continue;
+            assertEquals((short) h, Fp16.toHalf(f), "half " + Integer.toHexString(h));
+        }
+    }
+
+    @Test
+    void toHalfRoundsToNearest() {
+        final Random rnd = new Random(1);
+        for (int i = 0; i < 200_000; i++) {
+            // magnitudes from below the subnormals to beyond the largest half
+            final float f = (float) (rnd.nextGaussian() * Math.pow(2, rnd.nextInt(44) - 28));
+            final short h = Fp16.toHalf(f);
+            final double err = Math.abs(Fp16.toFloat(h) - (double) f);
+            if (Float.isInfinite(Fp16.toFloat(h))) {
+                assertTrue(Math.abs(f) >= 65520f, "overflow " + f);
+                continue;
+            }
+            // no neighbouring half is closer
+            for (int d = -1; d <= 1; d += 2) {
+                final float n = Fp16.toFloat((short) (h + d));
+                if (Float.isNaN(n) || Integer.signum(h + d) != Integer.signum(h)) continue;
+                assertTrue(err <= Math.abs(n - (double) f), f + " -> " + Fp16.toFloat(h));
+            }
+        }
+    }
+
+    @Test
+    void stochasticRoundingIsUnbiased() {
+        final Random rnd = new Random(2);
+        final float[] values = {0.1f, -0.3337f, 1.0001f, 7.77e-4f, -123.456f};
+        for (float f : values) {
+            double sum = 0;
+            final int trials = 200_000;
+            for (int i = 0; i < trials; i++) {
+                sum += Fp16.toFloat(Fp16.toHalfStochastic(f, rnd.nextInt()));
+            }
+            final float ulp = Math.abs(Fp16.toFloat((short) (Fp16.toHalf(f) + 1))
+                    - Fp16.toFloat(Fp16.toHalf(f)));
+            assertEquals(f, sum / trials, ulp * 0.01, "value " + f);
+        }
+    }
+
+    @Test
+    void halfPrecisionMatchesFp32Quality() {
+        final NextAppConfig cfg = new NextAppConfig();
+        final OnlineLogisticModel fp32 = new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2);
+        final OnlineLogisticModel fp16 =
+                new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2, true);
+        new LogisticTask(cfg.hashDimPow2, 1, 2).train(fp32, 200_000);
+        new LogisticTask(cfg.hashDimPow2, 1, 2).train(fp16, 200_000);
+        final double fp32Auc = new LogisticTask(cfg.hashDimPow2, 1, 3).auc(fp32, 50_000);
+        final double fp16Auc = new LogisticTask(cfg.hashDimPow2, 1, 3).auc(fp16, 50_000);
+        assertTrue(fp32Auc > 0.7, "task too hard to compare: " + fp32Auc);
+        assertEquals(fp32Auc, fp16Auc, 0.001);
+
+        final LogisticTask holdout = new LogisticTask(cfg.hashDimPow2, 1, 4);
+        final int[] feats = new int[LogisticTask.FIELDS];
+        float maxDiff = 0f;
+        for (int i = 0; i < 50_000; i++) {
+            holdout.next(feats);
+            maxDiff = Math.max(maxDiff, Math.abs(fp32.score(feats, LogisticTask.FIELDS)
+                    - fp16.score(feats, LogisticTask.FIELDS)));
+        }
+        assertTrue(maxDiff < 0.01f, "max score difference " + maxDiff);
+        assertEquals(fp32.memoryBytes() / 2, fp16.memoryBytes());
+    }
+}
@@ -0,0 +1,167 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** FTRL-Proximal steps, the bounded table, and FTRL vs SGD quality. */
+class FtrlWeightsTest {
+    private static final float ALPHA = 0.1f;
+    private static final float BETA = 1f;
+    private static final float L1 = 0.01f;
+    private static final float L2 = 1e-6f;
+
+    @Test
+    void stepsMatchTheClosedForm() {
+        final FtrlWeights ftrl = new FtrlWeights(10, ALPHA, BETA, L1, L2);
+        final Random rnd = new Random(1);
+        double z = 0;
+        double n = 0;
+        double w = 0;
+        for (int i = 0; i < 1_000; i++) {
+            final float g = (float) rnd.nextGaussian() * 0.3f;
+            final double nNew = n + (double) g * g;
+            z += g - (Math.sqrt(nNew) - Math.sqrt(n)) / ALPHA * w;
+            n = nNew;
+            w = Math.abs(z) <= L1 ? 0
+                    : -(z - Math.signum(z) * L1) / ((BETA + Math.sqrt(n)) / ALPHA + L2);
+            assertEquals(w, ftrl.update(7, g), 1e-4, "step " + i);
+        }
+        assertEquals((float) w, ftrl.get(7), 1e-4f);
+        assertEquals(0f, ftrl.get(8));
+    }
+
+    @Test
+    void l1KeepsRareSmallGradientsAtZero() {
+        final FtrlWeights ftrl = new FtrlWeights(10, ALPHA, BETA, L1, L2);
+        assertEquals(0f, ftrl.update(1, L1 / 2));
+        assertTrue(ftrl.update(2, L1 * 4) != 0f);
+        assertEquals(1, ftrl.nonZeroCount());
+    }
+
+    @Test
+    void tableNeverExceedsTheDenseFootprint() {
+        final int pow2 = 12;
+        final FtrlWeights ftrl = new FtrlWeights(pow2, ALPHA, BETA, L1, L2);
+        final Random rnd = new Random(2);
+        for (int i = 0; i < 200_000; i++) {
+            ftrl.update(rnd.nextInt(1 << pow2), (float) rnd.nextGaussian());
+            assertTrue(ftrl.memoryBytes() <= 4L << pow2, "table " + ftrl.memoryBytes());
+        }
+        assertTrue(ftrl.evictedCount() > 0);
+        assertTrue(ftrl.reclaimedCount() > 0);
+    }
+
+    @Test
+    void setDenseBeyondTheCapKeepsTheLargestWeights() {
+        final int pow2 = 12;
+        final float[] dense = new float[1 << pow2];
+        final Random rnd = new Random(6);
+        for (int i = 0; i < dense.length; i++) dense[i] = (float) rnd.nextGaussian();
+        final FtrlWeights ftrl = new FtrlWeights(pow2, ALPHA, BETA, L1, L2);
+        ftrl.setDense(dense);
+        assertTrue(ftrl.memoryBytes() <= 4L << pow2);
+        float minKept = Float.MAX_VALUE;
+        float maxDropped = 0f;
+        for (int i = 0; i < dense.length; i++) {
+            final float w = ftrl.get(i);
+            if (w != 0f) {
+                assertEquals(dense[i], w); // kept weights are exact
+                minKept = Math.min(minKept, Math.abs(w));
+            } else {
+                maxDropped = Math.max(maxDropped, Math.abs(dense[i]));
+            }
+        }
+        assertTrue(ftrl.evictedCount() > 0);
+        assertTrue(maxDropped <= minKept, "dropped " + maxDropped + " kept " + minKept);
+    }
+
+    @Test
+    void compactDropsOnlyDeadCoordinates() {
+        final FtrlWeights ftrl = new FtrlWeights(16, ALPHA, BETA, L1, L2);
+        for (int i = 0; i < 2_000; i++) ftrl.update(i, L1 / 2); // zero weight, n < 1
+        for (int i = 2_000; i < 2_100; i++) ftrl.update(i, 1f);
+        final float[] before = new float[1 << 16];
+        ftrl.expandTo(before);
+        ftrl.compact();
+        assertEquals(100, ftrl.size());
+        assertEquals(2_000, ftrl.reclaimedCount()); // by growth rebuilds and compact()
+        final float[] after = new float[1 << 16];
+        ftrl.expandTo(after);
+        assertArrayEquals(before, after);
+    }
+
+    @Test
+    void exportPutAndCopyAreExact() {
+        final FtrlWeights src = new FtrlWeights(14, ALPHA, BETA, L1, L2);
+        final Random rnd = new Random(3);
+        for (int i = 0; i < 20_000; i++) src.update(rnd.nextInt(5_000), (float) rnd.nextGaussian());
+        src.updateBias(0f, 0.3f);
+
+        final int size = src.size();
+        final int[] idx = new int[size];
+        final float[] w = new float[size];
+        final float[] z = new float[size];
+        final float[] n = new float[size];
+        assertEquals(size, src.export(idx, w, z, n));
+        final FtrlWeights put = new FtrlWeights(14, ALPHA, BETA, L1, L2);
+        for (int i = 0; i < size; i++) put.put(idx[i], w[i], z[i], n[i]);
+        final FtrlWeights copy = new FtrlWeights(14, ALPHA, BETA, L1, L2);
+        copy.copyFrom(src);
+        for (int i = 0; i < 5_000; i++) {
+            assertEquals(src.get(i), put.get(i));
+            assertEquals(src.get(i), copy.get(i));
+        }
+        assertEquals(src.getBiasZ(), copy.getBiasZ());
+        assertEquals(src.getBiasN(), copy.getBiasN());
+        // the same next step from the same state
+        assertEquals(src.update(11, 0.2f), put.update(11, 0.2f));
+    }
+
+    @Test
+    void lockFreeReadersSeeStoredWeightsAcrossRebuilds() throws InterruptedException {
+        final FtrlWeights ftrl = new FtrlWeights(12, ALPHA, BETA, L1, L2);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread reader = new Thread(() -> {
+            final Random rnd = new Random(4);
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    final float w = ftrl.get(rnd.nextInt(1 << 12));
+                    // every stored weight is -(z -/+ l1) / (...) with |z| bounded by the steps
+                    if (!(Math.abs(w) < 1e3f)) throw new AssertionError("read " + w);
+                }
+            } catch (Throwable e) {
+                failure.compareAndSet(null, e);
+            }
+        });
+        reader.start();
+        final Random rnd = new Random(5);
+        for (int i = 0; i < 500_000 && failure.get() == null; i++) {
+            ftrl.update(rnd.nextInt(1 << 12), (float) rnd.nextGaussian());
+            if (i % 50_000 == 0) ftrl.compact();
+        }
+        reader.interrupt();
+        reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+    }
+
+    @Test
+    void ftrlMatchesSgdQuality() {
+        final NextAppConfig cfg = new NextAppConfig();
+        final OnlineLogisticModel sgd = new OnlineLogisticModel(cfg.hashDimPow2, cfg.lr, cfg.l2);
+        final OnlineLogisticModel ftrl = new OnlineLogisticModel(cfg.hashDimPow2, cfg.ftrlAlpha,
+                cfg.ftrlBeta, cfg.ftrlL1, cfg.l2);
+        new LogisticTask(cfg.hashDimPow2, 1, 2).train(sgd, 200_000);
+        new LogisticTask(cfg.hashDimPow2, 1, 2).train(ftrl, 200_000);
+        final double sgdAuc = new LogisticTask(cfg.hashDimPow2, 1, 3).auc(sgd, 50_000);
+        final double ftrlAuc = new LogisticTask(cfg.hashDimPow2, 1, 3).auc(ftrl, 50_000);
+        assertTrue(sgdAuc > 0.7, "task too hard to compare: " + sgdAuc);
+        assertTrue(ftrlAuc >= sgdAuc - 0.01, "ftrl " + ftrlAuc + " vs sgd " + sgdAuc);
+        assertTrue(ftrl.memoryBytes() <= sgd.memoryBytes());
+    }
+}
@@ -0,0 +1,72 @@
+package android.server.power.nextapp;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A synthetic logistic task for optimizer parity tests: FIELDS categorical
+ * fields of VALUES values each, hashed into the model's buckets, with a fixed
+ * true weight per (field, value). Examples are deterministic per seed.
+ */
+final class LogisticTask {
+    static final int FIELDS = 11;
+    private static final int VALUES = 300;
+
+    private final float[][] mTrueW = new float[FIELDS][VALUES];
+    private final int mMask;
+    private final Random mRnd;
+
+    /** modelSeed fixes the true weights; streamSeed the examples drawn from them. */
+    LogisticTask(int hashDimPow2, long modelSeed, long streamSeed) {
+        final Random w = new Random(modelSeed);
+        for (float[] field : mTrueW) {
+            for (int v = 0; v < VALUES; v++) field[v] = (float) (w.nextGaussian() * 0.6);
+        }
+        mMask = (1 << hashDimPow2) - 1;
+        mRnd = new Random(streamSeed);
+    }
+
+    /** Fills feats[0, FIELDS) with the next example's buckets and returns its label. */
+    int next(int[] feats) {
+        double z = -1.0;
+        for (int f = 0; f < FIELDS; f++) {
+            // skewed values, so some features are frequent and most are rare
+            final int v = (int) Math.min(VALUES - 1, Math.abs(mRnd.nextGaussian()) * VALUES / 3);
+            feats[f] = ((f * 0x9E3779B1) ^ (v * 0x85EBCA6B)) * 0xC2B2AE35 >>> 7 & mMask;
+            z += mTrueW[f][v];
+        }
+        return mRnd.nextDouble() < 1 / (1 + Math.exp(-z)) ? 1 : 0;
+    }
+
+    /** Trains lr on the next count examples. */
+    void train(OnlineLogisticModel lr, int count) {
+        final int[] feats = new int[FIELDS];
+        for (int i = 0; i < count; i++) lr.update(feats, FIELDS, next(feats));
+    }
+
+    /** Area under the ROC curve of lr's scores on the next count examples. */
+    double auc(OnlineLogisticModel lr, int count) {
+        final int[] feats = new int[FIELDS];
+        final long[] scored = new long[count]; // score bits << 1 | label; scores are in (0, 1)
+        for (int i = 0; i < count; i++) {
+            final int label = next(feats);
+            scored[i] = (long) Float.floatToIntBits(lr.score(feats, FIELDS)) << 1 | label;
+        }
+        Arrays.sort(scored);
+        long positives = 0;
+        long pairs = 0;
+        for (long s : scored) {
+            if ((s & 1) != 0) positives++;
+        }
+        long negativesBelow = 0;
+        for (long s : scored) {
+            if ((s & 1) != 0) {
+                pairs += negativesBelow;
+            } else {
+                negativesBelow++;
+            }
+        }
+        final long negatives = count - positives;
+        return positives == 0 || negatives == 0 ? 0.5 : (double) pairs / (positives * negatives);
+    }
+}
@@ -0,0 +1,440 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/** Dense LR bases plus dirty-page journals: round trips, budgets and damage. */
+class LrAtomicStoreTest {
+    private static final int POW2 = 12;
+
+    @TempDir
+    File mDir;
+
+    @Test
+    void fullWriteRoundTrip() {
+        final OnlineLogisticModel lr = newModel();
+        train(lr, new Random(1), 2_000);
+        final File file = new File(mDir, "lr.bin");
+        assertTrue(new LrAtomicStore(file).write(lr) > 0);
+
+        final OnlineLogisticModel loaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertSameWeights(lr, loaded);
+    }
+
+    @Test
+    void deltasReplayOnTopOfBase() {
+        final File file = new File(mDir, "lr.bin");
+        final LrAtomicStore store = new LrAtomicStore(file, 1 << 20);
+        final OnlineLogisticModel lr = newModel();
+        final Random rnd = new Random(2);
+        train(lr, rnd, 500);
+        assertTrue(store.write(lr) > 0);
+        for (int i = 0; i < 5; i++) {
+            train(lr, rnd, 20);
+            assertTrue(store.writeDelta(lr) > 0);
+            assertEquals(0, lr.dirtyPageCount());
+        }
+        assertEquals(0, store.writeDelta(lr)); // nothing dirty
+        assertTrue(new File(file.getPath() + ".journal").length() > 0);
+
+        final OnlineLogisticModel loaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertSameWeights(lr, loaded);
+    }
+
+    @Test
+    void journalOverBudgetCompactsIntoBase() {
+        final File file = new File(mDir, "lr.bin");
+        final File journal = new File(file.getPath() + ".journal");
+        final long budget = 4 * 1024;
+        final LrAtomicStore store = new LrAtomicStore(file, budget);
+        final OnlineLogisticModel lr = newModel();
+        final Random rnd = new Random(3);
+        store.write(lr);
+        for (int i = 0; i < 50; i++) {
+            train(lr, rnd, 10);
+            assertTrue(store.writeDelta(lr) > 0);
+            assertTrue(journal.length() <= budget, "journal " + journal.length());
+        }
+        final OnlineLogisticModel loaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertSameWeights(lr, loaded);
+    }
+
+    @Test
+    void tornJournalTailIsDropped() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final File journal = new File(file.getPath() + ".journal");
+        final LrAtomicStore store = new LrAtomicStore(file, 1 << 20);
+        final OnlineLogisticModel lr = newModel();
+        final Random rnd = new Random(4);
+        store.write(lr);
+        train(lr, rnd, 50);
+        store.writeDelta(lr);
+        final OnlineLogisticModel committed = copyOf(lr);
+        final long committedBytes = journal.length();
+        train(lr, rnd, 50);
+        store.writeDelta(lr);
+
+        // a crash anywhere inside the last record loses only that record
+        final byte[] full = Files.readAllBytes(journal.toPath());
+        for (long len = committedBytes; len < full.length; len += 97) {
+            Files.write(journal.toPath(), Arrays.copyOf(full, (int) len));
+            final OnlineLogisticModel loaded = newModel();
+            assertTrue(new LrAtomicStore(file).readInto(loaded));
+            assertSameWeights(committed, loaded);
+        }
+    }
+
+    @Test
+    void staleJournalIsIgnored() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final File journal = new File(file.getPath() + ".journal");
+        final LrAtomicStore store = new LrAtomicStore(file, 1 << 20);
+        final OnlineLogisticModel lr = newModel();
+        final Random rnd = new Random(5);
+        store.write(lr);
+        train(lr, rnd, 50);
+        store.writeDelta(lr);
+        final byte[] oldJournal = Files.readAllBytes(journal.toPath());
+
+        // crash between the new base's rename and the journal reset
+        train(lr, rnd, 50);
+        store.write(lr);
+        Files.write(journal.toPath(), oldJournal);
+
+        final OnlineLogisticModel loaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertSameWeights(lr, loaded);
+    }
+
+    @Test
+    void damagedBaseLeavesModelUntouched() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final OnlineLogisticModel lr = newModel();
+        train(lr, new Random(6), 500);
+        new LrAtomicStore(file).write(lr);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        final Random rnd = new Random(7);
+        for (int trial = 0; trial < 50; trial++) {
+            final byte[] bad = trial % 2 == 0
+                    ? flipBit(good, rnd) : Arrays.copyOf(good, rnd.nextInt(good.length));
+            Files.write(file.toPath(), bad);
+            final OnlineLogisticModel loaded = newModel();
+            train(loaded, new Random(8), 10);
+            final OnlineLogisticModel before = copyOf(loaded);
+            assertFalse(new LrAtomicStore(file).readInto(loaded), "trial " + trial);
+            assertSameWeights(before, loaded);
+        }
+    }
+
+    @Test
+    void sparseBaseRoundTripKeepsFtrlState() {
+        final File file = new File(mDir, "lr.bin");
+        final OnlineLogisticModel ftrl = newFtrlModel();
+        train(ftrl, new Random(14), 2_000);
+        final LrAtomicStore store = new LrAtomicStore(file);
+        assertTrue(store.writeDelta(ftrl) > 0); // FTRL deltas are full sparse bases
+        assertEquals(3, readVersion(file));
+        assertEquals(0, store.writeDelta(ftrl)); // nothing changed
+
+        final OnlineLogisticModel loaded = newFtrlModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertEquals(ftrl.getBias(), loaded.getBias());
+        assertEquals(ftrl.getFtrl().getBiasZ(), loaded.getFtrl().getBiasZ());
+        assertEquals(ftrl.getFtrl().getBiasN(), loaded.getFtrl().getBiasN());
+        for (int i = 0; i < 1 << POW2; i++) {
+            assertEquals(ftrl.getFtrl().get(i), loaded.getFtrl().get(i));
+        }
+        // same state, so the same next step
+        final int[] feats = {1, 2, 3};
+        ftrl.update(feats, 3, 1);
+        loaded.update(feats, 3, 1);
+        assertEquals(ftrl.score(feats, 3), loaded.score(feats, 3));
+    }
+
+    @Test
+    void basesLoadAcrossOptimizersWithTheSameScores() {
+        final File dense = new File(mDir, "dense.bin");
+        final File sparse = new File(mDir, "sparse.bin");
+        final OnlineLogisticModel sgd = newModel();
+        train(sgd, new Random(15), 60); // < 3/16 of the buckets: fits the FTRL table cap
+        new LrAtomicStore(dense).write(sgd);
+        final OnlineLogisticModel ftrl = newFtrlModel();
+        train(ftrl, new Random(16), 2_000);
+        new LrAtomicStore(sparse).write(ftrl);
+
+        final OnlineLogisticModel denseAsFtrl = newFtrlModel();
+        assertTrue(new LrAtomicStore(dense).readInto(denseAsFtrl));
+        final OnlineLogisticModel sparseAsDense = newModel();
+        assertTrue(new LrAtomicStore(sparse).readInto(sparseAsDense));
+        final Random rnd = new Random(17);
+        final int[] feats = new int[8];
+        for (int i = 0; i < 1_000; i++) {
+            for (int f = 0; f < feats.length; f++) feats[f] = rnd.nextInt(1 << POW2);
+            assertEquals(sgd.score(feats, feats.length), denseAsFtrl.score(feats, feats.length));
+            assertEquals(ftrl.score(feats, feats.length), sparseAsDense.score(feats, feats.length));
+        }
+    }
+
+    @Test
+    void damagedSparseBaseLeavesModelUntouched() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final OnlineLogisticModel ftrl = newFtrlModel();
+        train(ftrl, new Random(18), 500);
+        new LrAtomicStore(file).write(ftrl);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        final Random rnd = new Random(19);
+        for (int trial = 0; trial < 50; trial++) {
+            Files.write(file.toPath(), trial % 2 == 0
+                    ? flipBit(good, rnd) : Arrays.copyOf(good, rnd.nextInt(good.length)));
+            final OnlineLogisticModel loaded = newFtrlModel();
+            loaded.getFtrl().update(5, 1f);
+            final float before = loaded.getFtrl().get(5);
+            assertFalse(new LrAtomicStore(file).readInto(loaded), "trial " + trial);
+            assertEquals(before, loaded.getFtrl().get(5));
+        }
+    }
+
+    @Test
+    void version1BaseStillLoads() throws IOException {
+        final OnlineLogisticModel lr = newModel();
+        train(lr, new Random(9), 500);
+        final float[] w = lr.getWeights();
+        // v1: big-endian header (MAGIC, 1, pow2, bias, len) and floats, no checksum
+        final ByteBuffer v1 = ByteBuffer.allocate(20 + 4 * w.length);
+        v1.putInt(0x4E41504C).putInt(1).putInt(POW2).putFloat(lr.getBias()).putInt(w.length);
+        for (float f : w) v1.putFloat(f);
+        final File file = new File(mDir, "lr.bin");
+        Files.write(file.toPath(), v1.array());
+
+        final LrAtomicStore store = new LrAtomicStore(file);
+        final OnlineLogisticModel loaded = newModel();
+        assertTrue(store.readInto(loaded));
+        assertSameWeights(lr, loaded);
+
+        // deltas journal against the v1 base until the next full write
+        train(loaded, new Random(10), 20);
+        assertTrue(store.writeDelta(loaded) > 0);
+        final OnlineLogisticModel reloaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(reloaded));
+        assertSameWeights(loaded, reloaded);
+    }
+
+    @Test
+    void denseDeltaOverSparseBaseRewritesBase() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final File journal = new File(file.getPath() + ".journal");
+        final OnlineLogisticModel ftrl = newFtrlModel();
+        train(ftrl, new Random(11), 500);
+        assertTrue(new LrAtomicStore(file).write(ftrl) > 0);
+
+        // switched back to SGD: the first delta must be a dense base, not a journal
+        final LrAtomicStore store = new LrAtomicStore(file);
+        final OnlineLogisticModel dense = newModel();
+        assertTrue(store.readInto(dense));
+        train(dense, new Random(12), 20);
+        assertTrue(store.writeDelta(dense) > 0);
+        assertFalse(journal.exists() && journal.length() > 0, "journaled over a sparse base");
+        assertEquals(2, readVersion(file));
+
+        final OnlineLogisticModel reloaded = newModel();
+        assertTrue(new LrAtomicStore(file).readInto(reloaded));
+        assertSameWeights(dense, reloaded);
+    }
+
+    @Test
+    void legacyDenseJournalOverSparseBaseIsFolded() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final OnlineLogisticModel ftrl = newFtrlModel();
+        train(ftrl, new Random(13), 500);
+        assertTrue(new LrAtomicStore(file).write(ftrl) > 0);
+        final byte[] base = Files.readAllBytes(file.toPath());
+
+        // a journal older code wrote against the sparse base: one dense page
+        final CRC32C baseCrc = new CRC32C();
+        baseCrc.update(base, 0, base.length - 4);
+        final ByteBuffer j = ByteBuffer.allocate(12 + 12 + 4 + 4 * OnlineLogisticModel.PAGE_SIZE + 4);
+        j.putInt(0x4E41504A).putInt((int) baseCrc.getValue()).putInt(POW2);
+        j.putInt(0x4E415052).putFloat(0.25f).putInt(1).putInt(3);
+        for (int i = 0; i < OnlineLogisticModel.PAGE_SIZE; i++) j.putFloat(i + 1);
+        final CRC32C recCrc = new CRC32C();
+        recCrc.update(j.array(), 12, j.position() - 12);
+        j.putInt((int) recCrc.getValue());
+        Files.write(new File(file.getPath() + ".journal").toPath(), j.array());
+
+        final LrAtomicStore store = new LrAtomicStore(file);
+        final OnlineLogisticModel loaded = newFtrlModel();
+        assertTrue(store.readInto(loaded));
+        assertEquals(0.25f, loaded.getBias());
+        final float[] w = new float[1 << POW2];
+        loaded.getFtrl().expandTo(w);
+        for (int i = 0; i < OnlineLogisticModel.PAGE_SIZE; i++) {
+            assertEquals(i + 1, w[3 * OnlineLogisticModel.PAGE_SIZE + i]);
+        }
+        // folded for good: the next checkpoint is a full sparse base
+        assertTrue(store.writeDelta(loaded) > 0);
+        assertEquals(3, readVersion(file));
+    }
+
+    @Test
+    void halfBaseAndJournalRoundTrip() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final LrAtomicStore store = new LrAtomicStore(file, 1 << 20);
+        final OnlineLogisticModel lr = newHalfModel();
+        final Random rnd = new Random(20);
+        train(lr, rnd, 500);
+        final long baseBytes = store.write(lr);
+        assertEquals(4, readVersion(file));
+        assertTrue(baseBytes < 4L << POW2, "half base " + baseBytes); // fp16, not fp32, weights
+        for (int i = 0; i < 5; i++) {
+            train(lr, rnd, 20);
+            assertTrue(store.writeDelta(lr) > 0);
+        }
+        final OnlineLogisticModel loaded = newHalfModel();
+        assertTrue(new LrAtomicStore(file).readInto(loaded));
+        assertSameWeights(lr, loaded);
+    }
+
+    @Test
+    void halfAndFp32BasesLoadIntoEitherKind() {
+        final File halfFile = new File(mDir, "half.bin");
+        final File fullFile = new File(mDir, "full.bin");
+        final OnlineLogisticModel half = newHalfModel();
+        train(half, new Random(21), 500);
+        new LrAtomicStore(halfFile).write(half);
+        final OnlineLogisticModel full = newModel();
+        train(full, new Random(22), 500);
+        new LrAtomicStore(fullFile).write(full);
+
+        // fp16 widens exactly
+        final OnlineLogisticModel halfAsFull = newModel();
+        assertTrue(new LrAtomicStore(halfFile).readInto(halfAsFull));
+        for (int i = 0; i < 1 << POW2; i++) {
+            assertEquals(Fp16.toFloat(half.getHalfWeights()[i]), halfAsFull.getWeights()[i]);
+        }
+        // fp32 rounds to nearest
+        final OnlineLogisticModel fullAsHalf = newHalfModel();
+        assertTrue(new LrAtomicStore(fullFile).readInto(fullAsHalf));
+        for (int i = 0; i < 1 << POW2; i++) {
+            assertEquals(Fp16.toHalf(full.getWeights()[i]), fullAsHalf.getHalfWeights()[i]);
+        }
+        assertEquals(full.getBias(), fullAsHalf.getBias());
+    }
+
+    @Test
+    void halfModelNeverJournalsOverFp32Base() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final File journal = new File(file.getPath() + ".journal");
+        final OnlineLogisticModel full = newModel();
+        train(full, new Random(23), 500);
+        new LrAtomicStore(file).write(full);
+
+        final LrAtomicStore store = new LrAtomicStore(file, 1 << 20);
+        final OnlineLogisticModel half = newHalfModel();
+        assertTrue(store.readInto(half));
+        train(half, new Random(24), 20);
+        assertTrue(store.writeDelta(half) > 0);
+        assertFalse(journal.exists() && journal.length() > 0, "fp16 pages over an fp32 base");
+        assertEquals(4, readVersion(file));
+
+        final OnlineLogisticModel reloaded = newHalfModel();
+        assertTrue(new LrAtomicStore(file).readInto(reloaded));
+        assertSameWeights(half, reloaded);
+    }
+
+    @Test
+    void damagedHalfBaseLeavesModelUntouched() throws IOException {
+        final File file = new File(mDir, "lr.bin");
+        final OnlineLogisticModel lr = newHalfModel();
+        train(lr, new Random(25), 500);
+        new LrAtomicStore(file).write(lr);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        final Random rnd = new Random(26);
+        for (int trial = 0; trial < 50; trial++) {
+            Files.write(file.toPath(), trial % 2 == 0
+                    ? flipBit(good, rnd) : Arrays.copyOf(good, rnd.nextInt(good.length)));
+            final OnlineLogisticModel loaded = newHalfModel();
+            train(loaded, new Random(27), 10);
+            final OnlineLogisticModel before = copyOf(loaded);
+            assertFalse(new LrAtomicStore(file).readInto(loaded), "trial " + trial);
+            assertSameWeights(before, loaded);
+        }
+    }
+
+    // ---- helpers ----
+
+    private static OnlineLogisticModel newModel() {
+        return new OnlineLogisticModel(POW2, 0.05f, 1e-6f);
+    }
+
+    private static OnlineLogisticModel newHalfModel() {
+        return new OnlineLogisticModel(POW2, 0.05f, 1e-6f, true);
+    }
+
+    private static OnlineLogisticModel newFtrlModel() {
+        return new OnlineLogisticModel(POW2, 0.1f, 1f, 0.01f, 1e-6f);
+    }
+
+    static void train(OnlineLogisticModel lr, Random rnd, int examples) {
+        final int[] feats = new int[8];
+        for (int i = 0; i < examples; i++) {
+            for (int f = 0; f < feats.length; f++) feats[f] = rnd.nextInt() & lr.mask();
+            lr.update(feats, feats.length, rnd.nextInt(4) == 0 ? 1 : 0);
+        }
+    }
+
+    /** A dense (SGD) model with lr's weights and bias. */
+    static OnlineLogisticModel copyOf(OnlineLogisticModel lr) {
+        final OnlineLogisticModel copy =
+                new OnlineLogisticModel(lr.getHashDimPow2(), 0.05f, 1e-6f, lr.isHalf());
+        if (lr.isHalf()) {
+            System.arraycopy(lr.getHalfWeights(), 0, copy.getHalfWeights(), 0,
+                    lr.getHalfWeights().length);
+        } else {
+            System.arraycopy(lr.getWeights(), 0, copy.getWeights(), 0, lr.getWeights().length);
+        }
+        copy.setBias(lr.getBias());
+        return copy;
+    }
+
+    static void assertSameWeights(OnlineLogisticModel expected, OnlineLogisticModel actual) {
+        assertEquals(expected.getBias(), actual.getBias());
+        if (expected.isHalf()) {
+            assertArrayEquals(expected.getHalfWeights(), actual.getHalfWeights());
+        } else {
+            assertArrayEquals(expected.getWeights(), actual.getWeights());
+        }
+    }
+
+    private static int readVersion(File file) {
+        try {
+            return ByteBuffer.wrap(Files.readAllBytes(file.toPath())).getInt(4);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    static byte[] flipBit(byte[] good, Random rnd) {
+        final byte[] bad = good.clone();
+        bad[rnd.nextInt(bad.length)] ^= (byte) (1 << rnd.nextInt(8));
+        return bad;
+    }
+}
@@ -0,0 +1,107 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+
+/** Markov files round-trip by package name; damaged files leave the table alone. */
+class MarkovProtoStoreTest {
+    private static final float DECAY = 0.9995f;
+
+    @TempDir
+    File mDir;
+
+    @Test
+    void roundTripByPackageName() {
+        final PackageRegistry packages = new PackageRegistry();
+        final MarkovTransitionTable markov = randomTable(new Random(1), packages, 80, 20_000);
+        final MarkovProtoStore store = new MarkovProtoStore(new File(mDir, "markov.bin"));
+        assertTrue(store.write(markov, packages) > 0);
+
+        // a registry that hands out different ids for the same names
+        final PackageRegistry loadedPackages = new PackageRegistry();
+        for (int i = 79; i >= 0; i -= 3) loadedPackages.intern(name(i));
+        final MarkovTransitionTable loaded = new MarkovTransitionTable(8, DECAY);
+        assertTrue(store.readInto(loaded, loadedPackages));
+
+        for (int a = 0; a < 80; a++) {
+            final int srcA = packages.idOf(name(a));
+            final int dstA = loadedPackages.idOf(name(a));
+            assertEquals(markov.rowSize(srcA), loaded.rowSize(dstA), "row size of " + name(a));
+            final int n = markov.rowSize(srcA);
+            if (n == 0) continue;
+            final int[] keys = new int[n];
+            final float[] weights = new float[n];
+            markov.exportRow(srcA, keys, weights);
+            final float tolerance = weights[0] / 65535f; // u16 relative to the row max
+            for (int j = 0; j < n; j++) {
+                final String b = packages.nameOf(keys[j]);
+                assertEquals(weights[j], loaded.weight(dstA, loadedPackages.idOf(b)), tolerance,
+                        name(a) + " -> " + b);
+            }
+        }
+    }
+
+    @Test
+    void missingFileLoadsNothing() {
+        final MarkovTransitionTable markov = new MarkovTransitionTable(8, DECAY);
+        markov.update(1, 2);
+        assertFalse(new MarkovProtoStore(new File(mDir, "absent.bin"))
+                .readInto(markov, new PackageRegistry()));
+        assertEquals(1f, markov.weight(1, 2), 1e-6f);
+    }
+
+    @Test
+    void damagedFileLeavesTableUntouched() throws IOException {
+        final File file = new File(mDir, "markov.bin");
+        final PackageRegistry packages = new PackageRegistry();
+        assertTrue(new MarkovProtoStore(file).write(
+                randomTable(new Random(2), packages, 30, 2_000), packages) > 0);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        final Random rnd = new Random(3);
+        for (int trial = 0; trial < 200; trial++) {
+            final byte[] bad;
+            if (trial % 2 == 0) {
+                bad = good.clone();
+                bad[rnd.nextInt(bad.length)] ^= (byte) (1 << rnd.nextInt(8));
+            } else {
+                bad = Arrays.copyOf(good, rnd.nextInt(good.length));
+            }
+            Files.write(file.toPath(), bad);
+
+            final MarkovTransitionTable markov = new MarkovTransitionTable(8, DECAY);
+            markov.update(1, 2);
+            assertFalse(new MarkovProtoStore(file).readInto(markov, new PackageRegistry()),
+                    "trial " + trial);
+            assertEquals(1f, markov.weight(1, 2), 1e-6f, "trial " + trial);
+        }
+    }
+
+    // ---- helpers ----
+
+    private static String name(int i) {
+        return "com.example.p" + i;
+    }
+
+    private static MarkovTransitionTable randomTable(Random rnd, PackageRegistry packages,
+                                                     int count, int updates) {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        for (int i = 0; i < updates; i++) {
+            // skewed successors, so rows fill up and weights spread out
+            final int a = rnd.nextInt(count);
+            final int b = (a + 1 + (int) Math.abs(rnd.nextGaussian() * 4)) % count;
+            t.update(packages.intern(name(a)), packages.intern(name(b)));
+        }
+        return t;
+    }
+}
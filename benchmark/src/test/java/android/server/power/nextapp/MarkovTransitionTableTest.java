@@ -0,0 +1,256 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Primitive rows, lazy decay, the row budget, seqlock readers and export/import. */
+class MarkovTransitionTableTest {
+    private static final float DECAY = 0.9995f;
+
+    @Test
+    void lazyDecayMatchesEagerDecay() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        t.update(1, 2);
+        assertEquals(1f, t.weight(1, 2), 1e-6f);
+        for (int i = 0; i < 100; i++) t.update(1, 3);
+        assertEquals(Math.pow(DECAY, 100), t.weight(1, 2), 1e-5);
+        assertEquals((1 - Math.pow(DECAY, 100)) / (1 - DECAY), t.weight(1, 3), 1e-2);
+    }
+
+    @Test
+    void renormalizationKeepsWeightsFinite() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        t.update(1, 3);
+        for (int i = 0; i < 300_000; i++) t.update(1, 2); // several renormalizations
+        // steady state of a hit every update: 1 / (1 - decay)
+        assertEquals(1f / (1f - DECAY), t.weight(1, 2), 2f);
+        assertEquals(0f, t.weight(1, 3), 1e-6f);
+        assertEquals(2, topN(t, 1, 1)[0]);
+    }
+
+    @Test
+    void ignoresSelfAndInvalidTransitions() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        t.update(1, 1);
+        t.update(-1, 2);
+        t.update(1, -1);
+        assertEquals(0, t.rowCount());
+    }
+
+    @Test
+    void topNIsSortedByWeightAndRowsStayWithinTopM() {
+        final int topM = 6;
+        final MarkovTransitionTable t = new MarkovTransitionTable(topM, DECAY);
+        final Random rnd = new Random(1);
+        for (int i = 0; i < 20_000; i++) t.update(0, rnd.nextBoolean() ? 1 : 2 + rnd.nextInt(20));
+        assertTrue(t.rowSize(0) <= topM);
+        final int[] top = topN(t, 0, topM);
+        for (int i = 1; i < top.length; i++) {
+            assertTrue(t.weight(0, top[i - 1]) >= t.weight(0, top[i]), "not weight desc at " + i);
+        }
+        assertEquals(1, top[0]); // half of all transitions
+    }
+
+    @Test
+    void removePackageDropsRowAndColumn() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        t.update(1, 2);
+        t.update(1, 3);
+        t.update(2, 3);
+        t.update(3, 1);
+        t.removePackage(3);
+        assertEquals(0, t.rowSize(3));
+        assertEquals(0f, t.weight(1, 3));
+        assertEquals(0f, t.weight(2, 3));
+        assertArrayEquals(new int[] {2}, topN(t, 1, 8));
+    }
+
+    @Test
+    void exportImportRoundTrip() {
+        final MarkovTransitionTable src = randomTable(new Random(2), 50, 5_000);
+        final MarkovTransitionTable dst = new MarkovTransitionTable(8, DECAY);
+        for (int a = 0; a < src.rowLimit(); a++) {
+            final int n = src.rowSize(a);
+            if (n == 0) continue;
+            final int[] keys = new int[n];
+            final float[] weights = new float[n];
+            src.exportRow(a, keys, weights);
+            dst.importRow(a, keys, weights, n);
+        }
+        assertSameRows(src, dst);
+    }
+
+    @Test
+    void copyToIsExactAndReusable() {
+        final Random rnd = new Random(3);
+        final MarkovTransitionTable src = randomTable(rnd, 50, 5_000);
+        final MarkovTransitionTable dst = new MarkovTransitionTable(8, DECAY);
+        src.copyTo(dst);
+        assertSameRows(src, dst);
+        for (int i = 0; i < 2_000; i++) src.update(rnd.nextInt(60), rnd.nextInt(60));
+        src.removePackage(7);
+        src.copyTo(dst);
+        assertSameRows(src, dst);
+        for (int a = 0; a < src.rowLimit(); a++) {
+            if (src.rowSize(a) > 0) assertEquals(src.rowVersion(a), dst.rowVersion(a));
+        }
+    }
+
+    @Test
+    void fullRowNewcomerTakesOverTheLightestEntry() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(3, DECAY);
+        for (int i = 0; i < 3; i++) t.update(1, 2);
+        for (int i = 0; i < 2; i++) t.update(1, 3);
+        t.update(1, 4);
+        final float lightest = t.weight(1, 4);
+        t.update(1, 5); // row full: 5 replaces 4 and inherits its weight plus the hit
+        assertEquals(0f, t.weight(1, 4));
+        assertEquals(lightest * DECAY + 1f, t.weight(1, 5), 1e-5f);
+        assertEquals(3, t.rowSize(1));
+        assertArrayEquals(new int[] {2, 5, 3}, topN(t, 1, 3)); // the inherited weight ranks it
+    }
+
+    @Test
+    void rowBudgetEvictsTheLeastRecentlyUpdatedRow() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY, 4);
+        for (int a = 0; a < 4; a++) t.update(a, 10);
+        t.update(0, 11); // 1 is now the oldest
+        t.update(4, 10);
+        assertEquals(4, t.rowCount());
+        assertEquals(1, t.evictionCount());
+        assertEquals(0, t.rowSize(1));
+        assertEquals(2, t.rowSize(0));
+
+        t.update(1, 10); // an evicted A starts over, evicting the next oldest
+        assertEquals(0, t.rowSize(2));
+        assertEquals(2, t.evictionCount());
+        t.removePackage(3); // a removal frees a slot without counting as an eviction
+        t.update(5, 10);
+        assertEquals(4, t.rowCount());
+        assertEquals(2, t.evictionCount());
+
+        // snapshots are not bounded
+        final MarkovTransitionTable unbounded = new MarkovTransitionTable(8, DECAY);
+        for (int a = 0; a < 100; a++) unbounded.update(a, 200);
+        assertEquals(100, unbounded.rowCount());
+        assertEquals(0, unbounded.evictionCount());
+    }
+
+    @Test
+    void rowVersionsNeverRepeatAcrossDrops() {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY, 2);
+        int last = t.rowVersion(1);
+        final int[] keys = {5, 6};
+        final float[] weights = {2f, 1f};
+        for (int round = 0; round < 50; round++) {
+            t.update(1, 2);
+            last = assertAbove(last, t.rowVersion(1));
+            t.update(2, 3);
+            t.update(3, 4); // evicts 1
+            assertEquals(0, t.rowSize(1));
+            last = assertAbove(last, t.rowVersion(1));
+            t.importRow(1, keys, weights, 2);
+            last = assertAbove(last, t.rowVersion(1));
+            t.removePackage(1);
+            last = assertAbove(last, t.rowVersion(1));
+        }
+    }
+
+    @Test
+    void concurrentTopNNeverSeesATornRow() throws InterruptedException {
+        final int topM = 8;
+        final int successors = 30;
+        final MarkovTransitionTable t = new MarkovTransitionTable(topM, DECAY, 4);
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] readers = new Thread[3];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                final int[] out = new int[topM];
+                int lastVersion = 0;
+                try {
+                    while (!done.get()) {
+                        final int version = t.rowVersion(0);
+                        if (version < lastVersion) throw new AssertionError("version went back");
+                        lastVersion = version;
+                        final int n = t.topN(0, out, topM);
+                        // a consistent row has distinct successors of 0, never 0 itself
+                        for (int i = 0; i < n; i++) {
+                            if (out[i] < 1 || out[i] > successors) {
+                                throw new AssertionError("bad successor " + out[i]);
+                            }
+                            for (int j = 0; j < i; j++) {
+                                if (out[j] == out[i]) throw new AssertionError("torn row");
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers[r].start();
+        }
+        // the single writer: Space-Saving replacements, removals, imports and evictions
+        final Random rnd = new Random(4);
+        final int[] keys = {3, 1, 2};
+        final float[] weights = {3f, 2f, 1f};
+        for (int i = 0; i < 2_000_000 && failure.get() == null; i++) {
+            t.update(0, 1 + rnd.nextInt(successors));
+            if (i % 1_000 == 0) t.removePackage(1 + rnd.nextInt(successors));
+            if (i % 5_000 == 0) t.importRow(0, keys, weights, keys.length);
+            if (i % 7_000 == 0) {
+                for (int a = 100; a < 104; a++) t.update(a, 1); // evicts row 0
+            }
+        }
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertFalse(t.evictionCount() == 0);
+    }
+
+    // ---- helpers ----
+
+    static MarkovTransitionTable randomTable(Random rnd, int packages, int updates) {
+        final MarkovTransitionTable t = new MarkovTransitionTable(8, DECAY);
+        for (int i = 0; i < updates; i++) t.update(rnd.nextInt(packages), rnd.nextInt(packages));
+        return t;
+    }
+
+    static int[] topN(MarkovTransitionTable t, int a, int n) {
+        final int[] out = new int[n];
+        final int k = t.topN(a, out, n);
+        return Arrays.copyOf(out, k);
+    }
+
+    /** Asserts current > last and returns it. */
+    private static int assertAbove(int last, int current) {
+        assertTrue(current > last, current + " after " + last);
+        return current;
+    }
+
+    static void assertSameRows(MarkovTransitionTable expected, MarkovTransitionTable actual) {
+        final int limit = Math.max(expected.rowLimit(), actual.rowLimit());
+        for (int a = 0; a < limit; a++) {
+            final int n = a < expected.rowLimit() ? expected.rowSize(a) : 0;
+            assertEquals(n, a < actual.rowLimit() ? actual.rowSize(a) : 0, "row size of " + a);
+            if (n == 0) continue;
+            final int[] ek = new int[n];
+            final float[] ew = new float[n];
+            final int[] ak = new int[n];
+            final float[] aw = new float[n];
+            expected.exportRow(a, ek, ew);
+            actual.exportRow(a, ak, aw);
+            assertArrayEquals(ek, ak, "keys of " + a);
+            assertArrayEquals(ew, aw, 1e-6f * Math.max(1f, ew[0]), "weights of " + a);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import android.app.AlarmManager;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/** One armed alarm for the earliest long-window deadline; due As finalized once per fire. */
+class NextAppAlarmSchedulerTest {
+    private static final long T0 = 1_000_000L;
+    private static final int WINDOW_MS = 180_000;
+
+    @TempDir
+    File mDataDir;
+
+    private NextAppEngine mEngine;
+    private Context mContext;
+    private AlarmManager mAlarm;
+    private NextAppAlarmScheduler mScheduler;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        SystemClock.setTimeForTest(T0);
+        final NextAppConfig cfg = new NextAppConfig();
+        cfg.asyncTraining = false; // finalization is applied when the hook returns
+        cfg.journalEnable = false;
+        mEngine = new NextAppEngine(cfg, ModelFiles.forUser(20));
+        mContext = new Context();
+        mAlarm = mContext.getSystemService(AlarmManager.class);
+        mScheduler = new NextAppAlarmScheduler(mContext,
+                new ComponentName("android", NextAppAlarmReceiver.class.getName()), mEngine);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mEngine.shutdown();
+        SystemClock.resumeRealTimeForTest();
+    }
+
+    @Test
+    void onlyAnEarlierDeadlineCallsAlarmManager() {
+        mScheduler.scheduleLongWindow("com.a", WINDOW_MS);
+        mScheduler.scheduleLongWindow("com.b", WINDOW_MS);
+        assertEquals(List.of(T0 + WINDOW_MS), mAlarm.getSetTimesForTest());
+
+        mScheduler.scheduleLongWindow("com.a", 60_000);  // earlier: re-armed
+        mScheduler.scheduleLongWindow("com.b", 300_000); // later: the armed alarm stays
+        assertEquals(List.of(T0 + WINDOW_MS, T0 + 60_000), mAlarm.getSetTimesForTest());
+        mScheduler.scheduleLongWindow("com.a", 240_000); // moved past b's old deadline
+        assertEquals(2, mAlarm.getSetTimesForTest().size());
+
+        // the early fire finds nothing due and re-arms for the new earliest (a)
+        fireAt(T0 + 60_000);
+        assertEquals(0, finalized());
+        assertEquals(T0 + 240_000, mAlarm.getArmedTimeForTest());
+        fireAt(T0 + 240_000);
+        assertEquals(1, finalized());
+        assertEquals(T0 + 300_000, mAlarm.getArmedTimeForTest());
+        fireAt(T0 + 300_000);
+        assertEquals(2, finalized());
+    }
+
+    @Test
+    void cancellingTheArmedHeadLetsTheAlarmFireEarly() {
+        mScheduler.scheduleLongWindow("com.a", 60_000);
+        mScheduler.scheduleLongWindow("com.b", 120_000);
+        mScheduler.cancelLongWindow("com.a");
+        mScheduler.cancelLongWindow("com.unknown");
+        assertEquals(List.of(T0 + 60_000), mAlarm.getSetTimesForTest());
+
+        fireAt(T0 + 60_000);
+        assertEquals(0, finalized());
+        assertEquals(T0 + 120_000, mAlarm.getArmedTimeForTest());
+        fireAt(T0 + 120_000);
+        assertEquals(1, finalized());
+
+        // nothing left: a stray fire neither finalizes nor re-arms
+        final int sets = mAlarm.getSetTimesForTest().size();
+        fireAt(T0 + 500_000);
+        assertEquals(1, finalized());
+        assertEquals(sets, mAlarm.getSetTimesForTest().size());
+    }
+
+    @Test
+    void everyDueAIsFinalizedExactlyOnce() {
+        // 40 As (past the heap's initial 16) with deadlines 1 s apart, scheduled shuffled
+        final List<Integer> order = new ArrayList<>();
+        for (int i = 0; i < 40; i++) order.add(i);
+        Collections.shuffle(order, new Random(1));
+        for (int i : order) {
+            mEngine.onAllowedToRun(pkg(i), new NextAppContext(1, 1, null, 1, false));
+            mScheduler.scheduleLongWindow(pkg(i), (i + 1) * 1000);
+        }
+        final PackageRegistry packages = mEngine.getPredictor().getPackages();
+        final PrefetchSessionStore sessions = mEngine.getPredictor().getSessions();
+        final PrefetchSessionStore.Session s = new PrefetchSessionStore.Session(32);
+
+        final NextAppAlarmReceiver receiver = new NextAppAlarmReceiver(mScheduler);
+        SystemClock.setTimeForTest(T0 + 20_500);
+        receiver.onReceive(mContext, new Intent("some.other.ACTION"));
+        assertEquals(0, finalized());
+        receiver.onReceive(mContext, new Intent(NextAppAlarmScheduler.actionLongExpire()));
+        assertEquals(20, finalized());
+        for (int i = 0; i < 40; i++) {
+            // a finalized A's session was resolved; the others are still open
+            assertEquals(i >= 20, sessions.peek(packages.idOf(pkg(i)), s), pkg(i));
+        }
+        assertEquals(T0 + 21_000, mAlarm.getArmedTimeForTest());
+
+        mScheduler.onAlarm(); // again at the same time: nothing is due twice
+        assertEquals(20, finalized());
+        fireAt(T0 + 40_000);
+        assertEquals(40, finalized());
+        assertEquals(0, sessions.size());
+    }
+
+    @Test
+    void heapKeepsOrderThroughRandomReschedulesAndCancels() {
+        final Random rnd = new Random(2);
+        final long[] deadline = new long[64];
+        Arrays.fill(deadline, -1);
+        for (int step = 0; step < 2_000; step++) {
+            final int i = rnd.nextInt(deadline.length);
+            if (rnd.nextInt(4) == 0) {
+                mScheduler.cancelLongWindow(pkg(i));
+                deadline[i] = -1;
+            } else {
+                final int window = 1 + rnd.nextInt(100_000);
+                mScheduler.scheduleLongWindow(pkg(i), window);
+                deadline[i] = T0 + window;
+            }
+        }
+        // firing at each deadline in turn finalizes exactly the As due by then
+        final long[] sorted = deadline.clone();
+        Arrays.sort(sorted);
+        int due = 0;
+        for (int k = 0; k < sorted.length; k++) {
+            if (sorted[k] < 0) continue;
+            due++;
+            if (k + 1 < sorted.length && sorted[k + 1] == sorted[k]) continue; // same deadline
+            fireAt(sorted[k]);
+            assertEquals(due, finalized(), "at " + sorted[k]);
+        }
+        assertTrue(due > 0);
+    }
+
+    // ---- helpers ----
+
+    private void fireAt(long ms) {
+        SystemClock.setTimeForTest(ms);
+        mScheduler.onAlarm();
+    }
+
+    private long finalized() {
+        return mEngine.getStats().getCalls(NextAppStats.HOOK_LONG_WINDOW);
+    }
+
+    private static String pkg(int i) {
+        return "com.example.app" + i;
+    }
+}
@@ -0,0 +1,214 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** Keying and invalidation of NextAppDecisionCache, and decisions with it on and off. */
+class NextAppDecisionCacheTest {
+    private static final int[] NONE = new int[0];
+    private static final long MAX_AGE_MS = 10_000;
+
+    @TempDir
+    File mDataDir;
+
+    @Test
+    void keysAreDistinctAndOutOfRangeIsNotCached() {
+        final Set<Long> keys = new HashSet<>();
+        for (int a = 0; a < 4; a++) {
+            for (int prev = -1; prev < 3; prev++) {
+                for (int time = 0; time < 16; time += 5) {
+                    for (int battery = 0; battery < 4; battery++) {
+                        for (int power = 0; power < 2; power++) {
+                            final long key = NextAppDecisionCache.key(a, prev,
+                                    new NextAppContext(time, 1, null, battery, power == 1));
+                            assertNotEquals(NextAppDecisionCache.NO_KEY, key);
+                            assertTrue(keys.add(key), "duplicate key");
+                        }
+                    }
+                }
+            }
+        }
+        final NextAppContext ctx = new NextAppContext(0, 0, null, 0, false);
+        assertEquals(NextAppDecisionCache.NO_KEY, NextAppDecisionCache.key(1 << 24, -1, ctx));
+        assertEquals(NextAppDecisionCache.NO_KEY,
+                NextAppDecisionCache.key(1, -1, new NextAppContext(16, 0, null, 0, false)));
+    }
+
+    @Test
+    void anyChangeOrClearMisses() {
+        final NextAppDecisionCache cache = new NextAppDecisionCache(4, MAX_AGE_MS);
+        final long key = NextAppDecisionCache.key(3, -1, new NextAppContext(1, 1, null, 1, false));
+        final int epoch = cache.epoch();
+        final int[] cand = {7, 4, 9};
+        cache.put(key, epoch, 5L, 1_000L, NextAppDecision.NONE, cand, 3, NONE, 0);
+        assertNotNull(cache.get(key, epoch, 5L, 1_000L, cand, 3));
+        assertNotNull(cache.get(key, epoch, 5L, 1_000L + MAX_AGE_MS, new int[] {7, 4, 9, 1}, 3));
+        assertNull(cache.get(key, epoch, 6L, 1_000L, cand, 3));               // LR generation
+        assertNull(cache.get(key, epoch, 5L, 1_001L + MAX_AGE_MS, cand, 3));  // too old
+        assertNull(cache.get(key, epoch, 5L, 1_000L, new int[] {4, 7, 9}, 3)); // Markov order
+        assertNull(cache.get(key, epoch, 5L, 1_000L, cand, 2));
+        assertNull(cache.get(key, epoch, 5L, 1_000L, new int[] {7, 4, 9, 2}, 4));
+
+        // a computation that raced with clear() is not cached
+        cache.clear();
+        assertNull(cache.get(key, epoch, 5L, 1_000L, cand, 3));
+        cache.put(key, epoch, 5L, 1_000L, NextAppDecision.NONE, cand, 3, NONE, 0);
+        assertNull(cache.get(key, cache.epoch(), 5L, 1_000L, cand, 3));
+
+        final NextAppDecisionCache off = new NextAppDecisionCache(-1, MAX_AGE_MS);
+        off.put(key, off.epoch(), 5L, 1_000L, NextAppDecision.NONE, cand, 3, NONE, 0);
+        assertNull(off.get(key, off.epoch(), 5L, 1_000L, cand, 3));
+    }
+
+    @Test
+    void concurrentReadersOnlySeeMatchingEntries() throws InterruptedException {
+        final NextAppDecisionCache cache = new NextAppDecisionCache(3, MAX_AGE_MS); // collisions
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                final Random rnd = new Random(seed);
+                try {
+                    for (int i = 0; i < 200_000; i++) {
+                        final int a = rnd.nextInt(32);
+                        final long version = rnd.nextInt(4);
+                        final long key = NextAppDecisionCache.key(a, -1,
+                                new NextAppContext(0, 0, null, 0, false));
+                        final int[] cand = {a};
+                        final NextAppDecisionCache.Entry e =
+                                cache.get(key, cache.epoch(), version, 0L, cand, 1);
+                        if (e != null && (e.candidates[0] != a || e.decision.topScore != version)) {
+                            throw new AssertionError("entry of another key or version");
+                        }
+                        if (e == null) {
+                            final NextAppDecision d =
+                                    new NextAppDecision(Collections.emptyList(), 0f, version);
+                            cache.put(key, cache.epoch(), version, 0L, d, cand, 1, NONE, 0);
+                        }
+                        if (seed == 0 && i % 10_000 == 0) cache.clear();
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertTrue(cache.getHits() > 0);
+    }
+
+    @Test
+    void decisionsAreTheSameWithAndWithoutTheCache() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        final NextAppEngine cached = newEngine(6, 1, 10); // exact: new LR generation every step
+        final NextAppEngine uncached = newEngine(-1, 1, 11);
+        try {
+            final Random rnd = new Random(1);
+            final String[] pkgs = new String[24];
+            for (int i = 0; i < pkgs.length; i++) pkgs[i] = "com.example.p" + i;
+            String prev = null;
+            String a = pkgs[0];
+            int prefetches = 0;
+            for (int step = 0; step < 20_000; step++) {
+                final NextAppContext ctx = new NextAppContext(rnd.nextInt(2), 1, prev,
+                        rnd.nextInt(2), false);
+                // repeated asks between training steps are what the cache serves
+                for (int ask = 1 + rnd.nextInt(3); ask > 0; ask--) {
+                    final NextAppDecision c = cached.onAllowedToRun(a, ctx);
+                    final NextAppDecision u = uncached.onAllowedToRun(a, ctx);
+                    assertEquals(u.prefetchPkgs, c.prefetchPkgs, "step " + step);
+                    assertEquals(u.gatingPNext, c.gatingPNext, "step " + step);
+                    assertEquals(u.topScore, c.topScore, "step " + step);
+                    if (!c.prefetchPkgs.isEmpty()) prefetches++;
+                }
+                final String b = pkgs[(indexOf(pkgs, a) + 1 + rnd.nextInt(3)) % pkgs.length];
+                if (rnd.nextInt(10) == 0) {
+                    cached.onTtlExpiredNoNextApp(a);
+                    uncached.onTtlExpiredNoNextApp(a);
+                } else {
+                    cached.onForegroundChanged(a, b);
+                    uncached.onForegroundChanged(a, b);
+                    prev = a;
+                    a = b;
+                }
+            }
+            final NextAppDecisionCache decisions = cached.getPredictor().getDecisionCache();
+            assertTrue(decisions.getHits() > 1_000, "hits " + decisions.getHits());
+            assertEquals(0L, uncached.getPredictor().getDecisionCache().getHits());
+            assertTrue(prefetches > 1_000, "prefetches " + prefetches);
+        } finally {
+            cached.shutdown();
+            uncached.shutdown();
+        }
+    }
+
+    @Test
+    void bounceLoopHitsWithinTheStalenessBound() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        final int lrUpdates = 32;
+        final NextAppEngine coarse = newEngine(6, lrUpdates, 12);
+        final NextAppEngine exact = newEngine(6, 1, 13);
+        try {
+            final String[] loop = {"com.example.a", "com.example.b", "com.example.c"};
+            final int rounds = 300;
+            for (int r = 0; r < rounds; r++) {
+                for (int i = 0; i < loop.length; i++) {
+                    final String a = loop[i];
+                    final String prev = loop[(i + loop.length - 1) % loop.length];
+                    final String b = loop[(i + 1) % loop.length];
+                    final NextAppContext ctx = new NextAppContext(1, 1, prev, 2, false);
+                    coarse.onAllowedToRun(a, ctx);
+                    exact.onAllowedToRun(a, ctx);
+                    // each hop finds a session, so both LR models train on every hop
+                    coarse.onForegroundChanged(a, b);
+                    exact.onForegroundChanged(a, b);
+                }
+            }
+            final NextAppDecisionCache c = coarse.getPredictor().getDecisionCache();
+            final NextAppDecisionCache e = exact.getPredictor().getDecisionCache();
+            assertEquals(0L, e.getHits());
+            // a generation lasts lrUpdates hops; the loop's entries miss once after each
+            final long lookups = rounds * loop.length;
+            final long maxMisses = loop.length * (lookups / lrUpdates + 2);
+            assertEquals(lookups, c.getHits() + c.getMisses());
+            assertTrue(c.getMisses() <= maxMisses, "misses " + c.getMisses());
+        } finally {
+            coarse.shutdown();
+            exact.shutdown();
+        }
+    }
+
+    // ---- helpers ----
+
+    private static NextAppEngine newEngine(int cachePow2, int lrUpdates, int userId) {
+        final NextAppConfig cfg = new NextAppConfig();
+        cfg.decisionCacheSizePow2 = cachePow2;
+        cfg.decisionCacheLrUpdates = lrUpdates;
+        cfg.asyncTraining = false; // train inline: both engines see the same model at each ask
+        cfg.journalEnable = false;
+        cfg.rankThreshold = 0.3f; // prefetch often enough to compare non-empty decisions
+        return new NextAppEngine(cfg, ModelFiles.forUser(userId));
+    }
+
+    private static int indexOf(String[] pkgs, String pkg) {
+        for (int i = 0; i < pkgs.length; i++) {
+            if (pkgs[i].equals(pkg)) return i;
+        }
+        return -1;
+    }
+}
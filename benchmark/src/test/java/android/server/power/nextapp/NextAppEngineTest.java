@@ -0,0 +1,154 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Crash and reload: journal replay on top of the last checkpoint restores the models. */
+class NextAppEngineTest {
+    private static final int USER = 10;
+    private static final int APPS = 40;
+    private static final String LATE = "com.example.late";
+
+    @TempDir
+    File mDataDir;
+
+    private final String[] mPkgs = new String[APPS];
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        for (int i = 0; i < APPS; i++) mPkgs[i] = "com.example.app" + i;
+    }
+
+    @Test
+    void replayAfterCrashRestoresDecisionsExactly() {
+        crashAndReload(false, 0f);
+    }
+
+    @Test
+    void replayOnTopOfACheckpointRestoresDecisions() {
+        // The Markov snapshot keeps u16 weights, so near-tied candidates may come back in
+        // another order: replayed ranking batches then sum the same gradients in another
+        // order, which moves scores by float rounding only.
+        crashAndReload(true, 1e-5f);
+    }
+
+    @Test
+    void lrFilesOfAnotherDimensionAreMigratedOnLoad() {
+        final OnlineLogisticModel saved = OnlineLogisticModelTest.trained(12);
+        for (int pow2 : new int[] {11, 13}) {
+            final ModelFiles files = ModelFiles.forUser(USER + pow2);
+            assertTrue(new LrAtomicStore(files.gatingLrFile()).write(saved) > 0);
+            assertTrue(new LrAtomicStore(files.rankLrFile()).write(saved) > 0);
+            final OnlineLogisticModel expected = new OnlineLogisticModel(pow2, 0.05f, 0f);
+            expected.restoreResized(12, saved.getBias(), saved.getWeights());
+
+            final NextAppConfig cfg = new NextAppConfig();
+            cfg.hashDimPow2 = pow2;
+            cfg.journalEnable = false;
+            final NextAppEngine e = new NextAppEngine(cfg, files);
+            try {
+                e.loadModels();
+                for (OnlineLogisticModel lr : new OnlineLogisticModel[] {
+                        e.getPredictor().getGatingLr(), e.getPredictor().getRankLr()}) {
+                    assertEquals(pow2, lr.getHashDimPow2());
+                    assertEquals(saved.getBias(), lr.getBias());
+                    assertArrayEquals(expected.getWeights(), lr.getWeights(), "2^" + pow2);
+                }
+            } finally {
+                e.shutdown();
+            }
+            // the shutdown checkpoint rewrote the files at the configured dimension
+            assertEquals(pow2, new LrAtomicStore(files.gatingLrFile()).readOrNull().hashDimPow2);
+        }
+    }
+
+    private void crashAndReload(boolean checkpointMidway, float scoreTolerance) {
+        final NextAppEngine crashed = newEngine();
+        NextAppEngine reloaded = null;
+        try {
+            crashed.loadModels();
+            final Random rnd = new Random(5);
+            final int[] prev = {-1};
+            drive(crashed, rnd, 3_000, prev);
+            if (checkpointMidway) crashed.saveModels();
+            drive(crashed, rnd, 2_000, prev);
+            crashed.onForegroundChanged(mPkgs[prev[0]], LATE); // interned after the checkpoint
+            crashed.onPackageRemoved(mPkgs[13]);
+            drive(crashed, rnd, 500, prev);
+
+            // no shutdown(): a fresh engine on the same files, as after a crash
+            reloaded = newEngine();
+            reloaded.loadModels();
+            assertTrue(reloaded.getPredictor().getPackages().idOf(LATE) >= 0);
+            final List<NextAppDecision> expected = probe(crashed);
+            final List<NextAppDecision> actual = probe(reloaded);
+            int prefetches = 0;
+            for (int i = 0; i < expected.size(); i++) {
+                final NextAppDecision e = expected.get(i);
+                final NextAppDecision a = actual.get(i);
+                assertEquals(e.prefetchPkgs, a.prefetchPkgs, "probe " + i);
+                assertEquals(e.gatingPNext, a.gatingPNext, "probe " + i);
+                assertEquals(e.topScore, a.topScore, scoreTolerance, "probe " + i);
+                if (!e.prefetchPkgs.isEmpty()) prefetches++;
+            }
+            assertTrue(prefetches > 0);
+        } finally {
+            crashed.shutdown();
+            if (reloaded != null) reloaded.shutdown();
+        }
+    }
+
+    // ---- helpers ----
+
+    private static NextAppEngine newEngine() {
+        final NextAppConfig cfg = new NextAppConfig();
+        cfg.asyncTraining = false; // every event is journaled when its hook returns
+        cfg.checkpointEveryNUpdates = Integer.MAX_VALUE; // only the explicit save
+        cfg.journalSegmentBytes = 8 * 1024; // several segments
+        cfg.rankThreshold = 0.3f; // prefetch often enough to compare non-empty decisions
+        cfg.decisionCacheLrUpdates = 1; // probes compare exact decisions, never stale cached ones
+        return new NextAppEngine(cfg, ModelFiles.forUser(USER));
+    }
+
+    /** A random walk over the apps with every kind of training hook. */
+    private void drive(NextAppEngine e, Random rnd, int steps, int[] prev) {
+        for (int i = 0; i < steps; i++) {
+            final int p = prev[0] < 0 || rnd.nextInt(3) == 0
+                    ? rnd.nextInt(APPS) : (prev[0] * 7 + 3) % APPS;
+            if (prev[0] >= 0 && prev[0] != p) e.onForegroundChanged(mPkgs[prev[0]], mPkgs[p]);
+            final NextAppContext ctx = new NextAppContext(rnd.nextInt(4), rnd.nextInt(5),
+                    prev[0] < 0 ? null : mPkgs[prev[0]], rnd.nextInt(4), rnd.nextBoolean());
+            final NextAppDecision d = e.onAllowedToRun(mPkgs[p], ctx);
+            if (rnd.nextInt(4) == 0) e.onTtlExpiredNoNextApp(mPkgs[p]);
+            if (!d.prefetchPkgs.isEmpty() && rnd.nextInt(2) == 0) {
+                e.onPrefetchExpiredNotUsed(mPkgs[p], d.prefetchPkgs.get(0));
+            }
+            if (rnd.nextInt(50) == 0) e.onLongWindowExpiredFinalize(mPkgs[p]);
+            prev[0] = p;
+        }
+    }
+
+    /** Every app's decision in a few contexts. */
+    private List<NextAppDecision> probe(NextAppEngine e) {
+        final List<NextAppDecision> out = new ArrayList<>();
+        for (int p = 0; p <= APPS; p++) {
+            final String pkg = p < APPS ? mPkgs[p] : LATE;
+            for (int t = 0; t < 4; t++) {
+                out.add(e.onAllowedToRun(pkg,
+                        new NextAppContext(t, 1, mPkgs[(p + 1) % APPS], 2, false)));
+            }
+        }
+        return out;
+    }
+}
@@ -0,0 +1,198 @@
+package android.server.power.nextapp;
+
+import static android.server.power.nextapp.NextAppUserEnginesTest.awaitTrue;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import android.os.HandlerThread;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/** The trainer's multi-producer ring: nothing lost or reordered, drops counted, shutdown. */
+class NextAppTrainerTest {
+    private static final int PRODUCERS = 4;
+    private static final int ROWS_PER_PRODUCER = 500;
+    private static final int EVENTS_PER_ROW = 8;  // < markovTopMPerA: every B stays in the row
+    private static final int B_BASE = 10_000;
+
+    private final Object mLock = new Object();
+
+    @Test
+    void concurrentOffersAreAllTrainedInOfferOrder() throws InterruptedException {
+        final NextAppConfig cfg = newConfig();
+        cfg.trainQueueCapacityPow2 = 16; // holds every event: none may be dropped
+        cfg.trainDelayMs = 0;            // the trainer drains while producers offer
+        final NextAppPredictor predictor = new NextAppPredictor(cfg, new PackageRegistry());
+        final NextAppTrainer trainer = new NextAppTrainer(cfg, predictor, null, mLock);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            producers[p] = new Thread(() -> {
+                try {
+                    // each row's successors in a fixed order, interleaved across rows
+                    for (int j = 0; j < EVENTS_PER_ROW; j++) {
+                        for (int r = 0; r < ROWS_PER_PRODUCER; r++) {
+                            if (!trainer.offer(NextAppTrainer.EVENT_FOREGROUND,
+                                    producer * ROWS_PER_PRODUCER + r, B_BASE + j)) {
+                                throw new AssertionError("dropped with room in the ring");
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            producers[p].start();
+        }
+        for (Thread t : producers) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        synchronized (mLock) {
+            trainer.drainAllLocked();
+        }
+        trainer.shutdown();
+
+        assertEquals(0, trainer.getDroppedCount());
+        // with decay, a later successor always outweighs an earlier one
+        final int[] expected = new int[EVENTS_PER_ROW];
+        for (int j = 0; j < EVENTS_PER_ROW; j++) expected[j] = B_BASE + EVENTS_PER_ROW - 1 - j;
+        final int[] top = new int[EVENTS_PER_ROW + 1];
+        for (int a = 0; a < PRODUCERS * ROWS_PER_PRODUCER; a++) {
+            final int n = predictor.getMarkov().topN(a, top, top.length);
+            assertEquals(EVENTS_PER_ROW, n, "row " + a);
+            for (int j = 0; j < n; j++) assertEquals(expected[j], top[j], "row " + a);
+        }
+    }
+
+    @Test
+    void fullRingDropsAndCounts() {
+        final NextAppConfig cfg = newConfig();
+        cfg.trainQueueCapacityPow2 = 1;   // two slots
+        cfg.trainDelayMs = 60 * 60_000L; // the trainer thread never gets to drain
+        final NextAppPredictor predictor = new NextAppPredictor(cfg, new PackageRegistry());
+        final NextAppTrainer trainer = new NextAppTrainer(cfg, predictor, null, mLock);
+        try {
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 2));
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 3));
+            assertFalse(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 4));
+            assertFalse(trainer.offer(NextAppTrainer.EVENT_TTL_NO_NEXT, 1, PackageRegistry.NO_ID));
+            assertEquals(2, trainer.getDroppedCount());
+
+            synchronized (mLock) {
+                assertEquals(2, trainer.drainLocked(Integer.MAX_VALUE));
+            }
+            assertTrue(predictor.getMarkov().weight(1, 2) > 0);
+            assertEquals(0f, predictor.getMarkov().weight(1, 4));
+            // the slots are free again, one lap on
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 4));
+            synchronized (mLock) {
+                assertEquals(1, trainer.drainLocked(Integer.MAX_VALUE));
+            }
+            assertTrue(predictor.getMarkov().weight(1, 4) > 0);
+        } finally {
+            trainer.shutdown();
+        }
+    }
+
+    @Test
+    void offersAfterShutdownAreDropped() {
+        for (boolean async : new boolean[] {true, false}) {
+            final NextAppConfig cfg = newConfig();
+            cfg.asyncTraining = async;
+            cfg.trainDelayMs = 60 * 60_000L;
+            final NextAppPredictor predictor = new NextAppPredictor(cfg, new PackageRegistry());
+            final NextAppTrainer trainer = new NextAppTrainer(cfg, predictor, null, mLock);
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 2));
+            trainer.shutdown();
+            assertFalse(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 3), "async " + async);
+
+            // what was queued before shutdown is still the engine's to drain
+            synchronized (mLock) {
+                trainer.drainAllLocked();
+            }
+            assertTrue(predictor.getMarkov().weight(1, 2) > 0, "async " + async);
+            assertEquals(0f, predictor.getMarkov().weight(1, 3), "async " + async);
+        }
+    }
+
+    @Test
+    void shutdownOnASharedThreadStopsOnlyThatTrainer() {
+        final HandlerThread shared = new HandlerThread("NextAppTrainerTest");
+        shared.start();
+        try {
+            final NextAppConfig cfg = newConfig();
+            cfg.trainDelayMs = 0;
+            final NextAppPredictor stopped = new NextAppPredictor(cfg, new PackageRegistry());
+            final NextAppPredictor live = new NextAppPredictor(cfg, new PackageRegistry());
+            final NextAppTrainer a =
+                    new NextAppTrainer(cfg, stopped, null, mLock, shared.getLooper());
+            final NextAppTrainer b =
+                    new NextAppTrainer(cfg, live, null, mLock, shared.getLooper());
+            a.shutdown();
+            assertFalse(a.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 2));
+            assertTrue(b.offer(NextAppTrainer.EVENT_FOREGROUND, 1, 2));
+            awaitTrue(() -> weightLocked(live, 1, 2) > 0);
+            assertTrue(shared.isAlive());
+            b.shutdown();
+            assertEquals(0f, weightLocked(stopped, 1, 2));
+        } finally {
+            shared.quitSafely();
+        }
+    }
+
+    @Test
+    void queuedEventLeavesANewerSessionAlone() {
+        final NextAppConfig cfg = newConfig();
+        cfg.trainDelayMs = 60 * 60_000L; // drained only below
+        final PackageRegistry packages = new PackageRegistry();
+        final int a = packages.intern("com.a");
+        final int b = packages.intern("com.b");
+        final int c = packages.intern("com.c");
+        final NextAppPredictor predictor = new NextAppPredictor(cfg, packages);
+        final NextAppTrainer trainer = new NextAppTrainer(cfg, predictor, null, mLock);
+        final PrefetchSessionStore.Session s = new PrefetchSessionStore.Session(cfg.candidateTopN);
+        try {
+            final NextAppContext first = new NextAppContext(1, 1, null, 1, false);
+            final NextAppContext second = new NextAppContext(2, 3, null, 2, true);
+            predictor.onAllowedToRun(a, PackageRegistry.NO_ID, first);
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, a, b));
+            predictor.onAllowedToRun(a, PackageRegistry.NO_ID, second); // replaces A's session
+            final long gating = predictor.getGatingLr().getVersion();
+            synchronized (mLock) {
+                assertEquals(1, trainer.drainLocked(Integer.MAX_VALUE));
+            }
+            // the queued A -> B found no session of its own: Markov only, the new one stays
+            assertTrue(predictor.getMarkov().weight(a, b) > 0);
+            assertEquals(gating, predictor.getGatingLr().getVersion());
+            assertTrue(predictor.getSessions().peek(a, s));
+            assertEquals(second, s.ctxAtA);
+
+            // an event offered after it resolves it
+            assertTrue(trainer.offer(NextAppTrainer.EVENT_FOREGROUND, a, c));
+            synchronized (mLock) {
+                assertEquals(1, trainer.drainLocked(Integer.MAX_VALUE));
+            }
+            assertTrue(predictor.getGatingLr().getVersion() > gating);
+            assertFalse(predictor.getSessions().peek(a, s));
+        } finally {
+            trainer.shutdown();
+        }
+    }
+
+    // ---- helpers ----
+
+    private static NextAppConfig newConfig() {
+        final NextAppConfig cfg = new NextAppConfig();
+        cfg.asyncTraining = true;
+        return cfg;
+    }
+
+    private float weightLocked(NextAppPredictor predictor, int a, int b) {
+        synchronized (mLock) {
+            return predictor.getMarkov().weight(a, b);
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The TTL timing wheel, ticked on a test looper under a frozen clock. "No next"
+ * expiries are counted by the engine's hook stats; "prefetch not used" ones are
+ * read back from the training journal, which records the (A, B) names.
+ */
+class NextAppTtlSchedulerTest {
+    private static final long T0 = 5_000_000L;
+    private static final int TTL_MS = 30_000;
+    private static final int USER = 30;
+
+    @TempDir
+    File mDataDir;
+
+    private NextAppConfig mCfg;
+    private NextAppEngine mEngine;
+    private HandlerThread mThread;
+    private Handler mBarrier;
+    private NextAppTtlScheduler mTtl;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        SystemClock.setTimeForTest(T0);
+        mCfg = new NextAppConfig();
+        mCfg.asyncTraining = false; // each expiry is journaled when its hook returns
+        mCfg.enableGating = false;  // "no next" must not take the session "not used" peeks at
+        mEngine = new NextAppEngine(mCfg, ModelFiles.forUser(USER));
+        mThread = new HandlerThread("NextAppTtlSchedulerTest");
+        mThread.start();
+        mBarrier = new Handler(mThread.getLooper());
+        mTtl = new NextAppTtlScheduler(mEngine, mThread.getLooper());
+    }
+
+    @AfterEach
+    void tearDown() {
+        mThread.quitSafely();
+        mEngine.shutdown();
+        SystemClock.resumeRealTimeForTest();
+    }
+
+    @Test
+    void rescheduleMovesTheDeadline() throws InterruptedException {
+        open("com.a", List.of("com.b"));
+        mTtl.schedule("com.a", List.of("com.b"), TTL_MS);
+        advanceTo(T0 + 20_000);
+        mTtl.schedule("com.a", List.of("com.b"), TTL_MS); // now due at T0 + 50 s
+
+        advanceTo(T0 + 31_000);
+        assertEquals(0, noNextCount());
+        advanceTo(T0 + 49_000);
+        assertEquals(0, noNextCount());
+        advanceTo(T0 + 51_000);
+        assertEquals(1, noNextCount());
+        advanceTo(T0 + 200_000);
+        assertEquals(1, noNextCount()); // one timer per key, not one per schedule()
+        assertEquals(List.of("com.a>com.b"), notUsed());
+    }
+
+    @Test
+    void cancelStopsNoNextAndOnlyTheOpenedB() throws InterruptedException {
+        final List<String> bs = List.of("com.b1", "com.b2", "com.b3");
+        open("com.a", bs);
+        mTtl.schedule("com.a", bs, TTL_MS);
+        advanceTo(T0 + 10_000);
+        mTtl.cancelOnNextApp("com.a", "com.b2");
+        mTtl.cancelOnNextApp("com.unknown", "com.b1");
+
+        advanceTo(T0 + 100_000);
+        assertEquals(0, noNextCount());
+        assertEquals(List.of("com.a>com.b1", "com.a>com.b3"), notUsed());
+    }
+
+    @Test
+    void poolAndIndexGrowWithCollidingKeys() throws InterruptedException {
+        // "Aa" and "BB" share a String hash, so these Bs all probe from one index slot
+        final List<String> bs = new ArrayList<>();
+        for (int i = 0; i < 64; i++) {
+            final StringBuilder b = new StringBuilder("com.");
+            for (int bit = 0; bit < 6; bit++) b.append((i >> bit & 1) == 0 ? "Aa" : "BB");
+            bs.add(b.toString());
+        }
+        assertEquals(bs.get(0).hashCode(), bs.get(63).hashCode());
+
+        final Random rnd = new Random(3);
+        final List<String> expected = new ArrayList<>();
+        for (int a = 0; a < 4; a++) {
+            final String pkgA = "com.a" + a;
+            open(pkgA, bs);
+            mTtl.schedule(pkgA, bs, TTL_MS); // 4 x 65 entries: the pool grows from 16
+            // cancel from the middle of the chain, then re-add and re-cancel some
+            final List<String> cancelled = new ArrayList<>();
+            for (String b : bs) {
+                if (rnd.nextInt(3) == 0) {
+                    mTtl.cancelOnNextApp(pkgA, b);
+                    cancelled.add(b);
+                }
+            }
+            for (int i = 0; i < cancelled.size(); i += 2) {
+                mTtl.schedule(pkgA, List.of(cancelled.get(i)), TTL_MS);
+                mTtl.cancelOnNextApp(pkgA, cancelled.get(i));
+            }
+            for (String b : bs) {
+                if (!cancelled.contains(b)) expected.add(pkgA + ">" + b);
+            }
+        }
+
+        advanceTo(T0 + TTL_MS + 2_000);
+        assertEquals(0, noNextCount()); // every cancel also dropped A's "no next"
+        Collections.sort(expected);
+        assertEquals(expected, notUsed());
+    }
+
+    @Test
+    void stallLongerThanARevolutionExpiresEverythingOnce() throws InterruptedException {
+        // deadlines over three 64 s revolutions: 5, 69 and 133 s share a slot, 40 and 104 another
+        final int[] ttls = {5_000, 69_000, 133_000, 40_000, 104_000, 170_000};
+        for (int i = 0; i < ttls.length; i++) mTtl.schedule("com.a" + i, null, ttls[i]);
+
+        // a tick in a later revolution of a slot leaves the not-yet-due entries in it
+        advanceTo(T0 + 6_000);
+        assertEquals(1, noNextCount());
+        advanceTo(T0 + 41_000);
+        assertEquals(2, noNextCount());
+        // stall past everything: the rest expire in one tick, none twice
+        advanceTo(T0 + 400_000);
+        assertEquals(ttls.length, noNextCount());
+        advanceTo(T0 + 800_000);
+        assertEquals(ttls.length, noNextCount());
+    }
+
+    @Test
+    void randomScheduleAndCancelMatchesAModel() throws InterruptedException {
+        final Random rnd = new Random(4);
+        final String[] as = new String[24];
+        final String[] bs = {"com.b0", "com.b1", "com.b2"};
+        for (int i = 0; i < as.length; i++) {
+            as[i] = "com.a" + i;
+            open(as[i], Arrays.asList(bs));
+        }
+        // per A: expiry time of its timers, its "no next" timer, its B timers
+        final long[] expiry = new long[as.length];
+        final boolean[] noNext = new boolean[as.length];
+        final boolean[][] notUsed = new boolean[as.length][bs.length];
+        long now = T0;
+        int expectedNoNext = 0;
+        final List<String> expectedNotUsed = new ArrayList<>();
+        for (int step = 0; step <= 600; step++) {
+            now += step < 600 ? rnd.nextInt(4_000) : 2 * TTL_MS;
+            advanceTo(now);
+            for (int i = 0; i < as.length; i++) {
+                if (!hasTimers(noNext[i], notUsed[i]) || expiry[i] > now) continue;
+                if (noNext[i]) expectedNoNext++;
+                noNext[i] = false;
+                for (int j = 0; j < bs.length; j++) {
+                    if (notUsed[i][j]) expectedNotUsed.add(as[i] + ">" + bs[j]);
+                    notUsed[i][j] = false;
+                }
+            }
+            assertEquals(expectedNoNext, noNextCount(), "step " + step);
+
+            final int i = rnd.nextInt(as.length);
+            final int j = rnd.nextInt(bs.length);
+            if (rnd.nextInt(3) == 0) {
+                mTtl.cancelOnNextApp(as[i], bs[j]);
+                noNext[i] = false;
+                notUsed[i][j] = false;
+            } else if (!hasTimers(noNext[i], notUsed[i])) {
+                // only onto an empty A: a reschedule would move its other Bs' timers too
+                mTtl.schedule(as[i], List.of(bs[j]), TTL_MS);
+                noNext[i] = true;
+                notUsed[i][j] = true;
+                // whole ticks from the scheduler's start, rounded up
+                expiry[i] = T0 + ceilToSecond(now - T0 + TTL_MS);
+            }
+        }
+        assertEquals(expectedNoNext, noNextCount());
+        Collections.sort(expectedNotUsed);
+        assertEquals(expectedNotUsed, notUsed());
+        assertTrue(expectedNoNext > 50 && expectedNotUsed.size() > 50);
+    }
+
+    // ---- helpers ----
+
+    /**
+     * A session for A and ids for the Bs, so "not used" expiries of A reach the
+     * model and the journal (the engine drops them for unknown packages).
+     */
+    private void open(String pkgA, List<String> bs) {
+        for (String b : bs) mEngine.getPredictor().getPackages().intern(b);
+        mEngine.onAllowedToRun(pkgA, new NextAppContext(1, 1, null, 1, false));
+    }
+
+    /** Moves the clock, then waits until the wheel has run every tick due by then. */
+    private void advanceTo(long ms) throws InterruptedException {
+        SystemClock.setTimeForTest(ms);
+        final CountDownLatch done = new CountDownLatch(1);
+        mBarrier.post(done::countDown); // queued behind any tick due at or before ms
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+    }
+
+    private long noNextCount() {
+        return mEngine.getStats().getCalls(NextAppStats.HOOK_TTL_NO_NEXT);
+    }
+
+    /**
+     * "A>B" for every journaled "prefetch not used", sorted: a slot expires in
+     * no particular order. Inline training writes each record through, and no
+     * checkpoint has moved the journal's marker past them (shutdown() would).
+     */
+    private List<String> notUsed() {
+        final ModelFiles files = ModelFiles.forUser(USER);
+        final PackageRegistry names = new PackageRegistry();
+        final List<String> out = new ArrayList<>();
+        new TrainingJournal(files.journalDir(), files.journalMarkerFile(), mCfg, names)
+                .replay((type, a, b, prev, ctx) -> {
+                    if (type == NextAppTrainer.EVENT_PREFETCH_NOT_USED) {
+                        out.add(names.nameOf(a) + ">" + names.nameOf(b));
+                    }
+                });
+        Collections.sort(out);
+        return out;
+    }
+
+    private static boolean hasTimers(boolean noNext, boolean[] notUsed) {
+        if (noNext) return true;
+        for (boolean b : notUsed) {
+            if (b) return true;
+        }
+        return false;
+    }
+
+    private static long ceilToSecond(long ms) {
+        return (ms + 999) / 1000 * 1000;
+    }
+}
@@ -0,0 +1,110 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import android.os.UserHandle;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.function.BooleanSupplier;
+
+/** Load, evict and reload of per-user engines on the shared threads. */
+class NextAppUserEnginesTest {
+    private static final long WAIT_MS = 10_000;
+    private static final int USER = 10;
+
+    @TempDir
+    File mDataDir;
+
+    private NextAppConfig mCfg;
+    private NextAppUserEngines mEngines;
+
+    @BeforeEach
+    void setUp() {
+        System.setProperty("nextapp.dataDir", mDataDir.getPath());
+        mCfg = new NextAppConfig();
+        mCfg.userEvictMinIdleMs = 0;
+        mCfg.userModelsBudgetBytes = Long.MAX_VALUE;
+        mEngines = new NextAppUserEngines(mCfg);
+    }
+
+    @AfterEach
+    void tearDown() {
+        mEngines.shutdown();
+    }
+
+    @Test
+    void loadEvictReload() {
+        mEngines.onUserSwitching(USER);
+        final NextAppEngine first = awaitEngine(USER);
+        for (int i = 0; i < 20; i++) first.onForegroundChanged("com.a", "com.b");
+        awaitTrue(() -> markovWeight(first, "com.a", "com.b") > 0);
+
+        // over budget: the user that is no longer current is checkpointed and dropped
+        mCfg.userModelsBudgetBytes = 1;
+        mEngines.onUserSwitching(UserHandle.USER_SYSTEM);
+        awaitTrue(() -> mEngines.getEvictionCount() == 1);
+        assertFalse(first.getTrainer().offer(NextAppTrainer.EVENT_FOREGROUND, 0, 1),
+                "an evicted engine must not train");
+
+        mCfg.userModelsBudgetBytes = Long.MAX_VALUE;
+        final NextAppEngine second = awaitEngine(USER);
+        assertNotSame(first, second);
+        assertEquals(markovWeight(first, "com.a", "com.b"), markovWeight(second, "com.a", "com.b"));
+    }
+
+    @Test
+    void enginesShareTrainerAndCheckpointThreads() {
+        final int trainers = countThreads("NextAppTrainer");
+        final int checkpointers = countThreads("NextAppCheckpoint");
+        for (int user = USER; user < USER + 4; user++) awaitEngine(user);
+        assertEquals(trainers, countThreads("NextAppTrainer"));
+        assertEquals(checkpointers, countThreads("NextAppCheckpoint"));
+    }
+
+    // ---- helpers ----
+
+    private NextAppEngine awaitEngine(int userId) {
+        final NextAppEngine[] e = new NextAppEngine[1];
+        awaitTrue(() -> (e[0] = mEngines.getEngine(userId)) != null);
+        assertNotNull(e[0]);
+        return e[0];
+    }
+
+    private static float markovWeight(NextAppEngine e, String a, String b) {
+        final PackageRegistry packages = e.getPredictor().getPackages();
+        final int idA = packages.idOf(a);
+        final int idB = packages.idOf(b);
+        if (idA == PackageRegistry.NO_ID || idB == PackageRegistry.NO_ID) return 0;
+        return e.getPredictor().getMarkov().weight(idA, idB);
+    }
+
+    private static int countThreads(String name) {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet()) {
+            if (t.isAlive() && name.equals(t.getName())) n++;
+        }
+        return n;
+    }
+
+    static void awaitTrue(BooleanSupplier condition) {
+        final long deadline = System.currentTimeMillis() + WAIT_MS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            try {
+                Thread.sleep(5);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,121 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+/** Mini-batch steps of OnlineLogisticModel for both optimizers, and dimension changes. */
+class OnlineLogisticModelTest {
+    private static final int POW2 = 10;
+    private static final float LR = 0.05f;
+
+    // one positive and three hard negatives sharing features 1 and 2
+    private static final int[] SHARED = {1, 2};
+    private static final int[] ITEMS = {10, 11, 20, 21, 30, 31, 40, 41};
+    private static final int PER_ITEM = 2;
+    private static final int[] LABELS = {1, 0, 0, 0};
+
+    @Test
+    void sgdBatchStepTakesSummedGradientOnSharedFeatures() {
+        final OnlineLogisticModel lr = new OnlineLogisticModel(POW2, LR, 0f);
+        lr.updateBatch(SHARED, SHARED.length, ITEMS, PER_ITEM, LABELS.length, LABELS);
+        // every item scored 0.5 against the zero model: g = 0.5 - label
+        final float gSum = -0.5f + 3 * 0.5f;
+        assertEquals(-LR * gSum, lr.getWeights()[1], 1e-7f);
+        assertEquals(-LR * gSum, lr.getWeights()[2], 1e-7f);
+        assertEquals(LR * 0.5f, lr.getWeights()[10], 1e-7f);
+        assertEquals(-LR * 0.5f, lr.getWeights()[41], 1e-7f);
+        assertEquals(-LR * gSum, lr.getBias(), 1e-7f);
+    }
+
+    @Test
+    void ftrlBatchStepGrowsHistoryBySumOfSquares() {
+        final OnlineLogisticModel lr = new OnlineLogisticModel(POW2, 0.1f, 1f, 0.01f, 1e-6f);
+        // a positive and a negative scored 0.5: gradients -0.5 and +0.5 cancel in the sum
+        lr.updateBatch(SHARED, SHARED.length, new int[] {10, 11, 20, 21}, PER_ITEM, 2,
+                new int[] {1, 0});
+        assertEquals(0.5f, historyOf(lr.getFtrl(), 1), 1e-6f); // 0.25 + 0.25, not 0^2
+        assertEquals(0.5f, historyOf(lr.getFtrl(), 2), 1e-6f);
+        assertEquals(0.5f, lr.getFtrl().getBiasN(), 1e-6f);
+        assertEquals(0.25f, historyOf(lr.getFtrl(), 10), 1e-6f);
+    }
+
+    @Test
+    void ftrlBatchHistoryMatchesPerExampleSteps() {
+        final FtrlWeights batched = new FtrlWeights(POW2, 0.1f, 1f, 0.01f, 1e-6f);
+        final FtrlWeights single = new FtrlWeights(POW2, 0.1f, 1f, 0.01f, 1e-6f);
+        batched.update(3, 0.5f + -0.5f, 0.25f + 0.25f);
+        single.update(3, 0.5f);
+        single.update(3, -0.5f);
+        assertEquals(historyOf(single, 3), historyOf(batched, 3), 1e-6f);
+    }
+
+    @Test
+    void restoreResizedGrowKeepsEveryScore() {
+        final OnlineLogisticModel small = trained(12);
+        final OnlineLogisticModel big = new OnlineLogisticModel(13, LR, 0f);
+        assertEquals(0, big.restoreResized(12, small.getBias(), small.getWeights()));
+        assertTrue(big.hasUnsavedChanges()); // the next checkpoint rewrites it at 2^13
+
+        // the same examples hashed at both sizes: 13-bit buckets extend the 12-bit ones
+        final LogisticTask at12 = new LogisticTask(12, 1, 3);
+        final LogisticTask at13 = new LogisticTask(13, 1, 3);
+        final int[] f12 = new int[LogisticTask.FIELDS];
+        final int[] f13 = new int[LogisticTask.FIELDS];
+        for (int i = 0; i < 2_000; i++) {
+            at12.next(f12);
+            at13.next(f13);
+            assertEquals(small.score(f12, f12.length), big.score(f13, f13.length), "example " + i);
+        }
+    }
+
+    @Test
+    void restoreResizedShrinkFoldsAliasedBuckets() {
+        final OnlineLogisticModel big = trained(12);
+        final OnlineLogisticModel small = new OnlineLogisticModel(11, LR, 0f);
+        final int merged = small.restoreResized(12, big.getBias(), big.getWeights());
+
+        final float[] src = big.getWeights();
+        final int half = 1 << 11;
+        int bothTrained = 0;
+        for (int j = 0; j < half; j++) {
+            assertEquals(src[j] + src[j + half], small.getWeights()[j], "bucket " + j);
+            if (src[j] != 0f && src[j + half] != 0f) bothTrained++;
+        }
+        assertEquals(big.getBias(), small.getBias());
+        assertEquals(bothTrained, merged);
+        assertTrue(merged > 0);
+    }
+
+    @Test
+    void restoreResizedRejectsWeightsOfAnotherLength() {
+        final OnlineLogisticModel lr = new OnlineLogisticModel(11, LR, 0f);
+        assertThrows(IllegalArgumentException.class,
+                () -> lr.restoreResized(12, 0f, new float[1 << 11]));
+    }
+
+    // ---- helpers ----
+
+    /** An SGD model of 2^pow2 buckets trained on the synthetic task. */
+    static OnlineLogisticModel trained(int pow2) {
+        final OnlineLogisticModel lr = new OnlineLogisticModel(pow2, LR, 0f);
+        new LogisticTask(pow2, 1, 2).train(lr, 5_000);
+        return lr;
+    }
+
+    /** n (sum of squared gradients) of feature idx. */
+    private static float historyOf(FtrlWeights ftrl, int idx) {
+        final int size = ftrl.size();
+        final int[] keys = new int[size];
+        final float[] w = new float[size];
+        final float[] z = new float[size];
+        final float[] n = new float[size];
+        ftrl.export(keys, w, z, n);
+        for (int i = 0; i < size; i++) {
+            if (keys[i] == idx) return n[i];
+        }
+        return 0f;
+    }
+}
@@ -0,0 +1,148 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32C;
+
+/** Id bindings survive a save/load; damaged or hostile files load nothing. */
+class PackageRegistryStoreTest {
+    @TempDir
+    File mDir;
+
+    @Test
+    void roundTripKeepsIdsAndHoles() {
+        final PackageRegistry reg = new PackageRegistry();
+        for (int i = 0; i < 100; i++) reg.intern("com.example.p" + i);
+        reg.release("com.example.p3");
+        reg.release("com.example.p50");
+        final PackageRegistryStore store = new PackageRegistryStore(new File(mDir, "packages.bin"));
+        assertTrue(store.write(reg) > 0);
+
+        final PackageRegistry loaded = new PackageRegistry();
+        assertTrue(store.readInto(loaded));
+        assertEquals(reg.size(), loaded.size());
+        assertEquals(reg.idLimit(), loaded.idLimit());
+        for (int id = 0; id < reg.idLimit(); id++) assertEquals(reg.nameOf(id), loaded.nameOf(id));
+        // holes are recycled after a load, as before it
+        final int id = loaded.intern("com.example.new");
+        assertTrue(id == 3 || id == 50, "reused " + id);
+        assertEquals(reg.idLimit(), loaded.idLimit());
+    }
+
+    @Test
+    void missingFileLoadsNothing() {
+        final PackageRegistry reg = new PackageRegistry();
+        assertFalse(new PackageRegistryStore(new File(mDir, "absent.bin")).readInto(reg));
+        assertEquals(0, reg.size());
+    }
+
+    @Test
+    void truncatedOrForeignFileLoadsNothing() throws IOException {
+        final File file = new File(mDir, "packages.bin");
+        final PackageRegistry reg = new PackageRegistry();
+        for (int i = 0; i < 20; i++) reg.intern("com.example.p" + i);
+        assertTrue(new PackageRegistryStore(file).write(reg) > 0);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        for (int len = 0; len < good.length; len++) {
+            Files.write(file.toPath(), Arrays.copyOf(good, len));
+            final PackageRegistry loaded = new PackageRegistry();
+            assertFalse(new PackageRegistryStore(file).readInto(loaded), "truncated to " + len);
+            assertEquals(0, loaded.size());
+            assertNull(loaded.nameOf(0));
+        }
+
+        final byte[] foreign = good.clone();
+        foreign[3] ^= 1; // magic
+        Files.write(file.toPath(), foreign);
+        assertFalse(new PackageRegistryStore(file).readInto(new PackageRegistry()));
+    }
+
+    @Test
+    void flippedBitsLoadNothing() throws IOException {
+        final File file = new File(mDir, "packages.bin");
+        final PackageRegistry reg = new PackageRegistry();
+        for (int i = 0; i < 20; i++) reg.intern("com.example.p" + i);
+        assertTrue(new PackageRegistryStore(file).write(reg) > 0);
+        final byte[] good = Files.readAllBytes(file.toPath());
+
+        final Random rnd = new Random(1);
+        for (int trial = 0; trial < 200; trial++) {
+            Files.write(file.toPath(), LrAtomicStoreTest.flipBit(good, rnd));
+            final PackageRegistry loaded = new PackageRegistry();
+            assertFalse(new PackageRegistryStore(file).readInto(loaded), "trial " + trial);
+            assertEquals(0, loaded.size());
+        }
+    }
+
+    @Test
+    void outOfRangeIdsLoadNothing() throws IOException {
+        final File file = new File(mDir, "packages.bin");
+        final int[] badIds = {1_200_000_000, 100_000_000, PackageRegistry.MAX_IDS, -1,
+                Integer.MIN_VALUE, Integer.MAX_VALUE};
+        for (int id : badIds) {
+            // checksummed files whose only flaw is the id (v2), and unchecked v1 files
+            for (boolean v1 : new boolean[] {false, true}) {
+                Files.write(file.toPath(), file(v1, Integer.MAX_VALUE, 1, id, "com.example.a"));
+                final PackageRegistry loaded = new PackageRegistry();
+                assertFalse(new PackageRegistryStore(file).readInto(loaded), "id " + id);
+                assertEquals(0, loaded.size());
+            }
+            Files.write(file.toPath(), file(false, 8, 1, id, "com.example.a"));
+            assertFalse(new PackageRegistryStore(file).readInto(new PackageRegistry()));
+        }
+        // an id at or past the declared limit, and more entries than the limit allows
+        Files.write(file.toPath(), file(false, 8, 1, 8, "com.example.a"));
+        assertFalse(new PackageRegistryStore(file).readInto(new PackageRegistry()));
+        Files.write(file.toPath(), file(false, 0, 1, 0, "com.example.a"));
+        assertFalse(new PackageRegistryStore(file).readInto(new PackageRegistry()));
+        Files.write(file.toPath(), file(false, 8, -1, 0, "com.example.a"));
+        assertFalse(new PackageRegistryStore(file).readInto(new PackageRegistry()));
+    }
+
+    @Test
+    void version1FileStillLoads() throws IOException {
+        final File file = new File(mDir, "packages.bin");
+        Files.write(file.toPath(), file(true, 0, 1, 5, "com.example.a"));
+        final PackageRegistry loaded = new PackageRegistry();
+        assertTrue(new PackageRegistryStore(file).readInto(loaded));
+        assertEquals(5, loaded.idOf("com.example.a"));
+        assertEquals(6, loaded.idLimit());
+    }
+
+    // ---- helpers ----
+
+    /** A registry file with count entries all of the given (id, name); v1 has no limit or CRC. */
+    private static byte[] file(boolean v1, int idLimit, int count, int id, String name)
+            throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0x4E41504B);
+        out.writeInt(v1 ? 1 : 2);
+        if (!v1) out.writeInt(idLimit);
+        out.writeInt(count);
+        for (int i = 0; i < Math.max(0, count); i++) {
+            out.writeInt(id);
+            out.writeUTF(name);
+        }
+        if (!v1) {
+            final CRC32C crc = new CRC32C();
+            crc.update(bytes.toByteArray());
+            out.writeInt((int) crc.getValue());
+        }
+        return bytes.toByteArray();
+    }
+}
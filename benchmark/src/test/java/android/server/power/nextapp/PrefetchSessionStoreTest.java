@@ -0,0 +1,109 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+/** LRU order, pooling and package removal of PrefetchSessionStore. */
+class PrefetchSessionStoreTest {
+    private static final int MAX_CANDIDATES = 4;
+    private static final int NO_ID = PackageRegistry.NO_ID;
+
+    @Test
+    void evictsLeastRecentlyPut() {
+        final PrefetchSessionStore store = new PrefetchSessionStore(8, MAX_CANDIDATES);
+        for (int a = 0; a < 8; a++) put(store, a, a + 100);
+        put(store, 0, 200); // refreshes 0: 1 is now the oldest
+        put(store, 8, 108);
+        assertEquals(8, store.size());
+        assertEquals(1, store.evictionCount());
+        final PrefetchSessionStore.Session s = new PrefetchSessionStore.Session(MAX_CANDIDATES);
+        assertFalse(store.peek(1, s));
+        assertTrue(store.peek(0, s));
+        assertEquals(200, s.candidates[0]);
+        assertTrue(store.peek(8, s));
+    }
+
+    @Test
+    void recycledSessionsCarryNoStaleState() {
+        final PrefetchSessionStore store = new PrefetchSessionStore(8, MAX_CANDIDATES);
+        final PrefetchSessionStore.Session s = new PrefetchSessionStore.Session(MAX_CANDIDATES);
+        store.put(1, 7, null, 10L, new int[] {2, 3, 4, 5, 6, 7}, 6, new int[] {2}, 1);
+        assertTrue(store.take(1, s));
+        assertEquals(MAX_CANDIDATES, s.candidateCount); // clamped
+        assertArrayEquals(new int[] {2, 3, 4, 5}, Arrays.copyOf(s.candidates, s.candidateCount));
+        assertFalse(store.peek(1, s));
+
+        // the pooled session comes back for another A with fewer candidates
+        store.put(9, NO_ID, null, 20L, new int[] {3}, 1, new int[0], 0);
+        assertTrue(store.take(9, s));
+        assertEquals(9, s.pkgA);
+        assertEquals(NO_ID, s.prevPkg);
+        assertEquals(20L, s.t0Millis);
+        assertEquals(1, s.candidateCount);
+        assertEquals(3, s.candidates[0]);
+        assertEquals(0, s.prefetchedCount);
+        assertEquals(0, store.size());
+    }
+
+    @Test
+    void removePackageDropsEveryReference() {
+        final PrefetchSessionStore store = new PrefetchSessionStore(16, MAX_CANDIDATES);
+        store.put(1, NO_ID, null, 0L, new int[] {2}, 1, new int[0], 0);   // 5 nowhere
+        store.put(2, 5, null, 0L, new int[] {3}, 1, new int[0], 0);       // 5 as previous app
+        store.put(3, NO_ID, null, 0L, new int[] {4, 5}, 2, new int[0], 0); // 5 as candidate
+        store.put(5, NO_ID, null, 0L, new int[] {1}, 1, new int[0], 0);   // 5 as A
+        store.removePackage(5);
+        assertEquals(1, store.size());
+        assertTrue(store.peek(1, new PrefetchSessionStore.Session(MAX_CANDIDATES)));
+    }
+
+    @Test
+    void concurrentPutAndTakeStayWithinCapacity() throws InterruptedException {
+        final PrefetchSessionStore store = new PrefetchSessionStore(32, MAX_CANDIDATES);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int seed = t;
+            threads[t] = new Thread(() -> {
+                final Random rnd = new Random(seed);
+                final PrefetchSessionStore.Session s =
+                        new PrefetchSessionStore.Session(MAX_CANDIDATES);
+                final int[] cands = new int[MAX_CANDIDATES];
+                try {
+                    for (int i = 0; i < 100_000; i++) {
+                        final int a = rnd.nextInt(64);
+                        if (rnd.nextBoolean()) {
+                            Arrays.fill(cands, a + 1000);
+                            store.put(a, NO_ID, null, i, cands, MAX_CANDIDATES, cands, 1);
+                        } else if (store.take(a, s)) {
+                            // a session is always copied whole, never mixed with another A's
+                            if (s.pkgA != a || s.candidates[MAX_CANDIDATES - 1] != a + 1000) {
+                                throw new AssertionError("torn session for " + a);
+                            }
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads) t.join();
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertTrue(store.size() <= 32);
+    }
+
+    // ---- helpers ----
+
+    private static void put(PrefetchSessionStore store, int a, int candidate) {
+        store.put(a, NO_ID, null, 0L, new int[] {candidate}, 1, new int[0], 0);
+    }
+}
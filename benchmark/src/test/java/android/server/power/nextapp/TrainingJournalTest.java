@@ -0,0 +1,243 @@
+package android.server.power.nextapp;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/** Journal segments, the checkpoint marker, torn tails and id mapping on replay. */
+class TrainingJournalTest {
+    private static final int NO_ID = PackageRegistry.NO_ID;
+
+    @TempDir
+    File mDir;
+
+    private File mJournalDir;
+    private File mMarker;
+    private NextAppConfig mCfg;
+
+    @BeforeEach
+    void setUp() {
+        mJournalDir = new File(mDir, "journal");
+        mMarker = new File(mDir, "marker.bin");
+        mCfg = new NextAppConfig();
+    }
+
+    @Test
+    void replayMapsIdsThroughNames() {
+        final PackageRegistry packages = new PackageRegistry();
+        final int a = packages.intern("com.a");
+        final int b = packages.intern("com.b");
+        final int c = packages.intern("com.c");
+        final TrainingJournal journal = newJournal(packages);
+        journal.append(NextAppTrainer.EVENT_FOREGROUND, a, b,
+                session(c, new NextAppContext(3, 2, "com.c", 1, true)));
+        journal.append(NextAppTrainer.EVENT_TTL_NO_NEXT, b, NO_ID, null);
+        journal.append(NextAppTrainer.EVENT_PREFETCH_NOT_USED, c, a, session(NO_ID, null));
+        journal.append(TrainingJournal.EVENT_PACKAGE_REMOVED, c, NO_ID, null);
+        journal.close();
+
+        // another run: the names get other ids
+        final PackageRegistry other = new PackageRegistry();
+        other.intern("com.x");
+        other.intern("com.c");
+        assertEquals(Arrays.asList(
+                "0 com.a com.b com.c ctx(3,2,com.c,1,true)",
+                "1 com.b null null -",
+                "2 com.c com.a null ctx(0,0,null,0,false)",
+                "8 com.c null null -"), replayAll(other));
+    }
+
+    @Test
+    void recycledIdIsDeclaredAgainUnderItsNewName() {
+        final PackageRegistry packages = new PackageRegistry();
+        final int a = packages.intern("com.a");
+        final int b = packages.intern("com.b");
+        final TrainingJournal journal = newJournal(packages);
+        journal.append(NextAppTrainer.EVENT_FOREGROUND, a, b, null);
+        journal.append(TrainingJournal.EVENT_PACKAGE_REMOVED, b, NO_ID, null);
+        packages.release("com.b");
+        assertEquals(b, packages.intern("com.z"));
+        journal.append(NextAppTrainer.EVENT_FOREGROUND, a, b, null);
+        journal.close();
+
+        assertEquals(Arrays.asList(
+                "0 com.a com.b null -",
+                "8 com.b null null -",
+                "0 com.a com.z null -"), replayAll(new PackageRegistry()));
+    }
+
+    @Test
+    void tornTailReplaysAPrefix() throws IOException {
+        final PackageRegistry packages = registry(8);
+        final TrainingJournal journal = newJournal(packages);
+        appendRandom(journal, packages, new Random(1), 60);
+        journal.close();
+        final List<String> full = replayAll(new PackageRegistry());
+        assertEquals(60, full.size());
+
+        final File seg = onlySegment();
+        final byte[] bytes = Files.readAllBytes(seg.toPath());
+        int last = 0;
+        for (int len = 0; len <= bytes.length; len++) {
+            Files.write(seg.toPath(), Arrays.copyOf(bytes, len));
+            final List<String> got = replayAll(new PackageRegistry());
+            assertEquals(full.subList(0, got.size()), got, "length " + len);
+            assertTrue(got.size() >= last, "length " + len);
+            last = got.size();
+        }
+        assertEquals(full.size(), last);
+    }
+
+    @Test
+    void damagedRecordEndsTheSegment() throws IOException {
+        final PackageRegistry packages = registry(8);
+        final TrainingJournal journal = newJournal(packages);
+        appendRandom(journal, packages, new Random(2), 60);
+        journal.close();
+        final List<String> full = replayAll(new PackageRegistry());
+        final File seg = onlySegment();
+        final byte[] good = Files.readAllBytes(seg.toPath());
+
+        final Random rnd = new Random(3);
+        for (int trial = 0; trial < 300; trial++) {
+            Files.write(seg.toPath(), LrAtomicStoreTest.flipBit(good, rnd));
+            final List<String> got = replayAll(new PackageRegistry());
+            assertEquals(full.subList(0, got.size()), got, "trial " + trial);
+        }
+        // the last record: everything but the last event
+        final byte[] bad = good.clone();
+        bad[bad.length - 10] ^= 1;
+        Files.write(seg.toPath(), bad);
+        assertEquals(full.subList(0, full.size() - 1), replayAll(new PackageRegistry()));
+    }
+
+    @Test
+    void markerSkipsCheckpointedEvents() throws IOException {
+        final PackageRegistry packages = registry(8);
+        final TrainingJournal journal = newJournal(packages);
+        appendRandom(journal, packages, new Random(4), 10);
+        final long covered = journal.lastSeq() - 3;
+        assertTrue(journal.markCheckpointed(covered) > 0);
+        assertEquals(0, journal.markCheckpointed(covered)); // not going backwards
+        journal.close();
+
+        final List<String> all = new ArrayList<>();
+        final PackageRegistry fresh = new PackageRegistry();
+        assertEquals(3, newJournal(fresh).replay(recorder(fresh, all)));
+
+        // a damaged marker replays everything: a double apply beats a loss
+        final byte[] marker = Files.readAllBytes(mMarker.toPath());
+        marker[9] ^= 4;
+        Files.write(mMarker.toPath(), marker);
+        assertEquals(10, replayAll(new PackageRegistry()).size());
+    }
+
+    @Test
+    void laterRunsContinueTheSequence() {
+        final PackageRegistry packages = registry(8);
+        final TrainingJournal first = newJournal(packages);
+        appendRandom(first, packages, new Random(5), 20);
+        first.close();
+        final List<String> before = replayAll(new PackageRegistry());
+
+        // a crash: the next run resumes above everything on disk, in a new segment
+        final TrainingJournal second = newJournal(packages);
+        assertTrue(second.lastSeq() >= first.lastSeq());
+        appendRandom(second, packages, new Random(6), 20);
+        second.close();
+        assertEquals(2, mJournalDir.list().length);
+        final List<String> after = replayAll(new PackageRegistry());
+        assertEquals(40, after.size());
+        assertEquals(before, after.subList(0, 20));
+    }
+
+    @Test
+    void rotationDeletesCoveredSegments() {
+        mCfg.journalSegmentBytes = 32 * TrainingJournal.RECORD;
+        final PackageRegistry packages = registry(4);
+        final TrainingJournal journal = newJournal(packages);
+        appendRandom(journal, packages, new Random(7), 100);
+        assertTrue(mJournalDir.list().length > 3);
+        final long covered = journal.lastSeq();
+        journal.markCheckpointed(covered);
+        appendRandom(journal, packages, new Random(8), 40);
+        journal.close();
+
+        // what is left starts with the segment holding the first uncovered event
+        final String[] names = mJournalDir.list();
+        Arrays.sort(names);
+        assertTrue(firstSeqOf(names[0]) <= covered + 1);
+        assertTrue(firstSeqOf(names[1]) > covered + 1);
+        assertEquals(40, replayAll(new PackageRegistry()).size());
+    }
+
+    // ---- helpers ----
+
+    private TrainingJournal newJournal(PackageRegistry packages) {
+        return new TrainingJournal(mJournalDir, mMarker, mCfg, packages);
+    }
+
+    /** Every event after the marker, as "type a b prev ctx" with package names. */
+    private List<String> replayAll(PackageRegistry packages) {
+        final List<String> events = new ArrayList<>();
+        final TrainingJournal journal = newJournal(packages);
+        journal.replay(recorder(packages, events));
+        return events;
+    }
+
+    private static TrainingJournal.Replayer recorder(PackageRegistry p, List<String> out) {
+        return (type, a, b, prev, ctx) -> {
+            out.add(type + " " + p.nameOf(a) + " " + p.nameOf(b) + " " + p.nameOf(prev) + " "
+                    + (ctx == null ? "-" : "ctx(" + ctx.timeBucket + "," + ctx.allowReason + ","
+                    + ctx.prevForegroundPkg + "," + ctx.batteryBucket + ","
+                    + ctx.maxPowerMode + ")"));
+        };
+    }
+
+    private static void appendRandom(TrainingJournal journal, PackageRegistry packages,
+                                     Random rnd, int count) {
+        final int n = packages.size();
+        for (int i = 0; i < count; i++) {
+            final int a = rnd.nextInt(n);
+            final int b = (a + 1 + rnd.nextInt(n - 1)) % n;
+            final PrefetchSessionStore.Session s = rnd.nextBoolean() ? null
+                    : session(rnd.nextInt(n), new NextAppContext(rnd.nextInt(4), rnd.nextInt(5),
+                            packages.nameOf(a), rnd.nextInt(4), rnd.nextBoolean()));
+            journal.append(rnd.nextInt(4), a, b, s);
+        }
+    }
+
+    private static PrefetchSessionStore.Session session(int prev, NextAppContext ctx) {
+        final PrefetchSessionStore.Session s = new PrefetchSessionStore.Session(4);
+        s.prevPkg = prev;
+        s.ctxAtA = ctx;
+        return s;
+    }
+
+    private static PackageRegistry registry(int count) {
+        final PackageRegistry packages = new PackageRegistry();
+        for (int i = 0; i < count; i++) packages.intern("com.example.app" + i);
+        return packages;
+    }
+
+    private static long firstSeqOf(String segment) {
+        return Long.parseLong(segment.substring(0, segment.indexOf('.')), 16);
+    }
+
+    private File onlySegment() {
+        final File[] segs = mJournalDir.listFiles();
+        assertEquals(1, segs.length);
+        return segs[0];
+    }
+}